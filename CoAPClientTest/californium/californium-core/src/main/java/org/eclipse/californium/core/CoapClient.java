@@ -20,15 +20,25 @@
 package org.eclipse.californium.core;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.BlockSource;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.LinkFormat;
@@ -62,9 +72,15 @@ public class CoapClient {
 	/** The client-specific executor service. */
 	private ExecutorService executor;
 	
+	/** Whether the client has created its executor itself */
+	private boolean ownExecutor;
+	
 	/** The endpoint. */
 	private Endpoint endpoint;
 	
+	/** The pipelines of confirmable future-based requests per server */
+	private final ConcurrentHashMap<InetSocketAddress, Pipeline> pipelines = new ConcurrentHashMap<InetSocketAddress, Pipeline>();
+	
 	/**
 	 * Constructs a new CoapClient that has no destination URI yet.
 	 */
@@ -157,7 +173,7 @@ public class CoapClient {
 	 * @return the CoAP client
 	 */
 	public CoapClient useExecutor() {
-		this.executor = Executors.newSingleThreadExecutor();
+		replaceExecutor(Executors.newSingleThreadExecutor(), true);
 		
 		// activates the executor so that this user thread starts deterministically
 		executor.execute(new Runnable() {
@@ -169,17 +185,44 @@ public class CoapClient {
 		return this;
 	}
 
+	/**
+	 * Sets an executor to this client that invokes each handler on its own
+	 * virtual thread, so that handlers may block, e.g., on a database. On
+	 * Java runtimes without virtual threads, a cached pool of daemon threads
+	 * is used instead. An executor that the client has created before is
+	 * shut down.
+	 *
+	 * @return the CoAP client
+	 * @see Utils#newVirtualThreadExecutor()
+	 */
+	public CoapClient useVirtualThreads() {
+		replaceExecutor(Utils.newVirtualThreadExecutor(), true);
+		return this;
+	}
+
 	/**
 	 * Sets the executor service for this client.
-	 * All handlers will be invoked by this executor.
+	 * All handlers will be invoked by this executor. An executor that the
+	 * client has created before is shut down, the specified one is left to
+	 * the caller.
 	 *
 	 * @param executor the executor service
 	 * @return the CoAP client
 	 */
 	public CoapClient setExecutor(ExecutorService executor) {
-		this.executor = executor;
+		replaceExecutor(executor, false);
 		return this;
 	}
+	
+	/*
+	 * Only shuts down the previous executor if the client has created it.
+	 */
+	private void replaceExecutor(ExecutorService executor, boolean own) {
+		if (this.executor != null && ownExecutor)
+			this.executor.shutdown();
+		this.executor = executor;
+		this.ownExecutor = own;
+	}
 
 	/**
 	 * Gets the endpoint this client uses.
@@ -388,6 +431,19 @@ public class CoapClient {
 		return synchronous(format(Request.newPost().setURI(uri).setPayload(payload), format));
 	}
 	
+	/**
+	 * Sends a POST request with the body from the specified source and the
+	 * specified Content-Format and blocks until the response is available. A
+	 * large body is sent blockwise with each block read from the source.
+	 *
+	 * @param source the source of the body
+	 * @param format the Content-Format
+	 * @return the CoAP response
+	 */
+	public CoapResponse post(BlockSource source, int format) {
+		return synchronous(format(Request.newPost().setURI(uri).setPayloadSource(source), format));
+	}
+	
 	/**
 	 * Sends a POST request with the specified payload, the specified content
 	 * format and the specified Accept option and blocks until the response is
@@ -502,6 +558,19 @@ public class CoapClient {
 		return synchronous(format(Request.newPut().setURI(uri).setPayload(payload), format));
 	}
 	
+	/**
+	 * Sends a PUT request with the body from the specified source and the
+	 * specified Content-Format and blocks until the response is available. A
+	 * large body is sent blockwise with each block read from the source.
+	 *
+	 * @param source the source of the body
+	 * @param format the Content-Format
+	 * @return the CoAP response
+	 */
+	public CoapResponse put(BlockSource source, int format) {
+		return synchronous(format(Request.newPut().setURI(uri).setPayloadSource(source), format));
+	}
+	
 	/**
 	 * Sends a PUT request with with the specified ETags in the If-Match option
 	 * and blocks until the response is available.
@@ -577,6 +646,19 @@ public class CoapClient {
 	public void put(CoapHandler handler, byte[] payload, int format) {
 		asynchronous(format(Request.newPut().setURI(uri).setPayload(payload), format), handler);
 	}
+	
+	/**
+	 * Sends a PUT request with the body from the specified source and the
+	 * specified Content-Format and invokes the specified handler when a
+	 * response arrives.
+	 * 
+	 * @param handler the Response handler
+	 * @param source the source of the body
+	 * @param format the Content-Format
+	 */
+	public void put(CoapHandler handler, BlockSource source, int format) {
+		asynchronous(format(Request.newPut().setURI(uri).setPayloadSource(source), format), handler);
+	}
 
 	/**
 	 * 
@@ -665,6 +747,160 @@ public class CoapClient {
 		asynchronous(request, handler);
 	}
 	
+	// Future-based requests
+	
+	/**
+	 * Sends a GET request and returns a future for the response. Confirmable
+	 * requests to the same server are pipelined: at most NSTART of them are
+	 * outstanding and the others wait in the client until one completes.
+	 *
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> getAsync() {
+		return future(Request.newGet().setURI(uri), executor);
+	}
+	
+	/**
+	 * Sends a GET request with the specified Accept option and returns a
+	 * future for the response.
+	 *
+	 * @param accept the Accept option
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> getAsync(int accept) {
+		return future(accept(Request.newGet().setURI(uri), accept), executor);
+	}
+	
+	/**
+	 * Sends a POST request with the specified payload and the specified content
+	 * format option and returns a future for the response.
+	 *
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> postAsync(String payload, int format) {
+		return future(format(Request.newPost().setURI(uri).setPayload(payload), format), executor);
+	}
+	
+	/**
+	 * Sends a POST request with the specified payload and the specified content
+	 * format option and returns a future for the response.
+	 *
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> postAsync(byte[] payload, int format) {
+		return future(format(Request.newPost().setURI(uri).setPayload(payload), format), executor);
+	}
+	
+	/**
+	 * Sends a PUT request with the specified payload and the specified content
+	 * format and returns a future for the response.
+	 *
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> putAsync(String payload, int format) {
+		return future(format(Request.newPut().setURI(uri).setPayload(payload), format), executor);
+	}
+	
+	/**
+	 * Sends a PUT request with the specified payload and the specified content
+	 * format and returns a future for the response.
+	 *
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> putAsync(byte[] payload, int format) {
+		return future(format(Request.newPut().setURI(uri).setPayload(payload), format), executor);
+	}
+	
+	/**
+	 * Sends a DELETE request and returns a future for the response.
+	 *
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> deleteAsync() {
+		return future(Request.newDelete().setURI(uri), executor);
+	}
+	
+	/**
+	 * Sends an advanced request that has to be configured by the developer
+	 * and returns a future for the response.
+	 *
+	 * @param request the custom request
+	 * @return the future of the response
+	 */
+	public CoapFuture<CoapResponse> advancedAsync(Request request) {
+		request.setURI(uri);
+		return future(request, executor);
+	}
+	
+	/**
+	 * Sends all specified requests and returns a future for the list of their
+	 * responses. The list has the same order as the requests and contains null
+	 * for requests that have failed. Requests without a destination are sent
+	 * to the URI of this client, the others keep theirs, so that one call can
+	 * poll many servers. Confirmable requests are pipelined per server.
+	 *
+	 * @param requests the requests
+	 * @return the future of all responses
+	 */
+	public CoapFuture<List<CoapResponse>> sendAll(List<Request> requests) {
+		final CoapFuture<List<CoapResponse>> all = new CoapFuture<List<CoapResponse>>(new ArrayList<Request>(requests), executor);
+		final CoapResponse[] responses = new CoapResponse[requests.size()];
+		final AtomicInteger pending = new AtomicInteger(requests.size());
+		if (requests.isEmpty())
+			all.complete(Arrays.asList(responses));
+		for (int i=0; i<responses.length; i++) {
+			final int index = i;
+			Request request = requests.get(i);
+			if (request.getDestination() == null)
+				request.setURI(uri);
+			// the aggregate notifies its listeners on the executor
+			future(request, null).addListener(new CoapFuture.Listener<CoapResponse>() {
+				public void completed(CoapResponse response) {
+					responses[index] = response;
+					if (pending.decrementAndGet() == 0)
+						all.complete(Arrays.asList(responses));
+				}
+			});
+		}
+		return all;
+	}
+	
+	/**
+	 * Sends an observe request and returns a future for the observe relation
+	 * that is done when the first response has arrived. The specified handler
+	 * is invoked each time a notification arrives. If the server does not
+	 * establish the relation, it is canceled.
+	 *
+	 * @param handler the Response handler
+	 * @return the future of the CoAP observe relation
+	 */
+	public CoapFuture<CoapObserveRelation> observeAsync(CoapHandler handler) {
+		Request request = Request.newGet().setURI(uri).setObserve();
+		return observeAsync(request, handler);
+	}
+	
+	/**
+	 * Sends an observe request with the specified Accept option and returns a
+	 * future for the observe relation that is done when the first response
+	 * has arrived.
+	 *
+	 * @param handler the Response handler
+	 * @param accept the Accept option
+	 * @return the future of the CoAP observe relation
+	 */
+	public CoapFuture<CoapObserveRelation> observeAsync(CoapHandler handler, int accept) {
+		Request request = Request.newGet().setURI(uri).setObserve();
+		return observeAsync(accept(request, accept), handler);
+	}
+	
 	// Synchronous observer
 	
 	/**
@@ -870,6 +1106,87 @@ public class CoapClient {
 		return relation;
 	}
 	
+	/*
+	 * Sends the specified request pipelined and returns a future for the
+	 * response.
+	 *
+	 * @param request the request
+	 * @param executor the executor for the listeners of the future or null
+	 * @return the future of the response
+	 */
+	private CoapFuture<CoapResponse> future(Request request, Executor executor) {
+		final CoapFuture<CoapResponse> future = new CoapFuture<CoapResponse>(Collections.singletonList(request), executor);
+		request.addMessageObserver(new MessageObserverAdapter() {
+			@Override public void onResponse(Response response) { future.complete(new CoapResponse(response)); }
+			@Override public void onReject()  { future.complete(null); }
+			@Override public void onTimeout() { future.complete(null); }
+			@Override public void onCancel()  { future.complete(null); }
+		});
+		pipeline(request, getEffectiveEndpoint(request));
+		return future;
+	}
+	
+	/*
+	 * Sends the specified observe request pipelined and returns a future for
+	 * the relation.
+	 *
+	 * @param request the request
+	 * @param handler the Response handler
+	 * @return the future of the CoAP observe relation
+	 */
+	private CoapFuture<CoapObserveRelation> observeAsync(Request request, CoapHandler handler) {
+		Endpoint outEndpoint = getEffectiveEndpoint(request);
+		final CoapObserveRelation relation = new CoapObserveRelation(request, outEndpoint);
+		final CoapFuture<CoapObserveRelation> future = new CoapFuture<CoapObserveRelation>(Collections.singletonList(request), executor);
+		request.addMessageObserver(new ObserveMessageObserverImpl(handler, relation));
+		request.addMessageObserver(new MessageObserverAdapter() {
+			@Override public void onResponse(Response response) {
+				if (!response.getOptions().hasObserve())
+					relation.setCanceled(true);
+				future.complete(relation);
+			}
+			@Override public void onReject()  { failed(); }
+			@Override public void onTimeout() { failed(); }
+			@Override public void onCancel()  { failed(); }
+			private void failed() {
+				relation.setCanceled(true);
+				future.complete(relation);
+			}
+		});
+		pipeline(request, outEndpoint);
+		return future;
+	}
+	
+	/*
+	 * Sends the specified request over the specified endpoint once less than
+	 * NSTART confirmable requests to its server are outstanding. Other
+	 * requests are sent immediately, since we cannot know when they end.
+	 *
+	 * @param request the request
+	 * @param outEndpoint the endpoint
+	 */
+	private void pipeline(Request request, Endpoint outEndpoint) {
+		if (type != Type.CON || request.getDestination() == null) {
+			send(request, outEndpoint);
+			return;
+		}
+		InetSocketAddress server = new InetSocketAddress(request.getDestination(), request.getDestinationPort());
+		PipelineEntry entry = new PipelineEntry(request, outEndpoint);
+		request.addMessageObserver(entry);
+		while (true) {
+			Pipeline pipeline = pipelines.get(server);
+			if (pipeline == null) {
+				pipeline = new Pipeline(server, outEndpoint.getConfig().getInt(NetworkConfig.Keys.NSTART));
+				Pipeline previous = pipelines.putIfAbsent(server, pipeline);
+				if (previous != null)
+					pipeline = previous;
+			}
+			if (pipeline.admit(entry))
+				return;
+			// else the pipeline has just become idle and was removed
+		}
+	}
+	
 	/**
 	 * Sends the specified request over the endpoint of the client if one is
 	 * defined or over the default endpoint otherwise.
@@ -1057,6 +1374,95 @@ public class CoapClient {
 		}
 	}
 	
+	/**
+	 * A Pipeline holds the confirmable requests to one server that wait until
+	 * one of the NSTART outstanding requests has completed. It removes itself
+	 * from the client when it becomes idle.
+	 */
+	private class Pipeline {
+		
+		private final InetSocketAddress server;
+		private final int limit;
+		private final LinkedList<PipelineEntry> waiting = new LinkedList<PipelineEntry>();
+		private int outstanding;
+		private boolean retired;
+		
+		private Pipeline(InetSocketAddress server, int limit) {
+			this.server = server;
+			this.limit = Math.max(1, limit);
+		}
+		
+		/**
+		 * Sends the specified request or lets it wait.
+		 * 
+		 * @return false if the pipeline has been removed
+		 */
+		private boolean admit(PipelineEntry entry) {
+			synchronized (this) {
+				if (retired)
+					return false;
+				entry.pipeline = this;
+				if (outstanding >= limit) {
+					waiting.add(entry);
+					return true;
+				}
+				outstanding++;
+			}
+			entry.send();
+			return true;
+		}
+		
+		/**
+		 * Sends the next waiting request when a request has completed.
+		 */
+		private void finished(PipelineEntry entry) {
+			PipelineEntry next;
+			synchronized (this) {
+				if (waiting.remove(entry))
+					return; // canceled before it was sent
+				next = waiting.poll();
+				if (next == null && --outstanding == 0) {
+					retired = true;
+					pipelines.remove(server, this);
+				}
+			}
+			if (next != null)
+				next.send();
+		}
+	}
+	
+	/**
+	 * A PipelineEntry releases the place of its request in the pipeline when
+	 * the first response arrives or the request has failed.
+	 */
+	private class PipelineEntry extends MessageObserverAdapter {
+		
+		private final Request request;
+		private final Endpoint outEndpoint;
+		private final AtomicBoolean finished = new AtomicBoolean();
+		private volatile Pipeline pipeline;
+		
+		private PipelineEntry(Request request, Endpoint outEndpoint) {
+			this.request = request;
+			this.outEndpoint = outEndpoint;
+		}
+		
+		private void send() {
+			CoapClient.this.send(request, outEndpoint);
+		}
+		
+		@Override public void onResponse(Response response) { finish(); }
+		@Override public void onReject()  { finish(); }
+		@Override public void onTimeout() { finish(); }
+		@Override public void onCancel()  { finish(); }
+		
+		private void finish() {
+			Pipeline pipeline = this.pipeline;
+			if (pipeline != null && finished.compareAndSet(false, true))
+				pipeline.finished(this);
+		}
+	}
+	
 	/**
 	 * The Builder can be used to build a CoapClient if the URI's pieces are
 	 * available in separate strings. This is in particular useful to add 
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.Request;
+
+/**
+ * A CoapFuture is the result of an asynchronous call of a {@link CoapClient}.
+ * Like the synchronous calls, the result is null if the request has timed
+ * out, has been rejected or has been canceled. Listeners are invoked once the
+ * result is there, by the client's executor if it defines one. A listener can
+ * also complete another future, e.g., a <code>CompletableFuture</code>:
+ * 
+ * <pre>
+ * final CompletableFuture&lt;CoapResponse&gt; cf = new CompletableFuture&lt;&gt;();
+ * client.getAsync().addListener(cf::complete);
+ * </pre>
+ * 
+ * @param <T> the type of the result
+ */
+public class CoapFuture<T> implements Future<T> {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(CoapFuture.class.getCanonicalName());
+	
+	/**
+	 * A listener is invoked when the future is done.
+	 *
+	 * @param <T> the type of the result
+	 */
+	public interface Listener<T> {
+		
+		/**
+		 * Invoked when the future is done.
+		 * 
+		 * @param result the result or null if the call has failed
+		 */
+		public void completed(T result);
+	}
+	
+	/** The requests to cancel when the future is canceled */
+	private final List<Request> requests;
+	
+	/** The executor for the listeners or null */
+	private final Executor executor;
+	
+	private final CountDownLatch done = new CountDownLatch(1);
+	
+	/** The listeners or null when the future is done */
+	private List<Listener<T>> listeners = new ArrayList<Listener<T>>(1);
+	
+	private volatile T result;
+	private volatile boolean canceled;
+	
+	/**
+	 * Constructs a new future for the specified requests.
+	 * 
+	 * @param requests the requests
+	 * @param executor the executor for the listeners or null
+	 */
+	CoapFuture(List<Request> requests, Executor executor) {
+		this.requests = requests;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Adds the specified listener. If the future is already done, the
+	 * listener is invoked immediately.
+	 * 
+	 * @param listener the listener
+	 * @return this future
+	 */
+	public CoapFuture<T> addListener(Listener<T> listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		notifyListener(listener);
+		return this;
+	}
+	
+	/**
+	 * Completes the future with the specified result unless it is already
+	 * done.
+	 * 
+	 * @param result the result or null if the call has failed
+	 * @return true if this call has completed the future
+	 */
+	boolean complete(T result) {
+		return finish(result, false);
+	}
+	
+	/**
+	 * Cancels the requests of this future and completes it with null.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!finish(null, true))
+			return false;
+		for (Request request:requests)
+			request.cancel();
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return canceled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits until the future is done.
+	 * 
+	 * @return the result or null if the call has failed
+	 */
+	@Override
+	public T get() throws InterruptedException {
+		done.await();
+		return result;
+	}
+
+	/**
+	 * Waits until the future is done or the specified time has passed.
+	 * 
+	 * @return the result or null if the call has failed
+	 * @throws TimeoutException if the future is not done in time
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException();
+		return result;
+	}
+	
+	private boolean finish(T result, boolean cancel) {
+		List<Listener<T>> listeners;
+		synchronized (this) {
+			if (this.listeners == null)
+				return false;
+			listeners = this.listeners;
+			this.listeners = null;
+			this.result = result;
+			this.canceled = cancel;
+		}
+		done.countDown();
+		for (Listener<T> listener:listeners)
+			notifyListener(listener);
+		return true;
+	}
+	
+	private void notifyListener(final Listener<T> listener) {
+		if (executor == null) {
+			invoke(listener);
+		} else {
+			executor.execute(new Runnable() {
+				public void run() {
+					invoke(listener);
+				}
+			});
+		}
+	}
+	
+	private void invoke(Listener<T> listener) {
+		try {
+			listener.completed(result);
+		} catch (Throwable t) {
+			LOGGER.log(Level.WARNING, "Exception while notifying future listener", t);
+		}
+	}
+}
@@ -21,8 +21,12 @@ package org.eclipse.californium.core;
 
 import java.net.URI;
 import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
@@ -34,9 +38,12 @@ import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
 import org.eclipse.californium.core.network.Endpoint;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
 import org.eclipse.californium.core.observe.ObserveNotificationOrderer;
 import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.observe.ObserveRelationContainer;
@@ -45,6 +52,7 @@ import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
 import org.eclipse.californium.core.server.resources.ResourceAttributes;
 import org.eclipse.californium.core.server.resources.ResourceObserver;
+import org.eclipse.californium.core.server.resources.ResponseCache;
 
 /**
  * CoapResource is a basic implementation of a resource. Extend this class to
@@ -111,6 +119,10 @@ import org.eclipse.californium.core.server.resources.ResourceObserver;
  * the resource or one of its ancestors define an executor, the reprocessing is
  * done on the executor. A CoAP observe relation between this resource and a
  * CoAP client is represented by an instance of {@link ObserveRelation}.
+ * If the representation does not depend on the requesting client, a resource
+ * can {@link #setSharedNotifications(boolean) share its notifications} so
+ * that changed() calls {@link #handleGET(CoapExchange)} only once and all
+ * observers receive a copy of the same response.
  * <p>
  * In contrast the class {@link ResourceObserver} has nothing to do with CoAP's
  * observe mechanism but is an implementation of the general observe-pattern. A
@@ -160,6 +172,12 @@ public  class CoapResource implements Resource {
 	/* The notification orderer. */
 	private ObserveNotificationOrderer notificationOrderer;
 	
+	/* Whether all observers receive a copy of the same notification. */
+	private volatile boolean sharedNotifications;
+	
+	/* The cached responses to GET requests or null if disabled. */
+	private volatile ResponseCache responseCache;
+	
 	/**
 	 * Constructs a new resource with the specified name.
 	 *
@@ -203,13 +221,32 @@ public  class CoapResource implements Resource {
 	public void handleRequest(final Exchange exchange) {
 		Code code = exchange.getRequest().getCode();
 		switch (code) {
-			case GET:	handleGET(new CoapExchange(exchange, this)); break;
+			case GET:	handleGET(createGetExchange(exchange)); break;
 			case POST:	handlePOST(new CoapExchange(exchange, this)); break;
 			case PUT:	handlePUT(new CoapExchange(exchange, this)); break;
 			case DELETE: handleDELETE(new CoapExchange(exchange, this)); break;
 		}
 	}
 	
+	/*
+	 * Creates the exchange for a GET request that caches the response of the
+	 * handler if the response cache is enabled.
+	 */
+	private CoapExchange createGetExchange(Exchange exchange) {
+		final ResponseCache cache = responseCache;
+		final Request request = exchange.getRequest();
+		if (cache == null || !cache.isCacheable(request))
+			return new CoapExchange(exchange, this);
+		final int generation = cache.getGeneration();
+		return new CoapExchange(exchange, this) {
+			@Override
+			protected void deliver(Response response) {
+				cache.put(request, response, generation);
+				super.deliver(response);
+			}
+		};
+	}
+	
 	/**
 	 * Handles the GET request in the given CoAPExchange. By default it responds
 	 * with a 4.05 (Method Not Allowed). Override this method to respond
@@ -425,7 +462,7 @@ public  class CoapResource implements Resource {
 	 */
 	@Override
 	public synchronized boolean remove(Resource child) {
-		Resource removed = remove(child.getName());
+		Resource removed = children.remove(child.getName());
 		if (removed == child) {
 			child.setParent(null);
 			child.setPath(null);
@@ -444,7 +481,12 @@ public  class CoapResource implements Resource {
 	 * @return the removed resource or null
 	 */
 	public synchronized Resource remove(String name) {
-		return children.remove(name);
+		Resource removed = children.remove(name);
+		if (removed != null) {
+			for (ResourceObserver obs : observers)
+				obs.removedChild(removed);
+		}
+		return removed;
 	}
 	
 	/**
@@ -652,6 +694,65 @@ public  class CoapResource implements Resource {
 		this.observable = observable;
 	}
 	
+	/**
+	 * Returns true if all observers of this resource receive a copy of the
+	 * same notification.
+	 * 
+	 * @return true if notifications are shared
+	 */
+	public boolean isSharedNotifications() {
+		return sharedNotifications;
+	}
+	
+	/**
+	 * Defines whether all observers of this resource receive a copy of the
+	 * same notification. If true, {@link #changed()} calls
+	 * {@link #handleGET(CoapExchange)} only once with the request of one of
+	 * the observers. The code, options and serialized payload of the response
+	 * are then shared by the notifications to all observers, which only
+	 * differ in their token, MID and message type. Only enable this if the
+	 * representation does not depend on the requesting client, e.g., on its
+	 * address, Accept option or query. A response with a body from a
+	 * {@link org.eclipse.californium.core.coap.BlockSource} cannot be shared;
+	 * the requests of the other observers are then processed separately. By
+	 * default, notifications are not shared.
+	 * 
+	 * @param shared true to share notifications
+	 */
+	public void setSharedNotifications(boolean shared) {
+		this.sharedNotifications = shared;
+	}
+	
+	/**
+	 * Returns the cache with the responses to GET requests or null if
+	 * responses are not cached.
+	 * 
+	 * @return the response cache or null
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/**
+	 * Defines whether the 2.05 (Content) responses of
+	 * {@link #handleGET(CoapExchange)} are cached. Cached responses are sent
+	 * by the {@link ServerMessageDeliverer} without calling the handler until
+	 * their Max-Age expires or until {@link #changed()} is called. Only enable
+	 * this if the representation depends on nothing else than the Accept
+	 * option and the query and if every change of the state calls
+	 * {@link #changed()}, also if the resource is not observable. By default,
+	 * responses are not cached.
+	 * 
+	 * @param caching true to cache responses
+	 * @see ResponseCache
+	 */
+	public void setResponseCaching(boolean caching) {
+		if (!caching)
+			responseCache = null;
+		else if (responseCache == null)
+			responseCache = new ResponseCache();
+	}
+	
 	/**
 	 * Sets the type of the notifications that will be sent.
 	 * If set to null (default) the type matching the request will be used.
@@ -704,9 +805,13 @@ public  class CoapResource implements Resource {
 	 * request that has established the relation. The notification is done by
 	 * the executor of this resource or on the executor of its parent or
 	 * transitively ancestor. If no ancestor defines its own executor, the
-	 * thread that has called this method performs the notification.
+	 * thread that has called this method performs the notification. Cached
+	 * responses are removed immediately.
 	 */
 	public void changed() {
+		ResponseCache cache = responseCache;
+		if (cache != null) cache.invalidate();
+		
 		Executor executor = getExecutor();
 		// use thread from the protocol stage
 		if (executor == null) notifyObserverRelations();
@@ -724,8 +829,99 @@ public  class CoapResource implements Resource {
 	 */
 	protected void notifyObserverRelations() {
 		notificationOrderer.getNextObserveNumber();
+		if (sharedNotifications) {
+			notifySharedObserverRelations();
+		} else {
+			for (ObserveRelation relation:observeRelations) {
+				relation.notifyObservers();
+			}
+		}
+	}
+	
+	/**
+	 * Reprocesses the request of the specified relation with a new observe
+	 * number. The observer then accepts the notification as fresh even if the
+	 * state of this resource has not changed. The observe layer uses
+	 * this to refresh a relation after the maximum notification interval.
+	 * 
+	 * @param relation the observe relation to refresh
+	 */
+	public void refreshObserveRelation(ObserveRelation relation) {
+		notificationOrderer.getNextObserveNumber();
+		relation.notifyObservers();
+	}
+	
+	/**
+	 * Processes the request of one observer and sends the response as
+	 * notification to all observers. The response might also come from
+	 * another thread if the handler responds asynchronously.
+	 */
+	private void notifySharedObserverRelations() {
+		Iterator<ObserveRelation> iterator = observeRelations.iterator();
+		if (!iterator.hasNext()) return;
+		final ObserveRelation first = iterator.next();
+		handleGET(new CoapExchange(first.getExchange(), this) {
+			@Override
+			protected void deliver(Response response) {
+				if (response.getPayloadSource() == null) {
+					sendSharedNotification(response);
+				} else {
+					// a source is read while the notification is transferred
+					// blockwise and closed with its exchange, so that each
+					// observer needs its own
+					super.deliver(response);
+					for (ObserveRelation relation:observeRelations) {
+						if (relation != first)
+							relation.notifyObservers();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sends a copy of the specified response to all observers. The options
+	 * and payload are serialized once and the notifications to the observers
+	 * of the same endpoint are sent as a batch.
+	 * 
+	 * @param template the response from the handler
+	 */
+	private void sendSharedNotification(Response template) {
+		boolean success = CoAP.ResponseCode.isSuccess(template.getCode());
+		// all notifications of this change carry the same observe number
+		if (success) template.getOptions().setObserve(notificationOrderer.getCurrent());
+		byte[] body = new DataSerializer().serializeBody(template);
+		
+		Map<Endpoint, List<Exchange>> exchanges = new HashMap<Endpoint, List<Exchange>>();
+		Map<Endpoint, List<Response>> notifications = new HashMap<Endpoint, List<Response>>();
 		for (ObserveRelation relation:observeRelations) {
-			relation.notifyObservers();
+			Exchange exchange = relation.getExchange();
+			Response notification = new Response(template.getCode());
+			notification.setType(template.getType());
+			notification.setOptions(template.getOptions());
+			notification.setPayload(template.getPayload());
+			notification.setSharedBody(body);
+			// the same as checkObserveRelation() for an established relation
+			if (success && observeType != null) notification.setType(observeType);
+			
+			Endpoint endpoint = exchange.getEndpoint();
+			if (!exchanges.containsKey(endpoint)) {
+				exchanges.put(endpoint, new ArrayList<Exchange>());
+				notifications.put(endpoint, new ArrayList<Response>());
+			}
+			exchanges.get(endpoint).add(exchange);
+			notifications.get(endpoint).add(notification);
+		}
+		
+		for (Endpoint endpoint:exchanges.keySet()) {
+			if (endpoint instanceof CoAPEndpoint) {
+				((CoAPEndpoint) endpoint).sendResponses(exchanges.get(endpoint), notifications.get(endpoint));
+			} else {
+				List<Response> responses = notifications.get(endpoint);
+				int i = 0;
+				for (Exchange exchange:exchanges.get(endpoint))
+					exchange.sendResponse(responses.get(i++));
+			}
 		}
 	}
 
@@ -19,6 +19,7 @@
  ******************************************************************************/
 package org.eclipse.californium.core;
 
+import org.eclipse.californium.core.coap.BlockSource;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Response;
@@ -84,6 +85,17 @@ public class CoapResponse {
 		return response.getPayload();
 	}
 	
+	/**
+	 * Gets the source of a large payload. A body that has been received
+	 * blockwise and exceeded the spool threshold is held in a file instead of
+	 * the payload array. The caller must close the source to delete the file.
+	 *
+	 * @return the payload source or null if the payload is an array
+	 */
+	public BlockSource getPayloadSource() {
+		return response.getPayloadSource();
+	}
+	
 	/**
 	 * Gets the set of options of this response.
 	 *
@@ -23,8 +23,9 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,12 +33,16 @@ import java.util.logging.Logger;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.network.CoAPEndpoint;
 import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.ReusePortConnector;
+import org.eclipse.californium.core.network.TimingWheelScheduler;
 import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.AdmissionController;
 import org.eclipse.californium.core.server.MessageDeliverer;
 import org.eclipse.californium.core.server.ServerInterface;
 import org.eclipse.californium.core.server.ServerMessageDeliverer;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.DiscoveryResource;
+import org.eclipse.californium.core.server.resources.MetricsResource;
 import org.eclipse.californium.core.server.resources.Resource;
 
 /**
@@ -104,6 +109,12 @@ public class CoapServer implements ServerInterface {
 	/** The executor of the server for its endpoints (can be null). */
 	private ScheduledExecutorService executor;
 	
+	/** The executor for resources without their own executor (can be null). */
+	private ExecutorService resourceExecutor;
+	
+	/** Whether the server has created the resource executor itself */
+	private boolean ownResourceExecutor;
+	
 	private NetworkConfig config;
 	
 	/**
@@ -151,13 +162,63 @@ public class CoapServer implements ServerInterface {
 		well_known.add(new DiscoveryResource(root));
 		root.add(well_known);
 		
+		// metrics of the endpoints and resources if configured
+		if (this.config.getBoolean(NetworkConfig.Keys.ENDPOINT_METRICS)) {
+			well_known.add(new MetricsResource(this));
+			((ServerMessageDeliverer) deliverer).setMeasuringHandlers(true);
+		}
+		
+		// shed requests when the resource executors fall behind if configured
+		if (this.config.getInt(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_PENDING) > 0
+				|| this.config.getLong(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_DELAY) > 0)
+			((ServerMessageDeliverer) deliverer).setAdmissionController(new AdmissionController(this.config));
+		
 		// endpoints
 		this.endpoints = new ArrayList<Endpoint>();
 		// sets the central thread pool for the protocol stage over all endpoints
-		this.executor = Executors.newScheduledThreadPool( config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT) );
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor( this.config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT) );
+		// pending timeouts, e.g., of abandoned blockwise transfers, must not delay destroy()
+		pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.executor = pool;
+		// one timing wheel for all endpoints if configured
+		if (NetworkConfig.Keys.TIMER_TIMING_WHEEL.equals(this.config.getString(NetworkConfig.Keys.TIMER)))
+			this.executor = new TimingWheelScheduler(this.executor, this.config);
+		// handle requests on virtual threads if configured
+		if (NetworkConfig.Keys.RESOURCE_EXECUTOR_VIRTUAL.equals(this.config.getString(NetworkConfig.Keys.RESOURCE_EXECUTOR))) {
+			this.resourceExecutor = Utils.newVirtualThreadExecutor();
+			this.ownResourceExecutor = true;
+		}
 		// create endpoint for each port
 		for (int port:ports)
+			addEndpoints(port);
+	}
+	
+	/**
+	 * Adds the endpoint for the specified port. If NETWORK_STAGE_SOCKET_COUNT
+	 * is larger than one, adds that many endpoints with a
+	 * {@link ReusePortConnector} each, which share the port and the resources
+	 * of this server. If the JVM does not support SO_REUSEPORT, only one
+	 * endpoint is added.
+	 * 
+	 * @param port the port
+	 */
+	private void addEndpoints(int port) {
+		int sockets = config.getInt(NetworkConfig.Keys.NETWORK_STAGE_SOCKET_COUNT);
+		if (sockets > 1 && !ReusePortConnector.isSupported()) {
+			LOGGER.warning("SO_REUSEPORT is not supported by this JVM, using one socket instead of "+sockets+" for port "+port);
+			sockets = 1;
+		}
+		if (sockets <= 1) {
 			addEndpoint(new CoAPEndpoint(port, this.config));
+			return;
+		}
+		ReusePortConnector first = null;
+		for (int i=0; i<sockets; i++) {
+			ReusePortConnector connector = new ReusePortConnector(new InetSocketAddress(port), config, first);
+			if (first == null)
+				first = connector;
+			addEndpoint(new CoAPEndpoint(connector, this.config));
+		}
 	}
 	
 	public void setExecutor(ScheduledExecutorService executor) {
@@ -169,6 +230,34 @@ public class CoapServer implements ServerInterface {
 			ep.setExecutor(executor);
 	}
 	
+	/**
+	 * Sets the executor that processes requests for all resources that
+	 * neither define their own executor nor have an ancestor that does. If
+	 * none is set, the threads of the protocol stage process the requests.
+	 * {@link Utils#newVirtualThreadExecutor()} lets each request run on its
+	 * own virtual thread, e.g., for resources that call blocking backends.
+	 * The executor is only used by the server's own root resource. The
+	 * server shuts down the executor it has created for RESOURCE_EXECUTOR,
+	 * but leaves the specified one to the caller.
+	 * 
+	 * @param executor the executor or null
+	 */
+	public void setResourceExecutor(ExecutorService executor) {
+		if (this.resourceExecutor != null && ownResourceExecutor) this.resourceExecutor.shutdown();
+		this.resourceExecutor = executor;
+		this.ownResourceExecutor = false;
+	}
+	
+	/**
+	 * Gets the executor that processes requests for resources without their
+	 * own executor.
+	 * 
+	 * @return the executor or null if the protocol stage processes them
+	 */
+	public ExecutorService getResourceExecutor() {
+		return resourceExecutor;
+	}
+	
 	/**
 	 * Starts the server by starting all endpoints this server is assigned to.
 	 * Each endpoint binds to its port. If no endpoint is assigned to the
@@ -183,7 +272,7 @@ public class CoapServer implements ServerInterface {
 			// servers should bind to the configured port (while clients should use an ephemeral port through the default endpoint)
 			int port = config.getInt(NetworkConfig.Keys.COAP_PORT);
 			LOGGER.info("No endpoints have been defined for server, setting up server endpoint on default port " + port);
-			addEndpoint(new CoAPEndpoint(port, this.config));
+			addEndpoints(port);
 		}
 		
 		int started = 0;
@@ -221,6 +310,8 @@ public class CoapServer implements ServerInterface {
 		for (Endpoint ep:endpoints)
 			ep.destroy();
 		executor.shutdown(); // cannot be started again
+		if (resourceExecutor != null && ownResourceExecutor)
+			resourceExecutor.shutdown();
 		try {
 			boolean succ = executor.awaitTermination(5, TimeUnit.SECONDS);
 			if (!succ)
@@ -381,6 +472,11 @@ public class CoapServer implements ServerInterface {
 		public List<Endpoint> getEndpoints() {
 			return CoapServer.this.getEndpoints();
 		}
+		
+		@Override
+		public ExecutorService getExecutor() {
+			return resourceExecutor;
+		}
 	}
 
 }
@@ -19,7 +19,12 @@
  ******************************************************************************/
 package org.eclipse.californium.core;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Request;
@@ -113,6 +118,48 @@ public class Utils {
 	        return sb.toString();
 	}
 	
+	/**
+	 * Returns true if the Java runtime supports virtual threads.
+	 * 
+	 * @return true if virtual threads are available
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return VIRTUAL_THREAD_EXECUTOR_FACTORY != null;
+	}
+	
+	/**
+	 * Creates an executor service that runs each task on a new virtual
+	 * thread. Californium is compiled for older Java versions, so the
+	 * executor is looked up reflectively. On runtimes without virtual threads,
+	 * a cached pool of daemon threads is returned, which also does not need
+	 * to be sized but uses platform threads.
+	 * 
+	 * @return the executor service
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if (VIRTUAL_THREAD_EXECUTOR_FACTORY != null) {
+			try {
+				return (ExecutorService) VIRTUAL_THREAD_EXECUTOR_FACTORY.invoke(null);
+			} catch (Exception e) {
+				Logger.getLogger(Utils.class.getCanonicalName()).log(Level.WARNING, "Cannot create virtual thread executor", e);
+			}
+		}
+		return Executors.newCachedThreadPool(new DaemonThreadFactory());
+	}
+	
+	/** Executors.newVirtualThreadPerTaskExecutor() or null if not available */
+	private static final Method VIRTUAL_THREAD_EXECUTOR_FACTORY;
+	
+	static {
+		Method factory = null;
+		try {
+			factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (Exception e) {
+			// older runtime
+		}
+		VIRTUAL_THREAD_EXECUTOR_FACTORY = factory;
+	}
+	
 	/**
 	 * A factory to create executor services with daemon threads.
 	 */
@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.coap;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A BlockSource provides the body of a message that is too large to be held
+ * as a single byte array. The BlockwiseLayer reads the body block by block
+ * when it sends the message blockwise and stores a large body that it
+ * receives blockwise in a source instead of assembling it in memory.
+ * <p>
+ * A source for an outgoing message can be created over a byte array, a
+ * memory-mapped file, or a channel. A source of a received message can be
+ * consumed with {@link #openStream()}. It is only valid until the response to
+ * the request has been sent or, for a received response, until it is closed.
+ */
+public abstract class BlockSource implements Closeable {
+
+	/**
+	 * Returns the size of the body in bytes.
+	 * 
+	 * @return the size of the body
+	 */
+	public abstract long size();
+	
+	/**
+	 * Reads the specified range of the body. The returned array has the
+	 * specified length unless the range exceeds the end of the body.
+	 * 
+	 * @param position the position in the body
+	 * @param length the number of bytes to read
+	 * @return a new array with the bytes
+	 * @throws IOException if the range cannot be read
+	 */
+	public abstract byte[] read(long position, int length) throws IOException;
+	
+	/**
+	 * Reads the whole body into a new array.
+	 * 
+	 * @return the body
+	 * @throws IOException if the body cannot be read or is larger than 2 GB
+	 */
+	public byte[] readAll() throws IOException {
+		if (size() > Integer.MAX_VALUE)
+			throw new IOException("Body of "+size()+" bytes does not fit into an array");
+		return read(0, (int) size());
+	}
+	
+	/**
+	 * Opens a stream that reads the body from the beginning.
+	 * 
+	 * @return the stream
+	 */
+	public InputStream openStream() {
+		return new SourceInputStream(this);
+	}
+	
+	/**
+	 * Releases the resources of this source. The default implementation does
+	 * nothing.
+	 * 
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void close() throws IOException { }
+	
+	/**
+	 * Creates a source over the specified array.
+	 * 
+	 * @param body the body
+	 * @return the source
+	 */
+	public static BlockSource wrap(byte[] body) {
+		return new ArraySource(body);
+	}
+	
+	/**
+	 * Creates a source over the remaining bytes of the specified buffer. The
+	 * buffer is not modified, so that it can be shared by several sources,
+	 * e.g., a memory-mapped file that is served to many clients.
+	 * 
+	 * @param body the body
+	 * @return the source
+	 */
+	public static BlockSource wrap(ByteBuffer body) {
+		return new BufferSource(body.slice());
+	}
+	
+	/**
+	 * Creates a source over the memory-mapped content of the specified file.
+	 * The file is mapped read-only and its pages are loaded by the operating
+	 * system when a block is read, so that the content does not occupy heap.
+	 * 
+	 * @param file the file
+	 * @return the source
+	 * @throws IOException if the file cannot be mapped or is larger than 2 GB
+	 */
+	public static BlockSource map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("File "+file+" is too large to be mapped");
+			// the mapping remains valid after the channel has been closed
+			return new BufferSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Creates a source over the specified channel. A {@link FileChannel} is
+	 * read with absolute positions and supports random access. Any other
+	 * channel is read sequentially: the source can skip forward to a later
+	 * block, but only the block read last can be read again. The channel is
+	 * closed when the source is closed.
+	 * 
+	 * @param channel the channel
+	 * @param size the number of bytes that the channel provides
+	 * @return the source
+	 */
+	public static BlockSource open(ReadableByteChannel channel, long size) {
+		return new ChannelSource(channel, size);
+	}
+	
+	/*
+	 * Reads from the channel into the buffer until the buffer is full or the
+	 * channel has reached its end.
+	 */
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read;
+			if (position < 0) {
+				read = channel.read(buffer);
+			} else {
+				read = ((FileChannel) channel).read(buffer, position + buffer.position());
+			}
+			if (read < 0)
+				throw new IOException("Channel ended "+buffer.remaining()+" bytes before the end of the body");
+		}
+	}
+	
+	private static int available(long size, long position, int length) {
+		if (position < 0 || position > size)
+			throw new IndexOutOfBoundsException("Position "+position+" outside of body of "+size+" bytes");
+		return (int) Math.min(length, size - position);
+	}
+	
+	/**
+	 * A source over an array.
+	 */
+	private static class ArraySource extends BlockSource {
+		
+		private final byte[] body;
+		
+		private ArraySource(byte[] body) {
+			this.body = body;
+		}
+		
+		@Override
+		public long size() {
+			return body.length;
+		}
+		
+		@Override
+		public byte[] read(long position, int length) {
+			byte[] bytes = new byte[available(body.length, position, length)];
+			System.arraycopy(body, (int) position, bytes, 0, bytes.length);
+			return bytes;
+		}
+		
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(body);
+		}
+	}
+	
+	/**
+	 * A source over a buffer, e.g., a memory-mapped file.
+	 */
+	private static class BufferSource extends BlockSource {
+		
+		private final ByteBuffer buffer;
+		
+		private BufferSource(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public long size() {
+			return buffer.capacity();
+		}
+		
+		@Override
+		public byte[] read(long position, int length) {
+			byte[] bytes = new byte[available(buffer.capacity(), position, length)];
+			// a duplicate keeps concurrent reads independent
+			ByteBuffer view = buffer.duplicate();
+			view.position((int) position);
+			view.get(bytes);
+			return bytes;
+		}
+	}
+	
+	/**
+	 * A source over a channel.
+	 */
+	private static class ChannelSource extends BlockSource {
+		
+		private final ReadableByteChannel channel;
+		private final long size;
+		
+		/* The position up to which a sequential channel has been read */
+		private long next;
+		
+		/* The last block read from a sequential channel */
+		private long lastPosition = -1;
+		private byte[] last;
+		
+		private ChannelSource(ReadableByteChannel channel, long size) {
+			this.channel = channel;
+			this.size = size;
+		}
+		
+		@Override
+		public long size() {
+			return size;
+		}
+		
+		@Override
+		public synchronized byte[] read(long position, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(available(size, position, length));
+			if (channel instanceof FileChannel) {
+				readFully(channel, buffer, position);
+				return buffer.array();
+			}
+			
+			if (position == lastPosition && last.length == buffer.capacity())
+				return last.clone();
+			if (position < next)
+				throw new IOException("Cannot read position "+position+" from a sequential channel at position "+next);
+			if (position > next) {
+				// skip forward, e.g., to the block that a client requests first
+				ByteBuffer skipped = ByteBuffer.allocate((int) Math.min(position - next, 8192));
+				while (next < position) {
+					skipped.clear();
+					skipped.limit((int) Math.min(skipped.capacity(), position - next));
+					readFully(channel, skipped, -1);
+					next += skipped.limit();
+				}
+			}
+			readFully(channel, buffer, -1);
+			next += buffer.capacity();
+			lastPosition = position;
+			last = buffer.array();
+			return last.clone();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Reads a source in chunks from the beginning.
+	 */
+	private static class SourceInputStream extends InputStream {
+		
+		private static final int CHUNK_SIZE = 4096;
+		
+		private final BlockSource source;
+		private long position;
+		private byte[] chunk = new byte[0];
+		private int offset;
+		
+		private SourceInputStream(BlockSource source) {
+			this.source = source;
+		}
+		
+		private boolean fill() throws IOException {
+			if (offset < chunk.length)
+				return true;
+			if (position >= source.size())
+				return false;
+			chunk = source.read(position, CHUNK_SIZE);
+			position += chunk.length;
+			offset = 0;
+			return chunk.length > 0;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return fill() ? chunk[offset++] & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, chunk.length - offset);
+			System.arraycopy(chunk, offset, b, off, n);
+			offset += n;
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return chunk.length - offset;
+		}
+	}
+}
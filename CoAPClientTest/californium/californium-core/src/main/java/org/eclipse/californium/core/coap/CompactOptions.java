@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.coap;
+
+import java.util.Arrays;
+
+/**
+ * CompactOptions holds the options of a received message in their encoded
+ * form: one array of (number, offset, length) entries sorted by option number
+ * over a single byte buffer with the values. An {@link OptionSet} that is
+ * backed by CompactOptions decodes an option into its typed fields only when
+ * it is accessed the first time. CompactOptions are immutable and can be
+ * shared by copies of an OptionSet.
+ * <p>
+ * The values are checked for the limits that the OptionSet enforces when the
+ * CompactOptions are created, so that a malformed option is still detected
+ * while parsing and not when the option is accessed later.
+ */
+public final class CompactOptions {
+
+	/* The fields of an entry */
+	private static final int NUMBER = 0;
+	private static final int OFFSET = 1;
+	private static final int LENGTH = 2;
+	private static final int ENTRY_SIZE = 3;
+	
+	/** The buffer with the option values */
+	private final byte[] buffer;
+	
+	/** The number, offset and length of each option */
+	private final int[] entries;
+	
+	/** The number of options */
+	private final int count;
+	
+	/**
+	 * Creates new compact options over the specified buffer. The entries hold
+	 * number, offset and length of each option in sequence and must be sorted
+	 * by option number, as they are in a CoAP message. Both arrays must not be
+	 * modified afterwards.
+	 * 
+	 * @param buffer the buffer with the option values
+	 * @param entries the number, offset and length of each option
+	 * @param count the number of options
+	 * @throws IllegalArgumentException if an option violates its limits
+	 */
+	public CompactOptions(byte[] buffer, int[] entries, int count) {
+		if (buffer == null || entries == null)
+			throw new NullPointerException();
+		if (entries.length < count * ENTRY_SIZE)
+			throw new IllegalArgumentException("Not enough entries for "+count+" options");
+		this.buffer = buffer;
+		this.entries = entries;
+		this.count = count;
+		int last = 0;
+		for (int i=0; i<count; i++) {
+			if (getNumber(i) < last)
+				throw new IllegalArgumentException("Options must be sorted by number");
+			last = getNumber(i);
+			if (entries[i*ENTRY_SIZE + OFFSET] + getLength(i) > buffer.length)
+				throw new IllegalArgumentException("Option "+last+" exceeds the buffer");
+			check(i);
+		}
+	}
+	
+	/**
+	 * Returns the number of options.
+	 * 
+	 * @return the number of options
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * Returns the option number of the option at the specified index.
+	 * 
+	 * @param index the index
+	 * @return the option number
+	 */
+	public int getNumber(int index) {
+		return entries[index*ENTRY_SIZE + NUMBER];
+	}
+	
+	/**
+	 * Returns the length of the value of the option at the specified index.
+	 * 
+	 * @param index the index
+	 * @return the length in bytes
+	 */
+	public int getLength(int index) {
+		return entries[index*ENTRY_SIZE + LENGTH];
+	}
+	
+	/**
+	 * Returns a copy of the value of the option at the specified index.
+	 * 
+	 * @param index the index
+	 * @return the value
+	 */
+	public byte[] getValue(int index) {
+		int offset = entries[index*ENTRY_SIZE + OFFSET];
+		return Arrays.copyOfRange(buffer, offset, offset + getLength(index));
+	}
+	
+	/**
+	 * Returns the value of the option at the specified index as UTF-8 string.
+	 * 
+	 * @param index the index
+	 * @return the string value
+	 */
+	public String getStringValue(int index) {
+		return new String(buffer, entries[index*ENTRY_SIZE + OFFSET], getLength(index), CoAP.UTF8_CHARSET);
+	}
+	
+	/**
+	 * Returns the value of the option at the specified index as unsigned
+	 * integer. Values longer than 4 bytes overflow like
+	 * {@link Option#getIntegerValue()}.
+	 * 
+	 * @param index the index
+	 * @return the integer value
+	 */
+	public int getIntegerValue(int index) {
+		return (int) getLongValue(index);
+	}
+	
+	/**
+	 * Returns the value of the option at the specified index as unsigned long.
+	 * 
+	 * @param index the index
+	 * @return the long value
+	 */
+	public long getLongValue(int index) {
+		int offset = entries[index*ENTRY_SIZE + OFFSET];
+		int length = getLength(index);
+		long value = 0;
+		for (int i=0; i<length; i++)
+			value = (value << 8) | (buffer[offset + i] & 0xFF);
+		return value;
+	}
+	
+	/**
+	 * Returns the option at the specified index as new {@link Option}.
+	 * 
+	 * @param index the index
+	 * @return the option
+	 */
+	public Option getOption(int index) {
+		return new Option(getNumber(index), getValue(index));
+	}
+	
+	/**
+	 * Returns the index of the first option with the specified number.
+	 * 
+	 * @param number the option number
+	 * @return the index or -1 if there is no such option
+	 */
+	public int indexOf(int number) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (getNumber(middle) < number)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return low < count && getNumber(low) == number ? low : -1;
+	}
+	
+	/**
+	 * Checks the limits that the setters of the {@link OptionSet} enforce.
+	 */
+	private void check(int index) {
+		int number = getNumber(index);
+		int length = getLength(index);
+		switch (number) {
+		case OptionNumberRegistry.IF_MATCH:
+			if (length > 8) throw new IllegalArgumentException("If-Match option must be smaller or equal to 8 bytes");
+			break;
+		case OptionNumberRegistry.URI_HOST:
+			if (length < 1) throw new IllegalArgumentException("URI-Host option's length must be between 1 and 255 inclusive");
+			break;
+		case OptionNumberRegistry.LOCATION_PATH:
+		case OptionNumberRegistry.URI_PATH:
+		case OptionNumberRegistry.URI_QUERY:
+		case OptionNumberRegistry.LOCATION_QUERY:
+			if (length > 255) throw new IllegalArgumentException(OptionNumberRegistry.toString(number)+" option must be smaller or equal to 255 bytes");
+			break;
+		case OptionNumberRegistry.PROXY_URI:
+			if (length < 1 || 1034 < length) throw new IllegalArgumentException("Proxy-Uri option must be between 1 and 1034 bytes inclusive");
+			break;
+		case OptionNumberRegistry.PROXY_SCHEME:
+			if (length < 1 || 255 < length) throw new IllegalArgumentException("Proxy-Scheme option must be between 1 and 255 bytes inclusive");
+			break;
+		case OptionNumberRegistry.BLOCK1:
+		case OptionNumberRegistry.BLOCK2:
+			if (length > 3) throw new IllegalArgumentException("Block option's length must at most 3 bytes inclusive");
+			break;
+		case OptionNumberRegistry.URI_PORT:
+		case OptionNumberRegistry.ACCEPT:
+			if (getLongValue(index) > (1<<16)-1) throw new IllegalArgumentException(OptionNumberRegistry.toString(number)+" option must be between 0 and "+((1<<16)-1)+" (2 bytes) inclusive");
+			break;
+		case OptionNumberRegistry.MAX_AGE:
+			if (getLongValue(index) > (1L<<32)-1) throw new IllegalArgumentException("Max-Age option must be between 0 and "+((1L<<32)-1)+" (4 bytes) inclusive");
+			break;
+		case OptionNumberRegistry.OBSERVE:
+			if (getLongValue(index) > (1<<24)-1) throw new IllegalArgumentException("Observe option must be between 0 and "+((1<<24)-1)+" (3 bytes) inclusive");
+			break;
+		}
+	}
+}
@@ -70,6 +70,9 @@ public abstract class Message {
 	/** The payload of this message. */
 	private byte[] payload;
 	
+	/** The source of a large payload that is transferred blockwise. */
+	private BlockSource payloadSource;
+	
 	/** The destination address of this message. */
 	private InetAddress destination;
 	
@@ -304,7 +307,7 @@ public abstract class Message {
 	 */
 	public Message setPayload(String payload) {
 		if (payload == null) {
-			this.payload = null;
+			setPayload((byte[]) null);
 		} else {
 			setPayload(payload.getBytes(CoAP.UTF8_CHARSET));
 		}
@@ -320,6 +323,32 @@ public abstract class Message {
 	 */
 	public Message setPayload(byte[] payload) {
 		this.payload = payload;
+		this.payloadSource = null;
+		return this;
+	}
+	
+	/**
+	 * Gets the source of a large payload. An outgoing message with a source
+	 * is sent blockwise with the blocks read from the source. A message
+	 * received blockwise has a source instead of a payload when the body has
+	 * been spooled.
+	 * 
+	 * @return the payload source or null if the payload is an array
+	 */
+	public BlockSource getPayloadSource() {
+		return payloadSource;
+	}
+	
+	/**
+	 * Sets the source of a large payload and removes the payload array.
+	 * Provides a fluent API to chain setters.
+	 * 
+	 * @param source the payload source
+	 * @return this Message
+	 */
+	public Message setPayloadSource(BlockSource source) {
+		this.payloadSource = source;
+		this.payload = null;
 		return this;
 	}
 
@@ -22,7 +22,6 @@ package org.eclipse.californium.core.coap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.eclipse.californium.core.Utils;
@@ -33,10 +32,39 @@ import org.eclipse.californium.core.Utils;
  * the CoAP, blockwise CoAP, observing CoAP and supports arbitrary defined
  * options.
  * <p>
+ * A received OptionSet can be backed by {@link CompactOptions}, which keep
+ * the options in their encoded form. Each kind of option is then decoded into
+ * its field when it is accessed the first time; options that are never
+ * accessed are never decoded. Copies share the CompactOptions.
+ * <p>
  * Notice that this class is not entirely thread-safe: hasObserve =&gt; (int) getObserve()
  */
 public class OptionSet {
 	
+	/*
+	 * The kinds of options that can still be encoded in the CompactOptions
+	 */
+	private static final int IF_MATCH       = 1;
+	private static final int URI_HOST       = 1 << 1;
+	private static final int ETAG           = 1 << 2;
+	private static final int IF_NONE_MATCH  = 1 << 3;
+	private static final int URI_PORT       = 1 << 4;
+	private static final int LOCATION_PATH  = 1 << 5;
+	private static final int URI_PATH       = 1 << 6;
+	private static final int CONTENT_FORMAT = 1 << 7;
+	private static final int MAX_AGE        = 1 << 8;
+	private static final int URI_QUERY      = 1 << 9;
+	private static final int ACCEPT         = 1 << 10;
+	private static final int LOCATION_QUERY = 1 << 11;
+	private static final int PROXY_URI      = 1 << 12;
+	private static final int PROXY_SCHEME   = 1 << 13;
+	private static final int BLOCK1         = 1 << 14;
+	private static final int BLOCK2         = 1 << 15;
+	private static final int SIZE1          = 1 << 16;
+	private static final int SIZE2          = 1 << 17;
+	private static final int OBSERVE        = 1 << 18;
+	private static final int OTHERS         = 1 << 19;
+	
 	/*
 	 * Options defined by the CoAP protocol
 	 */
@@ -63,24 +91,28 @@ public class OptionSet {
 	// Arbitrary options
 	private List<Option> others;
 	
+	// The encoded options and the kinds among them that have not been decoded yet
+	private CompactOptions encoded;
+	private volatile int pending;
+	
 	// TODO: When receiving, uri_host/port should be those from the sender 
 	/*
 	 * Once a list is touched and constructed it must never become null again.
 	 * Non-lists can be null though.
 	 */
 	public OptionSet() {
-		if_match_list       = null; // new LinkedList<byte[]>();
+		if_match_list       = null; // new ArrayList<byte[]>();
 		uri_host            = null; // from sender
-		etag_list           = null; // new LinkedList<byte[]>();
+		etag_list           = null; // new ArrayList<byte[]>();
 		if_none_match       = false;
 		uri_port            = null; // from sender
-		location_path_list  = null; // new LinkedList<String>();
-		uri_path_list       = null; // new LinkedList<String>();
+		location_path_list  = null; // new ArrayList<String>();
+		uri_path_list       = null; // new ArrayList<String>();
 		content_format      = null;
 		max_age             = null;
-		uri_query_list      = null; // new LinkedList<String>();
+		uri_query_list      = null; // new ArrayList<String>();
 		accept              = null;
-		location_query_list = null; // new LinkedList<String>();
+		location_query_list = null; // new ArrayList<String>();
 		proxy_uri           = null;
 		proxy_scheme        = null;
 		block1              = null;
@@ -89,7 +121,7 @@ public class OptionSet {
 		size2               = null;
 		observe             = null;
 		
-		others              = null; // new LinkedList<>();
+		others              = null; // new ArrayList<>();
 	}
 
 	public void clear() {
@@ -118,6 +150,8 @@ public class OptionSet {
 		observe = null;
 		if (others != null)
 			others.clear();
+		encoded = null;
+		pending = 0;
 	}
 
 	/**
@@ -149,6 +183,126 @@ public class OptionSet {
 		observe = origin.observe;
 		
 		others              = copyList(origin.others);
+		
+		// the kinds that the origin has not decoded yet are still empty here
+		encoded             = origin.encoded;
+		pending             = origin.pending;
+	}
+	
+	/**
+	 * Replaces all options with the specified encoded options. They are
+	 * decoded lazily when accessed.
+	 * 
+	 * @param options the encoded options
+	 * @return this OptionSet for a fluent API.
+	 */
+	public OptionSet setCompactOptions(CompactOptions options) {
+		clear();
+		int kinds = 0;
+		for (int i=0; i<options.size(); i++)
+			kinds |= kindOf(options.getNumber(i));
+		encoded = options.size() > 0 ? options : null;
+		pending = encoded != null ? kinds : 0;
+		return this;
+	}
+	
+	/**
+	 * Returns true if some options are still held in their encoded form only.
+	 * 
+	 * @return true if not all options have been decoded
+	 */
+	public boolean isCompact() {
+		return pending != 0;
+	}
+	
+	/*
+	 * Decodes the options of the specified kinds if they are still encoded.
+	 */
+	private void decode(int kinds) {
+		if ((pending & kinds) != 0)
+			decodePending(kinds);
+	}
+	
+	/*
+	 * Drops the encoded options of the specified kind because they have been
+	 * overwritten or removed.
+	 */
+	private void discard(int kind) {
+		if ((pending & kind) != 0)
+			discardPending(kind);
+	}
+	
+	private synchronized void discardPending(int kind) {
+		pending &= ~kind;
+		if (pending == 0) encoded = null;
+	}
+	
+	private synchronized void decodePending(int kinds) {
+		int todo = pending & kinds;
+		if (todo == 0)
+			return;
+		CompactOptions options = encoded;
+		// clear first so that the accessors used below do not decode again
+		pending &= ~todo;
+		for (int i=0; i<options.size(); i++) {
+			if ((kindOf(options.getNumber(i)) & todo) != 0)
+				decodeOption(options, i);
+		}
+		if (pending == 0) encoded = null;
+	}
+	
+	/*
+	 * Sets the field of the specified option. The limits have been checked
+	 * when the CompactOptions were created.
+	 */
+	private void decodeOption(CompactOptions options, int index) {
+		switch (options.getNumber(index)) {
+			case OptionNumberRegistry.IF_MATCH:       getIfMatch().add(options.getValue(index)); break;
+			case OptionNumberRegistry.URI_HOST:       uri_host = options.getStringValue(index); break;
+			case OptionNumberRegistry.ETAG:           getETags().add(options.getValue(index)); break;
+			case OptionNumberRegistry.IF_NONE_MATCH:  if_none_match = true; break;
+			case OptionNumberRegistry.URI_PORT:       uri_port = options.getIntegerValue(index); break;
+			case OptionNumberRegistry.LOCATION_PATH:  getLocationPath().add(options.getStringValue(index)); break;
+			case OptionNumberRegistry.URI_PATH:       getUriPath().add(options.getStringValue(index)); break;
+			case OptionNumberRegistry.CONTENT_FORMAT: content_format = options.getIntegerValue(index); break;
+			case OptionNumberRegistry.MAX_AGE:        max_age = options.getLongValue(index); break;
+			case OptionNumberRegistry.URI_QUERY:      getUriQuery().add(options.getStringValue(index)); break;
+			case OptionNumberRegistry.ACCEPT:         accept = options.getIntegerValue(index); break;
+			case OptionNumberRegistry.LOCATION_QUERY: getLocationQuery().add(options.getStringValue(index)); break;
+			case OptionNumberRegistry.PROXY_URI:      proxy_uri = options.getStringValue(index); break;
+			case OptionNumberRegistry.PROXY_SCHEME:   proxy_scheme = options.getStringValue(index); break;
+			case OptionNumberRegistry.BLOCK1:         block1 = new BlockOption(options.getValue(index)); break;
+			case OptionNumberRegistry.BLOCK2:         block2 = new BlockOption(options.getValue(index)); break;
+			case OptionNumberRegistry.SIZE1:          size1 = options.getIntegerValue(index); break;
+			case OptionNumberRegistry.SIZE2:          size2 = options.getIntegerValue(index); break;
+			case OptionNumberRegistry.OBSERVE:        observe = options.getIntegerValue(index); break;
+			default: getOthers().add(options.getOption(index));
+		}
+	}
+	
+	private static int kindOf(int number) {
+		switch (number) {
+			case OptionNumberRegistry.IF_MATCH:       return IF_MATCH;
+			case OptionNumberRegistry.URI_HOST:       return URI_HOST;
+			case OptionNumberRegistry.ETAG:           return ETAG;
+			case OptionNumberRegistry.IF_NONE_MATCH:  return IF_NONE_MATCH;
+			case OptionNumberRegistry.URI_PORT:       return URI_PORT;
+			case OptionNumberRegistry.LOCATION_PATH:  return LOCATION_PATH;
+			case OptionNumberRegistry.URI_PATH:       return URI_PATH;
+			case OptionNumberRegistry.CONTENT_FORMAT: return CONTENT_FORMAT;
+			case OptionNumberRegistry.MAX_AGE:        return MAX_AGE;
+			case OptionNumberRegistry.URI_QUERY:      return URI_QUERY;
+			case OptionNumberRegistry.ACCEPT:         return ACCEPT;
+			case OptionNumberRegistry.LOCATION_QUERY: return LOCATION_QUERY;
+			case OptionNumberRegistry.PROXY_URI:      return PROXY_URI;
+			case OptionNumberRegistry.PROXY_SCHEME:   return PROXY_SCHEME;
+			case OptionNumberRegistry.BLOCK1:         return BLOCK1;
+			case OptionNumberRegistry.BLOCK2:         return BLOCK2;
+			case OptionNumberRegistry.SIZE1:          return SIZE1;
+			case OptionNumberRegistry.SIZE2:          return SIZE2;
+			case OptionNumberRegistry.OBSERVE:        return OBSERVE;
+			default:                                  return OTHERS;
+		}
 	}
 
 	/**
@@ -159,7 +313,7 @@ public class OptionSet {
 	 */
 	private <T> List<T> copyList(List<T> list) {
 		if (list == null) return null;
-		else return new LinkedList<T>(list);
+		else return new ArrayList<T>(list);
 	}
 
 	/////////////////////// Getter and Setter ///////////////////////
@@ -170,10 +324,11 @@ public class OptionSet {
 	 * @return the list of If-Match ETags
 	 */
 	public List<byte[]> getIfMatch() {
+		decode(IF_MATCH);
 		if (if_match_list == null)
 			synchronized (this) {
 				if (if_match_list == null)
-					if_match_list = new LinkedList<byte[]>();
+					if_match_list = new ArrayList<byte[]>();
 			}
 		return if_match_list;
 	}
@@ -195,6 +350,7 @@ public class OptionSet {
 	 * @return true if ETag matches or message contains an empty If-Match option
 	 */
 	public boolean isIfMatch(byte[] check) {
+		decode(IF_MATCH);
 		
 		// if no If-Match option is present, conditional update is allowed
 		if (if_match_list==null) return true;
@@ -250,6 +406,7 @@ public class OptionSet {
 	 * @return the Uri-Host or null if the option is not present
 	 */
 	public String getUriHost() {
+		decode(URI_HOST);
 		return uri_host;
 	}
 
@@ -258,6 +415,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasUriHost() {
+		decode(URI_HOST);
 		return uri_host != null;
 	}
 
@@ -273,6 +431,7 @@ public class OptionSet {
 		if (host.length() < 1 || 255 < host.length())
 			throw new IllegalArgumentException("URI-Host option's length must be between 1 and 255 inclusive");
 		this.uri_host = host;
+		discard(URI_HOST);
 		return this;
 	}
 
@@ -283,6 +442,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeUriHost() {
 		this.uri_host = null;
+		discard(URI_HOST);
 		return this;
 	}
 
@@ -295,10 +455,11 @@ public class OptionSet {
 	 * @return the list of ETags
 	 */
 	public List<byte[]> getETags() {
+		decode(ETAG);
 		if (etag_list == null)
 			synchronized (this) {
 				if (etag_list == null)
-					etag_list = new LinkedList<byte[]>();
+					etag_list = new ArrayList<byte[]>();
 			}
 		return etag_list;
 	}
@@ -319,6 +480,7 @@ public class OptionSet {
 	 * @return true if ETag is included
 	 */
 	public boolean containsETag(byte[] check) {
+		decode(ETAG);
 		if (etag_list==null) return false;
 		for (byte[] etag:etag_list) {
 			if (Arrays.equals(etag, check)) return true;
@@ -368,6 +530,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasIfNoneMatch() {
+		decode(IF_NONE_MATCH);
 		return if_none_match;
 	}
 
@@ -379,6 +542,7 @@ public class OptionSet {
 	 */
 	public OptionSet setIfNoneMatch(boolean present) {
 		if_none_match = present;
+		discard(IF_NONE_MATCH);
 		return this;
 	}
 
@@ -387,6 +551,7 @@ public class OptionSet {
 	 * @return the Uri-Port value or null if the option is not present
 	 */
 	public Integer getUriPort() {
+		decode(URI_PORT);
 		return uri_port;
 	}
 
@@ -395,6 +560,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasUriPort() {
+		decode(URI_PORT);
 		return uri_port != null;
 	}
 
@@ -408,6 +574,7 @@ public class OptionSet {
 		if (port < 0 || (1<<16)-1 < port)
 			throw new IllegalArgumentException("URI port option must be between 0 and "+((1<<16)-1)+" (2 bytes) inclusive but was "+port);
 		uri_port = port;
+		discard(URI_PORT);
 		return this;
 	}
 
@@ -418,6 +585,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeUriPort() {
 		uri_port = null;
+		discard(URI_PORT);
 		return this;
 	}
 
@@ -427,10 +595,11 @@ public class OptionSet {
 	 * @return the list of Location-Path segments
 	 */
 	public List<String> getLocationPath() {
+		decode(LOCATION_PATH);
 		if (location_path_list == null)
 			synchronized (this) {
 				if (location_path_list == null)
-					location_path_list = new LinkedList<String>();
+					location_path_list = new ArrayList<String>();
 			}
 		return location_path_list;
 	}
@@ -525,10 +694,11 @@ public class OptionSet {
 	 * @return the list of Uri-Path segments
 	 */
 	public List<String> getUriPath() {
+		decode(URI_PATH);
 		if (uri_path_list == null)
 			synchronized (this) {
 				if (uri_path_list == null)
-					uri_path_list = new LinkedList<String>();
+					uri_path_list = new ArrayList<String>();
 			}
 		return uri_path_list;
 	}
@@ -608,6 +778,7 @@ public class OptionSet {
 	 * @return the ID as int or -1 if undefined
 	 */
 	public int getContentFormat() {
+		decode(CONTENT_FORMAT);
 		return hasContentFormat() ? content_format : MediaTypeRegistry.UNDEFINED;
 	}
 
@@ -616,6 +787,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasContentFormat() {
+		decode(CONTENT_FORMAT);
 		return content_format != null;
 	}
 
@@ -628,6 +800,7 @@ public class OptionSet {
 	 * @see MediaTypeRegistry
 	 */
 	public boolean isContentFormat(int format) {
+		decode(CONTENT_FORMAT);
 		return content_format != null && content_format == format;
 	}
 
@@ -642,6 +815,7 @@ public class OptionSet {
 	public OptionSet setContentFormat(int format) {
 		if (format > MediaTypeRegistry.UNDEFINED) content_format = format;
 		else content_format = null;
+		discard(CONTENT_FORMAT);
 		return this;
 	}
 
@@ -652,6 +826,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeContentFormat() {
 		content_format = null;
+		discard(CONTENT_FORMAT);
 		return this;
 	}
 	
@@ -660,6 +835,7 @@ public class OptionSet {
 	 * @return the Max-Age in seconds
 	 */
 	public Long getMaxAge() {
+		decode(MAX_AGE);
 		Long m = max_age;
 		return m != null ? m : OptionNumberRegistry.Defaults.MAX_AGE;
 	}
@@ -670,6 +846,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasMaxAge() {
+		decode(MAX_AGE);
 		return max_age != null;
 	}
 	
@@ -683,6 +860,7 @@ public class OptionSet {
 		if (age < 0 || ((1L<<32)-1) < age)
 			throw new IllegalArgumentException("Max-Age option must be between 0 and "+((1L<<32)-1)+" (4 bytes) inclusive");
 		max_age = age;
+		discard(MAX_AGE);
 		return this;
 	}
 	
@@ -693,6 +871,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeMaxAge() {
 		max_age = null;
+		discard(MAX_AGE);
 		return this;
 	}
 
@@ -702,10 +881,11 @@ public class OptionSet {
 	 * @return the list of query arguments
 	 */
 	public List<String> getUriQuery() {
+		decode(URI_QUERY);
 		if (uri_query_list == null)
 			synchronized (this) {
 				if (uri_query_list == null)
-					uri_query_list = new LinkedList<String>();
+					uri_query_list = new ArrayList<String>();
 			}
 		return uri_query_list;
 	}
@@ -793,6 +973,7 @@ public class OptionSet {
 	 * @return the ID as int or -1 if undefined
 	 */
 	public int getAccept() {
+		decode(ACCEPT);
 		return hasAccept() ? accept : MediaTypeRegistry.UNDEFINED;
 	}
 
@@ -801,6 +982,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasAccept() {
+		decode(ACCEPT);
 		return accept != null;
 	}
 
@@ -810,6 +992,7 @@ public class OptionSet {
 	 * @return true if equal
 	 */
 	public boolean isAccept(int format) {
+		decode(ACCEPT);
 		return accept != null && accept == format;
 	}
 
@@ -825,6 +1008,7 @@ public class OptionSet {
 		if (format < 0 || format > ((1<<16)-1))
 			throw new IllegalArgumentException("Accept option must be between 0 and "+((1<<16)-1)+" (2 bytes) inclusive");
 		accept = format;
+		discard(ACCEPT);
 		return this;
 	}
 
@@ -835,6 +1019,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeAccept() {
 		accept = null;
+		discard(ACCEPT);
 		return this;
 	}
 
@@ -844,10 +1029,11 @@ public class OptionSet {
 	 * @return the list of query arguments
 	 */
 	public List<String> getLocationQuery() {
+		decode(LOCATION_QUERY);
 		if (location_query_list == null)
 			synchronized (this) {
 				if (location_query_list == null)
-					location_query_list = new LinkedList<String>();
+					location_query_list = new ArrayList<String>();
 			}
 		return location_query_list;
 	}
@@ -933,6 +1119,7 @@ public class OptionSet {
 	 * @return the Proxy-Uri or null if the option is not present
 	 */
 	public String getProxyUri() {
+		decode(PROXY_URI);
 		return proxy_uri;
 	}
 
@@ -941,6 +1128,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasProxyUri() {
+		decode(PROXY_URI);
 		return proxy_uri != null;
 	}
 
@@ -956,6 +1144,7 @@ public class OptionSet {
 		if (uri.getBytes(CoAP.UTF8_CHARSET).length < 1 || 1034 < uri.getBytes(CoAP.UTF8_CHARSET).length)
 			throw new IllegalArgumentException("Proxy-Uri option must be between 1 and 1034 bytes inclusive (UTF-8 encoded): " + uri);
 		proxy_uri = uri;
+		discard(PROXY_URI);
 		return this;
 	}
 
@@ -966,6 +1155,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeProxyUri() {
 		proxy_uri = null;
+		discard(PROXY_URI);
 		return this;
 	}
 
@@ -974,6 +1164,7 @@ public class OptionSet {
 	 * @return the Proxy-Scheme or null if the option is not present
 	 */
 	public String getProxyScheme() {
+		decode(PROXY_SCHEME);
 		return proxy_scheme;
 	}
 
@@ -982,6 +1173,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasProxyScheme() {
+		decode(PROXY_SCHEME);
 		return proxy_scheme != null;
 	}
 
@@ -997,6 +1189,7 @@ public class OptionSet {
 		if (scheme.getBytes(CoAP.UTF8_CHARSET).length < 1 || 255 < scheme.getBytes(CoAP.UTF8_CHARSET).length)
 			throw new IllegalArgumentException("Proxy-Scheme option must be between 1 and 255 bytes inclusive (UTF-8 encoded): " + scheme);
 		proxy_scheme = scheme;
+		discard(PROXY_SCHEME);
 		return this;
 	}
 
@@ -1007,6 +1200,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeProxyScheme() {
 		proxy_scheme = null;
+		discard(PROXY_SCHEME);
 		return this;
 	}
 
@@ -1015,6 +1209,7 @@ public class OptionSet {
 	 * @return the BlockOption
 	 */
 	public BlockOption getBlock1() {
+		decode(BLOCK1);
 		return block1;
 	}
 
@@ -1023,6 +1218,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasBlock1() {
+		decode(BLOCK1);
 		return block1 != null;
 	}
 
@@ -1036,6 +1232,7 @@ public class OptionSet {
 	 */
 	public OptionSet setBlock1(int szx, boolean m, int num) {
 		this.block1 = new BlockOption(szx, m, num);
+		discard(BLOCK1);
 		return this;
 	}
 
@@ -1047,6 +1244,7 @@ public class OptionSet {
 	 */
 	public OptionSet setBlock1(byte[] value) {
 		this.block1 = new BlockOption(value);
+		discard(BLOCK1);
 		return this;
 	}
 
@@ -1058,6 +1256,7 @@ public class OptionSet {
 	 */
 	public OptionSet setBlock1(BlockOption block) {
 		this.block1 = block;
+		discard(BLOCK1);
 		return this;
 	}
 
@@ -1068,6 +1267,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeBlock1() {
 		this.block1 = null;
+		discard(BLOCK1);
 		return this;
 	}
 
@@ -1076,6 +1276,7 @@ public class OptionSet {
 	 * @return the BlockOption
 	 */
 	public BlockOption getBlock2() {
+		decode(BLOCK2);
 		return block2;
 	}
 
@@ -1084,6 +1285,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasBlock2() {
+		decode(BLOCK2);
 		return block2 != null;
 	}
 
@@ -1097,6 +1299,7 @@ public class OptionSet {
 	 */
 	public OptionSet setBlock2(int szx, boolean m, int num) {
 		this.block2 = new BlockOption(szx, m, num);
+		discard(BLOCK2);
 		return this;
 	}
 
@@ -1109,6 +1312,7 @@ public class OptionSet {
 	 */
 	public OptionSet setBlock2(byte[] value) {
 		this.block2 = new BlockOption(value);
+		discard(BLOCK2);
 		return this;
 	}
 
@@ -1120,6 +1324,7 @@ public class OptionSet {
 	 */
 	public OptionSet setBlock2(BlockOption block) {
 		this.block2 = block;
+		discard(BLOCK2);
 		return this;
 	}
 
@@ -1130,6 +1335,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeBlock2() {
 		this.block2 = null;
+		discard(BLOCK2);
 		return this;
 	}
 
@@ -1138,6 +1344,7 @@ public class OptionSet {
 	 * @return the Size1 value or null if the option is not present
 	 */
 	public Integer getSize1() {
+		decode(SIZE1);
 		return size1;
 	}
 
@@ -1146,6 +1353,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasSize1() {
+		decode(SIZE1);
 		return size1 != null;
 	}
 
@@ -1157,6 +1365,7 @@ public class OptionSet {
 	 */
 	public OptionSet setSize1(int size) {
 		this.size1 = size;
+		discard(SIZE1);
 		return this;
 	}
 
@@ -1167,6 +1376,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeSize1() {
 		this.size1 = null;
+		discard(SIZE1);
 		return this;
 	}
 
@@ -1175,6 +1385,7 @@ public class OptionSet {
 	 * @return the Size2 value or null if the option is not present
 	 */
 	public Integer getSize2() {
+		decode(SIZE2);
 		return size2;
 	}
 
@@ -1183,6 +1394,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasSize2() {
+		decode(SIZE2);
 		return size2 != null;
 	}
 
@@ -1194,6 +1406,7 @@ public class OptionSet {
 	 */
 	public OptionSet setSize2(int size) {
 		this.size2 = size;
+		discard(SIZE2);
 		return this;
 	}
 
@@ -1204,6 +1417,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeSize2() {
 		this.size2 = null;
+		discard(SIZE2);
 		return this;
 	}
 
@@ -1212,6 +1426,7 @@ public class OptionSet {
 	 * @return the Observe value or null if the option is not present
 	 */
 	public Integer getObserve() {
+		decode(OBSERVE);
 		return observe;
 	}
 
@@ -1220,6 +1435,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasObserve() {
+		decode(OBSERVE);
 		return observe != null;
 	}
 
@@ -1233,6 +1449,7 @@ public class OptionSet {
 		if (seqnum <0 || ((1 << 24) - 1) < seqnum)
 			throw new IllegalArgumentException("Observe option must be between 0 and "+((1<<24)-1)+" (3 bytes) inclusive but was "+seqnum);
 		this.observe = seqnum;
+		discard(OBSERVE);
 		return this;
 	}
 
@@ -1243,6 +1460,7 @@ public class OptionSet {
 	 */
 	public OptionSet removeObserve() {
 		observe = null;
+		discard(OBSERVE);
 		return this;
 	}
 
@@ -1256,10 +1474,11 @@ public class OptionSet {
 	}
 	
 	private List<Option> getOthers() {
+		decode(OTHERS);
 		if (others == null)
 			synchronized (this) {
 				if (others == null)
-					others = new LinkedList<Option>();
+					others = new ArrayList<Option>();
 			}
 		return others;
 	}
@@ -1316,6 +1535,13 @@ public class OptionSet {
 		if (others != null)
 			options.addAll(others);
 		
+		// options that have not been decoded yet
+		CompactOptions compact = encoded;
+		int kinds = pending;
+		if (compact != null && kinds != 0) for (int i=0; i<compact.size(); i++)
+			if ((kindOf(compact.getNumber(i)) & kinds) != 0)
+				options.add(compact.getOption(i));
+		
 		Collections.sort(options);
 		return options;
 	}
@@ -26,6 +26,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.Type;
@@ -95,8 +98,15 @@ public class Request extends Message {
 	
 	private String scheme;
 	
-	/** The lock object used to wait for a response. */
-	private Object lock;
+	/**
+	 * The lock used to wait for a response. It is a
+	 * {@link java.util.concurrent.locks.Lock} instead of a monitor, so that a
+	 * waiting virtual thread does not pin its carrier thread.
+	 */
+	private volatile ReentrantLock lock;
+	
+	/** The condition of the lock that is signaled when the request ends. */
+	private Condition ended;
 	
 	/** the authenticated (remote) sender's identity **/
 	private Principal senderIdentity;
@@ -189,6 +199,16 @@ public class Request extends Message {
 		return this;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Required in Request to keep class for fluent API.
+	 */
+	public Request setPayloadSource(BlockSource source) {
+		super.setPayloadSource(source);
+		return this;
+	}
+	
 	/**
 	 * This is a convenience method to set the reques's options for host, port
 	 * and path with a string of the form
@@ -400,11 +420,7 @@ public class Request extends Message {
 	public void setResponse(Response response) {
 		this.response = response;
 		
-		if (lock != null)
-			synchronized (lock) {
-				lock.notifyAll();
-			}
-		// else: we know that nobody is waiting on the lock
+		signalWaiting();
 		
 		for (MessageObserver handler:getMessageObservers())
 			handler.onResponse(response);
@@ -445,31 +461,51 @@ public class Request extends Message {
 	 *             the interrupted exception
 	 */
 	public Response waitForResponse(long timeout) throws InterruptedException {
-		long before = System.currentTimeMillis();
-		long expired = timeout>0 ? (before + timeout) : 0;
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
 		// Lazy initialization of a lock
 		if (lock == null) {
 			synchronized (this) {
-				if (lock == null)
-					lock = new Object();
+				if (lock == null) {
+					ReentrantLock newLock = new ReentrantLock();
+					ended = newLock.newCondition();
+					lock = newLock;
+				}
 			}
 		}
 		// wait for response
-		synchronized (lock) {
+		lock.lock();
+		try {
 			while (response == null 
 					&& !isCanceled() && !isTimedOut() && !isRejected()) {
-				lock.wait(timeout);
-				long now = System.currentTimeMillis();
-				if (timeout > 0 && expired <= now) {
-					Response r = response;
-					response = null;
-					return r;
+				if (timeout > 0) {
+					remaining = ended.awaitNanos(remaining);
+					if (remaining <= 0) break;
+				} else {
+					ended.await();
 				}
 			}
 			Response r = response;
 			response = null;
 			return r;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Wakes up all threads that are waiting for a response.
+	 */
+	private void signalWaiting() {
+		ReentrantLock lock = this.lock;
+		if (lock != null) {
+			lock.lock();
+			try {
+				ended.signalAll();
+			} finally {
+				lock.unlock();
+			}
 		}
+		// else: we know that nobody is waiting on the lock
 	}
 	
 	/**
@@ -481,11 +517,8 @@ public class Request extends Message {
 	@Override
 	public void setTimedOut(boolean timedOut) {
 		super.setTimedOut(timedOut);
-		if (timedOut && lock != null) {
-			synchronized (lock) {
-				lock.notifyAll();
-			}
-		}
+		if (timedOut)
+			signalWaiting();
 	}
 	
 	/**
@@ -497,21 +530,15 @@ public class Request extends Message {
 	@Override
 	public void setCanceled(boolean canceled) {
 		super.setCanceled(canceled);
-		if (canceled && lock != null) {
-			synchronized (lock) {
-				lock.notifyAll();
-			}
-		}
+		if (canceled)
+			signalWaiting();
 	}
 	
 	@Override
 	public void setRejected(boolean rejected) {
 		super.setRejected(rejected);
-		if (rejected  && lock != null) {
-			synchronized (lock) {
-				lock.notifyAll();
-			}
-		}
+		if (rejected)
+			signalWaiting();
 	}
 	
 	/* (non-Javadoc)
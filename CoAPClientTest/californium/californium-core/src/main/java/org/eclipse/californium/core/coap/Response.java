@@ -37,6 +37,9 @@ public class Response extends Message {
 
 	private boolean last = true;
 	
+	/** The serialized options and payload shared with other responses or null */
+	private byte[] sharedBody;
+	
 	/**
 	 * Instantiates a new response with the specified response code.
 	 *
@@ -133,4 +136,26 @@ public class Response extends Message {
 	public void setRTT(long rtt) {
 		this.rtt = rtt;
 	}
+	
+	/**
+	 * Gets the serialized options and payload that this response shares with
+	 * other responses or null if it has to be serialized completely.
+	 * 
+	 * @return the shared body or null
+	 */
+	public byte[] getSharedBody() {
+		return sharedBody;
+	}
+	
+	/**
+	 * Sets the serialized options and payload that this response shares with
+	 * other responses, e.g., the notifications of one change. The serializer
+	 * then only has to write the header and token. The options and payload of
+	 * this response must not be changed afterwards.
+	 * 
+	 * @param sharedBody the serialized options and payload
+	 */
+	public void setSharedBody(byte[] sharedBody) {
+		this.sharedBody = sharedBody;
+	}
 }
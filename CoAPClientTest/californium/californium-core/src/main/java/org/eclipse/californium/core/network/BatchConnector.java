@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.List;
+
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+
+
+/**
+ * A BatchConnector can send several messages with one call, e.g., with a
+ * single system call or a single wakeup of its sender thread. The
+ * {@link CoAPEndpoint} uses it to flush the messages of a batch if
+ * PROTOCOL_STAGE_BATCH_SIZE is larger than one and sends them one by one over
+ * other connectors.
+ */
+public interface BatchConnector extends Connector {
+
+	/**
+	 * Sends the specified messages. The connector must not keep a reference
+	 * to the list after the method has returned.
+	 *
+	 * @param messages the messages
+	 */
+	public void send(List<RawData> messages);
+	
+}
@@ -22,14 +22,25 @@
 package org.eclipse.californium.core.network;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.EmptyMessage;
@@ -39,6 +50,8 @@ import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.EndpointManager.ClientMessageDeliverer;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.core.network.serialization.ByteBufferParser;
+import org.eclipse.californium.core.network.serialization.ByteBufferSerializer;
 import org.eclipse.californium.core.network.serialization.DataParser;
 import org.eclipse.californium.core.network.serialization.Serializer;
 import org.eclipse.californium.core.network.stack.BlockwiseLayer;
@@ -111,15 +124,24 @@ import org.eclipse.californium.elements.UDPConnector;
  * <p>
  * The endpoint and its layers use an {@link ScheduledExecutorService} to
  * execute tasks, e.g., when a request arrives.
+ * <p>
+ * If PROTOCOL_STAGE_LANE_COUNT is larger than one, the endpoint partitions
+ * the exchanges by remote endpoint onto that many lanes. Each lane has its own
+ * matcher, stack of layers and single thread. All messages from and to the
+ * same remote endpoint are processed by the same lane in order, so that the
+ * lanes do not need to share any state.
+ * <p>
+ * If PROTOCOL_STAGE_BATCH_SIZE is larger than one, a lane collects incoming
+ * messages and a single task processes up to that many of them in a row. The
+ * messages that the batch causes are sent together at its end, over a
+ * {@link BatchConnector} if the connector supports it. Only one batch per lane
+ * runs at a time, so batching should be combined with multiple lanes.
  */
 public class CoAPEndpoint implements Endpoint {
 	
 	/** the logger. */
 	private final static Logger LOGGER = Logger.getLogger(CoAPEndpoint.class.getCanonicalName());
 	
-	/** The stack of layers that make up the CoAP protocol */
-	private final CoapStack coapstack;
-	
 	/** The connector over which the endpoint connects to the network */
 	private final Connector connector;
 	
@@ -129,6 +151,9 @@ public class CoAPEndpoint implements Endpoint {
 	/** The executor to run tasks for this endpoint and its layers */
 	private ScheduledExecutorService executor;
 	
+	/** The timing wheel this endpoint has put around the executor or null */
+	private TimingWheelScheduler timer;
+	
 	/** Indicates if the endpoint has been started */
 	private boolean started;
 	
@@ -138,12 +163,27 @@ public class CoAPEndpoint implements Endpoint {
 	/** The list of interceptors */
 	private List<MessageInterceptor> interceptors = new ArrayList<MessageInterceptor>(0);
 
-	/** The matcher which matches incoming responses, akcs and rsts an exchange */
-	private Matcher matcher;
+	/** The lanes with the matcher and stack; exactly one by default */
+	private final Lane[] lanes;
+	
+	/** The channel over which the connector forwards incoming messages */
+	private final InboxImpl receiver;
+	
+	/** The messages collected by the thread that sends a batch of responses */
+	private final ThreadLocal<List<RawData>> collecting = new ThreadLocal<List<RawData>>();
 	
 	/** The serializer to serialize messages to bytes */
 	private Serializer serializer;
 	
+	/** Indicates if incoming messages are parsed with the {@link ByteBufferParser} */
+	private final boolean useByteBufferParser;
+	
+	/** The metrics of this endpoint or null if not collected */
+	private final EndpointMetrics metrics;
+	
+	/** The name under which the metrics are registered with JMX */
+	private ObjectName metricsName;
+	
 	/**
 	 * Instantiates a new endpoint with an ephemeral port.
 	 */
@@ -203,10 +243,17 @@ public class CoAPEndpoint implements Endpoint {
 	public CoAPEndpoint(Connector connector, NetworkConfig config) {
 		this.config = config;
 		this.connector = connector;
-		this.serializer = new Serializer();
-		this.matcher = new Matcher(config);		
-		this.coapstack = new CoapStack(config, new OutboxImpl());
-		this.connector.setRawDataReceiver(new InboxImpl());
+		this.serializer = NetworkConfig.Keys.SERIALIZER_BYTE_BUFFER.equals(config.getString(NetworkConfig.Keys.SERIALIZER))
+				? new Serializer(new ByteBufferSerializer())
+				: new Serializer();
+		this.useByteBufferParser = NetworkConfig.Keys.PARSER_BYTE_BUFFER.equals(config.getString(NetworkConfig.Keys.PARSER));
+		this.metrics = config.getBoolean(NetworkConfig.Keys.ENDPOINT_METRICS) ? new EndpointMetrics() : null;
+		int laneCount = Math.max(1, config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_LANE_COUNT));
+		this.lanes = new Lane[laneCount];
+		for (int i=0; i<laneCount; i++)
+			lanes[i] = new Lane(i, laneCount > 1);
+		this.receiver = new InboxImpl();
+		this.connector.setRawDataReceiver(receiver);
 	}
 	
 	/**
@@ -239,8 +286,8 @@ public class CoAPEndpoint implements Endpoint {
 			return;
 		}
 		
-		if (!this.coapstack.hasDeliverer())
-			this.coapstack.setDeliverer(new ClientMessageDeliverer());
+		if (!lanes[0].coapstack.hasDeliverer())
+			setMessageDeliverer(new ClientMessageDeliverer());
 		
 		if (this.executor == null) {
 			LOGGER.config("Endpoint "+toString()+" requires an executor to start. Using default single-threaded daemon executor.");
@@ -260,8 +307,10 @@ public class CoAPEndpoint implements Endpoint {
 			LOGGER.log(Level.INFO, "Starting endpoint at " + getAddress());
 			
 			started = true;
-			matcher.start();
+			for (Lane lane:lanes)
+				lane.matcher.start();
 			connector.start();
+			registerMetrics();
 			for (EndpointObserver obs:observers)
 				obs.started(this);
 			startExecutor();
@@ -272,6 +321,43 @@ public class CoAPEndpoint implements Endpoint {
 		}
 	}
 	
+	/**
+	 * Registers the metrics as MBean with the platform MBean server. Endpoints
+	 * that share their address, e.g., the shards of a server port, are told
+	 * apart by a shard number.
+	 */
+	private void registerMetrics() {
+		if (metrics == null)
+			return;
+		try {
+			String name = "org.eclipse.californium.core:type=CoAPEndpoint,address="
+					+ ObjectName.quote(String.valueOf(getAddress()));
+			metricsName = new ObjectName(name);
+			for (int shard=1; ; shard++) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+					break;
+				} catch (InstanceAlreadyExistsException e) {
+					metricsName = new ObjectName(name + ",shard=" + shard);
+				}
+			}
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Cannot register metrics of endpoint " + getAddress(), e);
+			metricsName = null;
+		}
+	}
+	
+	private void unregisterMetrics() {
+		if (metricsName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (JMException e) {
+			LOGGER.log(Level.FINE, "Cannot unregister metrics of endpoint " + getAddress(), e);
+		}
+		metricsName = null;
+	}
+	
 	/**
 	 * Makes sure that the executor has started, i.e., a thread has been
 	 * created. This is necessary for the server because it makes sure a
@@ -296,11 +382,13 @@ public class CoAPEndpoint implements Endpoint {
 		} else {
 			LOGGER.log(Level.INFO, "Stopping endpoint at address " + getAddress());
 			started = false;
+			unregisterMetrics();
 			connector.stop();
-			matcher.stop();
+			for (Lane lane:lanes)
+				lane.matcher.stop();
 			for (EndpointObserver obs:observers)
 				obs.stopped(this);
-			matcher.clear();
+			clear();
 		}
 	}
 	
@@ -313,6 +401,10 @@ public class CoAPEndpoint implements Endpoint {
 		if (started)
 			stop();
 		connector.destroy();
+		if (timer != null)
+			timer.stop();
+		for (Lane lane:lanes)
+			lane.destroy();
 		for (EndpointObserver obs:observers)
 			obs.destroyed(this);
 	}
@@ -322,7 +414,8 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	@Override
 	public void clear() {
-		matcher.clear();
+		for (Lane lane:lanes)
+			lane.matcher.clear();
 	}
 	
 	/* (non-Javadoc)
@@ -338,9 +431,49 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	@Override
 	public synchronized void setExecutor(ScheduledExecutorService executor) {
+		if (timer != null) {
+			timer.stop();
+			timer = null;
+		}
+		if (lanes.length == 1 && NetworkConfig.Keys.TIMER_TIMING_WHEEL.equals(config.getString(NetworkConfig.Keys.TIMER))
+				&& !(executor instanceof TimingWheelScheduler)) {
+			// share one timer among all layers of this endpoint
+			timer = new TimingWheelScheduler(executor, config);
+			executor = timer;
+		}
 		this.executor = executor;
-		this.coapstack.setExecutor(executor);
-		this.matcher.setExecutor(executor);
+		if (lanes.length == 1)
+			lanes[0].setExecutor(executor);
+		// else the lanes keep running on their own threads
+	}
+	
+	/**
+	 * Returns the number of lanes that process the exchanges of this endpoint.
+	 * 
+	 * @return the number of lanes
+	 */
+	public int getLaneCount() {
+		return lanes.length;
+	}
+	
+	/**
+	 * Returns the number of tasks that wait to be processed by the specified
+	 * lane.
+	 * 
+	 * @param lane the index of the lane
+	 * @return the queue depth of the lane
+	 */
+	public int getLaneQueueDepth(int lane) {
+		return lanes[lane].queued.get();
+	}
+	
+	/**
+	 * Returns the metrics of this endpoint.
+	 * 
+	 * @return the metrics or null if {@link NetworkConfig.Keys#ENDPOINT_METRICS} is disabled
+	 */
+	public EndpointMetrics getMetrics() {
+		return metrics;
 	}
 	
 	/* (non-Javadoc)
@@ -388,13 +521,10 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	@Override
 	public void sendRequest(final Request request) {
-		executor.execute(new Runnable() {
+		final Lane lane = getLane(request.getDestination(), request.getDestinationPort());
+		lane.execute(new Runnable() {
 			public void run() {
-				try {
-					coapstack.sendRequest(request);
-				} catch (Throwable t) {
-					t.printStackTrace();
-				}
+				lane.coapstack.sendRequest(request);
 			}
 		});
 	}
@@ -416,7 +546,72 @@ public class CoAPEndpoint implements Endpoint {
 //				}
 //			}
 //		});
-		coapstack.sendResponse(exchange, response);
+		final Lane lane = getLane(response.getDestination(), response.getDestinationPort());
+		if (lanes.length == 1 || lane.isCurrentThread()) {
+			lane.coapstack.sendResponse(exchange, response);
+		} else {
+			// only the lane may touch the state of its exchanges
+			lane.execute(new Runnable() {
+				public void run() {
+					lane.coapstack.sendResponse(exchange, response);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Sends the specified responses for the specified exchanges, e.g., the
+	 * notifications caused by one change of a resource. The responses for
+	 * remote endpoints on the same lane are passed down the stack by one task
+	 * and the messages they cause are handed to the connector together.
+	 * 
+	 * @param exchanges the exchanges
+	 * @param responses the response for the exchange at the same index
+	 */
+	public void sendResponses(List<Exchange> exchanges, List<Response> responses) {
+		if (exchanges.size() != responses.size())
+			throw new IllegalArgumentException("Need exactly one response per exchange");
+		
+		List<List<Exchange>> laneExchanges = new ArrayList<List<Exchange>>(lanes.length);
+		List<List<Response>> laneResponses = new ArrayList<List<Response>>(lanes.length);
+		for (int i=0; i<lanes.length; i++) {
+			laneExchanges.add(null);
+			laneResponses.add(null);
+		}
+		for (int i=0; i<exchanges.size(); i++) {
+			Exchange exchange = exchanges.get(i);
+			Response response = responses.get(i);
+			Request request = exchange.getRequest();
+			response.setDestination(request.getSource());
+			response.setDestinationPort(request.getSourcePort());
+			exchange.setResponse(response);
+			
+			int index = getLaneIndex(request.getSource(), request.getSourcePort());
+			if (laneExchanges.get(index) == null) {
+				laneExchanges.set(index, new ArrayList<Exchange>());
+				laneResponses.set(index, new ArrayList<Response>());
+			}
+			laneExchanges.get(index).add(exchange);
+			laneResponses.get(index).add(response);
+		}
+		
+		for (int i=0; i<lanes.length; i++) {
+			if (laneExchanges.get(i) == null)
+				continue;
+			final Lane lane = lanes[i];
+			final List<Exchange> batchExchanges = laneExchanges.get(i);
+			final List<Response> batchResponses = laneResponses.get(i);
+			if (lanes.length == 1 || lane.isCurrentThread()) {
+				lane.sendResponses(batchExchanges, batchResponses);
+			} else {
+				// only the lane may touch the state of its exchanges
+				lane.execute(new Runnable() {
+					public void run() {
+						lane.sendResponses(batchExchanges, batchResponses);
+					}
+				});
+			}
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -424,13 +619,10 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	@Override
 	public void sendEmptyMessage(final Exchange exchange, final EmptyMessage message) {
-		executor.execute(new Runnable() {
+		final Lane lane = getLane(message.getDestination(), message.getDestinationPort());
+		lane.execute(new Runnable() {
 			public void run() {
-				try {
-					coapstack.sendEmptyMessage(exchange, message);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+				lane.coapstack.sendEmptyMessage(exchange, message);
 			}
 		});
 	}
@@ -440,7 +632,8 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	@Override
 	public void setMessageDeliverer(MessageDeliverer deliverer) {
-		coapstack.setDeliverer(deliverer);
+		for (Lane lane:lanes)
+			lane.coapstack.setDeliverer(deliverer);
 	}
 	
 	/* (non-Javadoc)
@@ -466,9 +659,15 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	private class OutboxImpl implements Outbox {
 		
+		private final Lane lane;
+		
+		private OutboxImpl(Lane lane) {
+			this.lane = lane;
+		}
+		
 		@Override
 		public void sendRequest(Exchange exchange, Request request) {
-			matcher.sendRequest(exchange, request);
+			lane.matcher.sendRequest(exchange, request);
 			
 			/* 
 			 * Logging here causes significant performance loss.
@@ -479,14 +678,17 @@ public class CoAPEndpoint implements Endpoint {
 			for (MessageInterceptor interceptor:interceptors)
 				interceptor.sendRequest(request);
 
-			// MessageInterceptor might have canceled
-			if (!request.isCanceled())
-				connector.send(serializer.serialize(request));
+			// MessageInterceptor might have canceled, Matcher rejects without MID
+			if (!request.isCanceled() && !request.isRejected()) {
+				if (metrics != null)
+					metrics.sentMessage(request.getType());
+				lane.send(serializer.serialize(request));
+			}
 		}
 
 		@Override
 		public void sendResponse(Exchange exchange, Response response) {
-			matcher.sendResponse(exchange, response);
+			lane.matcher.sendResponse(exchange, response);
 			
 			/* 
 			 * Logging here causes significant performance loss.
@@ -497,14 +699,17 @@ public class CoAPEndpoint implements Endpoint {
 			for (MessageInterceptor interceptor:interceptors)
 				interceptor.sendResponse(response);
 
-			// MessageInterceptor might have canceled
-			if (!response.isCanceled())
-				connector.send(serializer.serialize(response));
+			// MessageInterceptor might have canceled, Matcher rejects without MID
+			if (!response.isCanceled() && !response.isRejected()) {
+				if (metrics != null)
+					metrics.sentMessage(response.getType());
+				lane.send(serializer.serialize(response));
+			}
 		}
 
 		@Override
 		public void sendEmptyMessage(Exchange exchange, EmptyMessage message) {
-			matcher.sendEmptyMessage(exchange, message);
+			lane.matcher.sendEmptyMessage(exchange, message);
 			
 			/* 
 			 * Logging here causes significant performance loss.
@@ -516,8 +721,11 @@ public class CoAPEndpoint implements Endpoint {
 				interceptor.sendEmptyMessage(message);
 
 			// MessageInterceptor might have canceled
-			if (!message.isCanceled())
-				connector.send(serializer.serialize(message));
+			if (!message.isCanceled()) {
+				if (metrics != null)
+					metrics.sentMessage(message.getType());
+				lane.send(serializer.serialize(message));
+			}
 		}
 	}
 	
@@ -537,13 +745,18 @@ public class CoAPEndpoint implements Endpoint {
 			if (raw.getPort() == 0)
 				throw new NullPointerException();
 			
-			// Create a new task to process this message
-			Runnable task = new Runnable() {
-				public void run() {
-					receiveMessage(raw);
-				}
-			};
-			executeTask(task);
+			final Lane lane = getLane(raw.getAddress(), raw.getPort());
+			if (lane.incoming != null) {
+				// Collect the message for the next batch
+				lane.receive(raw);
+			} else {
+				// Create a new task to process this message
+				lane.execute(new Runnable() {
+					public void run() {
+						receiveMessage(raw, lane);
+					}
+				});
+			}
 		}
 		
 		/*
@@ -551,8 +764,10 @@ public class CoAPEndpoint implements Endpoint {
 		 * into a message, look for an associated exchange and forward it to
 		 * the stack of layers.
 		 */
-		private void receiveMessage(RawData raw) {
-			DataParser parser = new DataParser(raw.getBytes());
+		private void receiveMessage(RawData raw, Lane lane) {
+			DataParser parser = useByteBufferParser
+					? new ByteBufferParser(raw.getBytes())
+					: new DataParser(raw.getBytes());
 			
 			if (parser.isRequest()) {
 				// This is a request
@@ -570,7 +785,9 @@ public class CoAPEndpoint implements Endpoint {
 						rst.setMID(parser.getMID());
 						for (MessageInterceptor interceptor:interceptors)
 							interceptor.sendEmptyMessage(rst);
-						connector.send(serializer.serialize(rst));
+						if (metrics != null)
+							metrics.sentMessage(Type.RST);
+						lane.send(serializer.serialize(rst));
 						log.append(" and reset");
 					}
 					if (LOGGER.isLoggable(Level.INFO)) {
@@ -581,6 +798,8 @@ public class CoAPEndpoint implements Endpoint {
 				request.setSource(raw.getAddress());
 				request.setSourcePort(raw.getPort());
 				request.setSenderIdentity(raw.getSenderIdentity());
+				if (metrics != null)
+					metrics.receivedMessage(request.getType());
 				
 				/* 
 				 * Logging here causes significant performance loss.
@@ -593,10 +812,12 @@ public class CoAPEndpoint implements Endpoint {
 
 				// MessageInterceptor might have canceled
 				if (!request.isCanceled()) {
-					Exchange exchange = matcher.receiveRequest(request);
+					Exchange exchange = lane.matcher.receiveRequest(request);
+					if (metrics != null && request.isDuplicate())
+						metrics.duplicate();
 					if (exchange != null) {
 						exchange.setEndpoint(CoAPEndpoint.this);
-						coapstack.receiveRequest(exchange, request);
+						lane.coapstack.receiveRequest(exchange, request);
 					}
 				}
 				
@@ -605,6 +826,8 @@ public class CoAPEndpoint implements Endpoint {
 				Response response = parser.parseResponse();
 				response.setSource(raw.getAddress());
 				response.setSourcePort(raw.getPort());
+				if (metrics != null)
+					metrics.receivedMessage(response.getType());
 				
 				/* 
 				 * Logging here causes significant performance loss.
@@ -617,14 +840,16 @@ public class CoAPEndpoint implements Endpoint {
 
 				// MessageInterceptor might have canceled
 				if (!response.isCanceled()) {
-					Exchange exchange = matcher.receiveResponse(response);
+					Exchange exchange = lane.matcher.receiveResponse(response);
+					if (metrics != null && response.isDuplicate())
+						metrics.duplicate();
 					if (exchange != null) {
 						exchange.setEndpoint(CoAPEndpoint.this);
 						response.setRTT(System.currentTimeMillis() - exchange.getTimestamp());
-						coapstack.receiveResponse(exchange, response);
+						lane.coapstack.receiveResponse(exchange, response);
 					} else if (response.getType() != Type.ACK) {
 						LOGGER.fine("Rejecting unmatchable response from " + raw.getInetSocketAddress());
-						reject(response);
+						reject(response, lane);
 					}
 				}
 				
@@ -633,6 +858,8 @@ public class CoAPEndpoint implements Endpoint {
 				EmptyMessage message = parser.parseEmptyMessage();
 				message.setSource(raw.getAddress());
 				message.setSourcePort(raw.getPort());
+				if (metrics != null)
+					metrics.receivedMessage(message.getType());
 				
 				/* 
 				 * Logging here causes significant performance loss.
@@ -648,12 +875,12 @@ public class CoAPEndpoint implements Endpoint {
 					// CoAP Ping
 					if (message.getType() == Type.CON || message.getType() == Type.NON) {
 						LOGGER.info("Responding to ping by " + raw.getInetSocketAddress());
-						reject(message);
+						reject(message, lane);
 					} else {
-						Exchange exchange = matcher.receiveEmptyMessage(message);
+						Exchange exchange = lane.matcher.receiveEmptyMessage(message);
 						if (exchange != null) {
 							exchange.setEndpoint(CoAPEndpoint.this);
-							coapstack.receiveEmptyMessage(exchange, message);
+							lane.coapstack.receiveEmptyMessage(exchange, message);
 						}
 					}
 				}
@@ -662,15 +889,253 @@ public class CoAPEndpoint implements Endpoint {
 			}
 		}
 		
-		private void reject(Message message) {
+		private void reject(Message message, Lane lane) {
 			EmptyMessage rst = EmptyMessage.newRST(message);
 			for (MessageInterceptor interceptor:interceptors)
 				interceptor.sendEmptyMessage(rst);
-			connector.send(serializer.serialize(rst));
+			if (metrics != null)
+				metrics.sentMessage(Type.RST);
+			lane.send(serializer.serialize(rst));
 		}
 
 	}
 	
+	/**
+	 * Returns the lane that processes the exchanges with the specified remote
+	 * endpoint.
+	 * 
+	 * @param address the address of the remote endpoint or null
+	 * @param port the port of the remote endpoint
+	 * @return the lane
+	 */
+	private Lane getLane(InetAddress address, int port) {
+		return lanes[getLaneIndex(address, port)];
+	}
+	
+	private int getLaneIndex(InetAddress address, int port) {
+		if (lanes.length == 1 || address == null)
+			return 0;
+		int hash = address.hashCode() * 31 + port;
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % lanes.length;
+	}
+	
+	/**
+	 * A lane owns a matcher and a stack of layers. By default, the endpoint
+	 * has one lane that runs on the endpoint's executor. With multiple lanes,
+	 * each lane runs on its own single thread.
+	 */
+	private class Lane {
+		
+		private final Matcher matcher;
+		private final CoapStack coapstack;
+		
+		/** The number of tasks and batched messages not yet started */
+		private final AtomicInteger queued = new AtomicInteger();
+		
+		/** The incoming messages of the next batch or null if not batched */
+		private final ConcurrentLinkedQueue<RawData> incoming;
+		
+		/** The outgoing messages of the current batch or null if not batched */
+		private final List<RawData> outgoing;
+		
+		private final int batchSize;
+		private final AtomicBoolean draining = new AtomicBoolean();
+		private volatile Thread drainer;
+		private final Runnable drain = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+		
+		private ScheduledExecutorService laneExecutor;
+		private final boolean ownThread;
+		private volatile Thread thread;
+		
+		private Lane(final int index, boolean ownThread) {
+			this.matcher = new Matcher(config);
+			this.coapstack = new CoapStack(config, new OutboxImpl(this), metrics);
+			if (metrics != null)
+				addGauges(index);
+			this.ownThread = ownThread;
+			int batchSize = config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_BATCH_SIZE);
+			if (batchSize > 1) {
+				this.batchSize = batchSize;
+				this.incoming = new ConcurrentLinkedQueue<RawData>();
+				this.outgoing = new ArrayList<RawData>(batchSize);
+			} else {
+				this.batchSize = 1;
+				this.incoming = null;
+				this.outgoing = null;
+			}
+			if (ownThread) {
+				ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "CoAP-Lane-" + index);
+						thread.setDaemon(true);
+						Lane.this.thread = thread;
+						return thread;
+					}
+				});
+				if (NetworkConfig.Keys.TIMER_TIMING_WHEEL.equals(config.getString(NetworkConfig.Keys.TIMER)))
+					executor = new TimingWheelScheduler(executor, config);
+				setExecutor(executor);
+			}
+		}
+		
+		private void addGauges(int index) {
+			String prefix = "lane." + index + ".";
+			metrics.addGauge(prefix + "queue", new EndpointMetrics.Gauge() {
+				public long get() {
+					return queued.get();
+				}
+			});
+			metrics.addGauge(prefix + "exchangesByMID", new EndpointMetrics.Gauge() {
+				public long get() {
+					return matcher.getExchangeCountByMID();
+				}
+			});
+			metrics.addGauge(prefix + "exchangesByToken", new EndpointMetrics.Gauge() {
+				public long get() {
+					return matcher.getExchangeCountByToken();
+				}
+			});
+			metrics.addGauge(prefix + "ongoingExchanges", new EndpointMetrics.Gauge() {
+				public long get() {
+					return matcher.getOngoingExchangeCount();
+				}
+			});
+			metrics.addGauge(prefix + "deduplicator", new EndpointMetrics.Gauge() {
+				public long get() {
+					return matcher.getDeduplicatorSize();
+				}
+			});
+		}
+		
+		private void setExecutor(ScheduledExecutorService executor) {
+			this.laneExecutor = executor;
+			coapstack.setExecutor(executor);
+			matcher.setExecutor(executor);
+		}
+		
+		private boolean isCurrentThread() {
+			return Thread.currentThread() == thread;
+		}
+		
+		private void execute(final Runnable task) {
+			queued.incrementAndGet();
+			laneExecutor.execute(new Runnable() {
+				public void run() {
+					queued.decrementAndGet();
+					try {
+						task.run();
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Adds the specified message to the incoming and makes sure that a task
+		 * drains it.
+		 */
+		private void receive(RawData raw) {
+			queued.incrementAndGet();
+			incoming.offer(raw);
+			if (draining.compareAndSet(false, true))
+				laneExecutor.execute(drain);
+		}
+		
+		/**
+		 * Processes up to batchSize incoming messages in one go and flushes
+		 * the messages they caused at once. Only one drain runs at a time.
+		 */
+		private void drain() {
+			drainer = Thread.currentThread();
+			try {
+				RawData raw;
+				for (int i=0; i<batchSize && (raw = incoming.poll()) != null; i++) {
+					queued.decrementAndGet();
+					try {
+						receiver.receiveMessage(raw, this);
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
+				}
+			} finally {
+				drainer = null;
+				flush();
+				draining.set(false);
+			}
+			// messages that arrived meanwhile need another round
+			if (!incoming.isEmpty() && draining.compareAndSet(false, true))
+				laneExecutor.execute(drain);
+		}
+		
+		/**
+		 * Sends the specified message. Messages caused by a batch are
+		 * collected and sent together when the batch is over.
+		 */
+		private void send(RawData raw) {
+			if (drainer == Thread.currentThread()) {
+				outgoing.add(raw);
+			} else {
+				List<RawData> batch = collecting.get();
+				if (batch != null)
+					batch.add(raw);
+				else
+					connector.send(raw);
+			}
+		}
+		
+		/**
+		 * Passes the specified responses down the stack and sends the
+		 * messages they cause together.
+		 */
+		private void sendResponses(List<Exchange> exchanges, List<Response> responses) {
+			List<RawData> batch = new ArrayList<RawData>(responses.size());
+			collecting.set(batch);
+			try {
+				for (int i=0; i<responses.size(); i++) {
+					try {
+						coapstack.sendResponse(exchanges.get(i), responses.get(i));
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
+				}
+			} finally {
+				collecting.remove();
+				flush(batch);
+			}
+		}
+		
+		private void flush() {
+			flush(outgoing);
+		}
+		
+		private void flush(List<RawData> batch) {
+			if (batch.isEmpty())
+				return;
+			try {
+				if (connector instanceof BatchConnector) {
+					((BatchConnector) connector).send(batch);
+				} else {
+					for (RawData raw:batch)
+						connector.send(raw);
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+		
+		private void destroy() {
+			// the endpoint's executor belongs to whoever has set it
+			if (ownThread)
+				laneExecutor.shutdown();
+		}
+	}
+	
 	/**
 	 * Execute the specified task on the endpoint's executor.
 	 *
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+import org.eclipse.californium.core.coap.CoAP.Type;
+
+/**
+ * The EndpointMetrics collect the health signals of a {@link CoAPEndpoint}:
+ * the messages received and sent by type, duplicates, retransmissions and
+ * timeouts in {@link StripedCounter}s, the processing latencies in
+ * {@link LatencyHistogram}s, and gauges such as queue depths and the sizes
+ * of the matcher and deduplicator, which are only read when a snapshot is
+ * taken.
+ * <p>
+ * The metrics are a read-only JMX MBean whose attributes are the entries of
+ * {@link #snapshot()}. The endpoint registers it while it is started.
+ */
+public class EndpointMetrics implements DynamicMBean {
+
+	/**
+	 * A Gauge reports a current value, e.g., the size of a data structure.
+	 */
+	public interface Gauge {
+		
+		/**
+		 * Returns the current value.
+		 * 
+		 * @return the value
+		 */
+		public long get();
+	}
+	
+	private final StripedCounter[] received = new StripedCounter[Type.values().length];
+	private final StripedCounter[] sent = new StripedCounter[Type.values().length];
+	private final StripedCounter duplicates = new StripedCounter();
+	private final StripedCounter retransmissions = new StripedCounter();
+	private final StripedCounter timeouts = new StripedCounter();
+	
+	private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+	private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+	
+	public EndpointMetrics() {
+		for (int i = 0; i < received.length; i++) {
+			received[i] = new StripedCounter();
+			sent[i] = new StripedCounter();
+		}
+	}
+	
+	public void receivedMessage(Type type) {
+		received[type.ordinal()].increment();
+	}
+	
+	public void sentMessage(Type type) {
+		sent[type.ordinal()].increment();
+	}
+	
+	public void duplicate() {
+		duplicates.increment();
+	}
+	
+	public void retransmission() {
+		retransmissions.increment();
+	}
+	
+	public void timeout() {
+		timeouts.increment();
+	}
+	
+	public long getReceived(Type type) {
+		return received[type.ordinal()].sum();
+	}
+	
+	public long getSent(Type type) {
+		return sent[type.ordinal()].sum();
+	}
+	
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+	
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+	
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+	
+	/**
+	 * Adds a gauge that is read whenever a snapshot is taken.
+	 * 
+	 * @param name the name of the gauge
+	 * @param gauge the gauge
+	 */
+	public synchronized void addGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+	
+	/**
+	 * Returns the latency histogram with the specified name and creates it if
+	 * necessary. Callers should keep the histogram instead of looking it up
+	 * for every measurement.
+	 * 
+	 * @param name the name of the histogram
+	 * @return the histogram
+	 */
+	public synchronized LatencyHistogram getLatency(String name) {
+		LatencyHistogram histogram = latencies.get(name);
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			latencies.put(name, histogram);
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Returns the current values of all metrics by name. Latencies result in
+	 * the entries <code>count</code>, <code>mean</code>, <code>p50</code>, and
+	 * <code>p99</code> with the name as prefix, all in microseconds.
+	 * 
+	 * @return the values in a stable order
+	 */
+	public synchronized Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (Type type:Type.values())
+			values.put("received." + type, getReceived(type));
+		for (Type type:Type.values())
+			values.put("sent." + type, getSent(type));
+		values.put("duplicates", getDuplicates());
+		values.put("retransmissions", getRetransmissions());
+		values.put("timeouts", getTimeouts());
+		for (Map.Entry<String, Gauge> gauge:gauges.entrySet())
+			values.put(gauge.getKey(), gauge.getValue().get());
+		for (Map.Entry<String, LatencyHistogram> latency:latencies.entrySet()) {
+			String name = latency.getKey();
+			LatencyHistogram histogram = latency.getValue();
+			values.put(name + ".count", histogram.getCount());
+			values.put(name + ".mean", histogram.getMean());
+			values.put(name + ".p50", histogram.getPercentile(50));
+			values.put(name + ".p99", histogram.getPercentile(99));
+		}
+		return values;
+	}
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = snapshot().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Long> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute:attributes) {
+			Long value = values.get(attribute);
+			if (value != null)
+				list.add(new Attribute(attribute, value));
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name:snapshot().keySet())
+			attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+		return new MBeanInfo(getClass().getName(), "CoAP endpoint metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -19,12 +19,15 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.BlockSource;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Request;
@@ -56,6 +59,8 @@ import org.eclipse.californium.core.server.resources.CoapExchange;
  */
 public class Exchange {
 	
+	private static final Logger LOGGER = Logger.getLogger(Exchange.class.getCanonicalName());
+	
 	private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
 	
 	/**
@@ -133,6 +138,9 @@ public class Exchange {
 	
 	/** The relation that the target resource has established with the source */
 	private ObserveRelation relation;
+	
+	/** The congestion control information of the remote endpoint */
+	private volatile RemoteEndpoint.ExchangeInfo exchangeInfo;
 
 	/**
 	 * Constructs a new exchange with the specified request and origin. 
@@ -394,11 +402,40 @@ public class Exchange {
 
 	public void setComplete() {
 		this.complete = true;
+		releaseBodies();
 		ExchangeObserver obs = this.observer;
 		if (obs != null)
 			obs.completed(this);
 	}
 
+	/**
+	 * Releases the spools of unfinished blockwise transfers and closes the
+	 * {@link BlockSource}s of the bodies that this exchange sends. A body that
+	 * this exchange has received and delivered to the application, i.e., a
+	 * response at the client, is closed by the application. This method is
+	 * called when the exchange completes and when the BlockwiseLayer
+	 * abandons a transfer.
+	 */
+	public void releaseBodies() {
+		BlockwiseStatus status = requestBlockStatus;
+		if (status != null) status.release();
+		status = responseBlockStatus;
+		if (status != null) status.release();
+		
+		if (request != null) close(request.getPayloadSource());
+		if (origin == Origin.REMOTE && response != null) close(response.getPayloadSource());
+	}
+	
+	private static void close(BlockSource source) {
+		if (source != null) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				LOGGER.warning("Cannot close payload source: "+e.getMessage());
+			}
+		}
+	}
+
 	public long getTimestamp() {
 		return timestamp;
 	}
@@ -425,6 +462,14 @@ public class Exchange {
 		this.relation = relation;
 	}
 	
+	RemoteEndpoint.ExchangeInfo getExchangeInfo() {
+		return exchangeInfo;
+	}
+	
+	void setExchangeInfo(RemoteEndpoint.ExchangeInfo exchangeInfo) {
+		this.exchangeInfo = exchangeInfo;
+	}
+	
 	/**
 	 * This class is used by the matcher to remember a message by its MID and
 	 * source/destination.
@@ -507,22 +552,31 @@ public class Exchange {
 	
 	/**
 	 * This class is used by the matcher to remember a request by its 
-	 * destination URI (for observe relations).
+	 * destination URI (for observe relations). The remaining blocks of a
+	 * Block2 transfer are also remembered by the token, so that concurrent
+	 * transfers of the same URI from one peer, e.g., of the notifications of
+	 * several observe relations, do not share one exchange.
 	 */
 	public static class KeyUri {
 
 		protected final String uri;
+		protected final byte[] token;
 		protected final byte[] address;
 		protected final int port;
 		private final int hash;
 		
 		public KeyUri(String uri, byte[] address, int port) {
+			this(uri, null, address, port);
+		}
+		
+		public KeyUri(String uri, byte[] token, byte[] address, int port) {
 			if (uri == null) throw new NullPointerException();
 			if (address == null) throw new NullPointerException();
 			this.uri = uri;
+			this.token = token;
 			this.address = address;
 			this.port = port;
-			this.hash = (port*31 + uri.hashCode()) * 31 + Arrays.hashCode(address);
+			this.hash = ((port*31 + uri.hashCode()) * 31 + Arrays.hashCode(token)) * 31 + Arrays.hashCode(address);
 		}
 		
 		@Override
@@ -535,12 +589,13 @@ public class Exchange {
 			if (! (o instanceof KeyUri))
 				return false;
 			KeyUri key = (KeyUri) o;
-			return uri.equals(key.uri) && port == key.port && Arrays.equals(address, key.address);
+			return uri.equals(key.uri) && port == key.port && Arrays.equals(token, key.token) && Arrays.equals(address, key.address);
 		}
 		
 		@Override
 		public String toString() {
-			return "KeyUri["+uri+" from "+Utils.toHexString(address)+":"+port+"]";
+			String tok = token != null ? " token "+Utils.toHexString(token) : "";
+			return "KeyUri["+uri+tok+" from "+Utils.toHexString(address)+":"+port+"]";
 		}
 	}
 }
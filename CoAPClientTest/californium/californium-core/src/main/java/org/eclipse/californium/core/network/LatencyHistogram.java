@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram counts durations in buckets with power-of-two upper
+ * bounds in microseconds: bucket 0 counts durations below 1 us, bucket i
+ * durations below 2^i us, and the last bucket all longer ones. Recording is
+ * lock-free and can be done by any number of threads.
+ */
+public class LatencyHistogram {
+
+	/** The number of buckets; the last bound is about 35 minutes */
+	public static final int BUCKETS = 32;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	
+	/**
+	 * Records the specified duration.
+	 * 
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+	}
+	
+	/**
+	 * Returns the number of recorded durations.
+	 * 
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the number of durations in the specified bucket.
+	 * 
+	 * @param bucket the bucket
+	 * @return the count of the bucket
+	 */
+	public long getCount(int bucket) {
+		return counts.get(bucket);
+	}
+	
+	/**
+	 * Returns the exclusive upper bound of the specified bucket.
+	 * 
+	 * @param bucket the bucket
+	 * @return the bound in microseconds or Long.MAX_VALUE for the last bucket
+	 */
+	public static long getUpperBound(int bucket) {
+		return bucket < BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Returns the mean of all recorded durations.
+	 * 
+	 * @return the mean in microseconds
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n > 0 ? sum.get() / n : 0;
+	}
+	
+	/**
+	 * Returns the upper bound of the bucket that contains the specified
+	 * percentile of the recorded durations.
+	 * 
+	 * @param percentile the percentile between 0 and 100
+	 * @return the bound in microseconds
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0)
+				return getUpperBound(i);
+		}
+		return 0;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("[count=%d, mean=%dus, p50<%dus, p99<%dus]",
+				getCount(), getMean(), getPercentile(50), getPercentile(99));
+	}
+}
@@ -19,6 +19,7 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network;
 
+import java.net.InetAddress;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
@@ -55,11 +56,17 @@ public class Matcher {
 	// TODO: Make per endpoint
 	private AtomicInteger currendMID; 
 	
+	/** The per-peer MID provider or null if the global counter is used */
+	private MessageIdProvider midProvider;
+	
 	private ConcurrentHashMap<KeyMID, Exchange> exchangesByMID; // Outgoing
 	private ConcurrentHashMap<KeyToken, Exchange> exchangesByToken;
 	
 	private ConcurrentHashMap<KeyUri, Exchange> ongoingExchanges; // for blockwise
 	
+	/** The alternative to exchangesByMID and exchangesByToken or null if not used */
+	private ShardedExchangeStore exchangeStore;
+	
 	// TODO: Multicast Exchanges: should not be removed from deduplicator
 	private Deduplicator deduplicator;
 	// Idea: Only store acks/rsts and not the whole exchange. Responses should be sent CON.
@@ -68,11 +75,15 @@ public class Matcher {
 	private Level healthStatusLevel;
 	private int healthStatusInterval; // seconds
 	
+	private long exchangeLifetime; // ms
+	
 	public Matcher(NetworkConfig config) {
 		this.started = false;
 		this.exchangesByMID = new ConcurrentHashMap<KeyMID, Exchange>();
 		this.exchangesByToken = new ConcurrentHashMap<KeyToken, Exchange>();
 		this.ongoingExchanges = new ConcurrentHashMap<KeyUri, Exchange>();
+		if (NetworkConfig.Keys.EXCHANGE_STORE_SHARDED.equals(config.getString(NetworkConfig.Keys.EXCHANGE_STORE)))
+			this.exchangeStore = new ShardedExchangeStore(config.getInt(NetworkConfig.Keys.EXCHANGE_STORE_SHARDS));
 
 		DeduplicatorFactory factory = DeduplicatorFactory.getDeduplicatorFactory();
 		this.deduplicator = factory.createDeduplicator(config);
@@ -80,6 +91,9 @@ public class Matcher {
 		if (config.getBoolean(NetworkConfig.Keys.USE_RANDOM_MID_START))
 			currendMID = new AtomicInteger(new Random().nextInt(1<<16));
 		else currendMID = new AtomicInteger(0);
+		if (NetworkConfig.Keys.MID_PROVIDER_PER_PEER.equals(config.getString(NetworkConfig.Keys.MID_PROVIDER)))
+			midProvider = new MessageIdProvider(config);
+		exchangeLifetime = config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME);
 		
 		healthStatusLevel = Level.parse(config.getString(NetworkConfig.Keys.HEALTH_STATUS_PRINT_LEVEL));
 		healthStatusInterval = config.getInt(NetworkConfig.Keys.HEALTH_STATUS_INTERVAL);
@@ -92,12 +106,24 @@ public class Matcher {
 			throw new IllegalStateException("Matcher has no executor to schedule exchange removal");
 		deduplicator.start();
 		
+		if (midProvider != null) {
+			executor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					midProvider.purge();
+				}
+			}, exchangeLifetime, exchangeLifetime, TimeUnit.MILLISECONDS);
+		}
+		
 		// this is a useful health metric that could later be exported to some kind of monitoring interface
 		if (LOGGER.isLoggable(healthStatusLevel)) {
 			executor.scheduleAtFixedRate(new Runnable() {
 				@Override
 				public void run() {
-					LOGGER.log(healthStatusLevel, "Matcher state: " + exchangesByMID.size() + " exchangesByMID, " + exchangesByToken.size() + " exchangesByToken, " + ongoingExchanges.size() + " ongoingExchanges");
+					if (exchangeStore != null)
+						LOGGER.log(healthStatusLevel, "Matcher state: " + exchangeStore + ", " + ongoingExchanges.size() + " ongoingExchanges");
+					else
+						LOGGER.log(healthStatusLevel, "Matcher state: " + exchangesByMID.size() + " exchangesByMID, " + exchangesByToken.size() + " exchangesByToken, " + ongoingExchanges.size() + " ongoingExchanges");
 				}
 			}, healthStatusInterval, healthStatusInterval, TimeUnit.SECONDS);
 		}
@@ -115,9 +141,53 @@ public class Matcher {
 		this.executor = executor;
 	}
 	
+	/**
+	 * Returns the number of outgoing exchanges stored by MID.
+	 * 
+	 * @return the number of exchanges
+	 */
+	public int getExchangeCountByMID() {
+		return exchangeStore != null ? exchangeStore.getMIDCount() : exchangesByMID.size();
+	}
+	
+	/**
+	 * Returns the number of outgoing exchanges stored by token.
+	 * 
+	 * @return the number of exchanges
+	 */
+	public int getExchangeCountByToken() {
+		return exchangeStore != null ? exchangeStore.getTokenCount() : exchangesByToken.size();
+	}
+	
+	/**
+	 * Returns the number of ongoing blockwise exchanges.
+	 * 
+	 * @return the number of exchanges
+	 */
+	public int getOngoingExchangeCount() {
+		return ongoingExchanges.size();
+	}
+	
+	/**
+	 * Returns the number of messages remembered by the deduplicator.
+	 * 
+	 * @return the number of entries
+	 */
+	public int getDeduplicatorSize() {
+		return deduplicator.size();
+	}
+	
 	public void sendRequest(Exchange exchange, Request request) {
-		if (request.getMID() == Message.NONE)
-			request.setMID(currendMID.getAndIncrement()%(1<<16));
+		if (request.getMID() == Message.NONE) {
+			int mid = nextMID(request.getDestination(), request.getDestinationPort());
+			if (mid == Message.NONE) {
+				LOGGER.warning("No MID available for "+request.getDestination()+":"+request.getDestinationPort()+", rejecting request");
+				// unlike a cancel, a reject reaches the handlers of the sender
+				request.setRejected(true);
+				return;
+			}
+			request.setMID(mid);
+		}
 
 		/*
 		 * The request is a CON or NON and must be prepared for these responses
@@ -126,13 +196,19 @@ public class Matcher {
 		 * If this request goes lost, we do not get anything back.
 		 */
 		
+		exchange.setObserver(exchangeObserver);
+		
+		if (exchangeStore != null) {
+			exchangeStore.putByMID(request.getMID(), request.getDestination(), request.getDestinationPort(), exchange);
+			exchangeStore.putByToken(request.getToken(), request.getDestination(), request.getDestinationPort(), exchange);
+			return;
+		}
+		
 		KeyMID idByMID = new KeyMID(request.getMID(), 
 				request.getDestination().getAddress(), request.getDestinationPort());
 		KeyToken idByTok = new KeyToken(request.getToken(),
 				request.getDestination().getAddress(), request.getDestinationPort());
 		
-		exchange.setObserver(exchangeObserver);
-		
 		LOGGER.fine("Stored open request by "+idByMID+", "+idByTok);
 		
 		exchangesByMID.put(idByMID, exchange);
@@ -140,8 +216,15 @@ public class Matcher {
 	}
 
 	public void sendResponse(Exchange exchange, Response response) {
-		if (response.getMID() == Message.NONE)
-			response.setMID(currendMID.getAndIncrement()%(1<<16));
+		if (response.getMID() == Message.NONE) {
+			int mid = nextMID(response.getDestination(), response.getDestinationPort());
+			if (mid == Message.NONE) {
+				LOGGER.warning("No MID available for "+response.getDestination()+":"+response.getDestinationPort()+", rejecting response");
+				response.setRejected(true);
+				return;
+			}
+			response.setMID(mid);
+		}
 		
 		/*
 		 * The response is a CON or NON or ACK and must be prepared for these
@@ -168,7 +251,8 @@ public class Matcher {
 		
 		if (response.getOptions().hasBlock2()) {
 			Request request = exchange.getRequest();
-			KeyUri idByUri = new KeyUri(request.getURI(),
+			// the client requests the remaining blocks with the token of the response
+			KeyUri idByUri = new KeyUri(request.getURI(), response.getToken(),
 					response.getDestination().getAddress(), response.getDestinationPort());
 			if (exchange.getResponseBlockStatus()!=null && !response.getOptions().hasObserve()) {
 				// Remember ongoing blockwise GET requests
@@ -183,9 +267,7 @@ public class Matcher {
 		// Insert CON and NON to match ACKs and RSTs to the exchange.
 		// Do not insert ACKs and RSTs.
 		if (response.getType() == Type.CON || response.getType() == Type.NON) {
-			KeyMID idByMID = new KeyMID(response.getMID(), 
-					response.getDestination().getAddress(), response.getDestinationPort());
-			exchangesByMID.put(idByMID, exchange);
+			putByMID(response.getMID(), response.getDestination(), response.getDestinationPort(), exchange);
 		}
 		
 		if (response.getType() == Type.ACK || response.getType() == Type.NON) {
@@ -247,7 +329,9 @@ public class Matcher {
 			
 		} else {
 			
-			KeyUri idByUri = new KeyUri(request.getURI(),
+			// Block2 transfers are ongoing per token, Block1 transfers per URI
+			byte[] token = request.getOptions().hasBlock1() ? null : request.getToken();
+			KeyUri idByUri = new KeyUri(request.getURI(), token,
 					request.getSource().getAddress(), request.getSourcePort());
 			
 			LOGGER.fine("Lookup ongoing exchange for "+idByUri);
@@ -299,10 +383,14 @@ public class Matcher {
 		KeyMID idByMID = new KeyMID(response.getMID(), 
 				response.getSource().getAddress(), response.getSourcePort());
 		
-		KeyToken idByTok = new KeyToken(response.getToken(), 
-				response.getSource().getAddress(), response.getSourcePort());
-		
-		Exchange exchange = exchangesByToken.get(idByTok);
+		Exchange exchange;
+		if (exchangeStore != null) {
+			exchange = exchangeStore.getByToken(response.getToken(), response.getSource(), response.getSourcePort());
+		} else {
+			KeyToken idByTok = new KeyToken(response.getToken(), 
+					response.getSource().getAddress(), response.getSourcePort());
+			exchange = exchangesByToken.get(idByTok);
+		}
 		
 		if (exchange != null) {
 			// There is an exchange with the given token
@@ -313,7 +401,7 @@ public class Matcher {
 				response.setDuplicate(true);
 			} else {
 				LOGGER.fine("Exchange got reply: Cleaning up "+idByMID);
-				exchangesByMID.remove(idByMID);
+				removeByMID(response.getMID(), response.getSource(), response.getSourcePort());
 			}
 			
 			if (response.getType() == Type.ACK && exchange.getCurrentRequest().getMID() != response.getMID()) {
@@ -342,14 +430,10 @@ public class Matcher {
 
 	public Exchange receiveEmptyMessage(EmptyMessage message) {
 		
-		KeyMID idByMID = new KeyMID(message.getMID(),
-				message.getSource().getAddress(), message.getSourcePort());
-		
-		Exchange exchange = exchangesByMID.get(idByMID);
+		Exchange exchange = removeByMID(message.getMID(), message.getSource(), message.getSourcePort());
 		
 		if (exchange != null) {
-			LOGGER.fine("Exchange got reply: Cleaning up "+idByMID);
-			exchangesByMID.remove(idByMID);
+			LOGGER.fine("Exchange got reply: Cleaned up MID "+message.getMID());
 			return exchange;
 		} else {
 			LOGGER.info("Matcher received empty message that does not match any exchange: "+message);
@@ -359,9 +443,13 @@ public class Matcher {
 	}
 	
 	public void clear() {
+		if (midProvider != null)
+			midProvider.clear();
 		this.exchangesByMID.clear();
 		this.exchangesByToken.clear();
 		this.ongoingExchanges.clear();
+		if (exchangeStore != null)
+			exchangeStore.clear();
 		deduplicator.clear();
 	}
 	
@@ -369,13 +457,55 @@ public class Matcher {
 		LOGGER.fine("Remove all remaining NON-notifications of observe relation");
 		for (Iterator<Response> iterator = relation.getNotificationIterator(); iterator.hasNext();) {
 			Response previous = iterator.next();
-			KeyMID idByMID = new KeyMID(previous.getMID(), 
-					previous.getDestination().getAddress(), previous.getDestinationPort());
-			exchangesByMID.remove(idByMID);
+			removeByMID(previous.getMID(), previous.getDestination(), previous.getDestinationPort());
 			iterator.remove();
 		}
 	}
 	
+	/**
+	 * Returns the next MID for the specified peer from the per-peer provider
+	 * or the global counter.
+	 * 
+	 * @return the MID or {@link Message#NONE} if the peer has no MID left
+	 */
+	private int nextMID(InetAddress address, int port) {
+		if (midProvider != null)
+			return midProvider.getNextMessageId(address, port);
+		else
+			return currendMID.getAndIncrement()%(1<<16);
+	}
+	
+	/**
+	 * Returns the store that replaces the hash maps of exchanges by MID and
+	 * token or null if the matcher uses the hash maps.
+	 * 
+	 * @return the sharded exchange store or null
+	 */
+	public ShardedExchangeStore getExchangeStore() {
+		return exchangeStore;
+	}
+	
+	private void putByMID(int mid, InetAddress address, int port, Exchange exchange) {
+		if (exchangeStore != null)
+			exchangeStore.putByMID(mid, address, port, exchange);
+		else
+			exchangesByMID.put(new KeyMID(mid, address.getAddress(), port), exchange);
+	}
+	
+	private Exchange removeByMID(int mid, InetAddress address, int port) {
+		if (exchangeStore != null)
+			return exchangeStore.removeByMID(mid, address, port);
+		else
+			return exchangesByMID.remove(new KeyMID(mid, address.getAddress(), port));
+	}
+	
+	private void removeByToken(byte[] token, InetAddress address, int port) {
+		if (exchangeStore != null)
+			exchangeStore.removeByToken(token, address, port);
+		else
+			exchangesByToken.remove(new KeyToken(token, address.getAddress(), port));
+	}
+	
 	private class ExchangeObserverImpl implements ExchangeObserver {
 
 		@Override
@@ -389,13 +519,11 @@ public class Matcher {
 			if (exchange.getOrigin() == Origin.LOCAL) {
 				// this endpoint created the Exchange by issuing a request
 				Request request = exchange.getRequest();
-				KeyToken idByTok = new KeyToken(exchange.getCurrentRequest().getToken(), request.getDestination().getAddress(), request.getDestinationPort());
-				KeyMID idByMID = new KeyMID(request.getMID(), request.getDestination().getAddress(), request.getDestinationPort());
 				
 //				LOGGER.fine("Exchange completed: Cleaning up "+idByTok);
-				exchangesByToken.remove(idByTok);
+				removeByToken(exchange.getCurrentRequest().getToken(), request.getDestination(), request.getDestinationPort());
 				// in case an empty ACK was lost
-				exchangesByMID.remove(idByMID);
+				removeByMID(request.getMID(), request.getDestination(), request.getDestinationPort());
 			
 			} else {
 				// this endpoint created the Exchange to respond a request
@@ -406,6 +534,8 @@ public class Matcher {
 							request.getSource().getAddress(), request.getSourcePort());
 //					LOGGER.fine("Remote ongoing completed, cleaning up "+uriKey);
 					ongoingExchanges.remove(uriKey);
+					ongoingExchanges.remove(new KeyUri(request.getURI(), request.getToken(),
+							request.getSource().getAddress(), request.getSourcePort()));
 				}
 				// TODO: What if the request is only a block?
 				// TODO: This should only happen if the transfer was blockwise
@@ -413,12 +543,13 @@ public class Matcher {
 				Response response = exchange.getResponse();
 				if (response != null) {
 					// only response MIDs are stored for ACK and RST, no reponse Tokens
-					KeyMID midKey = new KeyMID(response.getMID(), 
-							response.getDestination().getAddress(), response.getDestinationPort());
 //					LOGGER.fine("Remote ongoing completed, cleaning up "+midKey);
-					exchangesByMID.remove(midKey);
+					removeByMID(response.getMID(), response.getDestination(), response.getDestinationPort());
 				}
 				
+				// Let the deduplicator forget the exchange and only keep the response
+				deduplicator.complete(exchange);
+				
 				// Remove all remaining NON-notifications if this exchange is an observe relation
 				ObserveRelation relation = exchange.getRelation();
 				if (relation != null) {
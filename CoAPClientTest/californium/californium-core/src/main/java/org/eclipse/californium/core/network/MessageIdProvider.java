@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * The MessageIdProvider assigns message IDs per remote endpoint instead of
+ * from one 16-bit space shared by all peers. For each peer, it keeps a
+ * counter and a ring of lease times, one per group of consecutive MIDs. A
+ * group may only be entered again when its last MID has been handed out more
+ * than EXCHANGE_LIFETIME ago. If the counter runs into a group that is still
+ * in use, the peer's MID space is exhausted and
+ * {@link #getNextMessageId(InetAddress, int)} returns {@link Message#NONE},
+ * so that the caller can push back instead of silently reusing a MID that
+ * might still be in flight.
+ * <p>
+ * The state per peer is a few hundred bytes. Peers that have not been
+ * assigned a MID for EXCHANGE_LIFETIME have no MID in use and are dropped by
+ * {@link #purge()}.
+ */
+public class MessageIdProvider {
+
+	/** The number of message IDs */
+	private static final int MID_SPACE = 1 << 16;
+	
+	/** Returned by a tracker that has been purged meanwhile */
+	private static final int PURGED = -2;
+	
+	private final ConcurrentHashMap<InetSocketAddress, MessageIdTracker> trackers =
+			new ConcurrentHashMap<InetSocketAddress, MessageIdTracker>();
+	
+	private final long exchangeLifetime; // ms
+	private final int groupCount;
+	private final Random random;
+	
+	/**
+	 * Instantiates a new provider with EXCHANGE_LIFETIME, MID_TRACKER_GROUPS
+	 * and USE_RANDOM_MID_START from the specified configuration.
+	 * 
+	 * @param config the configuration
+	 */
+	public MessageIdProvider(NetworkConfig config) {
+		this(config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME),
+				config.getInt(NetworkConfig.Keys.MID_TRACKER_GROUPS),
+				config.getBoolean(NetworkConfig.Keys.USE_RANDOM_MID_START));
+	}
+	
+	/**
+	 * Instantiates a new provider.
+	 * 
+	 * @param exchangeLifetime the time in ms after which a MID can be reused
+	 * @param groupCount the number of MID groups per peer (a power of two up to 65536)
+	 * @param randomStart true to start each peer at a random MID
+	 */
+	public MessageIdProvider(long exchangeLifetime, int groupCount, boolean randomStart) {
+		if (groupCount < 1 || groupCount > MID_SPACE || Integer.bitCount(groupCount) != 1)
+			throw new IllegalArgumentException("Group count must be a power of two between 1 and "+MID_SPACE+": "+groupCount);
+		this.exchangeLifetime = exchangeLifetime;
+		this.groupCount = groupCount;
+		this.random = randomStart ? new Random() : null;
+	}
+	
+	/**
+	 * Returns the next message ID for the specified peer.
+	 * 
+	 * @param address the peer's address
+	 * @param port the peer's port
+	 * @return the MID or {@link Message#NONE} if all MIDs for this peer are in use
+	 */
+	public int getNextMessageId(InetAddress address, int port) {
+		InetSocketAddress peer = new InetSocketAddress(address, port);
+		while (true) {
+			MessageIdTracker tracker = trackers.get(peer);
+			if (tracker == null) {
+				MessageIdTracker fresh = new MessageIdTracker(random != null ? random.nextInt(MID_SPACE) : 0);
+				tracker = trackers.putIfAbsent(peer, fresh);
+				if (tracker == null)
+					tracker = fresh;
+			}
+			int mid = tracker.next(System.currentTimeMillis());
+			if (mid != PURGED)
+				return mid;
+		}
+	}
+	
+	/**
+	 * Removes the state of all peers that have no MID in use anymore. A peer
+	 * is removed under the lock of its tracker, so that a concurrent
+	 * {@link #getNextMessageId(InetAddress, int)} either uses the tracker
+	 * before or a new one after the removal.
+	 */
+	public void purge() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<InetSocketAddress, MessageIdTracker> entry:trackers.entrySet())
+			entry.getValue().purgeIfIdle(entry.getKey(), now);
+	}
+	
+	/**
+	 * Returns the number of peers for which MIDs are tracked.
+	 * 
+	 * @return the number of peers
+	 */
+	public int getPeerCount() {
+		return trackers.size();
+	}
+	
+	/**
+	 * Removes the state of all peers.
+	 */
+	public void clear() {
+		trackers.clear();
+	}
+	
+	/**
+	 * The MIDs of one peer.
+	 */
+	private class MessageIdTracker {
+		
+		/** The time each group of MIDs has last been used (0 if never) */
+		private final long[] leases = new long[groupCount];
+		private final int groupShift = Integer.numberOfTrailingZeros(MID_SPACE / groupCount);
+		private int counter;
+		private long lastUsed;
+		private boolean purged;
+		
+		private MessageIdTracker(int start) {
+			this.counter = start;
+		}
+		
+		private synchronized int next(long now) {
+			if (purged)
+				return PURGED;
+			int mid = counter;
+			int group = mid >>> groupShift;
+			if (mid == (group << groupShift)) {
+				// entering the group again: all of its MIDs must have expired
+				long lease = leases[group];
+				if (lease != 0 && lease + exchangeLifetime > now)
+					return Message.NONE;
+			}
+			leases[group] = now;
+			lastUsed = now;
+			counter = (mid + 1) & (MID_SPACE - 1);
+			return mid;
+		}
+		
+		private synchronized void purgeIfIdle(InetSocketAddress peer, long now) {
+			if (lastUsed + exchangeLifetime <= now && trackers.remove(peer, this))
+				purged = true;
+		}
+	}
+}
@@ -18,29 +18,33 @@
 package org.eclipse.californium.core.network;
 
 import java.net.InetAddress;
-import java.util.LinkedList;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.stack.congestioncontrol.RtoState;
 
 public class RemoteEndpoint {
 	
 	// The address of the remote endpoint
-	private InetAddress Address;
+	private final InetAddress Address;
 	// The port number of the remote endpoint
-	private int Port;
-	// A concurrent Hash Map that contains timestamp information for the exchanges
-	private ConcurrentHashMap<Exchange, exchangeInfo> exchangeInfoMap;
+	private final int Port;
+	// The number of exchanges that have registered timestamp information with this endpoint
+	private final AtomicInteger ongoingExchanges = new AtomicInteger();
+	// Set on every access, cleared by the clock eviction of the RemoteEndpointManager
+	private volatile boolean referenced = true;
 	
 	//Overall RTO, Strong RTO, Strong RTT, Strong RTTVAR, to be used to set the retransmission timeout.
 	private long[] overallRTO;
 	private long[] RTOupdateTimestamp;
 	
 	//Current RTO stores the latest updated value
-	private long currentRTO;
+	private volatile long currentRTO;
 	
-	private long meanOverallRTO;
+	private volatile long meanOverallRTO;
 	private long[] xRTO;
 	private long[] xRTT;
 	private long[] xRTTVAR;
@@ -67,13 +71,13 @@ public class RemoteEndpoint {
 	
 	
 	private int currentArrayElement;
-	private int nonConfirmableCounter;
+	private final AtomicInteger nonConfirmableCounter = new AtomicInteger();
 	
 	private boolean usesBlindEstimator;
 	private boolean isBlindStrong; // As long as no weak RTT measurement has been carried out, the RTO timers are calculated differently
 	private boolean isBlindWeak; // As long as no weak RTT measurement has been carried out, the RTO timers are calculated differently
 	
-	private boolean processingNON;
+	private final AtomicBoolean processingNON = new AtomicBoolean();
 	
 	private final static int RTOARRAYSIZE 	= 1; 	// Amounts of elements in the RTO history length
 	
@@ -82,10 +86,18 @@ public class RemoteEndpoint {
 	private final static int NOESTIMATOR = 3;
 	
 	/* A queue for confirmable exchanges that need to be delayed due to the NSTART limitation*/
-	private Queue<Exchange> confirmableQueue; 
+	private final Queue<QueuedExchange> confirmableQueue = new ConcurrentLinkedQueue<QueuedExchange>();
+	private final AtomicInteger confirmableQueueSize = new AtomicInteger();
 	
 	/* A queue for non-confirmable exchanges that need to be rate-controlled */
-	private Queue<Exchange> nonConfirmableQueue; 
+	private final Queue<QueuedExchange> nonConfirmableQueue = new ConcurrentLinkedQueue<QueuedExchange>();
+	private final AtomicInteger nonConfirmableQueueSize = new AtomicInteger();
+	
+	/* The earliest time in nanoseconds at which the pacer may send the next NON */
+	private volatile long nextNonConfirmableTime;
+	
+	/* The state of a pluggable RTO estimator, created on first use */
+	private volatile RtoState rtoState;
 	
 	public RemoteEndpoint(int remotePort, InetAddress remoteAddress, NetworkConfig config){
 		Address = remoteAddress;
@@ -110,18 +122,12 @@ public class RemoteEndpoint {
 		meanOverallRTO = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
 		
 		currentArrayElement = 0;
-		nonConfirmableCounter = 7;
+		nonConfirmableCounter.set(7);
 		
 		usesBlindEstimator = true;
 		isBlindStrong = true;
 		isBlindWeak = true;
 		
-		processingNON = false;
-		
-		exchangeInfoMap = new ConcurrentHashMap<Exchange, exchangeInfo>();
-
-		confirmableQueue = new LinkedList<Exchange>();
-	    nonConfirmableQueue = new LinkedList<Exchange>();
 	}
 
 	public int getRemotePort(){
@@ -133,15 +139,42 @@ public class RemoteEndpoint {
 	}
 	
 	public void increaseNonConfirmableCounter(){
-		nonConfirmableCounter++;
+		nonConfirmableCounter.incrementAndGet();
 	}
 	
 	public int getNonConfirmableCounter(){
-		return nonConfirmableCounter;
+		return nonConfirmableCounter.get();
 	}
 	
 	public void resetNonConfirmableCounter(){
-		nonConfirmableCounter = 0;
+		nonConfirmableCounter.set(0);
+	}
+	
+	/**
+	 * Marks this endpoint as recently used.
+	 */
+	void touch() {
+		referenced = true;
+	}
+	
+	/**
+	 * Clears the mark of a recent use and returns whether it was set.
+	 * @return true if the endpoint has been used since the last call
+	 */
+	boolean clearReferenced() {
+		boolean was = referenced;
+		referenced = false;
+		return was;
+	}
+	
+	/**
+	 * Checks whether this endpoint holds state that must not be evicted:
+	 * ongoing exchanges or queued messages.
+	 * @return true if the endpoint is busy
+	 */
+	boolean isBusy() {
+		return ongoingExchanges.get() > 0 || processingNON.get()
+				|| confirmableQueueSize.get() > 0 || nonConfirmableQueueSize.get() > 0;
 	}
 	
 	public long getRTOtimestamp(int rtoType){
@@ -190,16 +223,81 @@ public class RemoteEndpoint {
 		xRTTVAR[estimatorType] = rttvar;
 	}	
 	
-	public Queue<Exchange> getConfirmableQueue(){
-		return confirmableQueue;
+	/**
+	 * Enqueues a confirmable exchange that has to wait for NSTART unless the
+	 * queue already holds the specified number of exchanges.
+	 * @param exchange the exchange
+	 * @param limit the maximum number of queued exchanges
+	 * @return true if the exchange has been queued
+	 */
+	public boolean offerConfirmable(Exchange exchange, int limit){
+		return offer(confirmableQueue, confirmableQueueSize, exchange, limit);
+	}
+	
+	/**
+	 * Dequeues the oldest waiting confirmable exchange.
+	 * @param waits the histogram to record the waiting time in
+	 * @return the exchange or null if the queue is empty
+	 */
+	public Exchange pollConfirmable(LatencyHistogram waits){
+		return poll(confirmableQueue, confirmableQueueSize, waits);
+	}
+	
+	public int getConfirmableQueueSize(){
+		return confirmableQueueSize.get();
+	}
+	
+	/**
+	 * Enqueues a non-confirmable exchange for the pacer unless the queue
+	 * already holds the specified number of exchanges.
+	 * @param exchange the exchange
+	 * @param limit the maximum number of queued exchanges
+	 * @return true if the exchange has been queued
+	 */
+	public boolean offerNonConfirmable(Exchange exchange, int limit){
+		return offer(nonConfirmableQueue, nonConfirmableQueueSize, exchange, limit);
+	}
+	
+	/**
+	 * Dequeues the oldest waiting non-confirmable exchange.
+	 * @param waits the histogram to record the waiting time in
+	 * @return the exchange or null if the queue is empty
+	 */
+	public Exchange pollNonConfirmable(LatencyHistogram waits){
+		return poll(nonConfirmableQueue, nonConfirmableQueueSize, waits);
+	}
+	
+	public int getNonConfirmableQueueSize(){
+		return nonConfirmableQueueSize.get();
 	}
 	
-	public Queue<Exchange> getNonConfirmableQueue(){
-		return nonConfirmableQueue;
+	public long getNextNonConfirmableTime(){
+		return nextNonConfirmableTime;
 	}
 	
-	public Exchange pollConfirmableExchange(){
-		return confirmableQueue.poll();
+	public void setNextNonConfirmableTime(long nanos){
+		nextNonConfirmableTime = nanos;
+	}
+	
+	private static boolean offer(Queue<QueuedExchange> queue, AtomicInteger size, Exchange exchange, int limit){
+		// reserve a place first, so that concurrent producers cannot exceed the limit
+		int current;
+		do {
+			current = size.get();
+			if (current >= limit)
+				return false;
+		} while (!size.compareAndSet(current, current + 1));
+		queue.offer(new QueuedExchange(exchange));
+		return true;
+	}
+	
+	private static Exchange poll(Queue<QueuedExchange> queue, AtomicInteger size, LatencyHistogram waits){
+		QueuedExchange queued = queue.poll();
+		if (queued == null)
+			return null;
+		size.decrementAndGet();
+		waits.record(System.nanoTime() - queued.enqueued);
+		return queued.exchange;
 	}
 	
 	private void calculateMeanOverallRTO(){
@@ -224,11 +322,19 @@ public class RemoteEndpoint {
 		currentRTO = meanOverallRTO;
 	}
 	public void setProcessingNON(boolean value){
-		processingNON = value;
+		processingNON.set(value);
 	}
 	
 	public boolean getProcessingNON(){
-		return processingNON;
+		return processingNON.get();
+	}
+	
+	/**
+	 * Atomically marks the non-confirmable queue as being processed.
+	 * @return true if the caller has to start processing the queue
+	 */
+	public boolean startProcessingNON(){
+		return processingNON.compareAndSet(false, true);
 	}
 	
 	/**
@@ -237,11 +343,11 @@ public class RemoteEndpoint {
 	 */
 	public long getRTO() {
 		long rto;
-		if (usesBlindEstimator && isBlindStrong && isBlindWeak && exchangeInfoMap.size() > 1) {
+		int ongoing = ongoingExchanges.get();
+		if (usesBlindEstimator && isBlindStrong && isBlindWeak && ongoing > 1) {
 			// No RTT measurements have been possible so far => apply blind
 			// estimator rule
-			// System.out.println("Blind Rule applying, RTO: "+(exchangeInfoMap.size())*2000);
-			rto = (long) (exchangeInfoMap.size()) * 2000;
+			rto = (long) ongoing * 2000;
 		} else {
 			if (meanOverallRTO != currentRTO) {
 				// If current RTO was not updated, there was no successful RTO
@@ -289,7 +395,8 @@ public class RemoteEndpoint {
 	 */
 	public void setEstimatorState(Exchange exchange){
 		//When no CC layer is used, the entries are all null, check here if this is the case
-		if(exchangeInfoMap.get(exchange) == null){
+		ExchangeInfo info = getExchangeInfo(exchange);
+		if(info == null){
 			return;
 		}
 		
@@ -301,11 +408,11 @@ public class RemoteEndpoint {
 		if(exchange.getFailedTransmissionCount() == 1 || exchange.getFailedTransmissionCount() == 2){
 			//Only allow weak estimator updates from the first or second retransmission
 			//System.out.println("Remote Enpdoint: WEAK");
-			exchangeInfoMap.get(exchange).setTypeWeakEstimator();
+			info.setTypeWeakEstimator();
 		}else{
 			//If more than 1 retransmission was applied to the exchange, mark this entry as not updatable
 			//System.out.println("Remote Enpdoint: NO");
-			exchangeInfoMap.get(exchange).setTypeNoEstimator();
+			info.setTypeNoEstimator();
 		}
 	}
 	
@@ -315,8 +422,55 @@ public class RemoteEndpoint {
 	 * @param vbf the variable back-off factor
 	 */
 	public void registerExchange(Exchange exchange, double vbf){
-		exchangeInfo newExchange = new exchangeInfo(System.currentTimeMillis(), vbf);
-		exchangeInfoMap.put(exchange, newExchange);
+		// a re-registered exchange replaces its previous information
+		removeExchangeInfo(exchange);
+		ongoingExchanges.incrementAndGet();
+		attachExchange(exchange, vbf);
+	}
+	
+	/**
+	 * Atomically takes one of the specified number of places for ongoing
+	 * exchanges. The place must be used with {@link #attachExchange} or given
+	 * back with {@link #releaseExchange()}.
+	 * @param limit the maximum number of ongoing exchanges, i.e., NSTART
+	 * @return true if a place has been taken
+	 */
+	public boolean tryAcquireExchange(int limit){
+		int current;
+		do {
+			current = ongoingExchanges.get();
+			if (current >= limit)
+				return false;
+		} while (!ongoingExchanges.compareAndSet(current, current + 1));
+		return true;
+	}
+	
+	/**
+	 * Gives back a place taken with {@link #tryAcquireExchange(int)} that has
+	 * not been used.
+	 */
+	public void releaseExchange(){
+		ongoingExchanges.decrementAndGet();
+	}
+	
+	/**
+	 * Registers an exchange for a place that has already been taken.
+	 * @param exchange the exchange to register
+	 * @param vbf the variable back-off factor
+	 */
+	public void attachExchange(Exchange exchange, double vbf){
+		exchange.setExchangeInfo(new ExchangeInfo(this, System.currentTimeMillis(), System.nanoTime(), vbf));
+	}
+	
+	/*
+	 * Returns the information of the exchange if it has been registered with
+	 * this endpoint and not been removed yet.
+	 */
+	private ExchangeInfo getExchangeInfo(Exchange exchange) {
+		ExchangeInfo info = exchange.getExchangeInfo();
+		if (info != null && info.endpoint == this && info.active.get())
+			return info;
+		return null;
 	}
 	
 	/**
@@ -325,15 +479,34 @@ public class RemoteEndpoint {
 	 * @return the timestamp in 
 	 */
 	public long getExchangeTimestamp(Exchange exchange){	
-		long storedTimestamp = 0;	
-		if(exchangeInfoMap.isEmpty()){
-			return 0;
-		}
-		
-		if(exchangeInfoMap.get(exchange) != null){
-			storedTimestamp = exchangeInfoMap.get(exchange).getTimestamp();
+		ExchangeInfo info = getExchangeInfo(exchange);
+		return info != null ? info.getTimestamp() : 0;
+	}
+	
+	/**
+	 * Returns the time of the registration of the exchange for RTT measurements.
+	 * @param exchange the exchange
+	 * @return the {@link System#nanoTime()} of the registration or 0 if the exchange is not registered
+	 */
+	public long getExchangeNanoTime(Exchange exchange){
+		ExchangeInfo info = getExchangeInfo(exchange);
+		return info != null ? info.getNanoTime() : 0;
+	}
+	
+	/**
+	 * Returns the state of the RTO estimator for this endpoint.
+	 * @return the state
+	 */
+	public RtoState getRtoState(){
+		RtoState state = rtoState;
+		if (state == null) {
+			synchronized (this) {
+				state = rtoState;
+				if (state == null)
+					rtoState = state = new RtoState();
+			}
 		}
-		return storedTimestamp;
+		return state;
 	}
 	
 	/**
@@ -342,15 +515,12 @@ public class RemoteEndpoint {
 	 * @return the VBF
 	 */
 	public double getExchangeVBF(Exchange exchange){	
-		double vbf = 2;	
-		if(exchangeInfoMap.isEmpty()){
+		if(ongoingExchanges.get() == 0){
 			return 0;
 		}
 		
-		if(exchangeInfoMap.get(exchange) != null){
-			vbf = exchangeInfoMap.get(exchange).getVBF();
-		}
-		return vbf;
+		ExchangeInfo info = getExchangeInfo(exchange);
+		return info != null ? info.getVBF() : 2;
 	}
 	
 	/**
@@ -359,14 +529,8 @@ public class RemoteEndpoint {
 	 * @return the estimator ID
 	 */
 	public int getExchangeEstimatorState(Exchange exchange){	
-		if(exchangeInfoMap.isEmpty()){
-			//System.out.println("No exchanges stored (estimator state request)");
-		}
-		
-		if(exchangeInfoMap.get(exchange) != null){
-			return exchangeInfoMap.get(exchange).getEstimatorType();
-		}
-		return 0;
+		ExchangeInfo info = getExchangeInfo(exchange);
+		return info != null ? info.getEstimatorType() : 0;
 	}
 	/**
 	 * Removes all information of a finished exchange
@@ -374,25 +538,13 @@ public class RemoteEndpoint {
 	 * @return true if removed
 	 */
 	public boolean removeExchangeInfo(Exchange exchange){
-		if(exchangeInfoMap.remove(exchange) == null){
-			return false;
-		}else{
-		//deleted exchange!
-		return true;
+		ExchangeInfo info = exchange.getExchangeInfo();
+		// only the first removal counts, e.g., the response or the sweep task
+		if (info != null && info.endpoint == this && info.active.compareAndSet(true, false)) {
+			ongoingExchanges.decrementAndGet();
+			return true;
 		}
-	}
-	
-	/**
-	 * Checks if an exchange in the list was was deleted
-	 */
-	public void checkForDeletedExchanges(){
-		//System.out.println("Checking for old exchanges in remote Endpoints.");
-	    for (Object o : exchangeInfoMap.entrySet()){
-	    	if(o == null){
-	    		//System.out.println("Deleting old entry (null-entry).");
-	    		exchangeInfoMap.remove(o);
-	    	}
-	    }
+		return false;
 	}
 	
 	/**
@@ -401,8 +553,7 @@ public class RemoteEndpoint {
 	 * @return the count
 	 */
 	public int getNumberOfOngoingExchanges(Exchange exchange){	
-		//System.out.println("Amount of exchanges: " + exchangeInfoMap.size() );
-		return exchangeInfoMap.size();
+		return ongoingExchanges.get();
 	}
 	
 	public void printLinuxStats(){
@@ -413,23 +564,42 @@ public class RemoteEndpoint {
 	    System.out.println("Delta: " + delta + " D: " + D_value + " B: " + B_value + " RTT_max: " + RTT_max);
 	}
 	
+	/**
+	 * An exchange in one of the queues with the time it has been queued.
+	 */
+	private static class QueuedExchange {
+		
+		private final Exchange exchange;
+		private final long enqueued = System.nanoTime();
+		
+		private QueuedExchange(Exchange exchange) {
+			this.exchange = exchange;
+		}
+	}
+	
 	/**
 	 * Object that stores exchange related information 
 	 * 1.) Timestamp
 	 * 2.) Variable Backoff Factor
 	 * 3.) Estimator Type (weak/strong/none)
+	 * It is attached to the exchange itself, so that no per-endpoint map of
+	 * exchanges is required.
 	 */ 
-	private class exchangeInfo{
+	static class ExchangeInfo{
 		
-		private long timestamp;
-		private double vbf;
-		private int estimatorType;
+		private final RemoteEndpoint endpoint;
+		private final AtomicBoolean active = new AtomicBoolean(true);
+		private final long timestamp;
+		private final long nanoTime;
+		private final double vbf;
+		private volatile int estimatorType;
 		
-		public exchangeInfo(long timestamp, double vbf){
+		public ExchangeInfo(RemoteEndpoint endpoint, long timestamp, long nanoTime, double vbf){
+			this.endpoint = endpoint;
 			this.timestamp = timestamp;
+			this.nanoTime = nanoTime;
 			this.vbf = vbf;
 			estimatorType = STRONGRTOTYPE;
-			//System.out.println("Exchange stored in remote Endpoint (" + System.currentTimeMillis() + ")");
 		}
 		
 		public void setTypeWeakEstimator(){
@@ -446,6 +616,10 @@ public class RemoteEndpoint {
 			return timestamp;
 		}
 		
+		public long getNanoTime(){
+			return nanoTime;
+		}
+		
 		public double getVBF(){
 			return vbf;
 		}
@@ -18,18 +18,38 @@
 package org.eclipse.californium.core.network;
 
 import java.net.InetAddress;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 
+/**
+ * The RemoteEndpointManager stores the congestion control state of each
+ * remote endpoint, identified by address and port. Lookups are lock-free; only
+ * the admission of a new endpoint synchronizes to maintain the eviction clock.
+ * <p>
+ * The number of endpoints is bounded by
+ * {@link NetworkConfig.Keys#CONGESTION_CONTROL_PEER_CAPACITY}. When a new
+ * endpoint exceeds it, the clock (second-chance) policy evicts an endpoint
+ * that has not been used since the hand passed it last. Endpoints with
+ * ongoing exchanges or queued messages are never evicted; the store only
+ * exceeds its capacity while all stored endpoints are busy.
+ */
 public class RemoteEndpointManager {
 
-	// Maximum amount of destinations for which remote endpoint objects are maintained
-	private final int MAX_REMOTE_ENDPOINTS = 10;
+	/** The remote endpoints by address and port */
+	private final ConcurrentHashMap<InetSocketAddress, RemoteEndpoint> remoteEndpoints;
 	
-	/** The list of remote endpoints */
-	private LimitedRemoteEndpointHashmap<InetAddress,RemoteEndpoint> remoteEndpointsList = new LimitedRemoteEndpointHashmap<InetAddress,RemoteEndpoint>(MAX_REMOTE_ENDPOINTS);//ArrayList<RemoteEndpoint>(0);
+	/** The maximum number of remote endpoints */
+	private final int capacity;
+	
+	/* The eviction clock with all stored endpoints; guarded by this */
+	private RemoteEndpoint[] clock;
+	private int count;
+	private int hand;
 
 	/** The configuration */ 
 	private NetworkConfig config;
@@ -42,6 +62,9 @@ public class RemoteEndpointManager {
 	 */
 	public RemoteEndpointManager(NetworkConfig config) {
 		this.config = config;
+		this.capacity = Math.max(1, config.getInt(NetworkConfig.Keys.CONGESTION_CONTROL_PEER_CAPACITY));
+		this.remoteEndpoints = new ConcurrentHashMap<InetSocketAddress, RemoteEndpoint>();
+		this.clock = new RemoteEndpoint[Math.min(capacity, 16)];
 	}
 		
 	/**
@@ -49,34 +72,69 @@ public class RemoteEndpointManager {
 	 * @param exchange the exchange
 	 * @return the endpoint for the exchange
 	 */
-	public RemoteEndpoint getRemoteEndpoint(Exchange exchange){ //int remotePort, InetAddress remoteAddress){
-		
-		InetAddress remoteAddress = exchange.getRequest().getDestination();
-		int remotePort = exchange.getRequest().getDestinationPort();
-		
-		// TODO: One IP-Address is considered to be a destination endpoint, for higher granularity (portnumber) changes are necessary
-		if (!remoteEndpointsList.containsKey(remoteAddress)){
-			RemoteEndpoint unusedRemoteEndpoint = new RemoteEndpoint(remotePort, remoteAddress, config);
-			remoteEndpointsList.put(remoteAddress,unusedRemoteEndpoint);
-			
-			//System.out.println("Number of RemoteEndpoint objects stored:" + remoteEndpointsList.size());
+	public RemoteEndpoint getRemoteEndpoint(Exchange exchange){
+		InetSocketAddress peer = getPeer(exchange);
+		RemoteEndpoint endpoint = remoteEndpoints.get(peer);
+		if (endpoint == null) {
+			RemoteEndpoint created = new RemoteEndpoint(peer.getPort(), peer.getAddress(), config);
+			endpoint = remoteEndpoints.putIfAbsent(peer, created);
+			if (endpoint == null) {
+				endpoint = created;
+				admit(created);
+			}
 		}
-		
-		return remoteEndpointsList.get(remoteAddress);
+		endpoint.touch();
+		return endpoint;
 	}
 	
-	public class LimitedRemoteEndpointHashmap<K, V> extends LinkedHashMap<K, V> {
-
-		private static final long serialVersionUID = -7855412701242966797L;
-		private final int maxSize;
-
-	    public LimitedRemoteEndpointHashmap(int maxSize) {
-	        this.maxSize = maxSize;
-	    }
-
-	    @Override
-	    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-	        return size() > maxSize;
-	    }
+	/**
+	 * Returns the stored endpoint for the given peer without creating one.
+	 * @param peer the address of the peer
+	 * @return the endpoint or null if there is none
+	 */
+	public RemoteEndpoint findRemoteEndpoint(InetSocketAddress peer){
+		return remoteEndpoints.get(peer);
+	}
+	
+	/**
+	 * Returns the number of stored remote endpoints.
+	 * @return the number of endpoints
+	 */
+	public int size() {
+		return remoteEndpoints.size();
+	}
+	
+	/*
+	 * The peer is the destination of a local request and the source of a
+	 * remote one, for which this endpoint sends the responses.
+	 */
+	private static InetSocketAddress getPeer(Exchange exchange) {
+		Request request = exchange.getCurrentRequest();
+		if (exchange.getOrigin() == Origin.REMOTE)
+			return new InetSocketAddress(request.getSource(), request.getSourcePort());
+		return new InetSocketAddress(request.getDestination(), request.getDestinationPort());
+	}
+	
+	/*
+	 * Adds a new endpoint to the clock and evicts an endpoint if the capacity
+	 * has been reached.
+	 */
+	private synchronized void admit(RemoteEndpoint endpoint) {
+		if (count >= capacity) {
+			for (int i = 0; i < 2 * count; i++) {
+				RemoteEndpoint candidate = clock[hand];
+				if (!candidate.clearReferenced() && !candidate.isBusy()) {
+					InetAddress address = candidate.getRemoteAddress();
+					remoteEndpoints.remove(new InetSocketAddress(address, candidate.getRemotePort()), candidate);
+					clock[hand] = endpoint;
+					hand = (hand + 1) % count;
+					return;
+				}
+				hand = (hand + 1) % count;
+			}
+		}
+		if (count == clock.length)
+			clock = Arrays.copyOf(clock, 2 * clock.length);
+		clock[count++] = endpoint;
 	}
 }
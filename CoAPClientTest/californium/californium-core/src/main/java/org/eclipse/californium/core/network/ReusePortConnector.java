@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.elements.UDPConnector;
+
+/**
+ * The ReusePortConnector is a UDP connector for one of several sockets that
+ * are bound to the same port with the socket option SO_REUSEPORT. The kernel
+ * then spreads the remote endpoints over the sockets by the hash of their
+ * address, so that each socket with its receiver thread and the
+ * {@link CoAPEndpoint} on top of it, i.e., a shard with its own matcher and
+ * stack, handles a fixed subset of the peers. The {@link
+ * org.eclipse.californium.core.CoapServer} creates the shards if
+ * NETWORK_STAGE_SOCKET_COUNT is larger than one.
+ * <p>
+ * Java only provides SO_REUSEPORT since version 9 and the operating system
+ * must support it, e.g., Linux since 3.9. The option is therefore set by
+ * reflection and {@link #start()} fails if it is not available; see
+ * {@link #isSupported()}. Messages are sent directly by the calling thread.
+ */
+public class ReusePortConnector implements BatchConnector {
+
+	/** the logger. */
+	private final static Logger LOGGER = Logger.getLogger(ReusePortConnector.class.getCanonicalName());
+	
+	/** The option SO_REUSEPORT or null if not available */
+	private static final Object SO_REUSEPORT = findReusePort();
+	
+	/** The method DatagramChannel.setOption() or null if not available */
+	private static final Method SET_OPTION = findSetOption();
+	
+	/** The address this connector binds to */
+	private final InetSocketAddress localAddress;
+	
+	/** The shard whose port this connector binds to if the port is 0 or null */
+	private final ReusePortConnector first;
+	
+	private final int datagramSize;
+	private final int receiveBufferSize;
+	private final int sendBufferSize;
+	
+	private RawDataChannel receiver;
+	
+	private volatile DatagramSocket socket;
+	private Thread receiverThread;
+	
+	/**
+	 * Constructs a new connector for the specified address.
+	 *
+	 * @param address the address
+	 * @param config the configuration with the UDP_CONNECTOR buffer sizes
+	 */
+	public ReusePortConnector(InetSocketAddress address, NetworkConfig config) {
+		this(address, config, null);
+	}
+	
+	/**
+	 * Constructs a new connector for the specified address that binds to the
+	 * same port as the specified first shard if the port is 0. The first shard
+	 * must have been started before this connector.
+	 *
+	 * @param address the address
+	 * @param config the configuration with the UDP_CONNECTOR buffer sizes
+	 * @param first the first shard or null
+	 */
+	public ReusePortConnector(InetSocketAddress address, NetworkConfig config, ReusePortConnector first) {
+		if (address == null)
+			throw new NullPointerException();
+		this.localAddress = address;
+		this.first = first;
+		this.datagramSize = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_DATAGRAM_SIZE);
+		this.receiveBufferSize = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER);
+		this.sendBufferSize = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_SEND_BUFFER);
+	}
+	
+	/**
+	 * Returns true if the JVM can set SO_REUSEPORT. The operating system might
+	 * still refuse it when the connector starts.
+	 *
+	 * @return true if SO_REUSEPORT is available
+	 */
+	public static boolean isSupported() {
+		return SO_REUSEPORT != null && SET_OPTION != null;
+	}
+	
+	@Override
+	public synchronized void start() throws IOException {
+		if (socket != null)
+			return;
+		if (!isSupported())
+			throw new IOException("SO_REUSEPORT is not supported by this JVM");
+		
+		InetSocketAddress address = localAddress;
+		if (address.getPort() == 0 && first != null)
+			address = new InetSocketAddress(address.getAddress(), first.getAddress().getPort());
+		
+		DatagramChannel channel = DatagramChannel.open();
+		DatagramSocket socket = channel.socket();
+		try {
+			setReusePort(channel);
+			if (receiveBufferSize != UDPConnector.UNDEFINED)
+				socket.setReceiveBufferSize(receiveBufferSize);
+			if (sendBufferSize != UDPConnector.UNDEFINED)
+				socket.setSendBufferSize(sendBufferSize);
+			socket.bind(address);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.socket = socket;
+		
+		receiverThread = new Thread(new Receiver(socket), "CoAP-Shard-" + socket.getLocalPort());
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+		LOGGER.config("ReusePortConnector listening on " + socket.getLocalSocketAddress());
+	}
+	
+	@Override
+	public synchronized void stop() {
+		DatagramSocket current = socket;
+		if (current == null)
+			return;
+		socket = null;
+		// unblocks the receiver thread
+		current.close();
+		try {
+			receiverThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		receiverThread = null;
+	}
+	
+	@Override
+	public void destroy() {
+		stop();
+	}
+	
+	@Override
+	public void send(RawData message) {
+		DatagramSocket current = socket;
+		if (current == null) {
+			LOGGER.fine("Connector is not running, dropping message to " + message.getInetSocketAddress());
+			return;
+		}
+		try {
+			current.send(new DatagramPacket(message.getBytes(), message.getSize(), message.getAddress(), message.getPort()));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not send message to " + message.getInetSocketAddress(), e);
+		}
+	}
+	
+	@Override
+	public void send(List<RawData> messages) {
+		for (RawData message:messages)
+			send(message);
+	}
+	
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+	}
+	
+	@Override
+	public InetSocketAddress getAddress() {
+		DatagramSocket current = socket;
+		if (current == null)
+			return localAddress;
+		return new InetSocketAddress(current.getLocalAddress(), current.getLocalPort());
+	}
+	
+	/**
+	 * Receives the datagrams of one socket until it is closed.
+	 */
+	private class Receiver implements Runnable {
+		
+		private final DatagramSocket socket;
+		
+		private Receiver(DatagramSocket socket) {
+			this.socket = socket;
+		}
+		
+		public void run() {
+			DatagramPacket packet = new DatagramPacket(new byte[datagramSize + 1], datagramSize + 1);
+			while (!socket.isClosed()) {
+				try {
+					packet.setLength(datagramSize + 1);
+					socket.receive(packet);
+					if (packet.getLength() > datagramSize) {
+						LOGGER.fine("Dropping datagram larger than " + datagramSize + " bytes from " + packet.getSocketAddress());
+						continue;
+					}
+					byte[] bytes = Arrays.copyOf(packet.getData(), packet.getLength());
+					receiver.receiveData(new RawData(bytes, packet.getAddress(), packet.getPort()));
+				} catch (SocketException e) {
+					if (!socket.isClosed())
+						LOGGER.log(Level.WARNING, "Receiver of " + socket.getLocalSocketAddress() + " failed", e);
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while receiving on " + socket.getLocalSocketAddress(), t);
+				}
+			}
+		}
+	}
+	
+	private static void setReusePort(DatagramChannel channel) throws IOException {
+		try {
+			SET_OPTION.invoke(channel, SO_REUSEPORT, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			// e.g., UnsupportedOperationException if the system does not support it
+			throw new IOException("Cannot set SO_REUSEPORT: " + e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IOException("Cannot set SO_REUSEPORT: " + e);
+		}
+	}
+	
+	private static Object findReusePort() {
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	private static Method findSetOption() {
+		try {
+			return DatagramChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
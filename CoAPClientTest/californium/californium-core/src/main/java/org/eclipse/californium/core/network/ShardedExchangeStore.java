@@ -0,0 +1,387 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+import org.eclipse.californium.core.network.Exchange.KeyToken;
+
+/**
+ * The ShardedExchangeStore is an alternative to the hash maps of
+ * {@link Exchange.KeyMID} and {@link Exchange.KeyToken} objects in the
+ * {@link Matcher}. Exchanges are spread over shards by the address and port of
+ * the peer. Each shard holds two open-addressing hash tables, one for
+ * exchanges by MID and one for exchanges by token, whose keys are packed into
+ * primitives:
+ * <ul>
+ * <li>by MID: <code>addressHash &lt;&lt; 32 | port &lt;&lt; 16 | MID</code></li>
+ * <li>by token: the same with the token length instead of the MID, plus the
+ * token bytes packed into a second long</li>
+ * </ul>
+ * The hash code of an {@link java.net.Inet4Address} is the address itself,
+ * so the packed key identifies an IPv4 peer exactly. The address is stored
+ * along with each entry and compared on lookup to resolve collisions between
+ * IPv6 peers. Lookups therefore neither copy the address nor allocate a key
+ * object. Tokens longer than {@link #MAX_TOKEN_LENGTH} bytes, which RFC 7252
+ * does not allow but a peer might send anyway, cannot be packed and are kept
+ * by {@link Exchange.KeyToken} in a map of the shard instead.
+ * <p>
+ * A table doubles its capacity when it is half full and halves it when it is
+ * less than an eighth full, so that the tables shrink again after a burst of
+ * exchanges.
+ * <p>
+ * Each shard is guarded by its own lock, so peers in different shards never
+ * contend. The store exposes its size and occupancy for monitoring.
+ */
+public class ShardedExchangeStore {
+
+	/** The maximum token length that can be packed into a long */
+	public static final int MAX_TOKEN_LENGTH = 8;
+	
+	/** The initial capacity of each table (power of two) */
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private final Shard[] shards;
+	private final int shardMask;
+	
+	/**
+	 * Instantiates a new store with the specified number of shards. The number
+	 * is rounded up to the next power of two.
+	 * 
+	 * @param shardCount the number of shards
+	 */
+	public ShardedExchangeStore(int shardCount) {
+		if (shardCount < 1)
+			throw new IllegalArgumentException("Shard count must be positive: "+shardCount);
+		int count = Integer.highestOneBit(shardCount);
+		if (count < shardCount) count <<= 1;
+		this.shards = new Shard[count];
+		for (int i=0; i<count; i++)
+			shards[i] = new Shard();
+		this.shardMask = count - 1;
+	}
+	
+	public Exchange getByMID(int mid, InetAddress address, int port) {
+		long key = midKey(mid, address, port);
+		Shard shard = shardOf(address, port);
+		synchronized (shard) {
+			return shard.byMID.get(key, 0, address);
+		}
+	}
+	
+	public Exchange putByMID(int mid, InetAddress address, int port, Exchange exchange) {
+		long key = midKey(mid, address, port);
+		Shard shard = shardOf(address, port);
+		synchronized (shard) {
+			return shard.byMID.put(key, 0, address, exchange);
+		}
+	}
+	
+	public Exchange removeByMID(int mid, InetAddress address, int port) {
+		long key = midKey(mid, address, port);
+		Shard shard = shardOf(address, port);
+		synchronized (shard) {
+			return shard.byMID.remove(key, 0, address);
+		}
+	}
+	
+	public Exchange getByToken(byte[] token, InetAddress address, int port) {
+		if (token.length > MAX_TOKEN_LENGTH) {
+			Shard shard = shardOf(address, port);
+			synchronized (shard) {
+				return shard.overflow.get(new KeyToken(token, address.getAddress(), port));
+			}
+		}
+		long key = tokenKey(token, address, port);
+		long bits = packToken(token);
+		Shard shard = shardOf(address, port);
+		synchronized (shard) {
+			return shard.byToken.get(key, bits, address);
+		}
+	}
+	
+	public Exchange putByToken(byte[] token, InetAddress address, int port, Exchange exchange) {
+		if (token.length > MAX_TOKEN_LENGTH) {
+			if (exchange == null)
+				throw new NullPointerException();
+			Shard shard = shardOf(address, port);
+			synchronized (shard) {
+				return shard.overflow.put(new KeyToken(token, address.getAddress(), port), exchange);
+			}
+		}
+		long key = tokenKey(token, address, port);
+		long bits = packToken(token);
+		Shard shard = shardOf(address, port);
+		synchronized (shard) {
+			return shard.byToken.put(key, bits, address, exchange);
+		}
+	}
+	
+	public Exchange removeByToken(byte[] token, InetAddress address, int port) {
+		if (token.length > MAX_TOKEN_LENGTH) {
+			Shard shard = shardOf(address, port);
+			synchronized (shard) {
+				return shard.overflow.remove(new KeyToken(token, address.getAddress(), port));
+			}
+		}
+		long key = tokenKey(token, address, port);
+		long bits = packToken(token);
+		Shard shard = shardOf(address, port);
+		synchronized (shard) {
+			return shard.byToken.remove(key, bits, address);
+		}
+	}
+	
+	/**
+	 * Removes all exchanges.
+	 */
+	public void clear() {
+		for (Shard shard:shards) {
+			synchronized (shard) {
+				shard.byMID.clear();
+				shard.byToken.clear();
+				shard.overflow.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of exchanges stored by MID.
+	 * 
+	 * @return the number of exchanges by MID
+	 */
+	public int getMIDCount() {
+		int count = 0;
+		for (Shard shard:shards)
+			count += shard.byMID.size;
+		return count;
+	}
+	
+	/**
+	 * Returns the number of exchanges stored by token.
+	 * 
+	 * @return the number of exchanges by token
+	 */
+	public int getTokenCount() {
+		int count = 0;
+		for (Shard shard:shards) {
+			synchronized (shard) {
+				count += shard.byToken.size + shard.overflow.size();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the number of shards.
+	 * 
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+	
+	/**
+	 * Returns the number of entries (by MID and by token) in the fullest
+	 * shard. Compared with the average, this shows how evenly the peers are
+	 * spread over the shards.
+	 * 
+	 * @return the maximum number of entries in one shard
+	 */
+	public int getMaxShardSize() {
+		int max = 0;
+		for (Shard shard:shards)
+			max = Math.max(max, shard.byMID.size + shard.byToken.size);
+		return max;
+	}
+	
+	/**
+	 * Returns the fraction of occupied slots over all tables.
+	 * 
+	 * @return the occupancy between 0 and 1
+	 */
+	public double getOccupancy() {
+		long used = 0;
+		long capacity = 0;
+		for (Shard shard:shards) {
+			used += shard.byMID.size + shard.byToken.size;
+			capacity += shard.byMID.values.length + shard.byToken.values.length;
+		}
+		return (double) used / capacity;
+	}
+	
+	@Override
+	public String toString() {
+		return getMIDCount() + " exchangesByMID, " + getTokenCount() + " exchangesByToken in "
+				+ shards.length + " shards (max shard size " + getMaxShardSize()
+				+ ", occupancy " + Math.round(getOccupancy() * 100) + "%)";
+	}
+	
+	private Shard shardOf(InetAddress address, int port) {
+		return shards[mix(address.hashCode() * 31 + port) & shardMask];
+	}
+	
+	private static long midKey(int mid, InetAddress address, int port) {
+		return ((long) address.hashCode() << 32) | ((port & 0xFFFFL) << 16) | (mid & 0xFFFFL);
+	}
+	
+	private static long tokenKey(byte[] token, InetAddress address, int port) {
+		return ((long) address.hashCode() << 32) | ((port & 0xFFFFL) << 16) | token.length;
+	}
+	
+	private static long packToken(byte[] token) {
+		long bits = 0;
+		for (int i=0; i<token.length; i++)
+			bits = (bits << 8) | (token[i] & 0xFF);
+		return bits;
+	}
+	
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	/*
+	 * The two tables and the map of long tokens share the shard's lock.
+	 */
+	private static final class Shard {
+		private final Table byMID = new Table();
+		private final Table byToken = new Table();
+		private final HashMap<KeyToken, Exchange> overflow = new HashMap<KeyToken, Exchange>();
+	}
+	
+	/**
+	 * An open-addressing hash table with linear probing and backward-shift
+	 * deletion. Not thread-safe; guarded by the shard.
+	 */
+	private static final class Table {
+		
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private long[] bits = new long[INITIAL_CAPACITY];
+		private InetAddress[] addresses = new InetAddress[INITIAL_CAPACITY];
+		private Exchange[] values = new Exchange[INITIAL_CAPACITY];
+		private volatile int size;
+		
+		private Exchange get(long key, long bits, InetAddress address) {
+			int index = indexOf(key, bits, address);
+			return index < 0 ? null : values[index];
+		}
+		
+		private Exchange put(long key, long bits, InetAddress address, Exchange exchange) {
+			if (exchange == null)
+				throw new NullPointerException();
+			int mask = values.length - 1;
+			int index = slot(key, bits, mask);
+			while (values[index] != null) {
+				if (matches(index, key, bits, address)) {
+					Exchange previous = values[index];
+					values[index] = exchange;
+					return previous;
+				}
+				index = (index + 1) & mask;
+			}
+			keys[index] = key;
+			this.bits[index] = bits;
+			addresses[index] = address;
+			values[index] = exchange;
+			if (++size * 2 > values.length)
+				resize(values.length * 2);
+			return null;
+		}
+		
+		private Exchange remove(long key, long bits, InetAddress address) {
+			int index = indexOf(key, bits, address);
+			if (index < 0)
+				return null;
+			Exchange previous = values[index];
+			
+			// shift back subsequent entries of the same probe sequence
+			int mask = values.length - 1;
+			int hole = index;
+			int next = (hole + 1) & mask;
+			while (values[next] != null) {
+				int ideal = slot(keys[next], this.bits[next], mask);
+				// move the entry if its ideal slot is not between the hole and its position
+				if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					this.bits[hole] = this.bits[next];
+					addresses[hole] = addresses[next];
+					values[hole] = values[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			addresses[hole] = null;
+			values[hole] = null;
+			if (--size * 8 < values.length && values.length > INITIAL_CAPACITY)
+				resize(values.length / 2);
+			return previous;
+		}
+		
+		private void clear() {
+			keys = new long[INITIAL_CAPACITY];
+			bits = new long[INITIAL_CAPACITY];
+			addresses = new InetAddress[INITIAL_CAPACITY];
+			values = new Exchange[INITIAL_CAPACITY];
+			size = 0;
+		}
+		
+		private int indexOf(long key, long bits, InetAddress address) {
+			int mask = values.length - 1;
+			int index = slot(key, bits, mask);
+			while (values[index] != null) {
+				if (matches(index, key, bits, address))
+					return index;
+				index = (index + 1) & mask;
+			}
+			return -1;
+		}
+		
+		private boolean matches(int index, long key, long bits, InetAddress address) {
+			return keys[index] == key && this.bits[index] == bits && addresses[index].equals(address);
+		}
+		
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			long[] oldBits = bits;
+			InetAddress[] oldAddresses = addresses;
+			Exchange[] oldValues = values;
+			
+			int mask = capacity - 1;
+			keys = new long[capacity];
+			bits = new long[capacity];
+			addresses = new InetAddress[capacity];
+			values = new Exchange[capacity];
+			for (int i=0; i<oldValues.length; i++) {
+				if (oldValues[i] != null) {
+					int index = slot(oldKeys[i], oldBits[i], mask);
+					while (values[index] != null)
+						index = (index + 1) & mask;
+					keys[index] = oldKeys[i];
+					bits[index] = oldBits[i];
+					addresses[index] = oldAddresses[i];
+					values[index] = oldValues[i];
+				}
+			}
+		}
+		
+		private static int slot(long key, long bits, int mask) {
+			return mix(key ^ (bits * 31)) & mask;
+		}
+	}
+}
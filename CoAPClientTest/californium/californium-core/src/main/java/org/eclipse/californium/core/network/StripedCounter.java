@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A StripedCounter is a counter for frequent updates by many threads. Each
+ * thread adds to one of several cells, which lie on separate cache lines, so
+ * that concurrent updates rarely contend; only reading the sum visits all
+ * cells. It serves the purpose of <code>java.util.concurrent.atomic.LongAdder</code>,
+ * which is not available on all platforms we support.
+ */
+public class StripedCounter {
+
+	/* The number of longs between two cells, i.e., 64 bytes */
+	private static final int PADDING = 8;
+	
+	/* The number of cells, a power of two */
+	private static final int STRIPES;
+	
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64)
+			stripes <<= 1;
+		STRIPES = stripes;
+	}
+	
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+	
+	/**
+	 * Increments the counter by one.
+	 */
+	public void increment() {
+		add(1);
+	}
+	
+	/**
+	 * Adds the specified value to the counter.
+	 * 
+	 * @param value the value
+	 */
+	public void add(long value) {
+		cells.addAndGet(cell(), value);
+	}
+	
+	/**
+	 * Returns the current sum of the counter. Concurrent updates might or
+	 * might not be included.
+	 * 
+	 * @return the sum
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+	
+	/**
+	 * Sets the counter to zero. Concurrent updates might get lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PADDING, 0);
+	}
+	
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+	
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * The TimingWheelScheduler is a {@link ScheduledExecutorService} that keeps
+ * delayed tasks in a hashed timing wheel instead of the heap of a
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor}. Scheduling and
+ * canceling a task are O(1): new and canceled tasks are handed to the timer
+ * thread through lock-free queues and the timer thread alone links and unlinks
+ * them in the buckets of the wheel. Delays longer than one revolution of the
+ * wheel are counted in rounds.
+ * <p>
+ * Every tick, the timer thread collects all expired tasks of the current
+ * bucket and submits them in batches to the executor it wraps. Tasks therefore
+ * never run on the timer thread and fire up to one tick late. This is good
+ * enough for retransmissions, exchange lifetimes and deduplication sweeps,
+ * which all have timeouts in the order of seconds.
+ * <p>
+ * Since the wheel implements {@link ScheduledExecutorService}, it can be
+ * passed to the endpoint and its layers as their executor: the reliability
+ * layer, the {@link Matcher} and the deduplicators then share one timer.
+ * {@link CoAPEndpoint} and {@link org.eclipse.californium.core.CoapServer}
+ * wrap their executor automatically if {@link NetworkConfig.Keys#TIMER} is
+ * set to {@link NetworkConfig.Keys#TIMER_TIMING_WHEEL}.
+ */
+public class TimingWheelScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(TimingWheelScheduler.class.getCanonicalName());
+	
+	/** The maximum number of expired tasks submitted to the executor as one task */
+	private static final int BATCH_SIZE = 256;
+	
+	/** The executor that runs the tasks */
+	private final ExecutorService executor;
+	
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+	
+	/** Tasks to be put into the wheel by the timer thread */
+	private final Queue<WheelTask<?>> pending = new ConcurrentLinkedQueue<WheelTask<?>>();
+	
+	/** Canceled tasks to be unlinked from the wheel by the timer thread */
+	private final Queue<WheelTask<?>> canceled = new ConcurrentLinkedQueue<WheelTask<?>>();
+	
+	private final Thread timer;
+	private volatile boolean running = true;
+	private volatile boolean shutdown = false;
+	
+	/** The number of ticks the timer thread has processed (timer thread only) */
+	private long tick;
+	
+	/**
+	 * Instantiates a new timing wheel with TIMER_TICK and TIMER_WHEEL_SIZE
+	 * from the specified configuration.
+	 * 
+	 * @param executor the executor that runs the tasks
+	 * @param config the configuration
+	 */
+	public TimingWheelScheduler(ExecutorService executor, NetworkConfig config) {
+		this(executor, config.getLong(NetworkConfig.Keys.TIMER_TICK), TimeUnit.MILLISECONDS,
+				config.getInt(NetworkConfig.Keys.TIMER_WHEEL_SIZE));
+	}
+	
+	/**
+	 * Instantiates a new timing wheel.
+	 * 
+	 * @param executor the executor that runs the tasks
+	 * @param tick the duration of one tick
+	 * @param unit the unit of the tick
+	 * @param wheelSize the number of buckets (rounded up to a power of two)
+	 */
+	public TimingWheelScheduler(ExecutorService executor, long tick, TimeUnit unit, int wheelSize) {
+		if (executor == null)
+			throw new NullPointerException();
+		if (tick <= 0)
+			throw new IllegalArgumentException("Tick must be positive: "+tick);
+		if (wheelSize < 1 || wheelSize > (1 << 30))
+			throw new IllegalArgumentException("Illegal wheel size: "+wheelSize);
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) size <<= 1;
+		
+		this.executor = executor;
+		this.tickNanos = unit.toNanos(tick);
+		this.wheel = new Bucket[size];
+		for (int i=0; i<size; i++)
+			wheel[i] = new Bucket();
+		this.mask = size - 1;
+		
+		this.timer = new Thread(new Runnable() {
+			public void run() {
+				runTimer();
+			}
+		}, "TimingWheel");
+		this.timer.setDaemon(true);
+		this.timer.start();
+	}
+	
+	/**
+	 * Returns the executor that runs the tasks.
+	 * 
+	 * @return the executor
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+	
+	@Override
+	public void execute(Runnable command) {
+		if (shutdown)
+			throw new RejectedExecutionException("Timing wheel has been shut down");
+		executor.execute(command);
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return enqueue(new WheelTask<Object>(Executors.callable(command), deadline(delay, unit), 0));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		return enqueue(new WheelTask<V>(callable, deadline(delay, unit), 0));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Period must be positive: "+period);
+		return enqueue(new WheelTask<Object>(Executors.callable(command), deadline(initialDelay, unit), unit.toNanos(period)));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		if (delay <= 0)
+			throw new IllegalArgumentException("Delay must be positive: "+delay);
+		return enqueue(new WheelTask<Object>(Executors.callable(command), deadline(initialDelay, unit), -unit.toNanos(delay)));
+	}
+	
+	/**
+	 * Stops the timer thread but leaves the executor running. Tasks that have
+	 * not expired yet are dropped. Use this method if the executor is shared
+	 * with others and only the wheel should be discarded.
+	 */
+	public void stop() {
+		shutdown = true;
+		running = false;
+		timer.interrupt();
+	}
+
+	@Override
+	public void shutdown() {
+		stop();
+		executor.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		stop();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		WheelTask<?> task;
+		while ((task = pending.poll()) != null)
+			tasks.add(task);
+		tasks.addAll(executor.shutdownNow());
+		return tasks;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && !timer.isAlive() && executor.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		timer.join(Math.max(1, unit.toMillis(timeout)));
+		return executor.awaitTermination(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the number of tasks waiting in the wheel or to be put into it.
+	 * The value is approximate.
+	 * 
+	 * @return the number of scheduled tasks
+	 */
+	public int getScheduledTaskCount() {
+		int count = 0;
+		for (Bucket bucket:wheel)
+			count += bucket.size;
+		return count + pending.size();
+	}
+	
+	private <V> WheelTask<V> enqueue(WheelTask<V> task) {
+		if (shutdown)
+			throw new RejectedExecutionException("Timing wheel has been shut down");
+		pending.add(task);
+		return task;
+	}
+	
+	private long now() {
+		return System.nanoTime() - startTime;
+	}
+	
+	private long deadline(long delay, TimeUnit unit) {
+		return now() + Math.max(0, unit.toNanos(delay));
+	}
+	
+	/*
+	 * The loop of the timer thread.
+	 */
+	private void runTimer() {
+		List<WheelTask<?>> expired = new ArrayList<WheelTask<?>>();
+		while (running) {
+			long deadline = tickNanos * (tick + 1);
+			long sleep = deadline - now();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+				} catch (InterruptedException e) {
+					continue; // check if still running
+				}
+				continue; // woke up early or just in time
+			}
+			
+			unlinkCanceled();
+			transferPending();
+			wheel[(int) (tick & mask)].expire(expired);
+			tick++;
+			
+			if (!expired.isEmpty()) {
+				submit(expired);
+				expired.clear();
+			}
+		}
+	}
+	
+	private void unlinkCanceled() {
+		WheelTask<?> task;
+		while ((task = canceled.poll()) != null) {
+			if (task.bucket != null)
+				task.bucket.remove(task);
+		}
+	}
+	
+	private void transferPending() {
+		WheelTask<?> task;
+		while ((task = pending.poll()) != null) {
+			if (task.isCancelled())
+				continue;
+			long due = task.deadline / tickNanos;
+			task.remainingRounds = (due - tick) / wheel.length;
+			long ticks = Math.max(due, tick); // never schedule into the past
+			wheel[(int) (ticks & mask)].add(task);
+		}
+	}
+	
+	private void submit(List<WheelTask<?>> expired) {
+		for (int from=0; from<expired.size(); from+=BATCH_SIZE) {
+			final WheelTask<?>[] batch = expired.subList(from, Math.min(from + BATCH_SIZE, expired.size()))
+					.toArray(new WheelTask<?>[0]);
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						for (WheelTask<?> task:batch) {
+							try {
+								task.run();
+							} catch (Throwable t) {
+								LOGGER.log(Level.SEVERE, "Exception in scheduled task", t);
+							}
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.log(Level.FINE, "Executor rejected expired tasks", e);
+			}
+		}
+	}
+	
+	/**
+	 * A bucket of the wheel is a doubly linked list of tasks.
+	 */
+	private static final class Bucket {
+		
+		private WheelTask<?> head;
+		private WheelTask<?> tail;
+		private volatile int size;
+		
+		private void add(WheelTask<?> task) {
+			task.bucket = this;
+			task.prev = tail;
+			task.next = null;
+			if (tail == null) head = task;
+			else tail.next = task;
+			tail = task;
+			size++;
+		}
+		
+		private void remove(WheelTask<?> task) {
+			if (task.prev == null) head = task.next;
+			else task.prev.next = task.next;
+			if (task.next == null) tail = task.prev;
+			else task.next.prev = task.prev;
+			task.prev = null;
+			task.next = null;
+			task.bucket = null;
+			size--;
+		}
+		
+		private void expire(List<WheelTask<?>> expired) {
+			WheelTask<?> task = head;
+			while (task != null) {
+				WheelTask<?> next = task.next;
+				if (task.isCancelled()) {
+					remove(task);
+				} else if (task.remainingRounds <= 0) {
+					remove(task);
+					expired.add(task);
+				} else {
+					task.remainingRounds--;
+				}
+				task = next;
+			}
+		}
+	}
+	
+	/**
+	 * A task in the wheel.
+	 */
+	private class WheelTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+		
+		/** The time in ns relative to the start of the wheel */
+		private long deadline;
+		
+		/** 0 for one-shot tasks, &gt;0 for fixed rate, &lt;0 for fixed delay */
+		private final long period;
+		
+		/* Only accessed by the timer thread */
+		private long remainingRounds;
+		private Bucket bucket;
+		private WheelTask<?> prev;
+		private WheelTask<?> next;
+		
+		private WheelTask(Callable<V> callable, long deadline, long period) {
+			super(callable);
+			this.deadline = deadline;
+			this.period = period;
+		}
+		
+		@Override
+		public void run() {
+			if (period == 0) {
+				super.run();
+			} else if (runAndReset() && !shutdown) {
+				deadline = period > 0 ? deadline + period : now() - period;
+				pending.add(this);
+			}
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			if (result)
+				canceled.add(this);
+			return result;
+		}
+		
+		@Override
+		public boolean isPeriodic() {
+			return period != 0;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - now(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+			return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+		}
+	}
+}
@@ -54,6 +54,9 @@ public class NetworkConfig {
 	/** The list of config observers. */
 	private List<NetworkConfigObserver> observers = new LinkedList<NetworkConfigObserver>();
 	
+	/** The compiled values or null if a value has changed since. */
+	private volatile NetworkConfigSnapshot snapshot;
+	
 	/**
 	 * Network configuration key names
 	 */
@@ -73,20 +76,38 @@ public class NetworkConfig {
 		
 		public static final String USE_RANDOM_MID_START = "USE_RANDOM_MID_START";
 		public static final String USE_RANDOM_TOKEN_START = "USE_RANDOM_TOKEN_START";
+		public static final String MID_PROVIDER = "MID_PROVIDER";
+		public static final String MID_PROVIDER_GLOBAL = "MID_PROVIDER_GLOBAL";
+		public static final String MID_PROVIDER_PER_PEER = "MID_PROVIDER_PER_PEER";
+		public static final String MID_TRACKER_GROUPS = "MID_TRACKER_GROUPS";
 		
 		public static final String PREFERRED_BLOCK_SIZE = "PREFERRED_BLOCK_SIZE";
 		public static final String MAX_MESSAGE_SIZE = "MAX_MESSAGE_SIZE";
+		public static final String BLOCKWISE_SPOOL_THRESHOLD = "BLOCKWISE_SPOOL_THRESHOLD";
 		
 		public static final String NOTIFICATION_CHECK_INTERVAL_TIME = "NOTIFICATION_CHECK_INTERVAL";
 		public static final String NOTIFICATION_CHECK_INTERVAL_COUNT = "NOTIFICATION_CHECK_INTERVAL_COUNT";
 		public static final String NOTIFICATION_REREGISTRATION_BACKOFF = "NOTIFICATION_REREGISTRATION_BACKOFF";
+		public static final String NOTIFICATION_MIN_INTERVAL = "NOTIFICATION_MIN_INTERVAL";
+		public static final String NOTIFICATION_MAX_INTERVAL = "NOTIFICATION_MAX_INTERVAL";
 	
 		public static final String USE_CONGESTION_CONTROL = "USE_CONGESTION_CONTROL";
 		public static final String CONGESTION_CONTROL_ALGORITHM = "CONGESTION_CONTROL_ALGORITHM";
+		public static final String CONGESTION_CONTROL_PEER_CAPACITY = "CONGESTION_CONTROL_PEER_CAPACITY";
+		public static final String CONGESTION_CONTROL_RTO_ESTIMATOR = "CONGESTION_CONTROL_RTO_ESTIMATOR";
+		public static final String CONGESTION_CONTROL_MIN_RTO = "CONGESTION_CONTROL_MIN_RTO";
 		
 		public static final String PROTOCOL_STAGE_THREAD_COUNT = "PROTOCOL_STAGE_THREAD_COUNT";
+		public static final String PROTOCOL_STAGE_LANE_COUNT = "PROTOCOL_STAGE_LANE_COUNT";
+		public static final String PROTOCOL_STAGE_BATCH_SIZE = "PROTOCOL_STAGE_BATCH_SIZE";
+		public static final String RESOURCE_EXECUTOR = "RESOURCE_EXECUTOR";
+		public static final String RESOURCE_EXECUTOR_PROTOCOL_STAGE = "RESOURCE_EXECUTOR_PROTOCOL_STAGE";
+		public static final String RESOURCE_EXECUTOR_VIRTUAL = "RESOURCE_EXECUTOR_VIRTUAL";
+		public static final String RESOURCE_OVERLOAD_MAX_PENDING = "RESOURCE_OVERLOAD_MAX_PENDING";
+		public static final String RESOURCE_OVERLOAD_MAX_DELAY = "RESOURCE_OVERLOAD_MAX_DELAY";
 		public static final String NETWORK_STAGE_RECEIVER_THREAD_COUNT = "NETWORK_STAGE_RECEIVER_THREAD_COUNT";
 		public static final String NETWORK_STAGE_SENDER_THREAD_COUNT = "NETWORK_STAGE_SENDER_THREAD_COUNT";
+		public static final String NETWORK_STAGE_SOCKET_COUNT = "NETWORK_STAGE_SOCKET_COUNT";
 		
 		public static final String UDP_CONNECTOR_DATAGRAM_SIZE = "UDP_CONNECTOR_DATAGRAM_SIZE";
 		public static final String UDP_CONNECTOR_RECEIVE_BUFFER = "UDP_CONNECTOR_RECEIVE_BUFFER";
@@ -98,8 +119,30 @@ public class NetworkConfig {
 		public static final String MARK_AND_SWEEP_INTERVAL = "MARK_AND_SWEEP_INTERVAL";
 		public static final String DEDUPLICATOR_CROP_ROTATION = "DEDUPLICATOR_CROP_ROTATION";
 		public static final String CROP_ROTATION_PERIOD = "CROP_ROTATION_PERIOD";
+		public static final String DEDUPLICATOR_EXPIRING = "DEDUPLICATOR_EXPIRING";
+		public static final String DEDUPLICATOR_BUCKETS = "DEDUPLICATOR_BUCKETS";
+		public static final String DEDUPLICATOR_CAPACITY = "DEDUPLICATOR_CAPACITY";
+		public static final String DEDUPLICATOR_PEER_CAPACITY = "DEDUPLICATOR_PEER_CAPACITY";
 		public static final String NO_DEDUPLICATOR = "NO_DEDUPLICATOR";
 		
+		public static final String PARSER = "PARSER";
+		public static final String PARSER_DATAGRAM_READER = "PARSER_DATAGRAM_READER";
+		public static final String PARSER_BYTE_BUFFER = "PARSER_BYTE_BUFFER";
+		public static final String SERIALIZER = "SERIALIZER";
+		public static final String SERIALIZER_DATAGRAM_WRITER = "SERIALIZER_DATAGRAM_WRITER";
+		public static final String SERIALIZER_BYTE_BUFFER = "SERIALIZER_BYTE_BUFFER";
+		
+		public static final String TIMER = "TIMER";
+		public static final String TIMER_EXECUTOR = "TIMER_EXECUTOR";
+		public static final String TIMER_TIMING_WHEEL = "TIMER_TIMING_WHEEL";
+		public static final String TIMER_TICK = "TIMER_TICK";
+		public static final String TIMER_WHEEL_SIZE = "TIMER_WHEEL_SIZE";
+		
+		public static final String EXCHANGE_STORE = "EXCHANGE_STORE";
+		public static final String EXCHANGE_STORE_HASH_MAP = "EXCHANGE_STORE_HASH_MAP";
+		public static final String EXCHANGE_STORE_SHARDED = "EXCHANGE_STORE_SHARDED";
+		public static final String EXCHANGE_STORE_SHARDS = "EXCHANGE_STORE_SHARDS";
+		
 		public static final String HTTP_PORT = "HTTP_PORT";
 		public static final String HTTP_SERVER_SOCKET_TIMEOUT = "HTTP_SERVER_SOCKET_TIMEOUT";
 		public static final String HTTP_SERVER_SOCKET_BUFFER_SIZE = "HTTP_SERVER_SOCKET_BUFFER_SIZE";
@@ -108,6 +151,7 @@ public class NetworkConfig {
 		
 		public static final String HEALTH_STATUS_PRINT_LEVEL = "HEALTH_STATUS_PRINT_LEVEL";
 		public static final String HEALTH_STATUS_INTERVAL = "HEALTH_STATUS_INTERVAL";
+		public static final String ENDPOINT_METRICS = "ENDPOINT_METRICS";
 	}
 	
 	/**
@@ -192,6 +236,7 @@ public class NetworkConfig {
 	public void load(File file) throws IOException {
 		InputStream inStream = new FileInputStream(file);
 		properties.load(inStream);
+		invalidate();
 	}
 	
 	/**
@@ -340,6 +385,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig set(String key, Object value) {
 		properties.put(key, String.valueOf(value));
+		invalidate();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -354,6 +400,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setString(String key, String value) {
 		properties.put(key, String.valueOf(value));
+		invalidate();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -368,6 +415,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setInt(String key, int value) {
 		properties.put(key, String.valueOf(value));
+		invalidate();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -382,6 +430,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setLong(String key, long value) {
 		properties.put(key, String.valueOf(value));
+		invalidate();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -396,6 +445,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setFloat(String key, float value) {
 		properties.put(key, String.valueOf(value));
+		invalidate();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -410,6 +460,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setDouble(String key, double value) {
 		properties.put(key, String.valueOf(value));
+		invalidate();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -424,11 +475,41 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setBoolean(String key, boolean value) {
 		properties.put(key, String.valueOf(value));
+		invalidate();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
 	}
 	
+	/**
+	 * Gets the values that the protocol stack reads for each message as
+	 * immutable snapshot. The snapshot is compiled with the first call after
+	 * a value has been set or loaded and is shared until the next change.
+	 *
+	 * @return the snapshot of the current values
+	 */
+	public NetworkConfigSnapshot getSnapshot() {
+		NetworkConfigSnapshot current = snapshot;
+		if (current == null) {
+			synchronized (this) {
+				current = snapshot;
+				if (current == null) {
+					current = new NetworkConfigSnapshot(this);
+					snapshot = current;
+				}
+			}
+		}
+		return current;
+	}
+	
+	/**
+	 * Discards the snapshot after a value has changed. The lock ensures that
+	 * a snapshot compiled concurrently with the change is discarded as well.
+	 */
+	private synchronized void invalidate() {
+		snapshot = null;
+	}
+	
 	public NetworkConfig addConfigObserver(NetworkConfigObserver observer) {
 		observers.add(observer);
 		return this;
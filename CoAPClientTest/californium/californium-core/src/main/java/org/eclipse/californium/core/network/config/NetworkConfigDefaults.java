@@ -20,6 +20,7 @@
 package org.eclipse.californium.core.network.config;
 
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.network.stack.congestioncontrol.Rfc6298Estimator;
 import org.eclipse.californium.elements.UDPConnector;
 
 public class NetworkConfigDefaults {
@@ -53,20 +54,34 @@ public class NetworkConfigDefaults {
 
 		config.setBoolean(NetworkConfig.Keys.USE_RANDOM_MID_START, true);
 		config.setBoolean(NetworkConfig.Keys.USE_RANDOM_TOKEN_START, true);
+		config.setString(NetworkConfig.Keys.MID_PROVIDER, NetworkConfig.Keys.MID_PROVIDER_GLOBAL);
+		config.setInt(NetworkConfig.Keys.MID_TRACKER_GROUPS, 16); // power of two
 
 		config.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, 512);
 		config.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, 1024);
+		config.setInt(NetworkConfig.Keys.BLOCKWISE_SPOOL_THRESHOLD, 0); // bytes; 0 keeps received bodies in memory
 
 		config.setLong(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_TIME, 24 * 60 * 60 * 1000); // ms
 		config.setInt(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_COUNT, 100);
 		config.setLong(NetworkConfig.Keys.NOTIFICATION_REREGISTRATION_BACKOFF, 2000); // ms
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MIN_INTERVAL, 0); // ms, pmin; 0 sends every change
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MAX_INTERVAL, 0); // ms, pmax; 0 never refreshes
 		
 		config.setBoolean(NetworkConfig.Keys.USE_CONGESTION_CONTROL, false);
 		config.setString(NetworkConfig.Keys.CONGESTION_CONTROL_ALGORITHM, "Cocoa"); // see org.eclipse.californium.core.network.stack.congestioncontrol
+		config.setInt(NetworkConfig.Keys.CONGESTION_CONTROL_PEER_CAPACITY, 1 << 14); // remote endpoints with congestion control state
+		config.setString(NetworkConfig.Keys.CONGESTION_CONTROL_RTO_ESTIMATOR, Rfc6298Estimator.class.getName()); // used by the EstimatorRto algorithm
+		config.setLong(NetworkConfig.Keys.CONGESTION_CONTROL_MIN_RTO, 1000); // us
 		
 		config.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT, CORES);
+		config.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_LANE_COUNT, 1); // partitioned by remote endpoint if larger
+		config.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_BATCH_SIZE, 1); // one task per message
+		config.setString(NetworkConfig.Keys.RESOURCE_EXECUTOR, NetworkConfig.Keys.RESOURCE_EXECUTOR_PROTOCOL_STAGE);
+		config.setInt(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_PENDING, 0); // requests queued or running in a resource executor; 0 never sheds
+		config.setLong(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_DELAY, 0); // ms, estimated wait in the executor; 0 never sheds
 		config.setInt(NetworkConfig.Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT, WINDOWS ? CORES : 1);
 		config.setInt(NetworkConfig.Keys.NETWORK_STAGE_SENDER_THREAD_COUNT, WINDOWS ? CORES : 1);
+		config.setInt(NetworkConfig.Keys.NETWORK_STAGE_SOCKET_COUNT, 1); // per server port; shards share the port with SO_REUSEPORT if larger
 		
 		config.setInt(NetworkConfig.Keys.UDP_CONNECTOR_DATAGRAM_SIZE, 2048);
 		config.setInt(NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER, UDPConnector.UNDEFINED);
@@ -76,6 +91,19 @@ public class NetworkConfigDefaults {
 		config.setString(NetworkConfig.Keys.DEDUPLICATOR, NetworkConfig.Keys.DEDUPLICATOR_MARK_AND_SWEEP);
 		config.setLong(NetworkConfig.Keys.MARK_AND_SWEEP_INTERVAL, 10 * 1000);
 		config.setInt(NetworkConfig.Keys.CROP_ROTATION_PERIOD, 2000);
+		config.setInt(NetworkConfig.Keys.DEDUPLICATOR_BUCKETS, 4);
+		config.setInt(NetworkConfig.Keys.DEDUPLICATOR_CAPACITY, 1 << 20);
+		config.setInt(NetworkConfig.Keys.DEDUPLICATOR_PEER_CAPACITY, 1 << 14);
+		
+		config.setString(NetworkConfig.Keys.PARSER, NetworkConfig.Keys.PARSER_DATAGRAM_READER); // reference implementation
+		config.setString(NetworkConfig.Keys.SERIALIZER, NetworkConfig.Keys.SERIALIZER_DATAGRAM_WRITER); // reference implementation
+		
+		config.setString(NetworkConfig.Keys.TIMER, NetworkConfig.Keys.TIMER_EXECUTOR);
+		config.setLong(NetworkConfig.Keys.TIMER_TICK, 10); // ms
+		config.setInt(NetworkConfig.Keys.TIMER_WHEEL_SIZE, 512); // power of two
+		
+		config.setString(NetworkConfig.Keys.EXCHANGE_STORE, NetworkConfig.Keys.EXCHANGE_STORE_HASH_MAP);
+		config.setInt(NetworkConfig.Keys.EXCHANGE_STORE_SHARDS, 4 * CORES); // rounded up to a power of two
 
 		config.setInt(NetworkConfig.Keys.HTTP_PORT, 8080);
 		config.setInt(NetworkConfig.Keys.HTTP_SERVER_SOCKET_TIMEOUT, 100000);
@@ -85,6 +113,7 @@ public class NetworkConfigDefaults {
 		
 		config.setString(NetworkConfig.Keys.HEALTH_STATUS_PRINT_LEVEL, "FINEST");
 		config.setInt(NetworkConfig.Keys.HEALTH_STATUS_INTERVAL, 60); // s
+		config.setBoolean(NetworkConfig.Keys.ENDPOINT_METRICS, false); // counters, histograms, /.well-known/metrics, and JMX
 	}
 	
 	// prevent instantiation
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.config;
+
+/**
+ * A NetworkConfigSnapshot holds the values of a {@link NetworkConfig} that
+ * the protocol stack reads for every message or exchange, e.g., the ACK
+ * timeout or NSTART, as primitive fields. A snapshot is immutable, so that
+ * all values a layer reads from the same snapshot belong together.
+ * <p>
+ * A snapshot is obtained with {@link NetworkConfig#getSnapshot()}, which
+ * returns the same snapshot until a value of the configuration is set or
+ * loaded. Layers that read the values through the snapshot of the current
+ * configuration therefore apply changes at runtime without parsing the
+ * properties for each message.
+ */
+public final class NetworkConfigSnapshot {
+
+	private final int ackTimeout;
+	private final float ackRandomFactor;
+	private final float ackTimeoutScale;
+	private final int maxRetransmit;
+	private final long exchangeLifetime;
+	private final int nstart;
+	
+	private final int maxMessageSize;
+	private final int preferredBlockSize;
+	private final int blockwiseSpoolThreshold;
+	
+	private final long notificationMinInterval;
+	private final long notificationMaxInterval;
+	
+	private final long congestionControlMinRto;
+	private final String congestionControlRtoEstimator;
+	
+	private final int overloadMaxPending;
+	private final long overloadMaxDelay;
+	
+	private final long markAndSweepInterval;
+	private final int healthStatusInterval;
+	
+	/**
+	 * Compiles the current values of the specified configuration.
+	 * 
+	 * @param config the configuration
+	 */
+	NetworkConfigSnapshot(NetworkConfig config) {
+		this.ackTimeout = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
+		this.ackRandomFactor = config.getFloat(NetworkConfig.Keys.ACK_RANDOM_FACTOR);
+		this.ackTimeoutScale = config.getFloat(NetworkConfig.Keys.ACK_TIMEOUT_SCALE);
+		this.maxRetransmit = config.getInt(NetworkConfig.Keys.MAX_RETRANSMIT);
+		this.exchangeLifetime = config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME);
+		this.nstart = config.getInt(NetworkConfig.Keys.NSTART);
+		this.maxMessageSize = config.getInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE);
+		this.preferredBlockSize = config.getInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE);
+		this.blockwiseSpoolThreshold = config.getInt(NetworkConfig.Keys.BLOCKWISE_SPOOL_THRESHOLD);
+		this.notificationMinInterval = config.getLong(NetworkConfig.Keys.NOTIFICATION_MIN_INTERVAL);
+		this.notificationMaxInterval = config.getLong(NetworkConfig.Keys.NOTIFICATION_MAX_INTERVAL);
+		this.congestionControlMinRto = config.getLong(NetworkConfig.Keys.CONGESTION_CONTROL_MIN_RTO);
+		this.congestionControlRtoEstimator = config.getString(NetworkConfig.Keys.CONGESTION_CONTROL_RTO_ESTIMATOR);
+		this.overloadMaxPending = config.getInt(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_PENDING);
+		this.overloadMaxDelay = config.getLong(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_DELAY);
+		this.markAndSweepInterval = config.getLong(NetworkConfig.Keys.MARK_AND_SWEEP_INTERVAL);
+		this.healthStatusInterval = config.getInt(NetworkConfig.Keys.HEALTH_STATUS_INTERVAL);
+	}
+	
+	/** @return the ACK timeout in ms */
+	public int getAckTimeout() {
+		return ackTimeout;
+	}
+	
+	/** @return the ACK random factor */
+	public float getAckRandomFactor() {
+		return ackRandomFactor;
+	}
+	
+	/** @return the factor by which the timeout grows with each retransmission */
+	public float getAckTimeoutScale() {
+		return ackTimeoutScale;
+	}
+	
+	/** @return the maximum number of retransmissions */
+	public int getMaxRetransmit() {
+		return maxRetransmit;
+	}
+	
+	/** @return the exchange lifetime in ms */
+	public long getExchangeLifetime() {
+		return exchangeLifetime;
+	}
+	
+	/** @return the number of simultaneous outstanding interactions with a peer */
+	public int getNstart() {
+		return nstart;
+	}
+	
+	/** @return the maximum payload size before blockwise transfer is used */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+	
+	/** @return the preferred block size */
+	public int getPreferredBlockSize() {
+		return preferredBlockSize;
+	}
+	
+	/** @return the body size above which received blocks are spooled, or 0 */
+	public int getBlockwiseSpoolThreshold() {
+		return blockwiseSpoolThreshold;
+	}
+	
+	/** @return the minimum interval between notifications in ms, or 0 */
+	public long getNotificationMinInterval() {
+		return notificationMinInterval;
+	}
+	
+	/** @return the maximum interval between notifications in ms, or 0 */
+	public long getNotificationMaxInterval() {
+		return notificationMaxInterval;
+	}
+	
+	/** @return the minimum RTO of the congestion control in us */
+	public long getCongestionControlMinRto() {
+		return congestionControlMinRto;
+	}
+	
+	/** @return the class name of the RTO estimator of the congestion control */
+	public String getCongestionControlRtoEstimator() {
+		return congestionControlRtoEstimator;
+	}
+	
+	/** @return the maximum number of pending requests per resource, or 0 */
+	public int getOverloadMaxPending() {
+		return overloadMaxPending;
+	}
+	
+	/** @return the maximum estimated wait of a request for a resource in ms, or 0 */
+	public long getOverloadMaxDelay() {
+		return overloadMaxDelay;
+	}
+	
+	/** @return the interval of the mark-and-sweep deduplicator in ms */
+	public long getMarkAndSweepInterval() {
+		return markAndSweepInterval;
+	}
+	
+	/** @return the interval of the health status log in s */
+	public int getHealthStatusInterval() {
+		return healthStatusInterval;
+	}
+}
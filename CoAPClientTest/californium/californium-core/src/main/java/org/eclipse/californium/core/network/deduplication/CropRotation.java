@@ -111,6 +111,11 @@ public class CropRotation implements Deduplicator {
 		return prev;
 	}
 
+	@Override
+	public void complete(Exchange exchange) {
+		// the rotation drops the exchange with its map
+	}
+	
 	@Override
 	public void clear() {
 		maps[0].clear();
@@ -118,6 +123,11 @@ public class CropRotation implements Deduplicator {
 		maps[2].clear();
 	}
 	
+	@Override
+	public int size() {
+		return maps[0].size() + maps[1].size() + maps[2].size();
+	}
+	
 	private class Rotation implements Runnable {
 		
 		private ScheduledFuture<?> future;
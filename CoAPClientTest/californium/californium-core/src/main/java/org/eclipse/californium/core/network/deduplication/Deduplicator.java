@@ -70,8 +70,24 @@ public interface Deduplicator {
 	
 	public Exchange find(KeyMID key);
 	
+	/**
+	 * Tells the deduplicator that the exchange of an incoming request has
+	 * completed. A deduplicator may then release the exchange and only keep
+	 * what it needs to answer duplicates.
+	 * 
+	 * @param exchange the completed exchange
+	 */
+	public void complete(Exchange exchange);
+	
 	/**
 	 * Clears the state of this deduplicator.
 	 */
 	public void clear();
+	
+	/**
+	 * Returns the number of messages this deduplicator currently remembers.
+	 * 
+	 * @return the number of entries
+	 */
+	public int size();
 }
@@ -27,7 +27,7 @@ import org.eclipse.californium.core.network.config.NetworkConfig;
 
 /**
  * The deduplication factory creates the deduplicator for a {@link Matcher}. If
- * a server wants to use another deduplicator than the three standard
+ * a server wants to use another deduplicator than the four standard
  * deduplicators, it can create its own factory and install it with
  * {@link #setDeduplicatorFactory(DeduplicatorFactory)}.
  */
@@ -65,6 +65,7 @@ public class DeduplicatorFactory {
 		String type = config.getString(NetworkConfig.Keys.DEDUPLICATOR);
 		if (NetworkConfig.Keys.DEDUPLICATOR_MARK_AND_SWEEP.equals(type)) return new SweepDeduplicator(config);
 		else if (NetworkConfig.Keys.DEDUPLICATOR_CROP_ROTATION.equals(type)) return new CropRotation(config);
+		else if (NetworkConfig.Keys.DEDUPLICATOR_EXPIRING.equals(type)) return new ExpiringDeduplicator(config);
 		else if (NetworkConfig.Keys.NO_DEDUPLICATOR.equals(type)) return new NoDeduplicator();
 		else {
 			LOGGER.warning("Unknown deduplicator type: " + type);
@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.deduplication;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+
+
+/**
+ * This deduplicator bounds the memory used to detect duplicates. It keeps a
+ * ring of time buckets. New messages always go into the current bucket and
+ * every EXCHANGE_LIFETIME / (buckets - 1) the oldest bucket is dropped and
+ * becomes the new current bucket. A message is therefore remembered for at
+ * least one EXCHANGE_LIFETIME and at most buckets / (buckets - 1) of it. Only
+ * the expired bucket is walked, never the whole store.
+ * <p>
+ * Lookups and inserts do not take any lock. Incoming requests count against a
+ * global capacity and against the quota of their peer. When a request exceeds
+ * either, it is not remembered and the deduplicator reports it as a duplicate
+ * that has not been answered yet, i.e., the stack drops it and the client
+ * retransmits later. Peer quotas are kept in hashed stripes so that a flood of
+ * new source ports does not allocate anything; peers that fall into the same
+ * stripe share their quota.
+ * <p>
+ * Once the {@link Exchange} of an incoming request has completed, the
+ * {@link #complete(Exchange)} method replaces the reference to the exchange
+ * with the serialized response. A duplicate of the request then receives a
+ * lightweight exchange that carries the response parsed from these bytes.
+ * Entries of exchanges that this endpoint has initiated keep the exchange
+ * since their number is bounded by the own requests.
+ */
+public class ExpiringDeduplicator implements Deduplicator {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(ExpiringDeduplicator.class.getCanonicalName());
+
+	/** The number of stripes for the peer quotas (power of two) */
+	private static final int PEER_STRIPES = 4096;
+
+	/** The marker for a completed exchange that has been rejected with an RST */
+	private static final Object REJECTED = new Object();
+
+	/** The marker for a completed exchange that has sent nothing */
+	private static final Object SILENT = new Object();
+
+	private final List<ConcurrentHashMap<KeyMID, Entry>> buckets;
+	private volatile int current;
+
+	private final int capacity;
+	private final int peerCapacity;
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicIntegerArray peerSizes = new AtomicIntegerArray(PEER_STRIPES);
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final long period;
+	private final Rotation rotation;
+
+	private ScheduledExecutorService executor;
+	private boolean started;
+
+	public ExpiringDeduplicator(NetworkConfig config) {
+		int count = Math.max(2, config.getInt(NetworkConfig.Keys.DEDUPLICATOR_BUCKETS));
+		this.buckets = new ArrayList<ConcurrentHashMap<KeyMID, Entry>>(count);
+		for (int i = 0; i < count; i++)
+			buckets.add(new ConcurrentHashMap<KeyMID, Entry>());
+		this.capacity = config.getInt(NetworkConfig.Keys.DEDUPLICATOR_CAPACITY);
+		this.peerCapacity = config.getInt(NetworkConfig.Keys.DEDUPLICATOR_PEER_CAPACITY);
+		this.period = Math.max(1, config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME) / (count - 1));
+		this.rotation = new Rotation();
+	}
+
+	@Override
+	public synchronized void start() {
+		started = true;
+		rotation.schedule();
+	}
+
+	@Override
+	public synchronized void stop() {
+		started = false;
+		rotation.cancel();
+		clear();
+	}
+
+	@Override
+	public synchronized void setExecutor(ScheduledExecutorService executor) {
+		rotation.cancel();
+		this.executor = executor;
+		if (started)
+			rotation.schedule();
+	}
+
+	/**
+	 * If the message with the specified {@link KeyMID} has already arrived
+	 * before, this method returns the corresponding exchange. If the exchange
+	 * has already been compacted, it returns the specified exchange with the
+	 * previous response restored. Otherwise, it remembers the message and
+	 * returns null. A request that exceeds the capacity is not remembered and
+	 * the specified exchange is returned unanswered, so that it is ignored.
+	 */
+	@Override
+	public Exchange findPrevious(KeyMID key, Exchange exchange) {
+		int bucket = current;
+		Entry previous = lookup(key, bucket);
+		if (previous != null)
+			return previous.restore(exchange);
+
+		int stripe = -1;
+		if (exchange.getOrigin() == Origin.REMOTE) {
+			Request request = exchange.getCurrentRequest();
+			stripe = stripe(request.getSource(), request.getSourcePort());
+			if (!acquire(stripe)) {
+				rejectedCount.incrementAndGet();
+				LOGGER.fine("Deduplicator capacity exceeded, dropping "+key);
+				return exchange;
+			}
+		} else {
+			size.incrementAndGet();
+		}
+
+		previous = buckets.get(bucket).putIfAbsent(key, new Entry(exchange, stripe));
+		if (previous != null) {
+			release(stripe);
+			return previous.restore(exchange);
+		}
+		return null;
+	}
+
+	@Override
+	public Exchange find(KeyMID key) {
+		Entry entry = lookup(key, -1);
+		if (entry == null)
+			return null;
+		// only exchanges initiated by this endpoint are looked up here
+		Object state = entry.state;
+		return state instanceof Exchange ? (Exchange) state : null;
+	}
+
+	/**
+	 * Replaces the reference to the specified completed exchange with the
+	 * serialized response.
+	 * 
+	 * @param exchange the completed exchange
+	 */
+	@Override
+	public void complete(Exchange exchange) {
+		Request request = exchange.getCurrentRequest();
+		if (request == null || request.getSource() == null)
+			return;
+		// notifications keep changing the current response of a relation
+		if (exchange.getRelation() != null)
+			return;
+		KeyMID key = new KeyMID(request.getMID(), request.getSource().getAddress(), request.getSourcePort());
+		Entry entry = lookup(key, -1);
+		if (entry == null || entry.state != exchange)
+			return;
+
+		Response response = exchange.getCurrentResponse();
+		if (response != null) {
+			byte[] bytes = response.getBytes();
+			if (bytes == null) {
+				// the endpoint reuses the bytes when it sends the response
+				bytes = new DataSerializer().serializeResponse(response);
+				response.setBytes(bytes);
+			}
+			entry.state = bytes;
+		} else if (request.isRejected()) {
+			entry.state = REJECTED;
+		} else {
+			entry.state = SILENT;
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (ConcurrentHashMap<KeyMID, Entry> bucket:buckets)
+			drain(bucket);
+	}
+
+	/**
+	 * Returns the number of remembered messages.
+	 * 
+	 * @return the number of entries
+	 */
+	@Override
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the maximum number of remembered incoming requests.
+	 * 
+	 * @return the global capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the ratio of remembered messages to the capacity.
+	 * 
+	 * @return the occupancy between 0 and 1
+	 */
+	public float getOccupancy() {
+		return capacity > 0 ? Math.min(1f, (float) size.get() / capacity) : 1f;
+	}
+
+	/**
+	 * Returns the number of requests that have been dropped because the
+	 * global capacity or the quota of their peer was exhausted.
+	 * 
+	 * @return the number of dropped requests
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ExpiringDeduplicator[" + size.get() + "/" + capacity + " entries, "
+				+ buckets.size() + " buckets, " + rejectedCount.get() + " rejected]";
+	}
+
+	private Entry lookup(KeyMID key, int skip) {
+		for (int i = 0; i < buckets.size(); i++) {
+			if (i == skip)
+				continue;
+			Entry entry = buckets.get(i).get(key);
+			if (entry != null)
+				return entry;
+		}
+		return null;
+	}
+
+	private boolean acquire(int stripe) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+		if (peerSizes.incrementAndGet(stripe) > peerCapacity) {
+			peerSizes.decrementAndGet(stripe);
+			size.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private void release(int stripe) {
+		size.decrementAndGet();
+		if (stripe >= 0)
+			peerSizes.decrementAndGet(stripe);
+	}
+
+	private void drain(ConcurrentHashMap<KeyMID, Entry> bucket) {
+		for (Iterator<Entry> it = bucket.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			it.remove();
+			release(entry.stripe);
+		}
+	}
+
+	private static int stripe(InetAddress address, int port) {
+		int hash = address.hashCode() * 31 + port;
+		hash ^= (hash >>> 16);
+		return hash & (PEER_STRIPES - 1);
+	}
+
+	/**
+	 * An entry holds the exchange until it completes and then only the bytes
+	 * of its response or a marker.
+	 */
+	private static final class Entry {
+
+		private final int stripe;
+		private volatile Object state;
+
+		private Entry(Exchange exchange, int stripe) {
+			this.state = exchange;
+			this.stripe = stripe;
+		}
+
+		private Exchange restore(Exchange exchange) {
+			Object state = this.state;
+			if (state instanceof Exchange) {
+				return (Exchange) state;
+			} else if (state instanceof byte[]) {
+				byte[] bytes = (byte[]) state;
+				Request request = exchange.getCurrentRequest();
+				Response response = new DataParser(bytes).parseResponse();
+				response.setBytes(bytes);
+				response.setDestination(request.getSource());
+				response.setDestinationPort(request.getSourcePort());
+				exchange.setCurrentResponse(response);
+				exchange.setResponse(response);
+			} else if (state == REJECTED) {
+				exchange.getCurrentRequest().setRejected(true);
+			}
+			return exchange;
+		}
+	}
+
+	private class Rotation implements Runnable {
+
+		private ScheduledFuture<?> future;
+
+		public void run() {
+			try {
+				rotate();
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Exception in expiring deduplicator", t);
+			} finally {
+				try {
+					schedule();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while scheduling expiring deduplicator", t);
+				}
+			}
+		}
+
+		private void rotate() {
+			int oldest = (current + 1) % buckets.size();
+			drain(buckets.get(oldest));
+			current = oldest;
+			LOGGER.fine("Deduplicator rotated: " + ExpiringDeduplicator.this);
+		}
+
+		private synchronized void schedule() {
+			future = executor.schedule(this, period, TimeUnit.MILLISECONDS);
+		}
+
+		private synchronized void cancel() {
+			if (future != null)
+				future.cancel(false);
+			future = null;
+		}
+	}
+}
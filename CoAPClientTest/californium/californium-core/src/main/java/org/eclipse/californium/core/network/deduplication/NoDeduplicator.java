@@ -51,7 +51,15 @@ public class NoDeduplicator implements Deduplicator {
 		return null;
 	}
 
+	@Override
+	public void complete(Exchange exchange) { }
+
 	@Override
 	public void clear() { }
 
+	@Override
+	public int size() {
+		return 0;
+	}
+
 }
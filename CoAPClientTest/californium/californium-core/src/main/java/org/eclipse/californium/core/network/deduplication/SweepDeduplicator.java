@@ -90,10 +90,18 @@ public class SweepDeduplicator implements Deduplicator {
 		return incommingMessages.get(key);
 	}
 	
+	public void complete(Exchange exchange) {
+		// the sweep removes the exchange once it has expired
+	}
+	
 	public void clear() {
 		incommingMessages.clear();
 	}
 	
+	public int size() {
+		return incommingMessages.size();
+	}
+	
 	/**
 	 * The sweep algorithm periodically iterate through the hash map and removes
 	 * obsolete entries.
@@ -128,7 +136,7 @@ public class SweepDeduplicator implements Deduplicator {
 		 * Iterate through all entries and remove the obsolete ones.
 		 */
 		private void sweep() {
-			int lifecycle = config.getInt(NetworkConfig.Keys.EXCHANGE_LIFETIME);
+			long lifecycle = config.getSnapshot().getExchangeLifetime();
 			long oldestAllowed = System.currentTimeMillis() - lifecycle;
 			
 			// Notice that the guarantees from the ConcurrentHashMap guarantee
@@ -147,7 +155,7 @@ public class SweepDeduplicator implements Deduplicator {
 		 * Reschedule this task again.
 		 */
 		private void schedule() {
-			long period = config.getLong(NetworkConfig.Keys.MARK_AND_SWEEP_INTERVAL);
+			long period = config.getSnapshot().getMarkAndSweepInterval();
 			future = executor.schedule(this, period, TimeUnit.MILLISECONDS);
 		}
 		
@@ -0,0 +1,404 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.serialization;
+
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.californium.core.coap.CompactOptions;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.CoAP.Type;
+
+/**
+ * The ByteBufferParser is a drop-in replacement for the {@link DataParser}
+ * that works directly on a byte array or {@link ByteBuffer} instead of reading
+ * the datagram bit by bit through a {@link DatagramReader}. The fixed 4-byte
+ * header, the token and the options are decoded with plain byte arithmetic.
+ * <p>
+ * Besides the {@link DataParser} API to create {@link Message}s, the parser
+ * offers a zero-copy view on the datagram: The token, the option values and
+ * the payload are exposed as offset/length pairs into the receive buffer or
+ * as read-only {@link ByteBuffer} slices that share the buffer's content. The
+ * options can be iterated with {@link #nextOption()}, e.g.,
+ * 
+ * <pre>
+ * ByteBufferParser parser = new ByteBufferParser(buffer);
+ * while (parser.nextOption()) {
+ * 	if (parser.getOptionNumber() == OptionNumberRegistry.URI_PATH)
+ * 		handle(parser.getOptionValue());
+ * }
+ * </pre>
+ * 
+ * Other than the DataParser, which pads truncated datagrams with zeros, this
+ * parser throws an {@link IllegalStateException} for a token or option that
+ * exceeds the datagram. The endpoint treats this as a message format error.
+ * <p>
+ * The options of a parsed message are kept as {@link CompactOptions} over a
+ * copy of the datagram's option bytes and are only decoded when accessed.
+ * <p>
+ * The parser is not thread-safe but can be reused for consecutive datagrams
+ * by calling {@link #setBuffer(ByteBuffer)} again.
+ */
+public class ByteBufferParser extends DataParser {
+
+	/** The datagram */
+	private ByteBuffer buffer;
+	
+	/** The absolute index of the first byte of the datagram in the buffer */
+	private int start;
+	
+	/** The absolute index after the last byte of the datagram in the buffer */
+	private int end;
+	
+	/** The absolute index of the first option byte */
+	private int optionsOffset;
+	
+	/** The absolute index of the payload or -1 if the options are not scanned yet */
+	private int payloadOffset;
+	
+	/* The option cursor */
+	private int cursor;
+	private int optionNumber;
+	private int optionOffset;
+	private int optionLength;
+	
+	/**
+	 * Instantiates a new parser without a datagram. Use
+	 * {@link #setBuffer(ByteBuffer)} or {@link #setBytes(byte[])} before
+	 * calling any other method.
+	 */
+	public ByteBufferParser() { }
+	
+	/**
+	 * Instantiates a new parser for the specified datagram.
+	 * 
+	 * @param bytes the datagram
+	 */
+	public ByteBufferParser(byte[] bytes) {
+		setBytes(bytes);
+	}
+	
+	/**
+	 * Instantiates a new parser for the specified datagram. The datagram
+	 * reaches from the buffer's position to its limit.
+	 * 
+	 * @param buffer the datagram
+	 */
+	public ByteBufferParser(ByteBuffer buffer) {
+		setBuffer(buffer);
+	}
+	
+	@Override
+	public void setBytes(byte[] bytes) {
+		setBuffer(ByteBuffer.wrap(bytes));
+	}
+	
+	/**
+	 * Sets the datagram to the specified range of the byte array.
+	 * 
+	 * @param bytes the byte array
+	 * @param offset the index of the first byte of the datagram
+	 * @param length the length of the datagram
+	 */
+	public void setBytes(byte[] bytes, int offset, int length) {
+		setBuffer(ByteBuffer.wrap(bytes, offset, length));
+	}
+	
+	/**
+	 * Sets the datagram to the content of the specified buffer between its
+	 * position and limit. The buffer's position and limit are not modified.
+	 * Missing header bytes are read as zero, which results in a datagram that
+	 * is not well-formed.
+	 * 
+	 * @param buffer the buffer
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.start = buffer.position();
+		this.end = buffer.limit();
+		
+		int b0 = byteAt(start);
+		this.version = (b0 >>> 6) & 0x03;
+		this.type = (b0 >>> 4) & 0x03;
+		this.tokenlength = b0 & 0x0F;
+		this.code = byteAt(start + 1);
+		this.mid = (byteAt(start + 2) << 8) | byteAt(start + 3);
+		
+		this.optionsOffset = start + 4 + tokenlength;
+		this.payloadOffset = -1;
+		resetOptions();
+	}
+	
+	/**
+	 * Returns the buffer that contains the datagram.
+	 * 
+	 * @return the buffer
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Returns the absolute index of the token in the buffer.
+	 * 
+	 * @return the token offset
+	 */
+	public int getTokenOffset() {
+		return start + 4;
+	}
+	
+	/**
+	 * Returns the length of the token as specified in the header.
+	 * 
+	 * @return the token length
+	 */
+	public int getTokenLength() {
+		return tokenlength;
+	}
+	
+	/**
+	 * Returns a read-only view on the token.
+	 * 
+	 * @return the token
+	 * @throws IllegalStateException if the token exceeds the datagram
+	 */
+	public ByteBuffer getToken() {
+		checkBounds(getTokenOffset(), tokenlength);
+		return view(getTokenOffset(), tokenlength);
+	}
+	
+	/**
+	 * Moves the option cursor before the first option.
+	 */
+	public void resetOptions() {
+		this.cursor = optionsOffset;
+		this.optionNumber = 0;
+		this.optionOffset = -1;
+		this.optionLength = 0;
+	}
+	
+	/**
+	 * Advances the option cursor to the next option. The number, offset and
+	 * length of the option are then available through
+	 * {@link #getOptionNumber()}, {@link #getOptionOffset()} and
+	 * {@link #getOptionLength()}.
+	 * 
+	 * @return true if there is another option, false if the payload marker or
+	 *         the end of the datagram has been reached
+	 * @throws IllegalStateException if the option exceeds the datagram
+	 * @throws IllegalArgumentException if the option uses the reserved nibble
+	 *         value 15
+	 */
+	public boolean nextOption() {
+		if (cursor >= end)
+			return false;
+		int header = byteAt(cursor);
+		if (header == (PAYLOAD_MARKER & 0xFF))
+			return false;
+		int position = cursor + 1;
+		
+		// the first 4 bits of the byte represent the option delta
+		int delta = header >>> 4;
+		if (delta == 13) {
+			delta = byteAt(position) + 13;
+			position += 1;
+		} else if (delta == 14) {
+			delta = ((byteAt(position) << 8) | byteAt(position + 1)) + 269;
+			position += 2;
+		} else if (delta == 15) {
+			throw new IllegalArgumentException("Unsupported option delta "+delta);
+		}
+		
+		// the second 4 bits represent the option length
+		int length = header & 0x0F;
+		if (length == 13) {
+			length = byteAt(position) + 13;
+			position += 1;
+		} else if (length == 14) {
+			length = ((byteAt(position) << 8) | byteAt(position + 1)) + 269;
+			position += 2;
+		} else if (length == 15) {
+			throw new IllegalArgumentException("Unsupported option length "+length);
+		}
+		
+		checkBounds(position, length);
+		this.optionNumber += delta;
+		this.optionOffset = position;
+		this.optionLength = length;
+		this.cursor = position + length;
+		return true;
+	}
+	
+	/**
+	 * Returns the number of the option at the cursor.
+	 * 
+	 * @return the option number
+	 */
+	public int getOptionNumber() {
+		return optionNumber;
+	}
+	
+	/**
+	 * Returns the absolute index of the value of the option at the cursor.
+	 * 
+	 * @return the option value offset or -1 if the cursor is not at an option
+	 */
+	public int getOptionOffset() {
+		return optionOffset;
+	}
+	
+	/**
+	 * Returns the length of the value of the option at the cursor.
+	 * 
+	 * @return the option value length
+	 */
+	public int getOptionLength() {
+		return optionLength;
+	}
+	
+	/**
+	 * Returns a read-only view on the value of the option at the cursor.
+	 * 
+	 * @return the option value
+	 */
+	public ByteBuffer getOptionValue() {
+		return view(optionOffset, optionLength);
+	}
+	
+	/**
+	 * Returns the absolute index of the payload in the buffer. If the datagram
+	 * has no payload, the index is the end of the datagram.
+	 * 
+	 * @return the payload offset
+	 * @throws IllegalStateException if the datagram is malformed
+	 */
+	public int getPayloadOffset() {
+		if (payloadOffset < 0)
+			scanOptions();
+		return payloadOffset;
+	}
+	
+	/**
+	 * Returns the length of the payload.
+	 * 
+	 * @return the payload length
+	 * @throws IllegalStateException if the datagram is malformed
+	 */
+	public int getPayloadLength() {
+		return end - getPayloadOffset();
+	}
+	
+	/**
+	 * Returns a read-only view on the payload.
+	 * 
+	 * @return the payload
+	 * @throws IllegalStateException if the datagram is malformed
+	 */
+	public ByteBuffer getPayload() {
+		return view(getPayloadOffset(), getPayloadLength());
+	}
+	
+	@Override
+	protected void parseMessage(Message message) {
+		message.setType(Type.valueOf(type));
+		message.setMID(mid);
+		message.setToken(copy(getTokenOffset(), tokenlength));
+		
+		resetOptions();
+		int[] entries = new int[3 * 4];
+		int count = 0;
+		while (nextOption()) {
+			if (entries.length < 3 * (count + 1))
+				entries = Arrays.copyOf(entries, 2 * entries.length);
+			entries[3 * count] = optionNumber;
+			entries[3 * count + 1] = optionOffset - optionsOffset;
+			entries[3 * count + 2] = optionLength;
+			count++;
+		}
+		if (count > 0) {
+			// the option bytes including their headers, the entries point into them
+			byte[] options = copy(optionsOffset, cursor - optionsOffset);
+			message.getOptions().setCompactOptions(new CompactOptions(options, entries, count));
+		}
+		payloadOffset = findPayload(cursor);
+		message.setPayload(copy(payloadOffset, end - payloadOffset));
+	}
+	
+	/*
+	 * Walks over all options without disturbing the option cursor and
+	 * determines the payload offset.
+	 */
+	private void scanOptions() {
+		int cursor = this.cursor;
+		int number = this.optionNumber;
+		int offset = this.optionOffset;
+		int length = this.optionLength;
+		
+		resetOptions();
+		while (nextOption());
+		payloadOffset = findPayload(this.cursor);
+		
+		this.cursor = cursor;
+		this.optionNumber = number;
+		this.optionOffset = offset;
+		this.optionLength = length;
+	}
+	
+	/*
+	 * Returns the payload offset given the position after the last option.
+	 */
+	private int findPayload(int position) {
+		if (position >= end)
+			return end;
+		// the presence of a marker followed by a zero-length payload must be processed as a message format error
+		if (position + 1 == end)
+			throw new IllegalStateException();
+		return position + 1;
+	}
+	
+	private int byteAt(int index) {
+		if (index < end)
+			return buffer.get(index) & 0xFF;
+		else return 0; // implicit zero byte like the DatagramReader
+	}
+	
+	private void checkBounds(int offset, int length) {
+		if (offset + length > end)
+			throw new IllegalStateException("Datagram truncated at byte "+(end-start));
+	}
+	
+	private byte[] copy(int offset, int length) {
+		checkBounds(offset, length);
+		byte[] bytes = new byte[length];
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, bytes, 0, length);
+		} else {
+			for (int i=0; i<length; i++)
+				bytes[i] = buffer.get(offset + i);
+		}
+		return bytes;
+	}
+	
+	private ByteBuffer view(int offset, int length) {
+		ByteBuffer view = buffer.asReadOnlyBuffer();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice();
+	}
+}
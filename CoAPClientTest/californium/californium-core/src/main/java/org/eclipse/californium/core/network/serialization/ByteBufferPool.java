@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally sized {@link ByteBuffer}s for the
+ * {@link ByteBufferSerializer}. Buffers are taken with {@link #acquire()},
+ * are cleared before they are handed out, and should be given back with
+ * {@link #release(ByteBuffer)} once the datagram has been sent. If the pool is
+ * empty, a new buffer is allocated; if the pool is full, a released buffer is
+ * left to the garbage collector. The pool is thread-safe.
+ */
+public class ByteBufferPool {
+
+	/** The pooled buffers */
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	
+	/** The number of buffers in the pool (ConcurrentLinkedQueue.size() is O(n)) */
+	private final AtomicInteger size = new AtomicInteger();
+	
+	/** The capacity of each buffer */
+	private final int bufferSize;
+	
+	/** The maximum number of buffers kept in the pool */
+	private final int capacity;
+	
+	/** Indicates if direct buffers are allocated */
+	private final boolean direct;
+	
+	/**
+	 * Instantiates a new pool of heap buffers.
+	 * 
+	 * @param bufferSize the capacity of each buffer, e.g., the maximum datagram size
+	 * @param capacity the maximum number of buffers kept in the pool
+	 */
+	public ByteBufferPool(int bufferSize, int capacity) {
+		this(bufferSize, capacity, false);
+	}
+	
+	/**
+	 * Instantiates a new pool.
+	 * 
+	 * @param bufferSize the capacity of each buffer, e.g., the maximum datagram size
+	 * @param capacity the maximum number of buffers kept in the pool
+	 * @param direct true to allocate direct buffers
+	 */
+	public ByteBufferPool(int bufferSize, int capacity, boolean direct) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("Buffer size must be positive: "+bufferSize);
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must not be negative: "+capacity);
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+		this.direct = direct;
+	}
+	
+	/**
+	 * Takes a cleared buffer from the pool or allocates a new one.
+	 * 
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		size.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Returns the specified buffer to the pool. Buffers of a different
+	 * capacity are ignored.
+	 * 
+	 * @param buffer the buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+			return;
+		if (size.incrementAndGet() <= capacity) {
+			buffers.offer(buffer);
+		} else {
+			size.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Returns the number of buffers currently in the pool.
+	 * 
+	 * @return the number of pooled buffers
+	 */
+	public int size() {
+		return size.get();
+	}
+	
+	/**
+	 * Returns the capacity of each buffer.
+	 * 
+	 * @return the buffer size
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
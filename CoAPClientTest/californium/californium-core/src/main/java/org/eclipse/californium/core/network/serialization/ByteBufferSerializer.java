@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.serialization;
+
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.VERSION;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.Code;
+
+/**
+ * The ByteBufferSerializer is the counterpart of the {@link ByteBufferParser}.
+ * It computes the exact encoded size of a message up front and writes the
+ * header, token, options and payload straight into a caller-supplied
+ * {@link ByteBuffer}, e.g., one taken from a {@link ByteBufferPool}, with
+ * plain byte arithmetic. No {@link DatagramWriter} and no intermediate
+ * streams are created.
+ * <p>
+ * The methods returning a byte array allocate exactly one array of the final
+ * size and are used by the {@link Serializer} to create the {@code RawData}
+ * for the connector.
+ * <p>
+ * The ByteBufferSerializer has no state and is therefore thread-safe.
+ */
+public class ByteBufferSerializer {
+
+	/**
+	 * Serializes the specified request into the buffer at its current
+	 * position and advances the position by the number of bytes written.
+	 * 
+	 * @param request the request
+	 * @param buffer the buffer
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if the buffer has not enough space left
+	 */
+	public int serializeRequest(Request request, ByteBuffer buffer) {
+		return serializeMessage(request, getCode(request), request.getOptions().asSortedList(), buffer);
+	}
+	
+	/**
+	 * Serializes the specified response into the buffer at its current
+	 * position and advances the position by the number of bytes written.
+	 * 
+	 * @param response the response
+	 * @param buffer the buffer
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if the buffer has not enough space left
+	 */
+	public int serializeResponse(Response response, ByteBuffer buffer) {
+		return serializeMessage(response, response.getCode().value, response.getOptions().asSortedList(), buffer);
+	}
+	
+	/**
+	 * Serializes the specified empty message into the buffer at its current
+	 * position and advances the position by the number of bytes written.
+	 * 
+	 * @param message the message
+	 * @param buffer the buffer
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if the buffer has not enough space left
+	 */
+	public int serializeEmptyMessage(Message message, ByteBuffer buffer) {
+		return serializeMessage(message, 0, message.getOptions().asSortedList(), buffer);
+	}
+	
+	/**
+	 * Serializes the specified request into a byte array of the exact size.
+	 * 
+	 * @param request the request
+	 * @return the serialized request
+	 */
+	public byte[] serializeRequest(Request request) {
+		return serializeMessage(request, getCode(request));
+	}
+	
+	/**
+	 * Serializes the specified response into a byte array of the exact size.
+	 * 
+	 * @param response the response
+	 * @return the serialized response
+	 */
+	public byte[] serializeResponse(Response response) {
+		return serializeMessage(response, response.getCode().value);
+	}
+	
+	/**
+	 * Serializes the specified empty message into a byte array of the exact
+	 * size.
+	 * 
+	 * @param message the message
+	 * @return the serialized message
+	 */
+	public byte[] serializeEmptyMessage(Message message) {
+		return serializeMessage(message, 0);
+	}
+	
+	/**
+	 * Computes the number of bytes the specified message requires when
+	 * serialized.
+	 * 
+	 * @param message the message
+	 * @return the encoded size in bytes
+	 */
+	public int getSerializedSize(Message message) {
+		checkToken(message);
+		return computeSize(message, message.getOptions().asSortedList());
+	}
+	
+	private byte[] serializeMessage(Message message, int code) {
+		checkToken(message);
+		List<Option> options = message.getOptions().asSortedList();
+		byte[] bytes = new byte[computeSize(message, options)];
+		writeMessage(message, code, options, ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+	
+	private int serializeMessage(Message message, int code, List<Option> options, ByteBuffer buffer) {
+		checkToken(message);
+		int size = computeSize(message, options);
+		if (buffer.remaining() < size)
+			throw new BufferOverflowException();
+		writeMessage(message, code, options, buffer);
+		return size;
+	}
+	
+	private void writeMessage(Message message, int code, List<Option> options, ByteBuffer buffer) {
+		byte[] token = message.getToken();
+		buffer.put((byte) ((VERSION << 6) | (message.getType().value << 4) | token.length));
+		buffer.put((byte) code);
+		buffer.put((byte) (message.getMID() >>> 8));
+		buffer.put((byte) message.getMID());
+		buffer.put(token);
+		
+		int lastOptionNumber = 0;
+		for (Option option:options) {
+			int optionDelta = option.getNumber() - lastOptionNumber;
+			int optionDeltaNibble = getOptionNibble(optionDelta);
+			int optionLength = option.getLength();
+			int optionLengthNibble = getOptionNibble(optionLength);
+			
+			// write 4-bit option delta and 4-bit option length
+			buffer.put((byte) ((optionDeltaNibble << 4) | optionLengthNibble));
+			
+			// write extended option delta and length fields (0 - 2 bytes each)
+			putExtended(buffer, optionDeltaNibble, optionDelta);
+			putExtended(buffer, optionLengthNibble, optionLength);
+			
+			buffer.put(option.getValue());
+			lastOptionNumber = option.getNumber();
+		}
+		
+		byte[] payload = message.getPayload();
+		if (payload != null && payload.length > 0) {
+			// if payload is present and of non-zero length, it is prefixed by
+			// an one-byte Payload Marker (0xFF) which indicates the end of
+			// options and the start of the payload
+			buffer.put(PAYLOAD_MARKER);
+			buffer.put(payload);
+		}
+	}
+	
+	private int computeSize(Message message, List<Option> options) {
+		int size = 4 + message.getToken().length;
+		
+		int lastOptionNumber = 0;
+		for (Option option:options) {
+			int optionLength = option.getLength();
+			size += 1 + getExtendedSize(option.getNumber() - lastOptionNumber)
+					+ getExtendedSize(optionLength) + optionLength;
+			lastOptionNumber = option.getNumber();
+		}
+		
+		byte[] payload = message.getPayload();
+		if (payload != null && payload.length > 0)
+			size += 1 + payload.length;
+		return size;
+	}
+	
+	private static void checkToken(Message message) {
+		if (message.getToken() == null)
+			throw new NullPointerException("No Token has been set, not even an empty byte[0]");
+	}
+	
+	private static int getCode(Request request) {
+		Code code = request.getCode();
+		return code == null ? 0 : code.value;
+	}
+	
+	private static void putExtended(ByteBuffer buffer, int nibble, int value) {
+		if (nibble == 13) {
+			buffer.put((byte) (value - 13));
+		} else if (nibble == 14) {
+			buffer.put((byte) ((value - 269) >>> 8));
+			buffer.put((byte) (value - 269));
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes of the extended option delta or length field.
+	 */
+	private static int getExtendedSize(int optionValue) {
+		int nibble = getOptionNibble(optionValue);
+		return nibble == 13 ? 1 : nibble == 14 ? 2 : 0;
+	}
+	
+	/**
+	 * Returns the 4-bit option header value.
+	 * 
+	 * @param optionValue
+	 *            the option value (delta or length) to be encoded.
+	 * @return the 4-bit option header value.
+	 */
+	private static int getOptionNibble(int optionValue) {
+		if (optionValue <= 12) {
+			return optionValue;
+		} else if (optionValue <= 255 + 13) {
+			return 13;
+		} else if (optionValue <= 65535 + 269) {
+			return 14;
+		} else {
+			throw new IllegalArgumentException("Unsupported option delta "+optionValue);
+		}
+	}
+}
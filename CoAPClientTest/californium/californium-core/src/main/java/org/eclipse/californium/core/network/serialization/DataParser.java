@@ -48,16 +48,21 @@ public class DataParser {
 
 	private DatagramReader reader;
 	
-	private int version;
-	private int type;
-	private int tokenlength;
-	private int code;
-	private int mid;
+	protected int version;
+	protected int type;
+	protected int tokenlength;
+	protected int code;
+	protected int mid;
 	
 	public DataParser(byte[] bytes) {
 		setBytes(bytes);
 	}
 	
+	/**
+	 * Constructor for subclasses that read the header fields themselves.
+	 */
+	protected DataParser() { }
+	
 	public void setBytes(byte[] bytes) {
 		this.reader = new DatagramReader(bytes);
 		this.version = reader.read(VERSION_BITS);
@@ -118,7 +123,7 @@ public class DataParser {
 		return message;
 	}
 	
-	private void parseMessage(Message message) {
+	protected void parseMessage(Message message) {
 		message.setType(Type.valueOf(type));
 		message.setMID(mid);		
 		
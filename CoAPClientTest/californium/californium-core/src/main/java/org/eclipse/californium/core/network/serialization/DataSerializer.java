@@ -65,7 +65,42 @@ public class DataSerializer {
 		return writer.toByteArray();
 	}
 	
+	/**
+	 * Serializes the specified response with the specified options and
+	 * payload that have already been serialized by {@link #serializeBody(Message)}.
+	 * Only the header and the token are written.
+	 * 
+	 * @param response the response
+	 * @param body the serialized options and payload
+	 * @return the serialized response
+	 */
+	public byte[] serializeResponse(Response response, byte[] body) {
+		writer = new DatagramWriter();
+		serializeHeader(response, response.getCode().value);
+		writer.writeBytes(body);
+		return writer.toByteArray();
+	}
+	
+	/**
+	 * Serializes only the options and the payload of the specified message.
+	 * The result can be shared by messages that differ in their header and
+	 * token only.
+	 * 
+	 * @param message the message
+	 * @return the serialized options and payload
+	 */
+	public byte[] serializeBody(Message message) {
+		writer = new DatagramWriter();
+		serializeOptionsAndPayload(message);
+		return writer.toByteArray();
+	}
+	
 	private void serializeMessage(Message message, int code) {
+		serializeHeader(message, code);
+		serializeOptionsAndPayload(message);
+	}
+	
+	private void serializeHeader(Message message, int code) {
 		if (message.getToken() == null)
 			throw new NullPointerException("No Token has been set, not even an empty byte[0]");
 		writer.write(VERSION, VERSION_BITS);
@@ -74,7 +109,9 @@ public class DataSerializer {
 		writer.write(code, CODE_BITS);
 		writer.write(message.getMID(), MESSAGE_ID_BITS);
 		writer.writeBytes(message.getToken());
-		
+	}
+	
+	private void serializeOptionsAndPayload(Message message) {
 		List<Option> options = message.getOptions().asSortedList(); // already sorted
 		int lastOptionNumber = 0;
 		for (Option option:options) {
@@ -31,6 +31,27 @@ import org.eclipse.californium.elements.RawData;
  */
 public class Serializer {
 
+	/** The serializer that writes without DatagramWriter or null for the DataSerializer */
+	private final ByteBufferSerializer bufferSerializer;
+	
+	/**
+	 * Instantiates a new serializer that uses the {@link DataSerializer}.
+	 */
+	public Serializer() {
+		this(null);
+	}
+	
+	/**
+	 * Instantiates a new serializer that uses the specified
+	 * {@link ByteBufferSerializer}. If it is null, the {@link DataSerializer}
+	 * is used.
+	 * 
+	 * @param bufferSerializer the buffer serializer
+	 */
+	public Serializer(ByteBufferSerializer bufferSerializer) {
+		this.bufferSerializer = bufferSerializer;
+	}
+
 	/**
 	 * Serializes the specified request. Message identifier, message code,
 	 * token, options and payload are converted into a byte array and wrapped in
@@ -44,7 +65,9 @@ public class Serializer {
 	public RawData serialize(Request request) {
 		byte[] bytes = request.getBytes();
 		if (bytes == null)
-			bytes = new DataSerializer().serializeRequest(request);
+			bytes = bufferSerializer != null
+					? bufferSerializer.serializeRequest(request)
+					: new DataSerializer().serializeRequest(request);
 		request.setBytes(bytes);
 		return new RawData(bytes, request.getDestination(), request.getDestinationPort());
 	}
@@ -60,8 +83,13 @@ public class Serializer {
 	 */
 	public RawData serialize(Response response) {
 		byte[] bytes = response.getBytes();
-		if (bytes == null)
-			bytes = new DataSerializer().serializeResponse(response);
+		if (bytes == null && response.getSharedBody() != null)
+			// only header and token differ from the shared notification
+			bytes = new DataSerializer().serializeResponse(response, response.getSharedBody());
+		else if (bytes == null)
+			bytes = bufferSerializer != null
+					? bufferSerializer.serializeResponse(response)
+					: new DataSerializer().serializeResponse(response);
 		response.setBytes(bytes);
 		return new RawData(bytes, response.getDestination(), response.getDestinationPort());
 	}
@@ -79,7 +107,9 @@ public class Serializer {
 	public RawData serialize(EmptyMessage message) {
 		byte[] bytes = message.getBytes();
 		if (bytes == null)
-			bytes = new DataSerializer().serializeEmptyMessage(message);
+			bytes = bufferSerializer != null
+					? bufferSerializer.serializeEmptyMessage(message)
+					: new DataSerializer().serializeEmptyMessage(message);
 		message.setBytes(bytes);
 		return new RawData(bytes, message.getDestination(), message.getDestinationPort());
 	}
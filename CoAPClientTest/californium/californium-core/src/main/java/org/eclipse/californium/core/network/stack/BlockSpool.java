@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.californium.core.coap.BlockSource;
+
+/**
+ * A BlockSpool stores the blocks of a received body in a temporary file. The
+ * BlockwiseLayer spools a body once it exceeds the configured threshold and
+ * hands the spool as {@link BlockSource} to the assembled message. Closing
+ * the spool deletes the file. A spool that is never closed keeps its file,
+ * so the exchange closes it when it completes and the BlockwiseLayer when a
+ * transfer is abandoned.
+ */
+class BlockSpool extends BlockSource {
+
+	private final File file;
+	private final FileChannel channel;
+	private long size;
+	
+	BlockSpool() throws IOException {
+		this.file = File.createTempFile("cf-block", ".tmp");
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+	
+	/**
+	 * Appends the specified block to the end of the body.
+	 * 
+	 * @param block the block
+	 * @throws IOException if the block cannot be written
+	 */
+	synchronized void append(byte[] block) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		while (buffer.hasRemaining())
+			channel.write(buffer, size + buffer.position());
+		size += block.length;
+	}
+	
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+	
+	@Override
+	public byte[] read(long position, int length) throws IOException {
+		long size = size();
+		if (position < 0 || position > size)
+			throw new IndexOutOfBoundsException("Position "+position+" outside of body of "+size+" bytes");
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, size - position));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Spool file "+file+" is truncated");
+		}
+		return buffer.array();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			file.delete();
+		}
+	}
+}
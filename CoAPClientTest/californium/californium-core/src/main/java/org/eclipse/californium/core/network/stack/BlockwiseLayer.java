@@ -19,9 +19,12 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.stack;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.BlockSource;
 import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.MessageObserverAdapter;
@@ -32,8 +35,9 @@ import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
-import org.eclipse.californium.core.network.config.NetworkConfigObserverAdapter;
+import org.eclipse.californium.core.network.config.NetworkConfigSnapshot;
 
 
 public class BlockwiseLayer extends AbstractLayer {
@@ -81,32 +85,32 @@ public class BlockwiseLayer extends AbstractLayer {
 	 * matches the example in the draft.
 	 */
 	
-	private int max_message_size;
-	private int preferred_block_size;
+	/** The configuration, read through its snapshot */
+	private final NetworkConfig config;
 	
 	/**
 	 * Constructs a new blockwise layer.
-	 * Changes to the configuration are observed and automatically applied.
+	 * Changes to the configuration are applied with the next message.
 	 * @param config the configuration
 	 */
 	public BlockwiseLayer(NetworkConfig config) {
-		this.max_message_size = config.getInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE);
-		this.preferred_block_size = config.getInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE);
-		LOGGER.config("BlockwiseLayer uses MAX_MESSAGE_SIZE: "+max_message_size+" and DEFAULT_BLOCK_SIZE: "+preferred_block_size);
-		
-		config.addConfigObserver(new NetworkConfigObserverAdapter() {
-			@Override
-			public void changed(String key, int value) {
-				if (NetworkConfig.Keys.MAX_MESSAGE_SIZE.equals(key))
-					max_message_size = value;
-				if (NetworkConfig.Keys.PREFERRED_BLOCK_SIZE.equals(key))
-					preferred_block_size = value;
-			}
-		});
+		this.config = config;
+		NetworkConfigSnapshot settings = config.getSnapshot();
+		LOGGER.config("BlockwiseLayer uses MAX_MESSAGE_SIZE: "+settings.getMaxMessageSize()+" and DEFAULT_BLOCK_SIZE: "+settings.getPreferredBlockSize());
 	}
 	
 	@Override
 	public void sendRequest(Exchange exchange, Request request) {
+		if (request.getPayloadSource() != null && !requiresBlockwise(request)) {
+			try {
+				readBody(request);
+			} catch (IOException e) {
+				LOGGER.warning("Cannot read request body: "+e.getMessage());
+				request.cancel();
+				return;
+			}
+		}
+		
 		if (request.getOptions().hasBlock2()
 				&& request.getOptions().getBlock2().getNum() > 0) {
 			// This is the case if the user has explicitly added a block option
@@ -125,13 +129,21 @@ public class BlockwiseLayer extends AbstractLayer {
 			
 		} else if (requiresBlockwise(request)) {
 			// This must be a large POST or PUT request
-			LOGGER.fine("Request payload "+request.getPayloadSize()+"/"+max_message_size+" requires Blockwise");
+			LOGGER.fine("Request payload "+bodySize(request)+"/"+config.getSnapshot().getMaxMessageSize()+" requires Blockwise");
 			BlockwiseStatus status = findRequestBlockStatus(exchange, request);
 			
-			Request block = getNextRequestBlock(request, status);
+			Request block;
+			try {
+				block = getNextRequestBlock(request, status);
+			} catch (IOException e) {
+				LOGGER.warning("Cannot read block of request body: "+e.getMessage());
+				request.cancel();
+				return;
+			}
 			
 			exchange.setRequestBlockStatus(status);
 			exchange.setCurrentRequest(block);
+			watch(exchange, status);
 			super.sendRequest(exchange, block);
 			
 		} else {
@@ -151,6 +163,7 @@ public class BlockwiseLayer extends AbstractLayer {
 			if (block1.getNum() == 0 && status.getCurrentNum() > 0) {
 				// reset the blockwise transfer
 				LOGGER.finer("Block1 num is 0, the client has restarted the blockwise transfer. Reset status.");
+				status.release();
 				status = new BlockwiseStatus(request.getOptions().getContentFormat());
 				exchange.setRequestBlockStatus(status);
 			}
@@ -158,7 +171,20 @@ public class BlockwiseLayer extends AbstractLayer {
 			if (block1.getNum() == status.getCurrentNum()) {
 				
 				if (request.getOptions().getContentFormat()==status.getContentFormat()) {
-					status.addBlock(request.getPayload());
+					try {
+						status.addBlock(request.getPayload(), config.getSnapshot().getBlockwiseSpoolThreshold());
+					} catch (IOException e) {
+						LOGGER.warning("Cannot spool request block: "+e.getMessage());
+						status.release();
+						exchange.setRequestBlockStatus(null);
+						Response error = Response.createPiggybackedResponse(request, ResponseCode.INTERNAL_SERVER_ERROR);
+						error.getOptions().setBlock1(block1.getSzx(), block1.isM(), block1.getNum());
+						error.setPayload("Cannot store block");
+						request.setAcknowledged(true);
+						exchange.setCurrentResponse(error);
+						super.sendResponse(exchange, error);
+						return;
+					}
 				} else {
 					Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_INCOMPLETE);
 					error.getOptions().setBlock1(block1.getSzx(), block1.isM(), block1.getNum());
@@ -172,6 +198,7 @@ public class BlockwiseLayer extends AbstractLayer {
 				status.setCurrentNum(status.getCurrentNum() + 1);
 				if ( block1.isM() ) {
 					LOGGER.finest("There are more blocks to come. Acknowledge this block.");
+					watch(exchange, status);
 					
 					if (request.isConfirmable()) {
 						Response piggybacked = Response.createPiggybackedResponse(request, ResponseCode.CONTINUE);
@@ -185,6 +212,7 @@ public class BlockwiseLayer extends AbstractLayer {
 					
 				} else {
 					LOGGER.finer("This was the last block. Deliver request");
+					status.setComplete(true);
 					
 					// Remember block to acknowledge. TODO: We might make this a boolean flag in status.
 					exchange.setBlock1ToAck(block1); 
@@ -219,8 +247,15 @@ public class BlockwiseLayer extends AbstractLayer {
 			BlockwiseStatus status = findResponseBlockStatus(exchange, response);
 			status.setCurrentNum(block2.getNum());
 			status.setCurrentSzx(block2.getSzx());
+			status.touch();
 			
-			Response block = getNextResponseBlock(response, status);
+			Response block;
+			try {
+				block = getNextResponseBlock(response, status);
+			} catch (IOException e) {
+				block = failedBlock(response, e);
+				status.setComplete(true);
+			}
 			block.setToken(request.getToken());
 			block.getOptions().removeObserve();
 			
@@ -249,13 +284,32 @@ public class BlockwiseLayer extends AbstractLayer {
 		if (block1 != null)
 			exchange.setBlock1ToAck(null);
 		
+		// a spooled request body is only valid until the response is sent
+		Request request = exchange.getRequest();
+		if (request != null && request.getPayloadSource() instanceof BlockSpool)
+			release(request.getPayloadSource());
+		
+		if (response.getPayloadSource() != null && !requireBlockwise(exchange, response)) {
+			try {
+				readBody(response);
+			} catch (IOException e) {
+				response = failedBlock(response, e);
+			}
+		}
+		
 		if (requireBlockwise(exchange, response)) {
 			// This must be a large response to a GET or POST request (PUT?)
-			LOGGER.fine("Response payload "+response.getPayloadSize()+"/"+max_message_size+" requires Blockwise");
+			LOGGER.fine("Response payload "+bodySize(response)+"/"+config.getSnapshot().getMaxMessageSize()+" requires Blockwise");
 			
 			BlockwiseStatus status = findResponseBlockStatus(exchange, response);
 			
-			Response block = getNextResponseBlock(response, status);
+			Response block;
+			try {
+				block = getNextResponseBlock(response, status);
+			} catch (IOException e) {
+				block = failedBlock(response, e);
+				exchange.setResponseBlockStatus(null);
+			}
 			block.setType(response.getType()); // This is only true for the first block
 			if (block1 != null) // in case we still have to ack the last block1
 				block.getOptions().setBlock1(block1);
@@ -267,6 +321,8 @@ public class BlockwiseLayer extends AbstractLayer {
 				exchange.setCurrentResponse(response);
 			} else {
 				exchange.setCurrentResponse(block);
+				// the remaining blocks are requested through the Matcher's ongoing exchange
+				if (!status.isComplete()) watch(exchange, status);
 			}
 			super.sendResponse(exchange, block);
 			
@@ -300,7 +356,15 @@ public class BlockwiseLayer extends AbstractLayer {
 				LOGGER.finer("Send next block num = "+nextNum);
 				status.setCurrentNum(nextNum);
 				status.setCurrentSzx(block1.getSzx());
-				Request nextBlock = getNextRequestBlock(exchange.getRequest(), status);
+				status.touch();
+				Request nextBlock;
+				try {
+					nextBlock = getNextRequestBlock(exchange.getRequest(), status);
+				} catch (IOException e) {
+					LOGGER.warning("Cannot read block of request body: "+e.getMessage());
+					exchange.getRequest().cancel();
+					return;
+				}
 				if (nextBlock.getToken() == null)
 					nextBlock.setToken(response.getToken()); // reuse same token
 				exchange.setCurrentRequest(nextBlock);
@@ -322,9 +386,19 @@ public class BlockwiseLayer extends AbstractLayer {
 			
 			if (block2.getNum() == status.getCurrentNum()) {
 				// We got the block we expected :-)
-				status.addBlock(response.getPayload());
+				try {
+					status.addBlock(response.getPayload(), config.getSnapshot().getBlockwiseSpoolThreshold());
+				} catch (IOException e) {
+					LOGGER.warning("Cannot spool response block: "+e.getMessage()+". Exchange has failed.");
+					status.release();
+					exchange.setResponseBlockStatus(null);
+					exchange.getRequest().cancel();
+					return;
+				}
 				if (response.getOptions().hasObserve())
 					status.setObserve(response.getOptions().getObserve());
+				if (block2.isM() && !status.isRandomAccess())
+					watch(exchange, status);
 				
 				if (status.isRandomAccess()) {
 					// The client has requested this specifc block and we deliver it
@@ -424,7 +498,7 @@ public class BlockwiseLayer extends AbstractLayer {
 		BlockwiseStatus status = exchange.getRequestBlockStatus();
 		if (status == null) {
 			status = new BlockwiseStatus(request.getOptions().getContentFormat());
-			status.setCurrentSzx( computeSZX(preferred_block_size) );
+			status.setCurrentSzx( computeSZX(config.getSnapshot().getPreferredBlockSize()) );
 			exchange.setRequestBlockStatus(status);
 			LOGGER.finer("There is no assembler status yet. Create and set new block1 status: "+status);
 		}
@@ -437,7 +511,7 @@ public class BlockwiseLayer extends AbstractLayer {
 		BlockwiseStatus status = exchange.getResponseBlockStatus();
 		if (status == null) {
 			status = new BlockwiseStatus(response.getOptions().getContentFormat());
-			status.setCurrentSzx( computeSZX(preferred_block_size) );
+			status.setCurrentSzx( computeSZX(config.getSnapshot().getPreferredBlockSize()) );
 			exchange.setResponseBlockStatus(status);
 			LOGGER.finer("There is no blockwise status yet. Create and set new block2 status: "+status);
 		} else {
@@ -446,7 +520,7 @@ public class BlockwiseLayer extends AbstractLayer {
 		return status;
 	}
 	
-	private Request getNextRequestBlock(Request request, BlockwiseStatus status) {
+	private Request getNextRequestBlock(Request request, BlockwiseStatus status) throws IOException {
 		int num = status.getCurrentNum();
 		int szx = status.getCurrentSzx();
 		Request block = new Request(request.getCode());
@@ -457,21 +531,19 @@ public class BlockwiseLayer extends AbstractLayer {
 		block.setType(Type.CON);
 		
 		int currentSize = 1 << (4 + szx);
-		int from = num * currentSize;
-		int to = Math.min((num + 1) * currentSize, request.getPayloadSize());
-		int length = to - from;
-		byte[] blockPayload = new byte[length];
-		System.arraycopy(request.getPayload(), from, blockPayload, 0, length);
-		block.setPayload(blockPayload);
+		long size = bodySize(request);
+		long from = (long) num * currentSize;
+		long to = Math.min(from + currentSize, size);
+		block.setPayload(readBlock(request, from, (int) (to - from)));
 		
-		boolean m = (to < request.getPayloadSize());
+		boolean m = (to < size);
 		block.getOptions().setBlock1(szx, m, num);
 		
 		status.setComplete(!m);
 		return block;
 	}
 	
-	private Response getNextResponseBlock(Response response, BlockwiseStatus status) {
+	private Response getNextResponseBlock(Response response, BlockwiseStatus status) throws IOException {
 		int szx = status.getCurrentSzx();
 		int num = status.getCurrentNum();
 		Response block = new Response(response.getCode());
@@ -482,18 +554,15 @@ public class BlockwiseLayer extends AbstractLayer {
 		block.setOptions(new OptionSet(response.getOptions()));
 		block.addMessageObserver(new TimeoutForwarder(response));
 
-		int payloadsize = response.getPayloadSize();
+		long payloadsize = bodySize(response);
 		int currentSize = 1 << (4 + szx);
-		int from = num * currentSize;
+		long from = (long) num * currentSize;
 		
 		if (0 < payloadsize && from < payloadsize) {
-			int to = Math.min((num + 1) * currentSize, response.getPayloadSize());
-			int length = to - from;
-			byte[] blockPayload = new byte[length];
-			System.arraycopy(response.getPayload(), from, blockPayload, 0, length);
-			block.setPayload(blockPayload);
+			long to = Math.min(from + currentSize, payloadsize);
+			block.setPayload(readBlock(response, from, (int) (to - from)));
 			
-			boolean m = (to < response.getPayloadSize());
+			boolean m = (to < payloadsize);
 			block.getOptions().setBlock2(szx, m, num);
 			block.setLast(!m);
 			
@@ -515,6 +584,13 @@ public class BlockwiseLayer extends AbstractLayer {
 		message.setType(last.getType());
 		message.setOptions(new OptionSet(last.getOptions()));
 		
+		BlockSpool spool = status.takeSpool();
+		if (spool != null) {
+			LOGGER.fine("Body of "+status.getSize()+" bytes has been spooled to a file");
+			message.setPayloadSource(spool);
+			return;
+		}
+		
 		int length = 0;
 		for (byte[] block:status.getBlocks())
 			length += block.length;
@@ -531,15 +607,96 @@ public class BlockwiseLayer extends AbstractLayer {
 	
 	private boolean requiresBlockwise(Request request) {
 		if (request.getCode() == Code.PUT || request.getCode() == Code.POST) {
-			return request.getPayloadSize() > max_message_size;
+			return bodySize(request) > config.getSnapshot().getMaxMessageSize();
 		} else return false;
 	}
 	
 	private boolean requireBlockwise(Exchange exchange, Response response) {
-		return response.getPayloadSize() > max_message_size
+		return bodySize(response) > config.getSnapshot().getMaxMessageSize()
 				|| exchange.getResponseBlockStatus() != null;
 	}
 	
+	private static long bodySize(Message message) {
+		BlockSource source = message.getPayloadSource();
+		return source != null ? source.size() : message.getPayloadSize();
+	}
+	
+	private static byte[] readBlock(Message message, long from, int length) throws IOException {
+		BlockSource source = message.getPayloadSource();
+		if (source != null)
+			return source.read(from, length);
+		byte[] blockPayload = new byte[length];
+		System.arraycopy(message.getPayload(), (int) from, blockPayload, 0, length);
+		return blockPayload;
+	}
+	
+	// A body that fits into a single message is sent as payload
+	private static void readBody(Message message) throws IOException {
+		BlockSource source = message.getPayloadSource();
+		message.setPayload(source.readAll());
+		release(source);
+	}
+	
+	private static void release(BlockSource source) {
+		if (source != null) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				LOGGER.warning("Cannot close payload source: "+e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * Watches a transfer whose peer has to request or send the next block.
+	 * If the peer does not continue the transfer within the exchange
+	 * lifetime, the transfer is abandoned: a server exchange is completed, so
+	 * that the Matcher forgets it, and a client exchange drops its blockwise
+	 * state. Both release their spools and sources.
+	 */
+	private void watch(Exchange exchange, BlockwiseStatus status) {
+		status.touch();
+		if (executor != null && status.watch())
+			scheduleWatch(exchange, status, config.getSnapshot().getExchangeLifetime());
+	}
+	
+	private void scheduleWatch(final Exchange exchange, final BlockwiseStatus status, long delay) {
+		executor.schedule(new Runnable() {
+			public void run() {
+				if (exchange.isComplete() || status.isComplete()) return;
+				// the transfer has finished or has been restarted
+				if (exchange.getRequestBlockStatus() != status && exchange.getResponseBlockStatus() != status) return;
+				
+				long lifetime = config.getSnapshot().getExchangeLifetime();
+				long idle = System.currentTimeMillis() - status.getLastTransfer();
+				if (idle < lifetime) {
+					scheduleWatch(exchange, status, lifetime - idle);
+					return;
+				}
+				LOGGER.info("Blockwise transfer has been abandoned after "+idle+" ms: "+status);
+				if (exchange.getOrigin() == Origin.REMOTE) {
+					exchange.setComplete();
+				} else {
+					exchange.releaseBodies();
+					exchange.setRequestBlockStatus(null);
+					exchange.setResponseBlockStatus(null);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private static Response failedBlock(Response response, IOException e) {
+		LOGGER.warning("Cannot read block of response body: "+e.getMessage());
+		Response error = new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		error.setDestination(response.getDestination());
+		error.setDestinationPort(response.getDestinationPort());
+		error.setToken(response.getToken());
+		error.setType(response.getType());
+		error.setPayload("Cannot read body");
+		error.setLast(true);
+		return error;
+	}
+	
 	/**
 	 * Encodes a block size into a 3-bit SZX value as specified by
 	 * draft-ietf-core-block-14, Section-2.2:
@@ -19,6 +19,7 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.stack;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -70,6 +71,18 @@ public class BlockwiseStatus {
 	// Container for the payload of all blocks
 	/** The blocks. */
 	private ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+	
+	/** The number of bytes of all blocks */
+	private long size;
+	
+	/** The spool that takes the blocks once the body exceeds the threshold */
+	private BlockSpool spool;
+	
+	/** The time of the last block in ms */
+	private volatile long lastTransfer = System.currentTimeMillis();
+	
+	/** Whether the BlockwiseLayer watches this transfer for inactivity */
+	private boolean watched;
 
 	/**
 	 * Instantiates a new blockwise status.
@@ -163,10 +176,99 @@ public class BlockwiseStatus {
 	 */
 	public void addBlock(byte[] block) {
 		blocks.add(block);
+		size += block.length;
+	}
+	
+	/**
+	 * Adds the specified block. Once the body exceeds the specified threshold,
+	 * all blocks are moved to a spool file and further blocks are appended to
+	 * it, so that the body is no longer held in memory.
+	 * 
+	 * @param block the block
+	 * @param spoolThreshold the size in bytes above which the body is spooled,
+	 *            or 0 to keep the blocks in memory
+	 * @throws IOException if the spool file cannot be written
+	 */
+	public synchronized void addBlock(byte[] block, int spoolThreshold) throws IOException {
+		if (spool == null && spoolThreshold > 0 && size + block.length > spoolThreshold) {
+			spool = new BlockSpool();
+			for (byte[] previous:blocks)
+				spool.append(previous);
+			blocks.clear();
+		}
+		if (spool != null) {
+			spool.append(block);
+			size += block.length;
+		} else {
+			addBlock(block);
+		}
+	}
+	
+	/**
+	 * Gets the number of bytes of all blocks received so far.
+	 * 
+	 * @return the size of the body
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Takes the spool with the blocks, if the body has been spooled. The
+	 * caller becomes responsible for closing the spool, which is no longer
+	 * released by this status.
+	 * 
+	 * @return the spool or null if the blocks are held in memory
+	 */
+	synchronized BlockSpool takeSpool() {
+		BlockSpool taken = spool;
+		spool = null;
+		return taken;
+	}
+	
+	/**
+	 * Deletes the spool of a transfer that has been abandoned.
+	 */
+	public synchronized void release() {
+		if (spool != null) {
+			try {
+				spool.close();
+			} catch (IOException e) {
+				// the spool is lost either way
+			}
+			spool = null;
+		}
+	}
+	
+	/**
+	 * Records that a block of this transfer has been sent or received.
+	 */
+	void touch() {
+		lastTransfer = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Returns the time of the last block.
+	 * 
+	 * @return the time in ms
+	 */
+	long getLastTransfer() {
+		return lastTransfer;
+	}
+	
+	/**
+	 * Marks this transfer as watched for inactivity.
+	 * 
+	 * @return true if the transfer has not been watched before
+	 */
+	synchronized boolean watch() {
+		if (watched) return false;
+		watched = true;
+		return true;
 	}
 	
 	/**
-	 * Gets the number of blocks.
+	 * Gets the number of blocks held in memory.
 	 *
 	 * @return the block count
 	 */
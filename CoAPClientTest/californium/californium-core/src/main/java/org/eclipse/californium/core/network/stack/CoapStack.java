@@ -26,6 +26,7 @@ import java.util.logging.Logger;
 import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.EndpointMetrics;
 import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.network.Outbox;
 import org.eclipse.californium.core.network.Exchange.Origin;
@@ -89,6 +90,18 @@ public class CoapStack {
 	private MessageDeliverer deliverer;
 	
 	public CoapStack(NetworkConfig config, Outbox outbox) {
+		this(config, outbox, null);
+	}
+	
+	/**
+	 * Creates a new stack that reports to the specified metrics. With metrics,
+	 * a {@link LatencyLayer} measures the calls between each pair of layers.
+	 * 
+	 * @param config the configuration
+	 * @param outbox the outbox below the stack
+	 * @param metrics the metrics of the endpoint or null
+	 */
+	public CoapStack(NetworkConfig config, Outbox outbox, EndpointMetrics metrics) {
 		this.top = new StackTopAdapter();
 		this.outbox = outbox;
 		
@@ -99,16 +112,23 @@ public class CoapStack {
 		} else {
 			reliabilityLayer = new ReliabilityLayer(config);
 		}
+		reliabilityLayer.setMetrics(metrics);
 		
-		this.layers = 
-				new Layer.TopDownBuilder()
-				.add(top)
-				.add(new ObserveLayer(config))
-				.add(new BlockwiseLayer(config))
-				.add(new TokenLayer(config))
-				.add(reliabilityLayer)
-				.add(bottom = new StackBottomAdapter())
-				.create();
+		Layer[] protocol = {
+				top,
+				new ObserveLayer(config),
+				new BlockwiseLayer(config),
+				new TokenLayer(config),
+				reliabilityLayer,
+				bottom = new StackBottomAdapter() };
+		
+		Layer.TopDownBuilder builder = new Layer.TopDownBuilder();
+		for (int i=0; i<protocol.length; i++) {
+			if (metrics != null && i > 0)
+				builder.add(new LatencyLayer(metrics, protocol[i-1], protocol[i]));
+			builder.add(protocol[i]);
+		}
+		this.layers = builder.create();
 		
 		// make sure the endpoint sets a MessageDeliverer
 	}
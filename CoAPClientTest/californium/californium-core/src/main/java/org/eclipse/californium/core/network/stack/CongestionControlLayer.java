@@ -17,14 +17,21 @@
  
 package org.eclipse.californium.core.network.stack;
 
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.LatencyHistogram;
 import org.eclipse.californium.core.network.RemoteEndpoint;
 import org.eclipse.californium.core.network.RemoteEndpointManager;
 import org.eclipse.californium.core.network.config.NetworkConfig;
@@ -40,6 +47,15 @@ import org.eclipse.californium.core.network.stack.congestioncontrol.*;
  * LINUXRTO = The Linux RTO calculation mechanism
  * COCOASTRONG = CoCoA but only with the strong estimator
  * PEAKHOPPERRTO  = The Peakhopper RTO calculation mechanism (PH-RTO)
+ * ESTIMATORRTO = A pluggable {@link RtoEstimator} with nanosecond resolution, RFC 6298 by default
+ * 
+ * Confirmables beyond NSTART and all non-confirmables wait in lock-free
+ * per-peer queues. A single pacer task per layer, i.e., per lane, sends the
+ * non-confirmables of all peers at a rate of one per RTO and sweeps stale
+ * exchanges, so that no task needs to be scheduled per exchange. The pacer
+ * only runs while non-confirmables are queued or exchanges are registered,
+ * so that it does not keep ticking once the endpoint is idle. The waiting
+ * times in both queues are recorded in {@link LatencyHistogram}s.
  * 
  * @author augustbetzler
  *
@@ -47,9 +63,6 @@ import org.eclipse.californium.core.network.stack.congestioncontrol.*;
 
 public abstract class CongestionControlLayer extends ReliabilityLayer {
 	
-	/** The configuration */ 
-	protected NetworkConfig config;
-	
 	private final static long MAX_REMOTE_TRANSACTION_DURATION = 255 * 1000; // Maximum duration of a transaction, after that, sweep the exchanges
 	// Amount of non-confirmables that can be transmitted before a NON is converted to a CON (to get an RTT measurement); this is a CoCoA feature
 	private final static int MAX_SUCCESSIVE_NONS = 7; 
@@ -61,19 +74,31 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		
 	private final static int EXCHANGELIMIT = 50;    // An upper limit for the queue size of confirmables and non-confirmables (separate queues)
 	
-	private final static int MAX_RTO = 60000;
+	protected final static int MAX_RTO = 60000;
 	 
 	private boolean appliesDithering; // In CoAP, dithering is applied to the initial RTO of a transmission; set to true to apply dithering
 	
 	private RemoteEndpointManager remoteEndpointmanager;
 	
+	/* The endpoints with queued non-confirmables, i.e., with processingNON set */
+	private final Queue<RemoteEndpoint> pacedEndpoints = new ConcurrentLinkedQueue<RemoteEndpoint>();
+	
+	/* The registered exchanges in the order of registration for the sweep */
+	private final Queue<Registration> registeredExchanges = new ConcurrentLinkedQueue<Registration>();
+	
+	private final LatencyHistogram confirmableWaits = new LatencyHistogram();
+	private final LatencyHistogram nonConfirmableWaits = new LatencyHistogram();
+	
+	/* The running pacer task or null if there is nothing to pace or sweep */
+	private volatile ScheduledFuture<?> pacer;
+	private long lastHealthStatus;
+	
 	/**
 	 * Constructs a new congestion control layer.
 	 * @param config the configuration
 	 */
 	public CongestionControlLayer(NetworkConfig config) {
 		super(config);
-		this.config = config;
 	    this.remoteEndpointmanager = new RemoteEndpointManager(config);
 	    setDithering(false);
 	}
@@ -82,6 +107,81 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		return remoteEndpointmanager.getRemoteEndpoint(exchange);
 	}
 	
+	/**
+	 * Returns the state of the given peer if there is one.
+	 * @param peer the address of the peer
+	 * @return the remote endpoint or null
+	 */
+	public RemoteEndpoint findRemoteEndpoint(InetSocketAddress peer){
+		return remoteEndpointmanager.findRemoteEndpoint(peer);
+	}
+	
+	/**
+	 * Returns the times that confirmables have waited for NSTART.
+	 * @return the histogram of the waiting times
+	 */
+	public LatencyHistogram getConfirmableWaits() {
+		return confirmableWaits;
+	}
+	
+	/**
+	 * Returns the times that non-confirmables have waited for the pacer.
+	 * @return the histogram of the waiting times
+	 */
+	public LatencyHistogram getNonConfirmableWaits() {
+		return nonConfirmableWaits;
+	}
+	
+	/**
+	 * Moves the pacer to the new executor if it is running.
+	 */
+	@Override
+	public synchronized void setExecutor(ScheduledExecutorService executor) {
+		super.setExecutor(executor);
+		if (pacer != null) {
+			pacer.cancel(false);
+			pacer = null;
+			startPacing();
+		}
+	}
+	
+	/*
+	 * Starts the pacer unless it is already running. Called whenever a NON is
+	 * queued or an exchange is registered.
+	 */
+	private void startPacing() {
+		if (pacer != null)
+			return;
+		synchronized (this) {
+			if (pacer != null || executor == null)
+				return;
+			long tick = Math.max(1, config.getLong(NetworkConfig.Keys.TIMER_TICK));
+			pacer = executor.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					try {
+						pace();
+					} catch (Throwable t) {
+						LOGGER.log(Level.SEVERE, "Exception in congestion control pacer", t);
+					}
+				}
+			}, tick, tick, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/*
+	 * Stops the pacer if there is nothing left to pace or sweep. Work that has
+	 * been added concurrently might not have seen the cancellation, so the
+	 * queues are checked again afterwards.
+	 */
+	private synchronized void stopPacingIfIdle() {
+		if (!pacedEndpoints.isEmpty() || !registeredExchanges.isEmpty() || pacer == null)
+			return;
+		pacer.cancel(false);
+		pacer = null;
+		if (!pacedEndpoints.isEmpty() || !registeredExchanges.isEmpty())
+			startPacing();
+	}
+	
 	public boolean appliesDithering(){
 		return appliesDithering;
 	}
@@ -140,20 +240,14 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 			}
 		} else {
 			// Check of if there's space to queue a NON
-			if (getRemoteEndpoint(exchange).getNonConfirmableQueue().size() == EXCHANGELIMIT) {
-				// System.out.println("Non-confirmable exchange queue limit reached!");
+			RemoteEndpoint endpoint = getRemoteEndpoint(exchange);
+			if (!endpoint.offerNonConfirmable(exchange, EXCHANGELIMIT)) {
 				// TODO: Drop packet -> Notify upper layers?
-			} else {
-				getRemoteEndpoint(exchange).getNonConfirmableQueue().add(
-						exchange);
-
-				// Check if NONs are already processed, if not, start bucket
-				// Thread
-				if (!getRemoteEndpoint(exchange).getProcessingNON()) {
-					executor.schedule(new bucketThread(
-							getRemoteEndpoint(exchange)), 0,
-							TimeUnit.MILLISECONDS);
-				}
+				LOGGER.fine("Non-confirmable exchange queue limit reached, message dropped");
+			} else if (endpoint.startProcessingNON()) {
+				// hand the endpoint to the pacer
+				pacedEndpoints.add(endpoint);
+				startPacing();
 			}
 			return false;
 		}
@@ -163,58 +257,67 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	
 	/*
 	 * Check if the limit of exchanges towards the remote endpoint has reached NSTART.
+	 * The place is taken atomically; an exchange that does not get one waits in the
+	 * queue of the remote endpoint.
 	 */
 	private boolean checkNSTART(Exchange exchange) {
-		getRemoteEndpoint(exchange).checkForDeletedExchanges();
-		if (getRemoteEndpoint(exchange).getNumberOfOngoingExchanges(exchange) < config
-				.getInt("NSTART")) {
-			// System.out.println("Processing exchange (NSTART OK!)");
-
+		RemoteEndpoint endpoint = getRemoteEndpoint(exchange);
+		// a re-sent exchange gives back its previous place first
+		endpoint.removeExchangeInfo(exchange);
+		if (endpoint.tryAcquireExchange(config.getSnapshot().getNstart())) {
 			// NSTART allows to start the exchange, proceed normally
-			getRemoteEndpoint(exchange).registerExchange(exchange,
-					calculateVBF(getRemoteEndpoint(exchange).getRTO()));
-
-			// The exchange needs to be deleted after at least 255 s TODO:
-			// should this value be calculated dynamically
-			executor.schedule(new SweepCheckTask(getRemoteEndpoint(exchange),
-					exchange), MAX_REMOTE_TRANSACTION_DURATION,
-					TimeUnit.MILLISECONDS);
+			admit(endpoint, exchange);
 			return true;
+		}
+		
+		// NSTART does not allow any further parallel exchanges towards the
+		// remote endpoint
+		if (!endpoint.offerConfirmable(exchange, EXCHANGELIMIT)) {
+			// Request cannot be queued TODO: does this trigger some
+			// feedback for other layers?
+			LOGGER.fine("Confirmable exchange queue limit reached, message dropped");
 		} else {
-			// NSTART does not allow any further parallel exchanges towards the
-			// remote endpoint
-			// System.out.println("Nstart does not allow further exchanges with "
-			// + getRemoteEndpoint(exchange).getRemoteAddress().toString());
-
-			// Check if the queue limit for exchanges is already reached
-			if (getRemoteEndpoint(exchange).getConfirmableQueue().size() == EXCHANGELIMIT) {
-				// Request cannot be queued TODO: does this trigger some
-				// feedback for other layers?
-				// System.out.println("Confirmable exchange queue limit reached! Message dropped...");
-
-			} else {
-				// Queue exchange in the CON-Queue
-				getRemoteEndpoint(exchange).getConfirmableQueue().add(exchange);
-				// System.out.println("Added exchange to the queue (NSTART limit reached)");
-			}
+			// a place might have been given back in the meantime
+			drainConfirmables(endpoint);
 		}
 		return false;
 	}
 	
+	/*
+	 * Registers an exchange for the place it has taken. The exchange is swept
+	 * after MAX_REMOTE_TRANSACTION_DURATION if it has not been completed.
+	 */
+	private void admit(RemoteEndpoint endpoint, Exchange exchange) {
+		endpoint.attachExchange(exchange, calculateVBF(endpoint.getRTO()));
+		registeredExchanges.add(new Registration(endpoint, exchange));
+		startPacing();
+	}
+	
 	/*
 	 * When a response or an ACK was received, update the RTO values with the measured RTT.
 	 */
 	private void calculateRTT(Exchange exchange){	
-		long timestamp, measuredRTT;
-		timestamp = getRemoteEndpoint(exchange).getExchangeTimestamp(exchange);
-		if (timestamp != 0){
-			measuredRTT = System.currentTimeMillis() - timestamp;
+		RemoteEndpoint endpoint = getRemoteEndpoint(exchange);
+		if (endpoint.getExchangeTimestamp(exchange) != 0){
+			long measuredRTT = System.nanoTime() - endpoint.getExchangeNanoTime(exchange);
 			// process the RTT measurement
-			processRTTmeasurement(measuredRTT, exchange, exchange.getFailedTransmissionCount());
-			getRemoteEndpoint(exchange).removeExchangeInfo(exchange);
+			processRTTsample(measuredRTT, exchange, exchange.getFailedTransmissionCount());
+			endpoint.removeExchangeInfo(exchange);
 		}
 	}
 	
+	/**
+	 * Received a new RTT measurement with the resolution of {@link System#nanoTime()}.
+	 * By default, it is passed on to {@link #processRTTmeasurement} in milliseconds.
+	 * 
+	 * @param measuredRTT			the round-trip time of a CON-ACK pair in nanoseconds
+	 * @param exchange				the exchange that was used for the RTT measurement
+	 * @param retransmissionCount	the number of retransmissions that were applied to the transmission of the CON message
+	 */
+	protected void processRTTsample(long measuredRTT, Exchange exchange, int retransmissionCount){
+		processRTTmeasurement(TimeUnit.NANOSECONDS.toMillis(measuredRTT), exchange, retransmissionCount);
+	}
+	
 	/** 
 	 * Received a new RTT measurement, evaluate it and update correspondent estimators 
 	 * 
@@ -243,7 +346,7 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	 * @param endpoint      the Remote Endpoint for which the RTO update is done
 	 */
 	protected void initializeRTOEstimators(long measuredRTT, int estimatorType, RemoteEndpoint endpoint){		
-		long newRTO = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
+		long newRTO = config.getSnapshot().getAckTimeout();
 
 		endpoint.updateRTO(newRTO);
 	}
@@ -258,7 +361,7 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	 */
 	protected void updateEstimator(long measuredRTT, int estimatorType, RemoteEndpoint endpoint){
 		// Default CoAP always uses the default timeout
-		long newRTO = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
+		long newRTO = config.getSnapshot().getAckTimeout();
 		endpoint.updateRTO(newRTO);
 	}	
 	
@@ -269,24 +372,33 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	 * @return the new VBF
 	 */
 	protected double calculateVBF(long rto){
-		return config.getFloat(NetworkConfig.Keys.ACK_TIMEOUT_SCALE);
+		return config.getSnapshot().getAckTimeoutScale();
 	}
 	
 	/*
-	 * Gets a request or response from the dedicated queue and polls it
+	 * Sends queued confirmables as long as NSTART allows it. A place is taken
+	 * before an exchange is polled, so that the order of the queue is kept and
+	 * concurrent callers cannot exceed NSTART.
 	 */
-	private void checkRemoteEndpointQueue(Exchange exchange) {
-		// 0 = empty queue | 1 = response | 2 = request
-		if (!getRemoteEndpoint(exchange).getConfirmableQueue().isEmpty()) {
-			// We have some exchanges that need to be processed; is it a
-			// response or a request?
-			Exchange queuedExchange = getRemoteEndpoint(exchange).getConfirmableQueue().poll();
+	private void drainConfirmables(RemoteEndpoint endpoint) {
+		int nstart = config.getSnapshot().getNstart();
+		while (endpoint.getConfirmableQueueSize() > 0) {
+			if (!endpoint.tryAcquireExchange(nstart))
+				return;
+			Exchange queuedExchange = endpoint.pollConfirmable(confirmableWaits);
+			if (queuedExchange == null) {
+				// another thread has taken it, check the queue again
+				endpoint.releaseExchange();
+				continue;
+			}
+			admit(endpoint, queuedExchange);
+			checkAging(queuedExchange);
 			if (queuedExchange.getCurrentResponse() != null) {
 				// it's a response
-				sendResponse(queuedExchange, queuedExchange.getCurrentResponse());
+				super.sendResponse(queuedExchange, queuedExchange.getCurrentResponse());
 			} else if (queuedExchange.getCurrentRequest() != null) {
 				// it's a request
-				sendRequest(queuedExchange, queuedExchange.getCurrentRequest());
+				super.sendRequest(queuedExchange, queuedExchange.getCurrentRequest());
 			}
 		}
 	}
@@ -330,32 +442,46 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	@Override
 	protected void prepareRetransmission(Exchange exchange, RetransmissionTask task) {
 		int timeout;
+		long nanos;
 		//System.out.println("TXCount: " + exchange.getFailedTransmissionCount());
 		if (exchange.getFailedTransmissionCount() == 0) {
-			timeout = (int)getRemoteEndpoint(exchange).getRTO();	
-			if(appliesDithering()){
-				//TODO: Workaround to force CoCoA (-Strong) not to use the same RTO after backing off several times
-				//System.out.println("Applying dithering, matching RTO");
-				getRemoteEndpoint(exchange).matchCurrentRTO();
-				timeout = (int)getRemoteEndpoint(exchange).getRTO();
-				// Apply dithering by randomly choosing RTO from [RTO, RTO * 1.5]
-				float ack_random_factor = config.getFloat(NetworkConfig.Keys.ACK_RANDOM_FACTOR);
-				timeout = getRandomTimeout(timeout, (int) (timeout*ack_random_factor));
-			}
-			//System.out.println("meanrto:" + timeout + ";" + System.currentTimeMillis());
+			nanos = getInitialTimeout(exchange);
+			// the back-off continues from whole milliseconds
+			timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999999));
 		} else {
 				int tempTimeout= (int)(getRemoteEndpoint(exchange).getExchangeVBF(exchange) * exchange.getCurrentTimeout());
 				timeout = (tempTimeout < MAX_RTO) ? tempTimeout : MAX_RTO;
 				getRemoteEndpoint(exchange).setCurrentRTO(timeout);
+				nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
 				//System.out.println("RTX");
 		}
 		exchange.setCurrentTimeout(timeout);
 		//expectedmaxduration = calculateMaxTransactionDuration(exchange); //FIXME what was this for?
 		//System.out.println("Sending MSG (timeout;timestamp:" + timeout + ";" + System.currentTimeMillis() + ")");
-		ScheduledFuture<?> f = executor.schedule(task , timeout, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> f = executor.schedule(task , nanos, TimeUnit.NANOSECONDS);
 		exchange.setRetransmissionHandle(f);	
 	}
 	
+	/**
+	 * Returns the timeout for the first transmission of a confirmable message.
+	 * @param exchange the exchange
+	 * @return the timeout in nanoseconds
+	 */
+	protected long getInitialTimeout(Exchange exchange) {
+		int timeout = (int)getRemoteEndpoint(exchange).getRTO();	
+		if(appliesDithering()){
+			//TODO: Workaround to force CoCoA (-Strong) not to use the same RTO after backing off several times
+			//System.out.println("Applying dithering, matching RTO");
+			getRemoteEndpoint(exchange).matchCurrentRTO();
+			timeout = (int)getRemoteEndpoint(exchange).getRTO();
+			// Apply dithering by randomly choosing RTO from [RTO, RTO * 1.5]
+			float ack_random_factor = config.getSnapshot().getAckRandomFactor();
+			timeout = getRandomTimeout(timeout, (int) (timeout*ack_random_factor));
+		}
+		//System.out.println("meanrto:" + timeout + ";" + System.currentTimeMillis());
+		return TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+	
 	@Override
 	public void receiveResponse(Exchange exchange, Response response) {
 		//August: change the state of the remote endpoint (STRONG/WEAK/NOESTIMATOR) if failedTransmissionCount = 0;
@@ -365,7 +491,7 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		super.receiveResponse(exchange, response);
 		
 		calculateRTT(exchange);	
-		checkRemoteEndpointQueue(exchange);	
+		drainConfirmables(getRemoteEndpoint(exchange));
 	}
 	
 	/**
@@ -380,7 +506,7 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		super.receiveEmptyMessage(exchange, message);
 		
 		calculateRTT(exchange);
-		checkRemoteEndpointQueue(exchange);
+		drainConfirmables(getRemoteEndpoint(exchange));
 	}	
 	
 	/**
@@ -404,69 +530,85 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	}
 	
 	/*
-	 * This Thread is used to apply rate control to non-confirmables by polling them from the queue and
-	 * scheduling the task to run again later.
+	 * The pacer applies rate control to non-confirmables: each endpoint may
+	 * send one NON per RTO, i.e., a token bucket with a capacity of one token.
+	 * It also sweeps the exchanges that have not been completed in time.
 	 */
-	private class bucketThread implements Runnable {
-		
-		RemoteEndpoint endpoint;
-
-		public bucketThread(RemoteEndpoint queue) {
-			endpoint = queue;
+	private void pace() {
+		long now = System.nanoTime();
+		for (Iterator<RemoteEndpoint> it = pacedEndpoints.iterator(); it.hasNext();) {
+			RemoteEndpoint endpoint = it.next();
+			if (now < endpoint.getNextNonConfirmableTime())
+				continue;
+			
+			Exchange exchange = endpoint.pollNonConfirmable(nonConfirmableWaits);
+			if (exchange == null) {
+				endpoint.setProcessingNON(false);
+				// a NON might have been queued before the flag was cleared
+				if (endpoint.getNonConfirmableQueueSize() == 0 || !endpoint.startProcessingNON())
+					it.remove();
+				continue;
+			}
+			
+			if (endpoint.getNonConfirmableCounter() <= MAX_SUCCESSIVE_NONS) {
+				endpoint.increaseNonConfirmableCounter();
+				if (exchange.getCurrentRequest().getDestinationPort() != 0) {
+					// it's a request
+					sendBucketRequest(exchange, exchange.getCurrentRequest());
+				} else if (exchange.getCurrentResponse() != null) {
+					// it's a response
+					sendBucketResponse(exchange, exchange.getCurrentResponse());
+				}
+			}
+			// the next NON may be sent after the RTO (rate = 1/RTO)
+			endpoint.setNextNonConfirmableTime(now + TimeUnit.MILLISECONDS.toNanos(endpoint.getRTO()));
 		}
 		
-		@Override
-		public void run() {
-			if (!endpoint.getNonConfirmableQueue().isEmpty()) {
-				endpoint.setProcessingNON(true);
-
-				Exchange exchange = endpoint.getNonConfirmableQueue().poll();
-
-				if (getRemoteEndpoint(exchange).getNonConfirmableCounter() <= MAX_SUCCESSIVE_NONS) {
-					getRemoteEndpoint(exchange).increaseNonConfirmableCounter();
-					if (exchange.getCurrentRequest().getDestinationPort() != 0) {
-						// it's a response
-						sendBucketRequest(exchange, exchange.getCurrentRequest());
-					} else if (exchange.getCurrentResponse() != null) {
-						// it's a request
-						sendBucketResponse(exchange, exchange.getCurrentResponse());
-					}
-				}
-				// schedule next transmission of a NON based on the RTO value (rate = 1/RTO)
-				executor.schedule(
-						new bucketThread(getRemoteEndpoint(exchange)),
-						getRemoteEndpoint(exchange).getRTO(),
-						TimeUnit.MILLISECONDS);
-
-			} else {
-				endpoint.setProcessingNON(false);
+		sweep(System.currentTimeMillis());
+		stopPacingIfIdle();
+	}
+	
+	/*
+	 * Removes the exchanges that have been registered for longer than
+	 * MAX_REMOTE_TRANSACTION_DURATION and sends the exchanges waiting for
+	 * their places. The exchanges are registered in order, so the sweep can
+	 * stop at the first one that is still young enough.
+	 */
+	private void sweep(long now) {
+		Registration registration;
+		while ((registration = registeredExchanges.peek()) != null) {
+			// the endpoint of the registration, it might not be managed anymore
+			RemoteEndpoint endpoint = registration.endpoint;
+			long timestamp = endpoint.getExchangeTimestamp(registration.exchange);
+			if (timestamp != 0 && now - timestamp < MAX_REMOTE_TRANSACTION_DURATION)
+				break;
+			registeredExchanges.poll();
+			if (endpoint.removeExchangeInfo(registration.exchange)) {
+				// Entry was removed, check if there are more messages in the queue
+				drainConfirmables(endpoint);
 			}
-		}		
+		}
+		
+		if (LOGGER.isLoggable(Level.FINE) && now - lastHealthStatus > 1000L * config.getSnapshot().getHealthStatusInterval()) {
+			lastHealthStatus = now;
+			LOGGER.fine("Congestion control state: " + remoteEndpointmanager.size() + " remote endpoints, "
+					+ registeredExchanges.size() + " registered exchanges, CON waits " + confirmableWaits
+					+ ", NON waits " + nonConfirmableWaits);
+		}
 	}
 	
 	/*
-	 * Task that deletes old exchanges from the remote endpoint list
+	 * An exchange that has taken a place at a remote endpoint.
 	 */
-	private class SweepCheckTask implements Runnable {
+	private static class Registration {
 		
-		RemoteEndpoint endpoint;
-		Exchange exchange;
-
-		public SweepCheckTask(RemoteEndpoint endpoint, Exchange exchange) {
+		private final RemoteEndpoint endpoint;
+		private final Exchange exchange;
+		
+		private Registration(RemoteEndpoint endpoint, Exchange exchange) {
 			this.endpoint = endpoint;
 			this.exchange = exchange;
 		}
-
-		@Override
-		public void run() {
-			if (endpoint.removeExchangeInfo(exchange) == false) {
-				// The entry already was removed
-			} else {
-				// Entry was removed, check if there are more messages in the
-				// queue
-				checkRemoteEndpointQueue(exchange);
-			}
-		}
 	}
 	
 	public static CongestionControlLayer newImplementation(NetworkConfig config) {
@@ -476,6 +618,7 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		else if ("BasicRto".equals(implementation)) return new BasicRto(config);
 		else if ("LinuxRto".equals(implementation)) return new LinuxRto(config);
 		else if ("PeakhopperRto".equals(implementation)) return new PeakhopperRto(config);
+		else if ("EstimatorRto".equals(implementation)) return new EstimatorRto(config);
 		else {
 			LOGGER.config("Unknown CONGESTION_CONTROL_ALGORITHM (" + implementation + "), using Cocoa");
 			return new Cocoa(config);
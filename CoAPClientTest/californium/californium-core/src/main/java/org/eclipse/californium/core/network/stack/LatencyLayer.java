@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.EndpointMetrics;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.LatencyHistogram;
+
+/**
+ * The LatencyLayer sits between two layers of the {@link CoapStack} and
+ * measures how long the calls into them take. The times are inclusive, e.g.,
+ * a request sent into a layer includes the time spent in all layers below
+ * it, and a request received by a layer includes the time of the layers
+ * above, up to the message deliverer if it handles the request directly.
+ */
+class LatencyLayer extends AbstractLayer {
+
+	private final LatencyHistogram send;
+	private final LatencyHistogram receive;
+	
+	/**
+	 * Creates a new layer to measure the calls between the specified layers.
+	 * 
+	 * @param metrics the metrics to add the histograms to
+	 * @param upper the layer above
+	 * @param lower the layer below
+	 */
+	LatencyLayer(EndpointMetrics metrics, Layer upper, Layer lower) {
+		this.send = metrics.getLatency("layer." + lower.getClass().getSimpleName() + ".send");
+		this.receive = metrics.getLatency("layer." + upper.getClass().getSimpleName() + ".receive");
+	}
+	
+	@Override
+	public void sendRequest(Exchange exchange, Request request) {
+		long start = System.nanoTime();
+		super.sendRequest(exchange, request);
+		send.record(System.nanoTime() - start);
+	}
+	
+	@Override
+	public void sendResponse(Exchange exchange, Response response) {
+		long start = System.nanoTime();
+		super.sendResponse(exchange, response);
+		send.record(System.nanoTime() - start);
+	}
+	
+	@Override
+	public void sendEmptyMessage(Exchange exchange, EmptyMessage message) {
+		long start = System.nanoTime();
+		super.sendEmptyMessage(exchange, message);
+		send.record(System.nanoTime() - start);
+	}
+	
+	@Override
+	public void receiveRequest(Exchange exchange, Request request) {
+		long start = System.nanoTime();
+		super.receiveRequest(exchange, request);
+		receive.record(System.nanoTime() - start);
+	}
+	
+	@Override
+	public void receiveResponse(Exchange exchange, Response response) {
+		long start = System.nanoTime();
+		super.receiveResponse(exchange, response);
+		receive.record(System.nanoTime() - start);
+	}
+	
+	@Override
+	public void receiveEmptyMessage(Exchange exchange, EmptyMessage message) {
+		long start = System.nanoTime();
+		super.receiveEmptyMessage(exchange, message);
+		receive.record(System.nanoTime() - start);
+	}
+}
@@ -19,6 +19,10 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.stack;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.MessageObserverAdapter;
@@ -30,12 +34,19 @@ import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.server.resources.Resource;
 
 
 public class ObserveLayer extends AbstractLayer {
 
+	/**
+	 * The configuration with the minimum and maximum time between two
+	 * notifications of a relation, read through its snapshot
+	 */
+	private final NetworkConfig config;
+	
 	public ObserveLayer(NetworkConfig config) {
-		// so far no configuration values for this layer
+		this.config = config;
 	}
 	
 	@Override
@@ -48,6 +59,11 @@ public class ObserveLayer extends AbstractLayer {
 		final ObserveRelation relation = exchange.getRelation();
 		if (relation != null && relation.isEstablished()) {
 			
+			if (config.getSnapshot().getNotificationMinInterval() > 0 && ResponseCode.isSuccess(response.getCode()) && holdBack(exchange, relation, response)) {
+				// the pacing task sends the latest notification later
+				return;
+			}
+			
 			if (exchange.getRequest().isAcknowledged() || exchange.getRequest().getType()==Type.NON) {
 				// Transmit errors as CON
 				if (!ResponseCode.isSuccess(response.getCode())) {
@@ -107,11 +123,91 @@ public class ObserveLayer extends AbstractLayer {
 					relation.setNextControlNotification(null);
 				}
 			}
+			
+			if (config.getSnapshot().getNotificationMaxInterval() > 0 && relation.isEstablished())
+				scheduleRefresh(relation);
 
 		} // else no observe was requested or the resource does not allow it
 		super.sendResponse(exchange, response);
 	}
 	
+	/**
+	 * Holds back the specified notification if the last one has been sent less
+	 * than the minimum interval ago. Only the latest notification is kept; a
+	 * notification that is still pending is dropped, so that a burst of
+	 * changes does not queue up state for a slow observer.
+	 * 
+	 * @return true if the notification has been held back
+	 */
+	private boolean holdBack(final Exchange exchange, final ObserveRelation relation, Response response) {
+		synchronized (exchange) {
+			long now = System.currentTimeMillis();
+			long wait = relation.getLastNotificationTime() + config.getSnapshot().getNotificationMinInterval() - now;
+			if (wait <= 0 && relation.getPendingNotification() == null) {
+				relation.setLastNotificationTime(now);
+				return false;
+			}
+			if (relation.getPendingNotification() != null)
+				LOGGER.finer("Dropping intermediate notification "+relation.getPendingNotification());
+			relation.setPendingNotification(response);
+			if (relation.getPacingTask() == null) {
+				relation.setPacingTask(executor.schedule(new Runnable() {
+					public void run() {
+						Response next;
+						synchronized (exchange) {
+							next = relation.getPendingNotification();
+							relation.setPendingNotification(null);
+							relation.setPacingTask(null);
+						}
+						if (next != null && relation.isEstablished())
+							sendResponse(exchange, next);
+					}
+				}, Math.max(wait, 0), TimeUnit.MILLISECONDS));
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Schedules the request of the relation to be reprocessed if no other
+	 * notification has been sent within the maximum interval. The refreshed
+	 * notification carries the current state with a new observe number, so
+	 * that the client does not discard it as a duplicate.
+	 */
+	private void scheduleRefresh(final ObserveRelation relation) {
+		relation.setRefreshTask(executor.schedule(new Runnable() {
+			public void run() {
+				if (!relation.isEstablished())
+					return;
+				LOGGER.fine("Maximum interval has passed, refreshing observe relation "+relation.getKey());
+				Executor resourceExecutor = relation.getResource().getExecutor();
+				if (resourceExecutor == null) {
+					refresh(relation);
+				} else {
+					resourceExecutor.execute(new Runnable() {
+						public void run() {
+							refresh(relation);
+						}
+					});
+				}
+			}
+		}, config.getSnapshot().getNotificationMaxInterval(), TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Reprocesses the request of the relation. A {@link CoapResource}
+	 * advances its observe number first; other resources are responsible for
+	 * setting a fresh observe option themselves.
+	 */
+	private static void refresh(ObserveRelation relation) {
+		Resource resource = relation.getResource();
+		if (resource instanceof CoapResource) {
+			((CoapResource) resource).refreshObserveRelation(relation);
+		} else {
+			relation.notifyObservers();
+		}
+	}
+	
 	/**
 	 * Returns true if the specified response is still in transit. A response is
 	 * in transit if it has not yet been acknowledged, rejected or its current
@@ -29,10 +29,11 @@ import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.network.EndpointMetrics;
 import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
-import org.eclipse.californium.core.network.config.NetworkConfigObserverAdapter;
+import org.eclipse.californium.core.network.config.NetworkConfigSnapshot;
 
 
 /**
@@ -46,41 +47,31 @@ public class ReliabilityLayer extends AbstractLayer {
 	/** The random numbers generator for the back-off timer */
 	private Random rand = new Random();
 	
-	private int ack_timeout;
-	private float ack_random_factor;
-	private float ack_timeout_scale;
-	private int max_retransmit;
+	/** The configuration, read through its snapshot */
+	protected final NetworkConfig config;
+	
+	/** The metrics to count retransmissions and timeouts or null */
+	private EndpointMetrics metrics;
 	
 	/**
 	 * Constructs a new reliability layer.
-	 * Changes to the configuration are observed and automatically applied.
+	 * Changes to the configuration are applied with the next message.
 	 * @param config the configuration
 	 */
 	public ReliabilityLayer(NetworkConfig config) {
+		this.config = config;
 		
-		ack_timeout = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
-		ack_random_factor = config.getFloat(NetworkConfig.Keys.ACK_RANDOM_FACTOR);
-		ack_timeout_scale = config.getFloat(NetworkConfig.Keys.ACK_TIMEOUT_SCALE);
-		max_retransmit = config.getInt(NetworkConfig.Keys.MAX_RETRANSMIT);
-		
-		LOGGER.config("ReliabilityLayer uses ACK_TIMEOUT: "+ack_timeout+", ACK_RANDOM_FACTOR: "+ack_random_factor+", and ACK_TIMEOUT_SCALE: "+ack_timeout_scale);
-		
-		config.addConfigObserver(new NetworkConfigObserverAdapter() {
-			@Override
-			public void changed(String key, int value) {
-				if (NetworkConfig.Keys.ACK_TIMEOUT.equals(key))
-					ack_timeout = value;
-				if (NetworkConfig.Keys.MAX_RETRANSMIT.equals(key))
-					max_retransmit = value;
-			}
-			@Override
-			public void changed(String key, float value) {
-				if (NetworkConfig.Keys.ACK_RANDOM_FACTOR.equals(key))
-					ack_random_factor = value;
-				if (NetworkConfig.Keys.ACK_TIMEOUT_SCALE.equals(key))
-					ack_timeout_scale = value;
-			}
-		});
+		NetworkConfigSnapshot settings = config.getSnapshot();
+		LOGGER.config("ReliabilityLayer uses ACK_TIMEOUT: "+settings.getAckTimeout()+", ACK_RANDOM_FACTOR: "+settings.getAckRandomFactor()+", and ACK_TIMEOUT_SCALE: "+settings.getAckTimeoutScale());
+	}
+	
+	/**
+	 * Sets the metrics that count retransmissions and timeouts.
+	 * 
+	 * @param metrics the metrics or null
+	 */
+	public void setMetrics(EndpointMetrics metrics) {
+		this.metrics = metrics;
 	}
 	
 	/**
@@ -167,11 +158,13 @@ public class ReliabilityLayer extends AbstractLayer {
 		 * random number between ACK_TIMEOUT and (ACK_TIMEOUT *
 		 * ACK_RANDOM_FACTOR)
 		 */
+		NetworkConfigSnapshot settings = config.getSnapshot();
 		int timeout;
 		if (exchange.getFailedTransmissionCount() == 0) {
-			timeout = getRandomTimeout(ack_timeout, (int) (ack_timeout*ack_random_factor));
+			int ack_timeout = settings.getAckTimeout();
+			timeout = getRandomTimeout(ack_timeout, (int) (ack_timeout*settings.getAckRandomFactor()));
 		} else {
-			timeout = (int) (ack_timeout_scale * exchange.getCurrentTimeout());
+			timeout = (int) (settings.getAckTimeoutScale() * exchange.getCurrentTimeout());
 		}
 		exchange.setCurrentTimeout(timeout);
 		
@@ -331,18 +324,23 @@ public class ReliabilityLayer extends AbstractLayer {
 					LOGGER.finest("Timeout: canceled (MID="+message.getMID()+"), do not retransmit");
 					return;
 					
-				} else if (failedCount <= max_retransmit) {
+				} else if (failedCount <= config.getSnapshot().getMaxRetransmit()) {
 					LOGGER.finer("Timeout: retransmit message, failed: "+failedCount+", message: "+message);
 					
 					// Trigger MessageObservers
 					message.retransmitting();
 					
 					// MessageObserver might have canceled
-					if (!message.isCanceled())
+					if (!message.isCanceled()) {
+						if (metrics != null)
+							metrics.retransmission();
 						retransmit();
+					}
 
 				} else {
 					LOGGER.info("Timeout: retransmission limit reached, exchange failed, message: "+message);
+					if (metrics != null)
+						metrics.timeout();
 					exchange.setTimedOut();
 					message.setTimedOut(true);
 				}
@@ -126,7 +126,7 @@ public class Cocoa extends CongestionControlLayer {
 		if (rto < LOWERVBFLIMIT) {
 			return VBFLOW;
 		}
-		return config.getFloat(NetworkConfig.Keys.ACK_TIMEOUT_SCALE);
+		return config.getSnapshot().getAckTimeoutScale();
 	}
 	
 	/**
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack.congestioncontrol;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.RemoteEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.stack.CongestionControlLayer;
+
+/**
+ * The EstimatorRto layer calculates the RTO of each remote endpoint with the
+ * {@link RtoEstimator} configured by
+ * {@link NetworkConfig.Keys#CONGESTION_CONTROL_RTO_ESTIMATOR}. RTTs are
+ * measured with {@link System#nanoTime()} and the first transmission is
+ * scheduled with the estimated RTO in nanoseconds, so that sub-millisecond
+ * RTTs result in sub-millisecond timeouts down to
+ * {@link NetworkConfig.Keys#CONGESTION_CONTROL_MIN_RTO}. Changing either key
+ * in the configuration takes effect with the next measurement.
+ */
+public class EstimatorRto extends CongestionControlLayer {
+
+	/* The configured class name with the estimator in use for it */
+	private volatile Selection selection;
+	
+	public EstimatorRto(NetworkConfig config) {
+		super(config);
+		String name = config.getSnapshot().getCongestionControlRtoEstimator();
+		selection = new Selection(name, newEstimator(name, new Rfc6298Estimator()));
+	}
+	
+	/**
+	 * Returns the estimator that is currently used. If the configured class
+	 * name has changed since the last call, the new estimator is instantiated
+	 * first; if that fails, the current one is kept.
+	 * 
+	 * @return the estimator
+	 */
+	public RtoEstimator getEstimator() {
+		String name = config.getSnapshot().getCongestionControlRtoEstimator();
+		Selection current = selection;
+		if (!name.equals(current.name)) {
+			current = new Selection(name, newEstimator(name, current.estimator));
+			selection = current;
+		}
+		return current.estimator;
+	}
+	
+	/**
+	 * Returns the estimator state of the given peer with its RTT and RTO
+	 * distributions.
+	 * 
+	 * @param peer the address of the peer
+	 * @return the state or null if the peer is not known
+	 */
+	public RtoState getRtoState(InetSocketAddress peer) {
+		RemoteEndpoint endpoint = findRemoteEndpoint(peer);
+		return endpoint != null ? endpoint.getRtoState() : null;
+	}
+	
+	@Override
+	protected void processRTTsample(long measuredRTT, Exchange exchange, int retransmissionCount) {
+		RemoteEndpoint endpoint = getRemoteEndpoint(exchange);
+		int rtoType = endpoint.getExchangeEstimatorState(exchange);
+		if (rtoType == NOESTIMATOR)
+			return;
+		
+		RtoEstimator estimator = getEstimator();
+		RtoState state = endpoint.getRtoState();
+		long rto;
+		synchronized (state) {
+			long samples = state.samples;
+			estimator.update(state, measuredRTT, rtoType == WEAKRTOTYPE);
+			if (state.samples == samples)
+				return; // ignored by the estimator
+			long minRto = TimeUnit.MICROSECONDS.toNanos(config.getSnapshot().getCongestionControlMinRto());
+			rto = Math.min(Math.max(state.rto, minRto), TimeUnit.MILLISECONDS.toNanos(MAX_RTO));
+			state.rto = rto;
+		}
+		state.getRtts().record(measuredRTT);
+		state.getRtos().record(rto);
+		
+		// the estimator replaces the blind estimator
+		endpoint.setBlindStrong(false);
+		endpoint.setBlindWeak(false);
+		endpoint.updateRTO(Math.max(1, TimeUnit.NANOSECONDS.toMillis(rto)));
+	}
+	
+	@Override
+	protected long getInitialTimeout(Exchange exchange) {
+		RtoState state = getRemoteEndpoint(exchange).getRtoState();
+		synchronized (state) {
+			if (state.samples > 0)
+				return state.rto;
+		}
+		return super.getInitialTimeout(exchange);
+	}
+	
+	private static RtoEstimator newEstimator(String name, RtoEstimator current) {
+		try {
+			Class<? extends RtoEstimator> type = Class.forName(name).asSubclass(RtoEstimator.class);
+			return type.getDeclaredConstructor().newInstance();
+		} catch (InvocationTargetException e) {
+			// the constructor of the estimator has thrown
+			LOGGER.log(Level.WARNING, "Cannot instantiate RTO estimator " + name + ", using " + current.getClass().getName(), e.getCause());
+		} catch (Exception e) {
+			// not found, not an RtoEstimator, or without public no-arg constructor
+			LOGGER.log(Level.WARNING, "Cannot instantiate RTO estimator " + name + ", using " + current.getClass().getName(), e);
+		}
+		return current;
+	}
+	
+	/*
+	 * The estimator for a configured class name. The estimator is the
+	 * previous one if the class could not be instantiated, so that the
+	 * failure is not logged again for every measurement.
+	 */
+	private static class Selection {
+		
+		private final String name;
+		private final RtoEstimator estimator;
+		
+		private Selection(String name, RtoEstimator estimator) {
+			this.name = name;
+			this.estimator = estimator;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack.congestioncontrol;
+
+/**
+ * The RTO estimator of RFC 6298 with the gains as shifts: alpha = 1/8, beta =
+ * 1/4, and K = 4. Following Karn's algorithm, measurements of retransmitted
+ * messages are ignored. The clock granularity G is that of
+ * {@link System#nanoTime()}, so that the lower bound of the RTO is only the
+ * configured minimum.
+ */
+public class Rfc6298Estimator implements RtoEstimator {
+
+	@Override
+	public void update(RtoState state, long rtt, boolean weak) {
+		if (weak)
+			return;
+		if (state.samples == 0) {
+			state.srtt = rtt;
+			state.rttvar = rtt >> 1;
+		} else {
+			long err = Math.abs(state.srtt - rtt);
+			state.rttvar += (err - state.rttvar) >> 2;
+			state.srtt += (rtt - state.srtt) >> 3;
+		}
+		state.rto = state.srtt + (state.rttvar << 2);
+		state.samples++;
+	}
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack.congestioncontrol;
+
+/**
+ * An RtoEstimator calculates the retransmission timeout (RTO) of a remote
+ * endpoint from round-trip time (RTT) measurements. The estimator itself is
+ * stateless; the state of each remote endpoint is kept in an {@link RtoState}
+ * that is passed to every update, so that an estimator can be shared by all
+ * endpoints and exchanged at runtime through the
+ * {@link org.eclipse.californium.core.network.config.NetworkConfig.Keys#CONGESTION_CONTROL_RTO_ESTIMATOR}
+ * key. Implementations need a public no-argument constructor.
+ * <p>
+ * All times are in nanoseconds. The updates of one state are serialized by
+ * the caller; they are on the path of every response and should not
+ * allocate.
+ */
+public interface RtoEstimator {
+
+	/**
+	 * Updates the state with a new RTT measurement and sets its RTO. The
+	 * caller clamps the RTO to the configured bounds afterwards.
+	 * 
+	 * @param state the state of the remote endpoint
+	 * @param rtt the measured round-trip time in nanoseconds
+	 * @param weak true if the measurement stems from a retransmitted message
+	 *            and is therefore ambiguous
+	 */
+	public void update(RtoState state, long rtt, boolean weak);
+	
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack.congestioncontrol;
+
+import org.eclipse.californium.core.network.LatencyHistogram;
+
+/**
+ * The RtoState is the RTO estimator state of a remote endpoint. It consists
+ * of a few primitive fields, which the {@link RtoEstimator} updates in
+ * place, and the distributions of the measured RTTs and of the resulting
+ * RTOs. All times are in nanoseconds.
+ */
+public final class RtoState {
+
+	/** The smoothed round-trip time */
+	public long srtt;
+	
+	/** The round-trip time variation */
+	public long rttvar;
+	
+	/** The retransmission timeout */
+	public long rto;
+	
+	/** The number of measurements that the estimator has taken into account */
+	public long samples;
+	
+	private final LatencyHistogram rtts = new LatencyHistogram();
+	private final LatencyHistogram rtos = new LatencyHistogram();
+	
+	/**
+	 * Returns the distribution of the measured round-trip times.
+	 * 
+	 * @return the RTT histogram
+	 */
+	public LatencyHistogram getRtts() {
+		return rtts;
+	}
+	
+	/**
+	 * Returns the distribution of the retransmission timeouts.
+	 * 
+	 * @return the RTO histogram
+	 */
+	public LatencyHistogram getRtos() {
+		return rtos;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("[samples=%d, srtt=%dus, rttvar=%dus, rto=%dus]",
+				samples, srtt / 1000, rttvar / 1000, rto / 1000);
+	}
+}
@@ -22,6 +22,7 @@ package org.eclipse.californium.core.observe;
 import java.net.InetSocketAddress;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.coap.Response;
@@ -53,6 +54,12 @@ public class ObserveRelation {
 	private Response recentControlNotification;
 	private Response nextControlNotification;
 	
+	/** The latest notification that waits for the minimum interval to pass */
+	private Response pendingNotification;
+	private long lastNotificationTime;
+	private ScheduledFuture<?> pacingTask;
+	private ScheduledFuture<?> refreshTask;
+	
 	private String key = null;
 
 	/*
@@ -114,6 +121,7 @@ public class ObserveRelation {
 	public void cancel() {
 		LOGGER.info("Canceling observe relation "+getKey()+" with "+resource.getURI());
 		setEstablished(false);
+		cancelTasks();
 		resource.removeObserveRelation(this);
 		endpoint.removeObserveRelation(this);
 		exchange.setComplete();
@@ -189,6 +197,75 @@ public class ObserveRelation {
 		this.nextControlNotification = nextControlNotification;
 	}
 	
+	/**
+	 * Returns the latest notification that has been held back because the
+	 * minimum interval between notifications has not passed yet.
+	 * 
+	 * @return the pending notification or null
+	 */
+	public Response getPendingNotification() {
+		return pendingNotification;
+	}
+
+	/**
+	 * Sets the notification to send once the minimum interval has passed. It
+	 * replaces a previously pending notification, which is never sent.
+	 * 
+	 * @param pendingNotification the notification or null
+	 */
+	public void setPendingNotification(Response pendingNotification) {
+		this.pendingNotification = pendingNotification;
+	}
+
+	/**
+	 * Returns the time in milliseconds when the last notification was handed
+	 * down the stack.
+	 * 
+	 * @return the time of the last notification or 0 if there was none
+	 */
+	public long getLastNotificationTime() {
+		return lastNotificationTime;
+	}
+
+	public void setLastNotificationTime(long lastNotificationTime) {
+		this.lastNotificationTime = lastNotificationTime;
+	}
+
+	/**
+	 * Returns the task that sends the pending notification.
+	 * 
+	 * @return the task or null if none is scheduled
+	 */
+	public ScheduledFuture<?> getPacingTask() {
+		return pacingTask;
+	}
+
+	public void setPacingTask(ScheduledFuture<?> pacingTask) {
+		this.pacingTask = pacingTask;
+	}
+
+	/**
+	 * Sets the task that refreshes the notification when the maximum interval
+	 * has passed. A previously scheduled task is canceled.
+	 * 
+	 * @param refreshTask the task or null
+	 */
+	public synchronized void setRefreshTask(ScheduledFuture<?> refreshTask) {
+		if (this.refreshTask != null)
+			this.refreshTask.cancel(false);
+		this.refreshTask = refreshTask;
+	}
+	
+	private void cancelTasks() {
+		synchronized (exchange) {
+			if (pacingTask != null)
+				pacingTask.cancel(false);
+			pacingTask = null;
+			pendingNotification = null;
+		}
+		setRefreshTask(null);
+	}
+	
 	public void addNotification(Response notification) {
 		notifications.add(notification);
 	}
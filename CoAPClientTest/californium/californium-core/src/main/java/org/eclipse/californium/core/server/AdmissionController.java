@@ -0,0 +1,304 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.config.NetworkConfigSnapshot;
+import org.eclipse.californium.core.server.resources.Resource;
+
+/**
+ * The AdmissionController decides whether the {@link ServerMessageDeliverer}
+ * hands a request over to the executor of a resource or sheds it, because
+ * the executor has fallen behind. Since resources usually share the
+ * executor of the server, the backlog is tracked per executor: the number of
+ * admitted requests that are queued or running in it and the work they
+ * represent, i.e., the sum of the average handling times of their resources.
+ * The handling time is averaged per resource.
+ * <p>
+ * A request is shed if the backlog of the executor exceeds
+ * RESOURCE_OVERLOAD_MAX_PENDING requests or if the estimated wait, i.e., the
+ * work divided by the threads of the executor, exceeds
+ * RESOURCE_OVERLOAD_MAX_DELAY. A value of 0 disables the respective check.
+ * The wait can only be estimated for a {@link ThreadPoolExecutor} with a
+ * bounded number of threads. For other executors, e.g., the virtual threads
+ * of {@link org.eclipse.californium.core.Utils#newVirtualThreadExecutor()},
+ * the parallelism is unknown and only the number of pending requests is
+ * checked.
+ * <p>
+ * The estimated wait also determines the Max-Age of the 5.03 (Service
+ * Unavailable) response, so that clients retry once the backlog is
+ * expected to be processed instead of retransmitting into it. Requests that
+ * the resource handles on the protocol stage are not queued and always
+ * admitted.
+ */
+public class AdmissionController {
+
+	/* The weight of a new sample in the average is 1/2^SHIFT */
+	private static final int SHIFT = 3;
+	
+	/* The configuration with the thresholds */
+	private final NetworkConfig config;
+	
+	/* The backlog by executor */
+	private final ConcurrentHashMap<Executor, Backlog> backlogs = new ConcurrentHashMap<Executor, Backlog>();
+	
+	/* The handling time and shed requests by resource */
+	private final ConcurrentHashMap<Resource, Load> loads = new ConcurrentHashMap<Resource, Load>();
+	
+	/* The number of shed requests of all resources */
+	private final AtomicLong shed = new AtomicLong();
+	
+	/**
+	 * Constructs a new admission controller with the thresholds of the
+	 * specified configuration. Changes of the configuration apply to the
+	 * next request.
+	 * 
+	 * @param config the configuration
+	 */
+	public AdmissionController(NetworkConfig config) {
+		if (config == null) throw new NullPointerException();
+		this.config = config;
+	}
+	
+	/**
+	 * Admits a request to the specified resource or sheds it. An admitted
+	 * request counts as backlog of the executor until it is released.
+	 * 
+	 * @param resource the resource
+	 * @param executor the executor that will handle the request
+	 * @return the admission, which tells whether the request is admitted
+	 */
+	public Admission admit(Resource resource, Executor executor) {
+		NetworkConfigSnapshot snapshot = config.getSnapshot();
+		int maxPending = snapshot.getOverloadMaxPending();
+		long maxDelay = TimeUnit.MILLISECONDS.toNanos(snapshot.getOverloadMaxDelay());
+		Load load = getLoad(resource);
+		Backlog backlog = getBacklog(executor);
+		
+		long cost = load.average;
+		int pending = backlog.pending.incrementAndGet();
+		long work = backlog.work.addAndGet(cost);
+		int threads = getThreads(executor);
+		long delay = threads > 0 ? work / threads : 0;
+		Admission admission = new Admission(resource, executor, load, backlog, cost);
+		if ((maxPending > 0 && pending > maxPending) || (maxDelay > 0 && delay > maxDelay)) {
+			admission.shed(delay);
+		}
+		return admission;
+	}
+	
+	/**
+	 * Returns the number of requests that have been shed.
+	 * 
+	 * @return the number of shed requests of all resources
+	 */
+	public long getShedCount() {
+		return shed.get();
+	}
+	
+	/**
+	 * Returns the number of shed requests of the resources that have shed at
+	 * least one request.
+	 * 
+	 * @return the shed requests by resource
+	 */
+	public Map<Resource, Long> getShedCounts() {
+		Map<Resource, Long> counts = new HashMap<Resource, Long>();
+		for (Map.Entry<Resource, Load> entry:loads.entrySet()) {
+			long count = entry.getValue().shed.get();
+			if (count > 0) counts.put(entry.getKey(), count);
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+	
+	/**
+	 * Returns the number of admitted requests that are queued or running in
+	 * the specified executor.
+	 * 
+	 * @param executor the executor
+	 * @return the number of pending requests
+	 */
+	public int getPending(Executor executor) {
+		Backlog backlog = backlogs.get(executor);
+		return backlog != null ? backlog.pending.get() : 0;
+	}
+	
+	/**
+	 * Forgets the handling time and the shed requests of a resource that has
+	 * been removed from the resource tree.
+	 * 
+	 * @param resource the resource
+	 */
+	public void forget(Resource resource) {
+		loads.remove(resource);
+	}
+	
+	private Load getLoad(Resource resource) {
+		Load load = loads.get(resource);
+		if (load == null) {
+			Load created = new Load();
+			load = loads.putIfAbsent(resource, created);
+			if (load == null)
+				load = created;
+		}
+		return load;
+	}
+	
+	private Backlog getBacklog(Executor executor) {
+		Backlog backlog = backlogs.get(executor);
+		if (backlog == null) {
+			Backlog created = new Backlog();
+			backlog = backlogs.putIfAbsent(executor, created);
+			if (backlog == null)
+				backlog = created;
+		}
+		return backlog;
+	}
+	
+	/*
+	 * Returns the number of threads of the executor or 0 if unknown or
+	 * unbounded. A ScheduledThreadPoolExecutor never grows beyond its core
+	 * threads.
+	 */
+	private static int getThreads(Executor executor) {
+		if (executor instanceof ScheduledThreadPoolExecutor)
+			return ((ThreadPoolExecutor) executor).getCorePoolSize();
+		if (executor instanceof ThreadPoolExecutor) {
+			int threads = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+			return threads < Integer.MAX_VALUE ? threads : 0;
+		}
+		return 0;
+	}
+	
+	/**
+	 * The decision for one request. An admitted request must be released
+	 * when its resource has handled it or when the executor has rejected it.
+	 */
+	public final class Admission {
+		
+		private final Resource resource;
+		private final Executor executor;
+		private final Load load;
+		private final Backlog backlog;
+		private final long cost;
+		private boolean admitted = true;
+		private long retryAfter;
+		
+		private Admission(Resource resource, Executor executor, Load load, Backlog backlog, long cost) {
+			this.resource = resource;
+			this.executor = executor;
+			this.load = load;
+			this.backlog = backlog;
+			this.cost = cost;
+		}
+		
+		/**
+		 * Checks whether the request has been admitted.
+		 * 
+		 * @return true if admitted, false if shed
+		 */
+		public boolean isAdmitted() {
+			return admitted;
+		}
+		
+		/**
+		 * Returns the Max-Age after which a client should retry a shed
+		 * request, i.e., the estimated wait rounded up to seconds, but at
+		 * least one second.
+		 * 
+		 * @return the Max-Age in seconds or 0 if admitted
+		 */
+		public long getRetryAfter() {
+			return retryAfter;
+		}
+		
+		/**
+		 * Releases an admitted request after its resource has handled it.
+		 * 
+		 * @param nanos the time the resource has taken to handle the request
+		 */
+		public void release(long nanos) {
+			remove();
+			// races between threads only lose samples of the average
+			long average = load.average;
+			load.average = average == 0 ? nanos : average + ((nanos - average) >> SHIFT);
+		}
+		
+		/**
+		 * Sheds an admitted request that the executor has rejected.
+		 */
+		public void reject() {
+			shed(0);
+		}
+		
+		private void shed(long delay) {
+			remove();
+			admitted = false;
+			retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(delay + TimeUnit.SECONDS.toNanos(1) - 1));
+			load.shed.incrementAndGet();
+			shed.incrementAndGet();
+		}
+		
+		private void remove() {
+			backlog.work.addAndGet(-cost);
+			if (backlog.pending.decrementAndGet() == 0
+					&& executor instanceof ExecutorService && ((ExecutorService) executor).isShutdown())
+				backlogs.remove(executor, backlog);
+		}
+		
+		@Override
+		public String toString() {
+			return resource.getURI() + (admitted ? " admitted" : " shed, retry after " + retryAfter + " s");
+		}
+	}
+	
+	/*
+	 * The admitted requests in one executor.
+	 */
+	private static final class Backlog {
+		
+		/* Requests that are queued or running */
+		private final AtomicInteger pending = new AtomicInteger();
+		
+		/* The sum of the average handling times of the pending requests in ns */
+		private final AtomicLong work = new AtomicLong();
+	}
+	
+	/*
+	 * The handling time and the shed requests of one resource.
+	 */
+	private static final class Load {
+		
+		/* Requests that have been shed */
+		private final AtomicLong shed = new AtomicLong();
+		
+		/* The moving average of the handling time in ns */
+		private volatile long average;
+	}
+}
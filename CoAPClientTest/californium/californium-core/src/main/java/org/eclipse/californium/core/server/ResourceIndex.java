@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceObserver;
+
+/**
+ * The ResourceIndex resolves a Uri-Path to a resource of a resource tree. It
+ * keeps an immutable trie of the tree with one flat open-addressing table of
+ * path segments per resource. A lookup walks the segments of the path by
+ * position without copying them and without calling into the resources.
+ * <p>
+ * The index observes all resources of the tree and counts structural changes,
+ * i.e., added, removed or renamed resources. It registers with a resource
+ * when it first indexes it and unregisters from the whole subtree of a
+ * removed resource. The trie is rebuilt by the first
+ * lookup after a change and published as a whole (copy-on-write). While a
+ * rebuild is in progress or when the trie does not contain a path, the lookup
+ * walks the resource tree itself, so that the index never returns a resource
+ * that has been removed and supports resources that create their children
+ * on demand in {@link Resource#getChild(String)}.
+ */
+public class ResourceIndex implements ResourceObserver {
+
+	/** The root of the resource tree */
+	private final Resource root;
+	
+	/** The number of structural changes of the resource tree */
+	private final AtomicInteger modifications = new AtomicInteger();
+	
+	/** Indicates if a thread is rebuilding the trie */
+	private final AtomicBoolean building = new AtomicBoolean();
+	
+	/** The current trie or null if not yet built */
+	private volatile Trie trie;
+	
+	/** The resources that this index observes */
+	private final Set<Resource> watched = Collections.newSetFromMap(new ConcurrentHashMap<Resource, Boolean>());
+	
+	/**
+	 * Constructs a new index for the resource tree with the specified root.
+	 * The trie is built lazily with the first lookup.
+	 * 
+	 * @param root the root resource
+	 */
+	public ResourceIndex(Resource root) {
+		if (root == null)
+			throw new NullPointerException();
+		this.root = root;
+	}
+	
+	/**
+	 * Finds the resource with the specified path.
+	 * 
+	 * @param path the segments of the Uri-Path
+	 * @return the resource or null if there is no such resource
+	 */
+	public Resource find(List<String> path) {
+		Trie current = trie;
+		if (current == null || current.generation != modifications.get()) {
+			current = rebuild();
+			if (current == null)
+				return walk(path);
+		}
+		Node node = current.root;
+		for (int i=0, n=path.size(); i<n; i++) {
+			node = node.get(path.get(i));
+			if (node == null)
+				return walk(path);
+		}
+		return node.resource;
+	}
+	
+	/**
+	 * Returns the number of resources in the current trie.
+	 * 
+	 * @return the number of indexed resources or 0 if not yet built
+	 */
+	public int size() {
+		Trie current = trie;
+		return current == null ? 0 : current.size;
+	}
+	
+	/**
+	 * Rebuilds the trie if no other thread is already doing so.
+	 * 
+	 * @return the new trie or null if it is being built by another thread
+	 *         or the tree has changed in the meantime
+	 */
+	private Trie rebuild() {
+		if (!building.compareAndSet(false, true))
+			return null;
+		try {
+			// read the generation first, so that concurrent changes invalidate the result
+			int generation = modifications.get();
+			int[] size = new int[1];
+			Trie rebuilt = new Trie(build(root, size), generation, size[0]);
+			trie = rebuilt;
+			return generation == modifications.get() ? rebuilt : null;
+		} finally {
+			building.set(false);
+		}
+	}
+	
+	private Node build(Resource resource, int[] size) {
+		// register once to learn about changes in this subtree
+		if (watched.add(resource))
+			resource.addObserver(this);
+		size[0]++;
+		Collection<Resource> children = resource.getChildren();
+		Node node = new Node(resource, children.size());
+		for (Resource child:children)
+			node.put(child.getName(), build(child, size));
+		return node;
+	}
+	
+	/*
+	 * Stops observing the subtree of a removed resource.
+	 */
+	private void unwatch(Resource resource) {
+		if (watched.remove(resource))
+			resource.removeObserver(this);
+		removedResource(resource);
+		for (Resource child:resource.getChildren())
+			unwatch(child);
+	}
+	
+	/**
+	 * Invoked for each resource of a subtree that has been removed from the
+	 * tree, so that subclasses can forget the state they keep per resource.
+	 * The default implementation does nothing.
+	 * 
+	 * @param resource the removed resource
+	 */
+	protected void removedResource(Resource resource) { }
+	
+	/**
+	 * Walks the resource tree itself.
+	 */
+	private Resource walk(List<String> path) {
+		Resource current = root;
+		for (int i=0, n=path.size(); i<n; i++) {
+			current = current.getChild(path.get(i));
+			if (current == null)
+				return null;
+		}
+		return current;
+	}
+	
+	private void modified() {
+		modifications.incrementAndGet();
+	}
+	
+	@Override
+	public void changedName(String old) {
+		modified();
+	}
+
+	@Override
+	public void changedPath(String old) {
+		// the path changes with the name of an ancestor, which is counted there
+	}
+
+	@Override
+	public void addedChild(Resource child) {
+		modified();
+	}
+
+	@Override
+	public void removedChild(Resource child) {
+		modified();
+		unwatch(child);
+	}
+
+	@Override
+	public void addedObserveRelation(ObserveRelation relation) { }
+
+	@Override
+	public void removedObserveRelation(ObserveRelation relation) { }
+	
+	/**
+	 * An immutable snapshot of the resource tree.
+	 */
+	private static final class Trie {
+		
+		private final Node root;
+		private final int generation;
+		private final int size;
+		
+		private Trie(Node root, int generation, int size) {
+			this.root = root;
+			this.generation = generation;
+			this.size = size;
+		}
+	}
+	
+	/**
+	 * A resource and the table of its children. The table uses linear probing
+	 * and is at most half full. It is only modified while being built.
+	 */
+	private static final class Node {
+		
+		private static final String[] NO_NAMES = new String[0];
+		private static final Node[] NO_CHILDREN = new Node[0];
+		
+		private final Resource resource;
+		private final String[] names;
+		private final Node[] children;
+		private final int mask;
+		
+		private Node(Resource resource, int count) {
+			this.resource = resource;
+			if (count == 0) {
+				this.names = NO_NAMES;
+				this.children = NO_CHILDREN;
+				this.mask = 0;
+			} else {
+				int capacity = 2;
+				while (capacity < 2 * count)
+					capacity <<= 1;
+				this.names = new String[capacity];
+				this.children = new Node[capacity];
+				this.mask = capacity - 1;
+			}
+		}
+		
+		private void put(String name, Node child) {
+			int index = spread(name.hashCode()) & mask;
+			while (names[index] != null)
+				index = (index + 1) & mask;
+			names[index] = name;
+			children[index] = child;
+		}
+		
+		private Node get(String name) {
+			if (names.length == 0)
+				return null;
+			int index = spread(name.hashCode()) & mask;
+			String candidate;
+			while ((candidate = names[index]) != null) {
+				if (candidate.equals(name))
+					return children[index];
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+		
+		private static int spread(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+	}
+}
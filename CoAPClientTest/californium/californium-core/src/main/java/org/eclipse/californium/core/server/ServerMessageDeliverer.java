@@ -20,20 +20,27 @@
 package org.eclipse.californium.core.server;
 
 import java.net.InetSocketAddress;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
+import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.LatencyHistogram;
 import org.eclipse.californium.core.observe.ObserveManager;
 import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.observe.ObservingEndpoint;
 import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResponseCache;
 
 /**
  * The ServerMessageDeliverer delivers requests to corresponding resources and
@@ -46,8 +53,17 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 	/* The root of all resources */
 	private final Resource root;
 
+	/* The index to find resources by their path */
+	private final ResourceIndex index;
+
 	/* The manager of the observe mechanism for this server */
 	private ObserveManager observeManager = new ObserveManager();
+	
+	/* The handler latencies by resource or null if not measured */
+	private volatile ConcurrentHashMap<Resource, LatencyHistogram> handlerLatencies;
+	
+	/* The admission controller or null if all requests are admitted */
+	private volatile AdmissionController admissionController;
 
 	/**
 	 * Constructs a default message deliverer that delivers requests to the
@@ -57,6 +73,12 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 	 */
 	public ServerMessageDeliverer(Resource root) {
 		this.root = root;
+		this.index = new ResourceIndex(root) {
+			@Override
+			protected void removedResource(Resource resource) {
+				forget(resource);
+			}
+		};
 	}
 
 	/* (non-Javadoc)
@@ -68,17 +90,58 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 		List<String> path = request.getOptions().getUriPath();
 		final Resource resource = findResource(path);
 		if (resource != null) {
-			checkForObserveOption(exchange, resource);
+			Response cached = findCachedResponse(resource, request);
+			if (cached != null) {
+				exchange.sendResponse(cached);
+				return;
+			}
 			
 			// Get the executor and let it process the request
 			Executor executor = resource.getExecutor();
-			if (executor != null) {
-				executor.execute(new Runnable() {
+			AdmissionController controller = admissionController;
+			final AdmissionController.Admission admission;
+			if (executor != null && controller != null) {
+				admission = controller.admit(resource, executor);
+				if (!admission.isAdmitted()) {
+					shed(exchange, admission.getRetryAfter());
+					return;
+				}
+			} else {
+				admission = null;
+			}
+			checkForObserveOption(exchange, resource);
+			
+			if (executor == null) {
+				handleRequest(resource, exchange);
+				return;
+			}
+			Runnable task;
+			if (admission == null) {
+				task = new Runnable() {
 					public void run() {
-						resource.handleRequest(exchange);
-					} });
+						handleRequest(resource, exchange);
+					} };
 			} else {
-				resource.handleRequest(exchange);
+				task = new Runnable() {
+					public void run() {
+						long start = System.nanoTime();
+						try {
+							handleRequest(resource, exchange);
+						} finally {
+							admission.release(System.nanoTime() - start);
+						}
+					} };
+			}
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				LOGGER.warning("Executor of "+resource.getURI()+" rejected request: "+e.getMessage());
+				long retry = 1;
+				if (admission != null) {
+					admission.reject();
+					retry = admission.getRetryAfter();
+				}
+				shed(exchange, retry);
 			}
 		} else {
 			LOGGER.info("Did not find resource " + path.toString());
@@ -86,6 +149,116 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 		}
 	}
 
+	/*
+	 * Answers a request that has been shed with 5.03 (Service Unavailable)
+	 * or drops it if it is a NON that has not established an observe
+	 * relation yet. An error response cancels the relation.
+	 */
+	private void shed(Exchange exchange, long retry) {
+		Request request = exchange.getRequest();
+		LOGGER.fine("Shedding request for "+request.getOptions().getUriPathString()+", retry after "+retry+" s");
+		if (request.getType() == Type.NON && exchange.getRelation() == null) return;
+		Response response = new Response(ResponseCode.SERVICE_UNAVAILABLE);
+		response.getOptions().setMaxAge(retry);
+		exchange.sendResponse(response);
+	}
+	
+	/*
+	 * Returns a response from the response cache of the resource or null if
+	 * the resource has to handle the request.
+	 */
+	private Response findCachedResponse(Resource resource, Request request) {
+		if (!(resource instanceof CoapResource)) return null;
+		ResponseCache cache = ((CoapResource) resource).getResponseCache();
+		return cache != null ? cache.get(request) : null;
+	}
+	
+	/*
+	 * Lets the resource handle the request and measures how long it takes.
+	 */
+	private void handleRequest(Resource resource, Exchange exchange) {
+		ConcurrentHashMap<Resource, LatencyHistogram> latencies = handlerLatencies;
+		if (latencies == null) {
+			resource.handleRequest(exchange);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			resource.handleRequest(exchange);
+		} finally {
+			LatencyHistogram histogram = latencies.get(resource);
+			if (histogram == null) {
+				LatencyHistogram created = new LatencyHistogram();
+				histogram = latencies.putIfAbsent(resource, created);
+				if (histogram == null)
+					histogram = created;
+			}
+			histogram.record(System.nanoTime() - start);
+		}
+	}
+	
+	/*
+	 * Drops the state kept for a resource that has been removed from the tree.
+	 */
+	private void forget(Resource resource) {
+		ConcurrentHashMap<Resource, LatencyHistogram> latencies = handlerLatencies;
+		if (latencies != null)
+			latencies.remove(resource);
+		AdmissionController admission = admissionController;
+		if (admission != null)
+			admission.forget(resource);
+	}
+	
+	/**
+	 * Enables or disables measuring the time that the resources take to
+	 * handle requests. Only the synchronous part of a handler is measured,
+	 * i.e., a resource that responds later from another thread is measured
+	 * until its handler returns.
+	 * 
+	 * @param measuring true to measure the handlers
+	 */
+	public void setMeasuringHandlers(boolean measuring) {
+		if (!measuring)
+			handlerLatencies = null;
+		else if (handlerLatencies == null)
+			handlerLatencies = new ConcurrentHashMap<Resource, LatencyHistogram>();
+	}
+	
+	/**
+	 * Returns the handler latencies of all resources that have handled
+	 * requests since measuring has been enabled and that are still part of
+	 * the resource tree.
+	 * 
+	 * @return the histograms by resource
+	 */
+	public Map<Resource, LatencyHistogram> getHandlerLatencies() {
+		Map<Resource, LatencyHistogram> latencies = handlerLatencies;
+		if (latencies == null)
+			return Collections.emptyMap();
+		return Collections.unmodifiableMap(latencies);
+	}
+	
+	/**
+	 * Sets the admission controller that sheds requests when the executors
+	 * of the resources fall behind. Requests that resources handle on the
+	 * protocol stage are never shed.
+	 * 
+	 * @param admissionController the admission controller or null to admit
+	 *            all requests
+	 */
+	public void setAdmissionController(AdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+	
+	/**
+	 * Returns the admission controller.
+	 * 
+	 * @return the admission controller or null if all requests are admitted
+	 */
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+	
 	/**
 	 * Checks whether an observe relationship has to be established or canceled.
 	 * This is done here to have a server-global observeManager that holds the
@@ -130,17 +303,12 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 	 * may accept requests to subresources, e.g., to allow addresses with
 	 * wildcards like <code>coap://example.com:5683/devices/*</code>
 	 * 
-	 * @param list the path as list of resource names
+	 * @param path the path as list of resource names
 	 * @return the resource or null if not found
+	 * @see ResourceIndex
 	 */
-	private Resource findResource(List<String> list) {
-		LinkedList<String> path = new LinkedList<String>(list);
-		Resource current = root;
-		while (!path.isEmpty() && current != null) {
-			String name = path.removeFirst();
-			current = current.getChild(name);
-		}
-		return current;
+	private Resource findResource(List<String> path) {
+		return index.find(path);
 	}
 
 	/* (non-Javadoc)
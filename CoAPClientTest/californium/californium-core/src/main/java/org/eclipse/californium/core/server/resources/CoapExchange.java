@@ -19,13 +19,17 @@
  ******************************************************************************/
 package org.eclipse.californium.core.server.resources;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.InetAddress;
 
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.BlockSource;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
 
@@ -108,6 +112,22 @@ public class CoapExchange {
 		return exchange.getRequest().getPayload();
 	}
 	
+	/**
+	 * Gets the request payload as stream. Use this method for bodies that
+	 * might have been transferred blockwise: a large body is read from the
+	 * spool file of the BlockwiseLayer instead of being held in memory. The
+	 * stream is only valid until the response has been sent.
+	 *
+	 * @return the request payload stream
+	 */
+	public InputStream getRequestPayloadStream() {
+		Request request = exchange.getRequest();
+		if (request.getPayloadSource() != null)
+			return request.getPayloadSource().openStream();
+		byte[] payload = request.getPayload();
+		return new ByteArrayInputStream(payload != null ? payload : new byte[0]);
+	}
+	
 	/**
 	 * Gets the request payload as string.
 	 *
@@ -269,6 +289,26 @@ public class CoapExchange {
 		respond(response);
 	}
 	
+	/**
+	 * Respond with the specified response code and the body from the
+	 * specified source. A body larger than a single message is sent blockwise
+	 * with each block read from the source when it is requested, so that the
+	 * body does not need to be held in memory. The source is closed when the
+	 * exchange completes or, if the client abandons the transfer, when it has
+	 * not requested a block for EXCHANGE_LIFETIME, so that a retransmitted
+	 * request for an earlier block can still be answered.
+	 *
+	 * @param code the response code
+	 * @param source the source of the body
+	 * @param contentFormat the Content-Format of the body
+	 */
+	public void respond(ResponseCode code, BlockSource source, int contentFormat) {
+		Response response = new Response(code);
+		response.setPayloadSource(source);
+		response.getOptions().setContentFormat(contentFormat);
+		respond(response);
+	}
+	
 	/**
 	 * Respond with the specified response.
 	 * @param response the response
@@ -285,6 +325,17 @@ public class CoapExchange {
 			response.getOptions().addETag(eTag);
 		}
 		
+		deliver(response);
+	}
+	
+	/**
+	 * Hands the specified response over to the resource and the network
+	 * stack. Subclasses can override this method to process the complete
+	 * response in a different way, e.g., to share it among several exchanges.
+	 * 
+	 * @param response the response with all options set
+	 */
+	protected void deliver(Response response) {
 		resource.checkObserveRelation(exchange, response);
 		
 		exchange.sendResponse(response);
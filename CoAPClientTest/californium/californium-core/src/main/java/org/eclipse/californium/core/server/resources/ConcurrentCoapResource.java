@@ -24,6 +24,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.network.Exchange;
 
 /**
@@ -117,6 +118,20 @@ public class ConcurrentCoapResource extends CoapResource {
 		setExecutor(Executors.newFixedThreadPool(threads));
 	}
 	
+	/**
+	 * Constructs a new resource that uses the specified executor to process
+	 * requests, e.g., {@link Utils#newVirtualThreadExecutor()} to process each
+	 * request on its own virtual thread.
+	 * 
+	 * @param name the name
+	 * @param executor the executor
+	 */
+	public ConcurrentCoapResource(String name, ExecutorService executor) {
+		super(name);
+		this.threads = 0; // not limited by the resource
+		setExecutor(executor);
+	}
+	
 	/**
 	 * Sets the specified executor service to the resource.
 	 * 
@@ -148,7 +163,7 @@ public class ConcurrentCoapResource extends CoapResource {
 	/**
 	 * Gets the number of threads
 	 *
-	 * @return the thread count
+	 * @return the thread count or 0 if the resource uses a given executor
 	 */
 	public int getThreadCount() {
 		return threads;
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.server.resources;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.observe.ObserveRelation;
+
+/**
+ * The DiscoveryIndex keeps the serialized links of a resource tree for the
+ * {@link DiscoveryResource}. The links are kept in an immutable snapshot in
+ * the order of {@link LinkFormat#serializeTree(Resource)} together with the
+ * complete link format document and inverted indexes from attribute values
+ * to links, so that a query such as <tt>rt=temperature</tt> is answered
+ * without walking the tree and without matching every resource.
+ * <p>
+ * The index observes all resources of the tree and their attributes. Like
+ * the {@link org.eclipse.californium.core.server.ResourceIndex}, it counts
+ * changes and rebuilds the snapshot with the first request after a change;
+ * concurrent requests are answered from the previous snapshot meanwhile.
+ * The link of a resource is serialized again only if its attributes or its
+ * path have changed. Changes of the visibility of a resource are not
+ * observed and take effect with the next rebuild.
+ */
+final class DiscoveryIndex {
+
+	private static final Comparator<Resource> BY_NAME = new Comparator<Resource>() {
+		@Override
+		public int compare(Resource o1, Resource o2) {
+			return o1.getName().compareTo(o2.getName());
+		}
+	};
+	
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+	
+	/** The root of the resource tree */
+	private final Resource root;
+	
+	/** The watchers of the resources of the tree */
+	private final ConcurrentMap<Resource, Watcher> watchers = new ConcurrentHashMap<Resource, Watcher>();
+	
+	/** The number of changes of the resource tree */
+	private final AtomicInteger modifications = new AtomicInteger();
+	
+	/** Indicates if a thread is rebuilding the snapshot */
+	private final AtomicBoolean building = new AtomicBoolean();
+	
+	/** The current snapshot or null if not yet built */
+	private volatile Snapshot snapshot;
+	
+	DiscoveryIndex(Resource root) {
+		if (root == null)
+			throw new NullPointerException();
+		this.root = root;
+	}
+	
+	/**
+	 * Returns the links of the resources that match the specified queries as
+	 * a read-only buffer. While another thread rebuilds the snapshot after a
+	 * change, the previous snapshot is served.
+	 * 
+	 * @param queries the queries of the discovery request
+	 * @return the links
+	 */
+	ByteBuffer find(List<String> queries) {
+		Snapshot current = snapshot;
+		if (current == null || current.generation != modifications.get())
+			current = rebuild(current);
+		return current.find(queries);
+	}
+	
+	/**
+	 * Returns the number of links in the current snapshot.
+	 * 
+	 * @return the number of links or 0 if not yet built
+	 */
+	int size() {
+		Snapshot current = snapshot;
+		return current == null ? 0 : current.links.length;
+	}
+	
+	private Snapshot rebuild(Snapshot previous) {
+		if (!building.compareAndSet(false, true)) {
+			// only the requests before the first snapshot build their own
+			return previous != null ? previous : build();
+		}
+		try {
+			Snapshot rebuilt = build();
+			snapshot = rebuilt;
+			return rebuilt;
+		} finally {
+			building.set(false);
+		}
+	}
+	
+	/*
+	 * Builds a new snapshot. If the tree changes meanwhile, the snapshot has
+	 * an outdated generation and the next request rebuilds it again.
+	 */
+	private Snapshot build() {
+		// read the generation first, so that concurrent changes invalidate the result
+		int generation = modifications.get();
+		watch(root);
+		List<Link> links = new ArrayList<Link>();
+		// like LinkFormat, keep the order of the children of the root
+		for (Resource child:root.getChildren())
+			collect(child, links);
+		return new Snapshot(links, generation);
+	}
+	
+	private void collect(Resource resource, List<Link> links) {
+		Watcher watcher = watch(resource);
+		if (resource.isVisible())
+			links.add(watcher.getLink());
+		List<Resource> children = new ArrayList<Resource>(resource.getChildren());
+		Collections.sort(children, BY_NAME);
+		for (Resource child:children)
+			collect(child, links);
+	}
+	
+	private Watcher watch(Resource resource) {
+		Watcher watcher = watchers.get(resource);
+		if (watcher == null) {
+			watcher = new Watcher(resource);
+			Watcher previous = watchers.putIfAbsent(resource, watcher);
+			if (previous != null)
+				return previous;
+			resource.addObserver(watcher);
+			if (resource.getAttributes() != null)
+				resource.getAttributes().addObserver(watcher);
+		}
+		return watcher;
+	}
+	
+	private void unwatch(Resource resource) {
+		Watcher watcher = watchers.remove(resource);
+		if (watcher != null) {
+			resource.removeObserver(watcher);
+			if (resource.getAttributes() != null)
+				resource.getAttributes().removeObserver(watcher);
+		}
+		for (Resource child:resource.getChildren())
+			unwatch(child);
+	}
+	
+	private void modified() {
+		modifications.incrementAndGet();
+	}
+	
+	/**
+	 * The serialized link of a resource including the trailing comma.
+	 */
+	private static final class Link {
+		
+		private final Resource resource;
+		private final byte[] bytes;
+		private final int version;
+		
+		private Link(Resource resource, int version) {
+			this.resource = resource;
+			this.bytes = LinkFormat.serializeResource(resource).toString().getBytes(CoAP.UTF8_CHARSET);
+			this.version = version;
+		}
+	}
+	
+	/**
+	 * Observes a resource and its attributes and caches its link.
+	 */
+	private final class Watcher implements ResourceObserver, ResourceAttributes.Observer {
+		
+		private final Resource resource;
+		
+		/** The number of changes of the link of the resource */
+		private final AtomicInteger changes = new AtomicInteger();
+		
+		private volatile Link link;
+		
+		private Watcher(Resource resource) {
+			this.resource = resource;
+		}
+		
+		private Link getLink() {
+			// read the version first, so that a concurrent change invalidates the link
+			int version = changes.get();
+			Link current = link;
+			if (current == null || current.version != version) {
+				current = new Link(resource, version);
+				link = current;
+			}
+			return current;
+		}
+		
+		private void changedLink() {
+			changes.incrementAndGet();
+			modified();
+		}
+		
+		@Override
+		public void changedAttributes(ResourceAttributes attributes) {
+			changedLink();
+		}
+		
+		@Override
+		public void changedName(String old) {
+			changedLink();
+		}
+		
+		@Override
+		public void changedPath(String old) {
+			changedLink();
+		}
+		
+		@Override
+		public void addedChild(Resource child) {
+			modified();
+		}
+		
+		@Override
+		public void removedChild(Resource child) {
+			modified();
+			unwatch(child);
+		}
+		
+		@Override
+		public void addedObserveRelation(ObserveRelation relation) { }
+		
+		@Override
+		public void removedObserveRelation(ObserveRelation relation) { }
+	}
+	
+	/**
+	 * An immutable snapshot of the links of the resource tree.
+	 */
+	private static final class Snapshot {
+		
+		private final Link[] links;
+		private final int generation;
+		
+		/** All links as link format document */
+		private final ByteBuffer document;
+		
+		/** The links by attribute name and value */
+		private final Map<String, Map<String, List<Link>>> values = new HashMap<String, Map<String, List<Link>>>();
+		
+		/** The links by the name of an attribute that has at least one value */
+		private final Map<String, List<Link>> flags = new HashMap<String, List<Link>>();
+		
+		/** The documents of indexed queries with at least one link */
+		private final ConcurrentMap<String, ByteBuffer> results = new ConcurrentHashMap<String, ByteBuffer>();
+		
+		private Snapshot(List<Link> links, int generation) {
+			this.links = links.toArray(new Link[links.size()]);
+			this.generation = generation;
+			this.document = join(links);
+			for (Link link:links)
+				index(link);
+		}
+		
+		private void index(Link link) {
+			ResourceAttributes attributes = link.resource.getAttributes();
+			if (attributes == null)
+				return;
+			for (String name:attributes.getAttributeKeySet()) {
+				List<String> list = new ArrayList<String>(attributes.getAttributeValues(name));
+				if (list.isEmpty())
+					continue;
+				add(flags, name, link);
+				Map<String, List<Link>> byValue = values.get(name);
+				if (byValue == null) {
+					byValue = new HashMap<String, List<Link>>();
+					values.put(name, byValue);
+				}
+				for (String value:list) {
+					add(byValue, value, link);
+					// like LinkFormat.matches, match each part of rt="Type1 Type2"
+					if (value.indexOf(' ') > -1)
+						for (String part:value.split(" "))
+							add(byValue, part, link);
+				}
+			}
+		}
+		
+		private static void add(Map<String, List<Link>> index, String key, Link link) {
+			List<Link> list = index.get(key);
+			if (list == null) {
+				list = new ArrayList<Link>();
+				index.put(key, list);
+			}
+			// the links of one resource are added consecutively
+			if (list.isEmpty() || list.get(list.size() - 1) != link)
+				list.add(link);
+		}
+		
+		private ByteBuffer find(List<String> queries) {
+			if (queries == null || queries.isEmpty())
+				return document;
+			
+			if (queries.size() == 1) {
+				String query = queries.get(0);
+				ByteBuffer result = results.get(query);
+				if (result != null)
+					return result;
+				List<Link> matches = lookup(query);
+				if (matches != null) {
+					if (matches.isEmpty())
+						return EMPTY;
+					// only indexed values are cached, so the cache is bounded
+					result = join(matches);
+					ByteBuffer previous = results.putIfAbsent(query, result);
+					return previous != null ? previous : result;
+				}
+			}
+			
+			// wildcards, href, and several queries are matched one by one
+			List<Link> matches = new ArrayList<Link>();
+			for (Link link:links) {
+				if (LinkFormat.matches(link.resource, queries))
+					matches.add(link);
+			}
+			return join(matches);
+		}
+		
+		/**
+		 * Looks up the links that match the specified query in the indexes.
+		 * 
+		 * @return the links or null if the query cannot be answered by the
+		 *         indexes
+		 */
+		private List<Link> lookup(String query) {
+			List<Link> matches;
+			int delim = query.indexOf('=');
+			if (delim == -1) {
+				matches = flags.get(query);
+			} else {
+				String name = query.substring(0, delim);
+				String value = query.substring(delim + 1);
+				if (name.equals(LinkFormat.LINK) || value.indexOf('*') > -1)
+					return null;
+				Map<String, List<Link>> byValue = values.get(name);
+				matches = byValue == null ? null : byValue.get(value);
+			}
+			if (matches == null)
+				return Collections.emptyList();
+			return matches;
+		}
+		
+		private static ByteBuffer join(List<Link> links) {
+			if (links.isEmpty())
+				return EMPTY;
+			int length = 0;
+			for (Link link:links)
+				length += link.bytes.length;
+			byte[] document = new byte[length];
+			int offset = 0;
+			for (Link link:links) {
+				System.arraycopy(link.bytes, 0, document, offset, link.bytes.length);
+				offset += link.bytes.length;
+			}
+			// remove the last comma
+			return ByteBuffer.wrap(document, 0, length - 1).asReadOnlyBuffer();
+		}
+	}
+}
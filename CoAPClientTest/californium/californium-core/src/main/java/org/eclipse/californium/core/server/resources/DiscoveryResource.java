@@ -19,25 +19,33 @@
  ******************************************************************************/
 package org.eclipse.californium.core.server.resources;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.BlockSource;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.LinkFormat;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Response;
 
 /**
  * The DiscoveryResource implements CoAP's discovery service. It is typically
  * accessible over CoAP on the well-known URI: <tt>/.well-known/core</tt>. It
  * responds to GET requests with a list of the server's resources, i.e. links.
+ * <p>
+ * The links are served from a {@link DiscoveryIndex} that keeps them
+ * serialized and indexed by attribute value and that is updated when
+ * resources are added or removed or their attributes change. Large lists are
+ * sent blockwise from the serialized bytes.
  */
 public class DiscoveryResource extends CoapResource {
 
 	/** The Constant CORE. */
 	public static final String CORE = "core";
 	
-	/** The root of the server's resource tree */
-	private final Resource root;
+	/** The serialized and indexed links of the resource tree */
+	private final DiscoveryIndex index;
 	
 	/**
 	 * Instantiates a new discovery resource.
@@ -56,7 +64,7 @@ public class DiscoveryResource extends CoapResource {
 	 */
 	public DiscoveryResource(String name, Resource root) {
 		super(name);
-		this.root = root;
+		this.index = new DiscoveryIndex(root);
 	}
 	
 	/**
@@ -66,8 +74,12 @@ public class DiscoveryResource extends CoapResource {
 	 */
 	@Override
 	public void handleGET(CoapExchange exchange) {
-		String tree = discoverTree(root, exchange.getRequestOptions().getUriQuery());
-		exchange.respond(ResponseCode.CONTENT, tree, MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		ByteBuffer links = index.find(queries);
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setPayloadSource(BlockSource.wrap(links));
+		response.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+		exchange.respond(response);
 	}
 	
 	/**
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.server.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.BlockSource;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * A FileResource serves the content of a file, e.g., a firmware image. The
+ * file is mapped into memory with {@link FileChannel#map} once and every GET
+ * is answered with a {@link BlockSource} over the shared mapping. The
+ * BlockwiseLayer therefore only reads the block that has been requested, so
+ * that a client can retrieve any block in any order without the server ever
+ * holding the file on the heap.
+ * <p>
+ * The ETag is computed once when the file is mapped. A GET with a matching
+ * ETag is answered with 2.03 (Valid) from this metadata alone. The file is
+ * mapped again when its size or modification time has changed; this also
+ * notifies the observers of the resource. A GET checks the file for changes
+ * at most once per {@link #setCheckInterval(long) check interval} and only
+ * takes the lock of {@link #reload()} when the file has changed.
+ * <pre>
+ * server.add(new FileResource("firmware", new File("fw.bin"), MediaTypeRegistry.APPLICATION_OCTET_STREAM));
+ * </pre>
+ */
+public class FileResource extends CoapResource {
+
+	/** The default time between two checks for changes of the file in ms. */
+	public static final long DEFAULT_CHECK_INTERVAL = 1000;
+	
+	private final File file;
+	private final int contentFormat;
+	
+	/* The current mapping of the file */
+	private volatile Content content;
+	
+	/* The time between two checks for changes in ns */
+	private volatile long checkInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CHECK_INTERVAL);
+	
+	/* The time of the last check for changes from System.nanoTime() */
+	private volatile long lastCheck = System.nanoTime();
+	
+	/**
+	 * Constructs a new resource with the specified name that serves the
+	 * specified file.
+	 * 
+	 * @param name the name
+	 * @param file the file
+	 * @param contentFormat the Content-Format of the file
+	 */
+	public FileResource(String name, File file, int contentFormat) {
+		super(name);
+		this.file = file;
+		this.contentFormat = contentFormat;
+		getAttributes().addContentType(contentFormat);
+		reload();
+	}
+	
+	@Override
+	public void handleGET(CoapExchange exchange) {
+		checkForChanges();
+		Content content = this.content;
+		if (content == null) {
+			exchange.respond(ResponseCode.NOT_FOUND);
+			return;
+		}
+		
+		exchange.setETag(content.etag);
+		OptionSet options = exchange.getRequestOptions();
+		if (options.containsETag(content.etag)) {
+			exchange.respond(ResponseCode.VALID);
+			return;
+		}
+		
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setPayloadSource(BlockSource.wrap(content.buffer));
+		response.getOptions().setContentFormat(contentFormat);
+		response.getOptions().setSize2(content.buffer.capacity());
+		exchange.respond(response);
+	}
+	
+	/*
+	 * Reloads the file if the check interval has passed and its size or
+	 * modification time differs from the current mapping. Concurrent
+	 * requests might both check the file, which is harmless.
+	 */
+	private void checkForChanges() {
+		long now = System.nanoTime();
+		if (now - lastCheck < checkInterval)
+			return;
+		lastCheck = now;
+		Content current = content;
+		if (current == null || current.length != file.length() || current.modified != file.lastModified())
+			reload();
+	}
+	
+	/**
+	 * Sets the time between two checks of a GET for changes of the file. A
+	 * change of the file within this time is only served after the
+	 * interval has passed or after {@link #reload()} has been called.
+	 * 
+	 * @param interval the interval in ms or 0 to check with every GET
+	 */
+	public void setCheckInterval(long interval) {
+		if (interval < 0) throw new IllegalArgumentException("Check interval must not be negative: "+interval);
+		this.checkInterval = TimeUnit.MILLISECONDS.toNanos(interval);
+	}
+	
+	/**
+	 * Maps the file again if its size or modification time has changed since
+	 * it has been mapped and notifies the observers of the new content.
+	 * 
+	 * @return true if the file has been mapped again
+	 */
+	public synchronized boolean reload() {
+		Content current = content;
+		long length = file.length();
+		long modified = file.lastModified();
+		if (current != null && current.length == length && current.modified == modified)
+			return false;
+		
+		try {
+			content = map(file, length, modified);
+			getAttributes().setMaximumSizeEstimate((int) length);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot map file "+file, e);
+			content = null;
+		}
+		// observers can only have been established for a previous mapping
+		if (current != null)
+			changed();
+		return true;
+	}
+	
+	/**
+	 * Gets the file of this resource.
+	 * 
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Gets the ETag of the current content.
+	 * 
+	 * @return the ETag or null if the file cannot be read
+	 */
+	public byte[] getETag() {
+		Content current = content;
+		return current != null ? current.etag.clone() : null;
+	}
+	
+	private static Content map(File file, long length, long modified) throws IOException {
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("File is too large to be mapped");
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			return new Content(buffer, computeETag(buffer), length, modified);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/*
+	 * The ETag is the CRC-32 of the content followed by its length, so that it
+	 * only changes when the content does, regardless of the modification time.
+	 */
+	private static byte[] computeETag(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		ByteBuffer view = buffer.duplicate();
+		byte[] chunk = new byte[8192];
+		while (view.hasRemaining()) {
+			int n = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		long value = crc.getValue();
+		int length = buffer.capacity();
+		return new byte[] {
+				(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value,
+				(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length };
+	}
+	
+	/**
+	 * The mapping of the file and its metadata.
+	 */
+	private static class Content {
+		
+		private final ByteBuffer buffer;
+		private final byte[] etag;
+		private final long length;
+		private final long modified;
+		
+		private Content(ByteBuffer buffer, byte[] etag, long length, long modified) {
+			this.buffer = buffer;
+			this.etag = etag;
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+}
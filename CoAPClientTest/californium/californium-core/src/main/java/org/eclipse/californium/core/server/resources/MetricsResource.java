@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.server.resources;
+
+import java.util.Map;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.EndpointMetrics;
+import org.eclipse.californium.core.network.LatencyHistogram;
+import org.eclipse.californium.core.server.AdmissionController;
+import org.eclipse.californium.core.server.MessageDeliverer;
+import org.eclipse.californium.core.server.ServerMessageDeliverer;
+
+/**
+ * The MetricsResource exposes the {@link EndpointMetrics} of the server's
+ * endpoints, the handler latencies of its resources, and the number of
+ * requests that the {@link AdmissionController} has shed. It is typically
+ * accessible over CoAP on the URI <tt>/.well-known/metrics</tt> and responds
+ * to GET requests with one <tt>name value</tt> pair per line. Each endpoint
+ * starts with a comment line that contains its address; latencies are in
+ * microseconds.
+ */
+public class MetricsResource extends CoapResource {
+
+	/** The default name of the resource */
+	public static final String METRICS = "metrics";
+	
+	/** The server whose metrics are exposed */
+	private final CoapServer server;
+	
+	/**
+	 * Instantiates a new metrics resource.
+	 * 
+	 * @param server the server
+	 */
+	public MetricsResource(CoapServer server) {
+		this(METRICS, server);
+	}
+	
+	/**
+	 * Instantiates a new metrics resource with the specified name.
+	 * 
+	 * @param name the name
+	 * @param server the server
+	 */
+	public MetricsResource(String name, CoapServer server) {
+		super(name);
+		this.server = server;
+	}
+	
+	@Override
+	public void handleGET(CoapExchange exchange) {
+		exchange.respond(ResponseCode.CONTENT, getMetrics(), MediaTypeRegistry.TEXT_PLAIN);
+	}
+	
+	/**
+	 * Returns the current metrics as text.
+	 * 
+	 * @return the metrics
+	 */
+	public String getMetrics() {
+		StringBuilder buffer = new StringBuilder();
+		for (Endpoint endpoint:server.getEndpoints()) {
+			if (!(endpoint instanceof CoAPEndpoint))
+				continue;
+			EndpointMetrics metrics = ((CoAPEndpoint) endpoint).getMetrics();
+			if (metrics == null)
+				continue;
+			buffer.append("# endpoint ").append(endpoint.getAddress()).append('\n');
+			for (Map.Entry<String, Long> value:metrics.snapshot().entrySet())
+				buffer.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+		}
+		
+		MessageDeliverer deliverer = server.getMessageDeliverer();
+		if (deliverer instanceof ServerMessageDeliverer) {
+			Map<Resource, LatencyHistogram> latencies = ((ServerMessageDeliverer) deliverer).getHandlerLatencies();
+			if (!latencies.isEmpty()) {
+				buffer.append("# handlers\n");
+				for (Map.Entry<Resource, LatencyHistogram> latency:latencies.entrySet()) {
+					String name = "handler." + latency.getKey().getURI();
+					LatencyHistogram histogram = latency.getValue();
+					buffer.append(name).append(".count ").append(histogram.getCount()).append('\n');
+					buffer.append(name).append(".mean ").append(histogram.getMean()).append('\n');
+					buffer.append(name).append(".p50 ").append(histogram.getPercentile(50)).append('\n');
+					buffer.append(name).append(".p99 ").append(histogram.getPercentile(99)).append('\n');
+				}
+			}
+			AdmissionController admission = ((ServerMessageDeliverer) deliverer).getAdmissionController();
+			if (admission != null) {
+				buffer.append("# admission\n");
+				buffer.append("shed ").append(admission.getShedCount()).append('\n');
+				for (Map.Entry<Resource, Long> shed:admission.getShedCounts().entrySet())
+					buffer.append("shed.").append(shed.getKey().getURI()).append(' ').append(shed.getValue()).append('\n');
+			}
+		}
+		return buffer.toString();
+	}
+}
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.eclipse.californium.core.coap.LinkFormat;
 
@@ -34,12 +35,20 @@ import org.eclipse.californium.core.coap.LinkFormat;
  * also be included in the link description of the resource they belong to. For
  * example, if a title was specified, the link description for a sensor resource
  * might look like this <code>&lt;/sensors&gt;;title="Sensor Index"</code>.
+ * <p>
+ * An {@link Observer} is notified when an attribute is set, added or cleared
+ * through the methods of this class, e.g., to update the cached link
+ * description of the resource. Modifications of the lists returned by
+ * {@link #getAttributeValues(String)} are not observed.
  */
 public class ResourceAttributes {
 	
 	/** Contains the resource's attributes specified in the CoRE Link Format. */
 	private final ConcurrentMap<String, AttributeValues> attributes;
 	
+	/** The observers of the attributes. */
+	private final List<Observer> observers = new CopyOnWriteArrayList<Observer>();
+	
 	/**
 	 * Instantiates a new resource attributes.
 	 */
@@ -76,6 +85,7 @@ public class ResourceAttributes {
 	 */
 	public void setTitle(String title) {
 		findAttributeValues(LinkFormat.TITLE).setOnly(title);
+		changed();
 	}
 	
 	/**
@@ -85,6 +95,7 @@ public class ResourceAttributes {
 	 */
 	public void addResourceType(String type) {
 		findAttributeValues(LinkFormat.RESOURCE_TYPE).add(type);
+		changed();
 	}
 	
 	/**
@@ -92,6 +103,7 @@ public class ResourceAttributes {
 	 */
 	public void clearResourceType() {
 		attributes.remove(LinkFormat.RESOURCE_TYPE);
+		changed();
 	}
 	
 	/**
@@ -110,6 +122,7 @@ public class ResourceAttributes {
 	 */
 	public void addInterfaceDescription(String description) {
 		findAttributeValues(LinkFormat.INTERFACE_DESCRIPTION).add(description);
+		changed();
 	}
 	
 	/**
@@ -128,6 +141,7 @@ public class ResourceAttributes {
 	 */
 	public void setMaximumSizeEstimate(String size) {
 		findAttributeValues(LinkFormat.MAX_SIZE_ESTIMATE).setOnly(size);
+		changed();
 	}
 	
 	/**
@@ -137,6 +151,7 @@ public class ResourceAttributes {
 	 */
 	public void setMaximumSizeEstimate(int size) {
 		findAttributeValues(LinkFormat.MAX_SIZE_ESTIMATE).setOnly(Integer.toString(size));
+		changed();
 	}
 	
 	/**
@@ -155,6 +170,7 @@ public class ResourceAttributes {
 	 */
 	public void addContentType(int type) {
 		findAttributeValues(LinkFormat.CONTENT_TYPE).add(Integer.toString(type));
+		changed();
 	}
 	
 	/**
@@ -171,6 +187,7 @@ public class ResourceAttributes {
 	 */
 	public void clearContentType() {
 		attributes.remove(LinkFormat.CONTENT_TYPE);
+		changed();
 	}
 	
 	/**
@@ -178,6 +195,7 @@ public class ResourceAttributes {
 	 */
 	public void setObservable() {
 		findAttributeValues(LinkFormat.OBSERVABLE).setOnly("");
+		changed();
 	}
 	
 	/**
@@ -198,6 +216,7 @@ public class ResourceAttributes {
 	 */
 	public void setAttribute(String attr, String value) {
 		findAttributeValues(attr).setOnly(value);
+		changed();
 	}
 	
 	/**
@@ -218,6 +237,7 @@ public class ResourceAttributes {
 	 */
 	public void addAttribute(String attr, String value) {
 		findAttributeValues(attr).add(value);
+		changed();
 	}
 	
 	/**
@@ -227,6 +247,7 @@ public class ResourceAttributes {
 	 */
 	public void clearAttribute(String attr) {
 		attributes.remove(attr);
+		changed();
 	}
 	
 	/**
@@ -267,6 +288,32 @@ public class ResourceAttributes {
 		else return Collections.emptyList();
 	}
 	
+	/**
+	 * Adds the specified observer that is notified when an attribute changes.
+	 *
+	 * @param observer the observer
+	 */
+	public void addObserver(Observer observer) {
+		observers.add(observer);
+	}
+	
+	/**
+	 * Removes the specified observer.
+	 *
+	 * @param observer the observer
+	 */
+	public void removeObserver(Observer observer) {
+		observers.remove(observer);
+	}
+	
+	/**
+	 * Notifies the observers that an attribute has changed.
+	 */
+	private void changed() {
+		for (Observer observer:observers)
+			observer.changedAttributes(this);
+	}
+	
 	/**
 	 * Find the attribute values for the specified attribute.
 	 *
@@ -283,6 +330,20 @@ public class ResourceAttributes {
 		return list;
 	}
 	
+	/**
+	 * An Observer is notified when an attribute of the resource attributes it
+	 * has been added to changes.
+	 */
+	public interface Observer {
+		
+		/**
+		 * Invoked when an attribute has been set, added or cleared.
+		 *
+		 * @param attributes the changed attributes
+		 */
+		public void changedAttributes(ResourceAttributes attributes);
+	}
+	
 	/**
 	 * The class AttributeValues contains a list of all values for a specific
 	 * attribute.
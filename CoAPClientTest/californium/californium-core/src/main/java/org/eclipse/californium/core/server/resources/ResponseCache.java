@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.server.resources;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * The ResponseCache keeps the 2.05 (Content) responses of a
+ * {@link CoapResource} to GET requests, so that the
+ * {@link org.eclipse.californium.core.server.ServerMessageDeliverer} can
+ * answer the same request again without calling the handler of the resource.
+ * Responses are kept by the Accept option and the query of the request
+ * together with their options and payload until their Max-Age expires or
+ * until the resource calls {@link CoapResource#changed()}. A request with the
+ * ETag of a cached response is answered with 2.03 (Valid).
+ * <p>
+ * Requests with an Observe, Block1, Block2, Proxy-Uri, or Proxy-Scheme option
+ * always reach the handler. Responses from a
+ * {@link org.eclipse.californium.core.coap.BlockSource} are not
+ * cached. Only enable the cache for resources whose representation does not
+ * depend on anything else than the Accept option and the query, e.g., not on
+ * the address of the client.
+ */
+public final class ResponseCache {
+
+	/** The default number of responses that are kept per resource. */
+	public static final int DEFAULT_CAPACITY = 32;
+	
+	/* The cached responses by Accept and query */
+	private final ConcurrentHashMap<String, Entry> entries;
+	
+	/* The number of responses that are kept at most */
+	private final int capacity;
+	
+	/* Incremented with every invalidation */
+	private final AtomicInteger generation = new AtomicInteger();
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Constructs a new cache with the default capacity.
+	 */
+	public ResponseCache() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Constructs a new cache that keeps at most the specified number of
+	 * responses. When the cache is full, a new response replaces the expired
+	 * responses or, if none has expired, the response that expires first.
+	 * 
+	 * @param capacity the maximum number of responses
+	 */
+	public ResponseCache(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: "+capacity);
+		this.capacity = capacity;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+	}
+	
+	/**
+	 * Checks whether the specified request can be answered from the cache and
+	 * its response can be cached.
+	 * 
+	 * @param request the request
+	 * @return true if the request is a plain GET request
+	 */
+	public boolean isCacheable(Request request) {
+		if (request.getCode() != Code.GET) return false;
+		OptionSet options = request.getOptions();
+		return !options.hasObserve() && !options.hasBlock1() && !options.hasBlock2()
+				&& !options.hasProxyUri() && !options.hasProxyScheme();
+	}
+	
+	/**
+	 * Returns the current generation of the cache. A response can only be
+	 * cached with the generation that was current when the handler has been
+	 * called, so that a response that has been computed before an
+	 * invalidation is not cached after it.
+	 * 
+	 * @return the generation
+	 */
+	public int getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * Returns a new response to the specified request if a fresh response is
+	 * cached. The response carries the remaining Max-Age. If the request
+	 * contains the ETag of the cached response, the response is a 2.03
+	 * (Valid) without payload.
+	 * 
+	 * @param request the request
+	 * @return the response or null if the handler has to be called
+	 */
+	public Response get(Request request) {
+		if (!isCacheable(request)) return null;
+		String key = keyOf(request);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		long remaining = entry.expires - System.nanoTime();
+		if (remaining <= 0) {
+			entries.remove(key, entry);
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		long maxAge = TimeUnit.NANOSECONDS.toSeconds(remaining);
+		
+		if (entry.etag != null && request.getOptions().containsETag(entry.etag)) {
+			Response response = new Response(ResponseCode.VALID);
+			response.getOptions().addETag(entry.etag);
+			response.getOptions().setMaxAge(maxAge);
+			return response;
+		}
+		Response response = new Response(entry.code);
+		response.setOptions(entry.options);
+		response.getOptions().setMaxAge(maxAge);
+		response.setPayload(entry.payload);
+		return response;
+	}
+	
+	/**
+	 * Caches the specified response to the specified request if it is a
+	 * 2.05 (Content) response with a payload in memory and a positive
+	 * Max-Age, and if the cache has not been invalidated since the specified
+	 * generation.
+	 * 
+	 * @param request the request
+	 * @param response the complete response of the handler
+	 * @param generation the generation when the handler has been called
+	 */
+	public void put(Request request, Response response, int generation) {
+		if (response.getCode() != ResponseCode.CONTENT) return;
+		if (response.getPayloadSource() != null) return;
+		if (!isCacheable(request)) return;
+		OptionSet options = response.getOptions();
+		if (options.hasObserve() || options.getMaxAge() <= 0) return;
+		
+		String key = keyOf(request);
+		if (entries.size() >= capacity && !entries.containsKey(key))
+			evict();
+		Entry entry = new Entry(response);
+		entries.put(key, entry);
+		// changed() might have cleared the cache since the handler was called
+		if (this.generation.get() != generation)
+			entries.remove(key, entry);
+	}
+	
+	/**
+	 * Removes all responses from the cache.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+	
+	/**
+	 * Returns the number of cached responses.
+	 * 
+	 * @return the number of responses
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of cacheable requests that have been answered from
+	 * the cache.
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Returns the number of cacheable requests that have been handed over to
+	 * the resource.
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/*
+	 * Removes the expired responses or, if none has expired, the response
+	 * that expires first. Concurrent puts may exceed the capacity by the
+	 * number of threads.
+	 */
+	private void evict() {
+		long now = System.nanoTime();
+		boolean expired = false;
+		Map.Entry<String, Entry> first = null;
+		for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Entry> candidate = it.next();
+			if (candidate.getValue().expires - now <= 0) {
+				it.remove();
+				expired = true;
+			} else if (first == null || candidate.getValue().expires - first.getValue().expires < 0) {
+				first = candidate;
+			}
+		}
+		if (!expired && first != null)
+			entries.remove(first.getKey(), first.getValue());
+	}
+	
+	private static String keyOf(Request request) {
+		OptionSet options = request.getOptions();
+		return options.getAccept() + "?" + options.getUriQueryString();
+	}
+	
+	/*
+	 * A cached response. The options are copied, since the stack adds
+	 * further options such as Block2 to the response that is sent.
+	 */
+	private static final class Entry {
+		
+		private final ResponseCode code;
+		private final OptionSet options;
+		private final byte[] payload;
+		private final byte[] etag;
+		private final long expires;
+		
+		private Entry(Response response) {
+			this.code = response.getCode();
+			this.options = new OptionSet(response.getOptions());
+			this.payload = response.getPayload();
+			this.etag = options.getETagCount() == 1 ? options.getETags().get(0) : null;
+			this.expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getMaxAge());
+		}
+	}
+}
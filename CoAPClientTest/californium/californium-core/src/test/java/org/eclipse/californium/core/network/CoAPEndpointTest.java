@@ -16,6 +16,7 @@
 package org.eclipse.californium.core.network;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -24,12 +25,17 @@ import java.net.InetSocketAddress;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.config.NetworkConfig;
@@ -95,6 +101,101 @@ public class CoAPEndpointTest {
 		assertThat(receivedRequests.get(0).getSenderIdentity().getName(), is(clientId));
 	}
 
+	@Test
+	public void testLanesKeepPerPeerOrder() throws Exception {
+		final int peers = 8;
+		final int requests = 50;
+		final CountDownLatch latch = new CountDownLatch(peers * requests);
+		final Map<Integer, List<Integer>> mids = new ConcurrentHashMap<Integer, List<Integer>>();
+		final Map<Integer, String> threads = new ConcurrentHashMap<Integer, String>();
+		final List<String> errors = new ArrayList<String>();
+		
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_LANE_COUNT, 4);
+		SimpleConnector laneConnector = new SimpleConnector();
+		CoAPEndpoint lanes = new CoAPEndpoint(laneConnector, config);
+		assertEquals(4, lanes.getLaneCount());
+		
+		lanes.setMessageDeliverer(new MessageDeliverer() {
+			
+			@Override
+			public void deliverResponse(Exchange exchange, Response response) {
+			}
+			
+			@Override
+			public void deliverRequest(Exchange exchange) {
+				int port = exchange.getRequest().getSourcePort();
+				String thread = Thread.currentThread().getName();
+				String previous = threads.put(port, thread);
+				if (previous != null && !previous.equals(thread))
+					errors.add("Peer " + port + " moved from " + previous + " to " + thread);
+				mids.get(port).add(exchange.getRequest().getMID());
+				latch.countDown();
+			}
+		});
+		lanes.start();
+		try {
+			for (int p=0; p<peers; p++)
+				mids.put(5700 + p, new ArrayList<Integer>());
+			for (int mid=0; mid<requests; mid++) {
+				for (int p=0; p<peers; p++) {
+					Request request = new Request(Code.POST, Type.NON);
+					request.setMID(mid);
+					request.setToken(new byte[]{0x01});
+					laneConnector.receiveMessage(new RawData(serializer.serializeRequest(request), new InetSocketAddress(5700 + p)));
+				}
+			}
+			assertTrue(latch.await(2, TimeUnit.SECONDS));
+			assertTrue(errors.toString(), errors.isEmpty());
+			for (List<Integer> received:mids.values()) {
+				for (int mid=0; mid<requests; mid++)
+					assertEquals(mid, received.get(mid).intValue());
+			}
+			for (int lane=0; lane<lanes.getLaneCount(); lane++)
+				assertEquals(0, lanes.getLaneQueueDepth(lane));
+		} finally {
+			lanes.destroy();
+		}
+	}
+
+	@Test
+	public void testBatchedMessagesAreFlushedTogether() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_BATCH_SIZE, 16);
+		BatchingConnector batchConnector = new BatchingConnector();
+		CoAPEndpoint batched = new CoAPEndpoint(batchConnector, config);
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		batched.setExecutor(executor);
+		batched.start();
+		try {
+			// hold back the executor until all pings have arrived
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						blocked.await();
+					} catch (InterruptedException e) { }
+				}
+			});
+			for (int mid=0; mid<10; mid++) {
+				EmptyMessage ping = new EmptyMessage(Type.CON);
+				ping.setMID(mid);
+				ping.setToken(new byte[0]);
+				batchConnector.receiveMessage(new RawData(serializer.serializeEmptyMessage(ping), new InetSocketAddress(5700)));
+			}
+			assertEquals(10, batched.getLaneQueueDepth(0));
+			blocked.countDown();
+			
+			assertTrue(batchConnector.flushed.await(2, TimeUnit.SECONDS));
+			assertEquals(1, batchConnector.batches.size());
+			assertEquals(10, batchConnector.batches.get(0).intValue());
+			assertEquals(0, batched.getLaneQueueDepth(0));
+		} finally {
+			batched.destroy();
+			executor.shutdown();
+		}
+	}
+
 	private byte[] getSerializedRequest() {
 		Request request = new Request(Code.POST, Type.NON);
 		request.setPayload("Hello World");
@@ -102,6 +203,18 @@ public class CoAPEndpointTest {
 		return serializer.serializeRequest(request);
 	}
 	
+	private class BatchingConnector extends SimpleConnector implements BatchConnector {
+		
+		final List<Integer> batches = new ArrayList<Integer>();
+		final CountDownLatch flushed = new CountDownLatch(1);
+		
+		@Override
+		public void send(List<RawData> messages) {
+			batches.add(messages.size());
+			flushed.countDown();
+		}
+	}
+	
 	private class SimpleConnector implements Connector {
 		
 		RawDataChannel receiver;
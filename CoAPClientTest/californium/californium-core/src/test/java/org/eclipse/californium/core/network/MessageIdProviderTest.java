@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageIdProviderTest {
+
+	InetAddress peer;
+	
+	@Before
+	public void setUp() throws Exception {
+		peer = InetAddress.getByName("192.168.0.1");
+	}
+	
+	@Test
+	public void testPeersHaveSeparateSpaces() throws Exception {
+		MessageIdProvider provider = new MessageIdProvider(247000, 16, false);
+		assertEquals(0, provider.getNextMessageId(peer, 5683));
+		assertEquals(1, provider.getNextMessageId(peer, 5683));
+		assertEquals(0, provider.getNextMessageId(peer, 5684));
+		assertEquals(0, provider.getNextMessageId(InetAddress.getByName("192.168.0.2"), 5683));
+		assertEquals(2, provider.getNextMessageId(peer, 5683));
+		assertEquals(3, provider.getPeerCount());
+	}
+	
+	@Test
+	public void testExhaustedSpaceIsNotReused() {
+		MessageIdProvider provider = new MessageIdProvider(247000, 16, false);
+		for (int i=0; i<(1<<16); i++)
+			assertEquals(i, provider.getNextMessageId(peer, 5683));
+		
+		// the first group is still in use
+		assertEquals(Message.NONE, provider.getNextMessageId(peer, 5683));
+		assertEquals(Message.NONE, provider.getNextMessageId(peer, 5683));
+	}
+	
+	@Test
+	public void testExhaustionRejectsRequest() throws Exception {
+		NetworkConfig config = new NetworkConfig();
+		config.setString(NetworkConfig.Keys.MID_PROVIDER, NetworkConfig.Keys.MID_PROVIDER_PER_PEER);
+		config.setBoolean(NetworkConfig.Keys.USE_RANDOM_MID_START, false);
+		Matcher matcher = new Matcher(config);
+		for (int i=0; i<(1<<16); i++)
+			matcher.sendRequest(new Exchange(null, Origin.LOCAL), newRequest());
+		
+		final AtomicBoolean rejected = new AtomicBoolean();
+		Request request = newRequest();
+		request.addMessageObserver(new MessageObserverAdapter() {
+			@Override
+			public void onReject() {
+				rejected.set(true);
+			}
+		});
+		matcher.sendRequest(new Exchange(request, Origin.LOCAL), request);
+		assertEquals(Message.NONE, request.getMID());
+		assertTrue(request.isRejected());
+		assertTrue(rejected.get());
+	}
+	
+	@Test
+	public void testExpiredGroupIsReused() throws Exception {
+		MessageIdProvider provider = new MessageIdProvider(100, 16, false);
+		for (int i=0; i<(1<<16); i++)
+			provider.getNextMessageId(peer, 5683);
+		assertEquals(Message.NONE, provider.getNextMessageId(peer, 5683));
+		
+		Thread.sleep(150);
+		assertEquals(0, provider.getNextMessageId(peer, 5683));
+	}
+	
+	@Test
+	public void testPurgeIdlePeers() throws Exception {
+		MessageIdProvider provider = new MessageIdProvider(100, 16, false);
+		provider.getNextMessageId(peer, 5683);
+		provider.purge();
+		assertEquals(1, provider.getPeerCount());
+		
+		Thread.sleep(150);
+		provider.purge();
+		assertEquals(0, provider.getPeerCount());
+		
+		// a new tracker starts again after the purge
+		assertEquals(0, provider.getNextMessageId(peer, 5683));
+		assertEquals(1, provider.getPeerCount());
+	}
+	
+	private Request newRequest() {
+		Request request = new Request(Code.GET, Type.NON);
+		request.setToken(new byte[] {1});
+		request.setDestination(peer);
+		request.setDestinationPort(5683);
+		return request;
+	}
+}
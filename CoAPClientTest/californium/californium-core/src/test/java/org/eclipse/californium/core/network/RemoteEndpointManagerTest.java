@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteEndpointManagerTest {
+
+	RemoteEndpointManager manager;
+	InetAddress peer;
+	
+	@Before
+	public void setUp() throws Exception {
+		NetworkConfig config = new NetworkConfig()
+				.setInt(NetworkConfig.Keys.CONGESTION_CONTROL_PEER_CAPACITY, 2);
+		manager = new RemoteEndpointManager(config);
+		peer = InetAddress.getByName("192.168.0.1");
+	}
+	
+	@Test
+	public void testEndpointsAreKeyedByAddressAndPort() {
+		RemoteEndpoint first = manager.getRemoteEndpoint(newExchange(5683));
+		assertSame(first, manager.getRemoteEndpoint(newExchange(5683)));
+		RemoteEndpoint second = manager.getRemoteEndpoint(newExchange(5684));
+		assertNotSame(first, second);
+		assertEquals(5684, second.getRemotePort());
+		assertEquals(2, manager.size());
+	}
+	
+	@Test
+	public void testClockEvictsUnusedEndpoint() {
+		RemoteEndpoint first = manager.getRemoteEndpoint(newExchange(1));
+		manager.getRemoteEndpoint(newExchange(2));
+		// both have been used once, the hand gives each a second chance
+		manager.getRemoteEndpoint(newExchange(3));
+		assertEquals(2, manager.size());
+		assertNotSame(first, manager.getRemoteEndpoint(newExchange(1)));
+	}
+	
+	@Test
+	public void testBusyEndpointIsNotEvicted() {
+		Exchange exchange = newExchange(1);
+		RemoteEndpoint busy = manager.getRemoteEndpoint(exchange);
+		busy.registerExchange(exchange, 2);
+		manager.getRemoteEndpoint(newExchange(2));
+		manager.getRemoteEndpoint(newExchange(3));
+		manager.getRemoteEndpoint(newExchange(4));
+		assertSame(busy, manager.getRemoteEndpoint(newExchange(1)));
+		assertEquals(1, busy.getNumberOfOngoingExchanges(exchange));
+		
+		assertTrue(busy.removeExchangeInfo(exchange));
+		assertFalse(busy.removeExchangeInfo(exchange));
+		assertEquals(0, busy.getNumberOfOngoingExchanges(exchange));
+		assertEquals(0, busy.getExchangeTimestamp(exchange));
+	}
+	
+	@Test
+	public void testReRegistrationReplacesExchangeInfo() {
+		Exchange exchange = newExchange(1);
+		RemoteEndpoint endpoint = manager.getRemoteEndpoint(exchange);
+		endpoint.registerExchange(exchange, 2);
+		endpoint.registerExchange(exchange, 3);
+		assertEquals(1, endpoint.getNumberOfOngoingExchanges(exchange));
+		assertEquals(3, endpoint.getExchangeVBF(exchange), 0);
+	}
+	
+	@Test
+	public void testAdmissionIsLimitedToNstart() {
+		Exchange exchange = newExchange(1);
+		RemoteEndpoint endpoint = manager.getRemoteEndpoint(exchange);
+		assertTrue(endpoint.tryAcquireExchange(2));
+		assertTrue(endpoint.tryAcquireExchange(2));
+		assertFalse(endpoint.tryAcquireExchange(2));
+		endpoint.releaseExchange();
+		assertTrue(endpoint.tryAcquireExchange(2));
+		assertEquals(2, endpoint.getNumberOfOngoingExchanges(exchange));
+	}
+	
+	@Test
+	public void testQueuesAreBoundedAndRecordWaits() {
+		Exchange first = newExchange(1);
+		Exchange second = newExchange(1);
+		RemoteEndpoint endpoint = manager.getRemoteEndpoint(first);
+		assertTrue(endpoint.offerConfirmable(first, 2));
+		assertTrue(endpoint.offerConfirmable(second, 2));
+		assertFalse(endpoint.offerConfirmable(newExchange(1), 2));
+		assertEquals(2, endpoint.getConfirmableQueueSize());
+		
+		LatencyHistogram waits = new LatencyHistogram();
+		assertSame(first, endpoint.pollConfirmable(waits));
+		assertSame(second, endpoint.pollConfirmable(waits));
+		assertNull(endpoint.pollConfirmable(waits));
+		assertEquals(0, endpoint.getConfirmableQueueSize());
+		assertEquals(2, waits.getCount());
+		
+		assertTrue(endpoint.offerNonConfirmable(first, 1));
+		assertFalse(endpoint.offerNonConfirmable(second, 1));
+		assertSame(first, endpoint.pollNonConfirmable(waits));
+		assertEquals(3, waits.getCount());
+	}
+	
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(500); // below 1 us
+		histogram.record(3000); // 3 us
+		histogram.record(3000000); // 3 ms
+		assertEquals(3, histogram.getCount());
+		assertEquals(1, histogram.getCount(0));
+		assertTrue(histogram.getPercentile(50) <= 4);
+		assertTrue(histogram.getPercentile(100) >= 3000);
+	}
+	
+	private Exchange newExchange(int port) {
+		Request request = new Request(Code.GET);
+		request.setDestination(peer);
+		request.setDestinationPort(port);
+		return new Exchange(request, Origin.LOCAL);
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.stack.congestioncontrol.EstimatorRto;
+import org.eclipse.californium.core.network.stack.congestioncontrol.Rfc6298Estimator;
+import org.eclipse.californium.core.network.stack.congestioncontrol.RtoEstimator;
+import org.eclipse.californium.core.network.stack.congestioncontrol.RtoState;
+import org.junit.Test;
+
+public class RtoEstimatorTest {
+
+	@Test
+	public void testRfc6298Estimator() {
+		RtoEstimator estimator = new Rfc6298Estimator();
+		RtoState state = new RtoState();
+		
+		// 400 us on the first measurement: RTO = SRTT + 4 * SRTT/2
+		estimator.update(state, 400000, false);
+		assertEquals(400000, state.srtt);
+		assertEquals(200000, state.rttvar);
+		assertEquals(1200000, state.rto);
+		
+		estimator.update(state, 400000, false);
+		assertEquals(400000, state.srtt);
+		assertEquals(150000, state.rttvar);
+		assertEquals(1000000, state.rto);
+		assertEquals(2, state.samples);
+		
+		// Karn's algorithm
+		estimator.update(state, 5000000, true);
+		assertEquals(2, state.samples);
+		assertEquals(1000000, state.rto);
+	}
+	
+	@Test
+	public void testEstimatorCanBeExchanged() {
+		NetworkConfig config = new NetworkConfig();
+		EstimatorRto layer = new EstimatorRto(config);
+		assertTrue(layer.getEstimator() instanceof Rfc6298Estimator);
+		
+		config.setString(NetworkConfig.Keys.CONGESTION_CONTROL_RTO_ESTIMATOR, FixedEstimator.class.getName());
+		assertTrue(layer.getEstimator() instanceof FixedEstimator);
+		
+		// an unknown estimator keeps the current one
+		RtoEstimator current = layer.getEstimator();
+		config.setString(NetworkConfig.Keys.CONGESTION_CONTROL_RTO_ESTIMATOR, "org.example.NoSuchEstimator");
+		assertSame(current, layer.getEstimator());
+		
+		assertNull(layer.getRtoState(new InetSocketAddress("192.168.0.1", 5683)));
+	}
+	
+	public static class FixedEstimator implements RtoEstimator {
+		@Override
+		public void update(RtoState state, long rtt, boolean weak) {
+			state.rto = 1000;
+			state.samples++;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedExchangeStoreTest {
+
+	ShardedExchangeStore store;
+	InetAddress peer;
+	
+	@Before
+	public void setUp() throws Exception {
+		store = new ShardedExchangeStore(3);
+		peer = InetAddress.getByName("192.168.0.1");
+	}
+	
+	@Test
+	public void testShardCountIsPowerOfTwo() {
+		assertEquals(4, store.getShardCount());
+	}
+	
+	@Test
+	public void testMIDAndTokenAreIndependent() {
+		Exchange exchange = newExchange();
+		store.putByMID(17, peer, 5683, exchange);
+		store.putByToken(new byte[] {1, 2}, peer, 5683, exchange);
+		
+		assertSame(exchange, store.getByMID(17, peer, 5683));
+		assertNull(store.getByMID(17, peer, 5684));
+		assertNull(store.getByMID(18, peer, 5683));
+		assertSame(exchange, store.getByToken(new byte[] {1, 2}, peer, 5683));
+		assertNull(store.getByToken(new byte[] {0, 1, 2}, peer, 5683));
+		assertEquals(1, store.getMIDCount());
+		assertEquals(1, store.getTokenCount());
+		
+		assertSame(exchange, store.removeByMID(17, peer, 5683));
+		assertNull(store.getByMID(17, peer, 5683));
+		assertSame(exchange, store.getByToken(new byte[] {1, 2}, peer, 5683));
+	}
+	
+	@Test
+	public void testIPv6PeersWithSameHash() throws Exception {
+		// Inet6Address hashes only some of the address bytes
+		InetAddress first = InetAddress.getByName("2001:db8::1");
+		InetAddress second = InetAddress.getByName("2001:db8:0:1::");
+		Exchange one = newExchange();
+		Exchange two = newExchange();
+		
+		store.putByMID(1, first, 5683, one);
+		store.putByMID(1, second, 5683, two);
+		assertSame(one, store.getByMID(1, first, 5683));
+		assertSame(two, store.getByMID(1, second, 5683));
+		assertSame(one, store.removeByMID(1, first, 5683));
+		assertSame(two, store.getByMID(1, second, 5683));
+	}
+	
+	@Test
+	public void testManyExchanges() throws Exception {
+		Map<Integer, Exchange> expected = new HashMap<Integer, Exchange>();
+		Random random = new Random(42);
+		InetAddress[] peers = new InetAddress[32];
+		for (int i=0; i<peers.length; i++)
+			peers[i] = InetAddress.getByAddress(new byte[] {10, 0, (byte) i, (byte) random.nextInt()});
+		
+		for (int i=0; i<20000; i++) {
+			int mid = random.nextInt(1<<16);
+			int p = random.nextInt(peers.length);
+			int key = (p << 16) | mid;
+			if (random.nextInt(3) == 0 && expected.containsKey(key)) {
+				assertSame(expected.remove(key), store.removeByMID(mid, peers[p], 5683));
+			} else {
+				Exchange exchange = newExchange();
+				assertSame(expected.put(key, exchange), store.putByMID(mid, peers[p], 5683, exchange));
+			}
+		}
+		
+		assertEquals(expected.size(), store.getMIDCount());
+		for (Map.Entry<Integer, Exchange> entry:expected.entrySet()) {
+			int mid = entry.getKey() & 0xFFFF;
+			int p = entry.getKey() >>> 16;
+			assertSame(entry.getValue(), store.getByMID(mid, peers[p], 5683));
+		}
+		
+		store.clear();
+		assertEquals(0, store.getMIDCount());
+	}
+	
+	@Test
+	public void testLongTokens() {
+		Exchange exchange = newExchange();
+		byte[] token = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9};
+		assertNull(store.getByToken(token, peer, 5683));
+		assertNull(store.putByToken(token, peer, 5683, exchange));
+		assertSame(exchange, store.getByToken(token.clone(), peer, 5683));
+		assertNull(store.getByToken(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, peer, 5683));
+		assertEquals(1, store.getTokenCount());
+		assertSame(exchange, store.removeByToken(token, peer, 5683));
+		assertEquals(0, store.getTokenCount());
+	}
+	
+	@Test
+	public void testTablesShrink() {
+		for (int mid=0; mid<1000; mid++)
+			store.putByMID(mid, peer, 5683, newExchange());
+		for (int mid=1; mid<1000; mid++)
+			store.removeByMID(mid, peer, 5683);
+		
+		assertEquals(1, store.getMIDCount());
+		assertNotNull(store.getByMID(0, peer, 5683));
+		// all 4 shards with 2 tables are back to the initial 16 slots
+		assertEquals(1.0 / (4 * 2 * 16), store.getOccupancy(), 0.0001);
+	}
+	
+	private static Exchange newExchange() {
+		return new Exchange(new Request(Code.GET), Origin.LOCAL);
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelSchedulerTest {
+
+	TimingWheelScheduler scheduler;
+	
+	@Before
+	public void setUp() {
+		// a small wheel so that longer delays need several rounds
+		scheduler = new TimingWheelScheduler(Executors.newSingleThreadExecutor(), 5, TimeUnit.MILLISECONDS, 4);
+	}
+	
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+	
+	@Test
+	public void testDelayedTaskRunsAfterDelay() throws Exception {
+		long start = System.nanoTime();
+		ScheduledFuture<Long> future = scheduler.schedule(new Callable<Long>() {
+			public Long call() {
+				return System.nanoTime();
+			}
+		}, 100, TimeUnit.MILLISECONDS);
+		
+		long ran = future.get(1, TimeUnit.SECONDS);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(ran - start) >= 100);
+		assertTrue(future.isDone());
+	}
+	
+	@Test
+	public void testCanceledTaskDoesNotRun() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		ScheduledFuture<?> future = scheduler.schedule(new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+		
+		assertTrue(future.cancel(false));
+		Thread.sleep(100);
+		assertEquals(0, runs.get());
+		assertTrue(future.isCancelled());
+		assertEquals(0, scheduler.getScheduledTaskCount());
+	}
+	
+	@Test
+	public void testTasksExpireInOrder() throws Exception {
+		final StringBuffer order = new StringBuffer();
+		final CountDownLatch latch = new CountDownLatch(3);
+		for (final int delay:new int[] {60, 20, 40}) {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					order.append(delay).append(' ');
+					latch.countDown();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertEquals("20 40 60 ", order.toString());
+	}
+	
+	@Test
+	public void testFixedRate() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(5);
+		ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}, 10, 10, TimeUnit.MILLISECONDS);
+		
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertFalse(future.isDone());
+		assertTrue(future.cancel(false));
+		assertTrue(future.isCancelled());
+	}
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * This test checks that a snapshot is shared until the configuration changes
+ * and that it then holds the new values.
+ */
+public class NetworkConfigSnapshotTest {
+
+	@Test
+	public void testSnapshotIsSharedUntilChanged() {
+		NetworkConfig config = new NetworkConfig();
+		NetworkConfigSnapshot snapshot = config.getSnapshot();
+		assertSame(snapshot, config.getSnapshot());
+		assertEquals(2000, snapshot.getAckTimeout());
+		assertEquals(1, snapshot.getNstart());
+		
+		config.setInt(NetworkConfig.Keys.NSTART, 4);
+		NetworkConfigSnapshot changed = config.getSnapshot();
+		assertNotSame(snapshot, changed);
+		assertEquals(4, changed.getNstart());
+		assertEquals(1, snapshot.getNstart());
+		assertEquals(2000, changed.getAckTimeout());
+	}
+	
+	@Test
+	public void testObserverSeesChangedSnapshot() {
+		final NetworkConfig config = new NetworkConfig();
+		final long[] seen = new long[1];
+		config.addConfigObserver(new NetworkConfigObserverAdapter() {
+			@Override
+			public void changed(String key, long value) {
+				seen[0] = config.getSnapshot().getExchangeLifetime();
+			}
+		});
+		config.getSnapshot();
+		config.setLong(NetworkConfig.Keys.EXCHANGE_LIFETIME, 1000);
+		assertEquals(1000, seen[0]);
+	}
+	
+	@Test
+	public void testLoadInvalidatesSnapshot() throws Exception {
+		File file = File.createTempFile("snapshot", ".properties");
+		try {
+			NetworkConfig stored = new NetworkConfig();
+			stored.setFloat(NetworkConfig.Keys.ACK_TIMEOUT_SCALE, 3f);
+			stored.store(file);
+			
+			NetworkConfig config = new NetworkConfig();
+			assertEquals(2f, config.getSnapshot().getAckTimeoutScale(), 0f);
+			config.load(file);
+			assertEquals(3f, config.getSnapshot().getAckTimeoutScale(), 0f);
+		} finally {
+			file.delete();
+		}
+	}
+}
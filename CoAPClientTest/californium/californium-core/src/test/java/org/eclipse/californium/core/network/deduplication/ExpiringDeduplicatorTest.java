@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.network.deduplication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiringDeduplicatorTest {
+
+	InetAddress peer;
+	NetworkConfig config;
+	
+	@Before
+	public void setUp() throws Exception {
+		peer = InetAddress.getByName("192.168.0.1");
+		config = new NetworkConfig();
+		config.setInt(NetworkConfig.Keys.DEDUPLICATOR_BUCKETS, 4);
+		config.setInt(NetworkConfig.Keys.DEDUPLICATOR_CAPACITY, 100);
+		config.setInt(NetworkConfig.Keys.DEDUPLICATOR_PEER_CAPACITY, 10);
+	}
+	
+	@Test
+	public void testDetectsDuplicate() {
+		ExpiringDeduplicator deduplicator = new ExpiringDeduplicator(config);
+		Exchange exchange = newExchange(1, 5683);
+		assertNull(deduplicator.findPrevious(key(1, 5683), exchange));
+		assertSame(exchange, deduplicator.findPrevious(key(1, 5683), newExchange(1, 5683)));
+		assertNull(deduplicator.findPrevious(key(1, 5684), newExchange(1, 5684)));
+		assertEquals(2, deduplicator.size());
+	}
+	
+	@Test
+	public void testPeerQuota() {
+		ExpiringDeduplicator deduplicator = new ExpiringDeduplicator(config);
+		for (int mid=0; mid<10; mid++)
+			assertNull(deduplicator.findPrevious(key(mid, 5683), newExchange(mid, 5683)));
+		
+		// the flooding peer is dropped, the others are not
+		Exchange exchange = newExchange(10, 5683);
+		assertSame(exchange, deduplicator.findPrevious(key(10, 5683), exchange));
+		assertNull(deduplicator.findPrevious(key(10, 5690), newExchange(10, 5690)));
+		assertEquals(11, deduplicator.size());
+		assertEquals(1, deduplicator.getRejectedCount());
+	}
+	
+	@Test
+	public void testGlobalCapacity() {
+		ExpiringDeduplicator deduplicator = new ExpiringDeduplicator(config);
+		for (int port=1; port<=100; port++)
+			assertNull(deduplicator.findPrevious(key(1, port), newExchange(1, port)));
+		assertEquals(1f, deduplicator.getOccupancy(), 0f);
+		
+		Exchange exchange = newExchange(1, 101);
+		assertSame(exchange, deduplicator.findPrevious(key(1, 101), exchange));
+		
+		deduplicator.clear();
+		assertEquals(0, deduplicator.size());
+		assertNull(deduplicator.findPrevious(key(1, 101), exchange));
+	}
+	
+	@Test
+	public void testCompletedExchangeKeepsOnlyResponse() {
+		ExpiringDeduplicator deduplicator = new ExpiringDeduplicator(config);
+		Exchange exchange = newExchange(7, 5683);
+		assertNull(deduplicator.findPrevious(key(7, 5683), exchange));
+		
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.ACK);
+		response.setMID(7);
+		response.setToken(new byte[] { 1, 2 });
+		response.setPayload("hello");
+		response.setDestination(peer);
+		response.setDestinationPort(5683);
+		exchange.setResponse(response);
+		exchange.setCurrentResponse(response);
+		deduplicator.complete(exchange);
+		assertNotNull(response.getBytes());
+		
+		Exchange duplicate = newExchange(7, 5683);
+		assertSame(duplicate, deduplicator.findPrevious(key(7, 5683), duplicate));
+		Response replay = duplicate.getCurrentResponse();
+		assertNotNull(replay);
+		assertArrayEquals(response.getBytes(), replay.getBytes());
+		assertEquals(Type.ACK, replay.getType());
+		assertEquals("hello", replay.getPayloadString());
+		assertEquals(peer, replay.getDestination());
+		assertEquals(5683, replay.getDestinationPort());
+	}
+	
+	@Test
+	public void testRejectedExchange() {
+		ExpiringDeduplicator deduplicator = new ExpiringDeduplicator(config);
+		Exchange exchange = newExchange(3, 5683);
+		assertNull(deduplicator.findPrevious(key(3, 5683), exchange));
+		exchange.getCurrentRequest().setRejected(true);
+		deduplicator.complete(exchange);
+		
+		Exchange duplicate = newExchange(3, 5683);
+		assertSame(duplicate, deduplicator.findPrevious(key(3, 5683), duplicate));
+		assertTrue(duplicate.getCurrentRequest().isRejected());
+	}
+	
+	@Test
+	public void testEntriesExpire() throws Exception {
+		config.setLong(NetworkConfig.Keys.EXCHANGE_LIFETIME, 150);
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		ExpiringDeduplicator deduplicator = new ExpiringDeduplicator(config);
+		deduplicator.setExecutor(executor);
+		deduplicator.start();
+		try {
+			Exchange exchange = newExchange(1, 5683);
+			assertNull(deduplicator.findPrevious(key(1, 5683), exchange));
+			assertSame(exchange, deduplicator.findPrevious(key(1, 5683), newExchange(1, 5683)));
+			
+			Thread.sleep(500);
+			assertEquals(0, deduplicator.size());
+			assertNull(deduplicator.findPrevious(key(1, 5683), newExchange(1, 5683)));
+		} finally {
+			deduplicator.stop();
+			executor.shutdown();
+		}
+	}
+	
+	private KeyMID key(int mid, int port) {
+		return new KeyMID(mid, peer.getAddress(), port);
+	}
+	
+	private Exchange newExchange(int mid, int port) {
+		Request request = new Request(Code.GET, Type.CON);
+		request.setMID(mid);
+		request.setToken(new byte[] { 1, 2 });
+		request.setSource(peer);
+		request.setSourcePort(port);
+		return new Exchange(request, Origin.REMOTE);
+	}
+}
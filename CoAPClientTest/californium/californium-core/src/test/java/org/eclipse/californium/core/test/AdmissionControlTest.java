@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.AdmissionController;
+import org.eclipse.californium.core.server.ServerMessageDeliverer;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.ConcurrentCoapResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that the admission controller answers requests with 5.03
+ * (Service Unavailable) or drops them when the executor of a resource has
+ * fallen behind.
+ */
+public class AdmissionControlTest {
+
+	private static final int MAX_PENDING = 2;
+	
+	private CoapServer server;
+	private AdmissionController admission;
+	private SlowResource resource;
+	private String uri;
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_PENDING, MAX_PENDING);
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		resource = new SlowResource("slow");
+		server = new CoapServer(config);
+		server.addEndpoint(endpoint);
+		server.add(resource);
+		server.start();
+		admission = ((ServerMessageDeliverer) server.getMessageDeliverer()).getAdmissionController();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/slow";
+	}
+	
+	@After
+	public void shutdownServer() {
+		resource.release.countDown();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testShedCON() throws Exception {
+		assertNotNull(admission);
+		final List<CoapResponse> responses = new CopyOnWriteArrayList<CoapResponse>();
+		final CountDownLatch shed = new CountDownLatch(2);
+		final CountDownLatch handled = new CountDownLatch(MAX_PENDING);
+		CoapClient client = new CoapClient(uri);
+		for (int i=0; i<MAX_PENDING+2; i++) {
+			client.get(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) {
+					responses.add(response);
+					if (response.getCode() == ResponseCode.SERVICE_UNAVAILABLE) shed.countDown();
+					if (response.getCode() == ResponseCode.CONTENT) handled.countDown();
+				}
+				@Override
+				public void onError() { }
+			});
+		}
+		assertTrue(shed.await(2, TimeUnit.SECONDS));
+		for (CoapResponse response:responses)
+			assertTrue(response.getOptions().getMaxAge() >= 1);
+		assertEquals(MAX_PENDING, admission.getPending(resource.getExecutor()));
+		
+		resource.release.countDown();
+		assertTrue(handled.await(2, TimeUnit.SECONDS));
+		assertEquals(2, admission.getShedCount());
+		assertEquals(2L, admission.getShedCounts().get(resource).longValue());
+		// the handler releases its admission after the response has been sent
+		for (int i=0; i<100 && admission.getPending(resource.getExecutor()) > 0; i++)
+			Thread.sleep(10);
+		assertEquals(0, admission.getPending(resource.getExecutor()));
+	}
+	
+	@Test
+	public void testDropNON() throws Exception {
+		CoapClient client = new CoapClient(uri).useNONs();
+		for (int i=0; i<MAX_PENDING; i++)
+			client.get(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) { }
+				@Override
+				public void onError() { }
+			});
+		
+		client.setTimeout(200);
+		assertNull(client.get());
+		assertEquals(1, admission.getShedCount());
+	}
+	
+	@Test
+	public void testRejectedRequestIsReleased() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		server.add(new ConcurrentCoapResource("rejecting", executor));
+		
+		CoapResponse response = new CoapClient(uri.replace("slow", "rejecting")).get();
+		assertNotNull(response);
+		assertEquals(ResponseCode.SERVICE_UNAVAILABLE, response.getCode());
+		assertTrue(response.getOptions().getMaxAge() >= 1);
+		assertEquals(0, admission.getPending(executor));
+	}
+	
+	@Test
+	public void testMaxAgeFromEstimatedDelay() {
+		NetworkConfig config = new NetworkConfig();
+		config.setLong(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_DELAY, 1000);
+		AdmissionController controller = new AdmissionController(config);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		CoapResource other = new CoapResource("other");
+		
+		// an idle resource without samples is always admitted
+		AdmissionController.Admission first = controller.admit(other, executor);
+		assertTrue(first.isAdmitted());
+		first.release(TimeUnit.SECONDS.toNanos(3));
+		
+		// 1 pending * 3 s / 2 threads = 1.5 s rounded up
+		AdmissionController.Admission second = controller.admit(other, executor);
+		assertFalse(second.isAdmitted());
+		assertEquals(2, second.getRetryAfter());
+		assertEquals(1, controller.getShedCount());
+		assertEquals(0, controller.getPending(executor));
+		executor.shutdown();
+	}
+	
+	@Test
+	public void testBacklogIsSharedByExecutor() {
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_PENDING, 2);
+		AdmissionController controller = new AdmissionController(config);
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		CoapResource one = new CoapResource("one");
+		CoapResource two = new CoapResource("two");
+		
+		AdmissionController.Admission first = controller.admit(one, executor);
+		AdmissionController.Admission second = controller.admit(two, executor);
+		assertTrue(first.isAdmitted());
+		assertTrue(second.isAdmitted());
+		assertFalse(controller.admit(one, executor).isAdmitted());
+		assertEquals(2, controller.getPending(executor));
+		
+		second.release(0);
+		assertTrue(controller.admit(one, executor).isAdmitted());
+		assertEquals(1L, controller.getShedCounts().get(one).longValue());
+		
+		controller.forget(one);
+		assertNull(controller.getShedCounts().get(one));
+		executor.shutdown();
+	}
+	
+	@Test
+	public void testUnboundedExecutorIgnoresDelay() {
+		NetworkConfig config = new NetworkConfig();
+		config.setLong(NetworkConfig.Keys.RESOURCE_OVERLOAD_MAX_DELAY, 1000);
+		AdmissionController controller = new AdmissionController(config);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		CoapResource other = new CoapResource("other");
+		
+		controller.admit(other, executor).release(TimeUnit.SECONDS.toNanos(3));
+		// the cached pool starts a thread for each request and never queues
+		for (int i=0; i<10; i++)
+			assertTrue(controller.admit(other, executor).isAdmitted());
+		assertEquals(0, controller.getShedCount());
+		executor.shutdown();
+	}
+	
+	private static class SlowResource extends ConcurrentCoapResource {
+		
+		private final CountDownLatch release = new CountDownLatch(1);
+		
+		public SlowResource(String name) {
+			super(name, SINGLE_THREADED);
+		}
+		
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) { }
+			exchange.respond("done");
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapFuture;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.ConcurrentCoapResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks the future-based API of the CoapClient and that it does
+ * not let more than NSTART confirmable requests to a server be outstanding.
+ */
+public class ClientFutureTest {
+
+	private CoapServer server;
+	private int serverPort;
+	
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		server = new CoapServer();
+		server.addEndpoint(endpoint);
+		server.add(new ConcurrentCoapResource("slow", 4) {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				int now = concurrent.incrementAndGet();
+				if (now > maxConcurrent.get())
+					maxConcurrent.set(now);
+				try { Thread.sleep(10); } catch (InterruptedException e) { }
+				concurrent.decrementAndGet();
+				exchange.respond(exchange.getRequestOptions().getUriQueryString());
+			}
+			@Override
+			public void handlePOST(CoapExchange exchange) {
+				exchange.respond(exchange.getRequestText().toUpperCase());
+			}
+		});
+		CoapResource observable = new CoapResource("obs") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("obs");
+			}
+		};
+		observable.setObservable(true);
+		server.add(observable);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+	
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testFutures() throws Exception {
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/slow?q");
+		CoapFuture<CoapResponse> get = client.getAsync();
+		CoapFuture<CoapResponse> post = client.postAsync("hello", MediaTypeRegistry.TEXT_PLAIN);
+		
+		final CountDownLatch listened = new CountDownLatch(1);
+		post.addListener(new CoapFuture.Listener<CoapResponse>() {
+			public void completed(CoapResponse response) {
+				listened.countDown();
+			}
+		});
+		assertEquals("q", get.get(2, TimeUnit.SECONDS).getResponseText());
+		assertEquals("HELLO", post.get(2, TimeUnit.SECONDS).getResponseText());
+		assertTrue(listened.await(1, TimeUnit.SECONDS));
+		assertTrue(get.isDone());
+		assertFalse(get.isCancelled());
+	}
+	
+	@Test
+	public void testSendAllIsPipelined() throws Exception {
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/slow");
+		List<Request> requests = new ArrayList<Request>();
+		for (int i=0; i<20; i++)
+			requests.add(Request.newGet().setURI("coap://localhost:"+serverPort+"/slow?"+i));
+		
+		List<CoapResponse> responses = client.sendAll(requests).get(5, TimeUnit.SECONDS);
+		assertEquals(20, responses.size());
+		for (int i=0; i<20; i++)
+			assertEquals(String.valueOf(i), responses.get(i).getResponseText());
+		// NSTART is 1 by default
+		assertEquals(1, maxConcurrent.get());
+	}
+	
+	@Test
+	public void testObserveAsync() throws Exception {
+		final CountDownLatch notified = new CountDownLatch(1);
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/obs");
+		CoapObserveRelation relation = client.observeAsync(new CoapHandler() {
+			public void onLoad(CoapResponse response) {
+				notified.countDown();
+			}
+			public void onError() { }
+		}).get(2, TimeUnit.SECONDS);
+		assertNotNull(relation);
+		assertFalse(relation.isCanceled());
+		assertTrue(notified.await(1, TimeUnit.SECONDS));
+		relation.proactiveCancel();
+	}
+}
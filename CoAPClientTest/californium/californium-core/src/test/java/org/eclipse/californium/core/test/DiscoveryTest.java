@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.DiscoveryResource;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that the discovery resource answers from its index the
+ * same links as the walk of the resource tree, that it follows changes of
+ * the tree and of the attributes, and that it serves the previous links while
+ * they are rebuilt.
+ */
+public class DiscoveryTest {
+
+	private static final String[] QUERIES = { "", "rt=temperature-c", "rt=light-lux",
+		"rt=light", "if=sensor", "bar=two", "foo", "rt=temp*", "href=/sensors/temp",
+		"href=/sensors*", "title", "obs" };
+	
+	private CoapServer server;
+	private CoAPEndpoint endpoint;
+	private DiscoveryResource discovery;
+	private Resource sensors;
+	private Resource temp;
+	private Resource light;
+	private String uri;
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		NetworkConfig config = new NetworkConfig()
+				.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, 64)
+				.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, 64)
+				// a request is answered while another rebuilds the index
+				.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT, 2);
+		endpoint = new CoAPEndpoint(0, config);
+		server = new CoapServer(config);
+		server.addEndpoint(endpoint);
+		
+		sensors = new CoapResource("sensors");
+		temp = new CoapResource("temp");
+		light = new CoapResource("light");
+		sensors.add(temp);
+		sensors.add(light);
+		sensors.getAttributes().setTitle("Sensor Index");
+		temp.getAttributes().addResourceType("temperature-c");
+		temp.getAttributes().addInterfaceDescription("sensor");
+		temp.getAttributes().addAttribute("foo");
+		temp.getAttributes().addAttribute("bar", "one");
+		temp.getAttributes().addAttribute("bar", "two");
+		light.getAttributes().addResourceType("light-lux");
+		light.getAttributes().addInterfaceDescription("sensor");
+		server.add(sensors);
+		
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/.well-known/core";
+		discovery = (DiscoveryResource) server.getRoot().getChild(".well-known").getChild("core");
+	}
+	
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testIndexMatchesTree() {
+		assertDiscovery();
+	}
+	
+	@Test
+	public void testChangedAttributes() {
+		assertDiscovery();
+		light.getAttributes().addResourceType("light");
+		temp.getAttributes().clearResourceType();
+		temp.getAttributes().setObservable();
+		assertDiscovery();
+		assertEquals("</sensors/light>;if=\"sensor\";rt=\"light-lux light\"", discover("rt=light"));
+	}
+	
+	@Test
+	public void testChangedTree() {
+		assertDiscovery();
+		CoapResource humidity = new CoapResource("humidity");
+		humidity.getAttributes().addResourceType("humidity");
+		humidity.getAttributes().addInterfaceDescription("sensor");
+		sensors.add(humidity);
+		sensors.remove(temp);
+		assertDiscovery();
+		assertEquals("</sensors/humidity>;if=\"sensor\";rt=\"humidity\"", discover("rt=humidity"));
+		
+		// changes of removed resources are not observed anymore
+		temp.getAttributes().addResourceType("humidity");
+		assertEquals("</sensors/humidity>;if=\"sensor\";rt=\"humidity\"", discover("rt=humidity"));
+		
+		sensors.setName("things");
+		assertDiscovery();
+		assertEquals("</things/humidity>;if=\"sensor\";rt=\"humidity\"", discover("rt=humidity"));
+	}
+	
+	@Test
+	public void testBlockwiseDiscovery() {
+		for (int i=0; i<100; i++) {
+			CoapResource resource = new CoapResource("resource"+i);
+			resource.getAttributes().addResourceType("many");
+			sensors.add(resource);
+		}
+		assertDiscovery();
+	}
+	
+	@Test
+	public void testPreviousSnapshotDuringRebuild() throws Exception {
+		final BlockingResource blocking = new BlockingResource("blocking");
+		sensors.add(blocking);
+		assertDiscovery();
+		
+		light.getAttributes().addResourceType("light");
+		blocking.block.set(true);
+		Thread rebuilding = new Thread() {
+			public void run() {
+				discover("");
+			}
+		};
+		rebuilding.start();
+		assertTrue(blocking.entered.await(2, TimeUnit.SECONDS));
+		
+		// the rebuild is blocked, so the previous snapshot is served
+		assertEquals("", discover("rt=light"));
+		
+		blocking.release.countDown();
+		rebuilding.join(2000);
+		assertEquals("</sensors/light>;if=\"sensor\";rt=\"light-lux light\"", discover("rt=light"));
+	}
+	
+	private void assertDiscovery() {
+		for (String query:QUERIES) {
+			String expected = discovery.discoverTree(server.getRoot(),
+					query.isEmpty() ? Arrays.<String>asList() : Arrays.asList(query));
+			assertEquals(query, expected, discover(query));
+		}
+	}
+	
+	private String discover(String query) {
+		CoapResponse response = new CoapClient(query.isEmpty() ? uri : uri+"?"+query).get();
+		assertNotNull(query, response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertEquals(MediaTypeRegistry.APPLICATION_LINK_FORMAT, response.getOptions().getContentFormat());
+		return response.getResponseText();
+	}
+	
+	private static class BlockingResource extends CoapResource {
+		
+		private final AtomicBoolean block = new AtomicBoolean();
+		private final CountDownLatch entered = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		
+		public BlockingResource(String name) {
+			super(name);
+		}
+		
+		@Override
+		public Collection<Resource> getChildren() {
+			if (block.compareAndSet(true, false)) {
+				entered.countDown();
+				try {
+					release.await(2, TimeUnit.SECONDS);
+				} catch (InterruptedException e) { }
+			}
+			return super.getChildren();
+		}
+	}
+}
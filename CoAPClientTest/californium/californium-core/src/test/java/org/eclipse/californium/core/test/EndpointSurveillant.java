@@ -42,7 +42,9 @@ public class EndpointSurveillant {
 	}
 	
 	public void extractHashmaps(CoAPEndpoint endpoint) {
-		Matcher matcher = extractField(endpoint, "matcher");
+		// the endpoint has a single lane by default
+		Object[] lanes = extractField(endpoint, "lanes");
+		Matcher matcher = extractField(lanes[0], "matcher");
 
 		exchangesByMID = extractField(matcher, "exchangesByMID");
 		exchangesByToken = extractField(matcher, "exchangesByToken");
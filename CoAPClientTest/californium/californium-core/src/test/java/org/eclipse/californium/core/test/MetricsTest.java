@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.EndpointMetrics;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.ServerMessageDeliverer;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that an endpoint with metrics counts its messages,
+ * measures its layers and resources, and exposes the metrics through the
+ * resource /.well-known/metrics and JMX.
+ */
+public class MetricsTest {
+
+	private CoapServer server;
+	private CoAPEndpoint endpoint;
+	private String uri;
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		NetworkConfig config = new NetworkConfig()
+				.setBoolean(NetworkConfig.Keys.ENDPOINT_METRICS, true);
+		endpoint = new CoAPEndpoint(0, config);
+		server = new CoapServer(config);
+		server.addEndpoint(endpoint);
+		server.add(new CoapResource("hello") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("hello");
+			}
+		});
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort();
+	}
+	
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testMetricsResource() {
+		CoapClient client = new CoapClient(uri+"/hello");
+		for (int i=0; i<3; i++)
+			assertEquals("hello", client.get().getResponseText());
+		
+		CoapResponse response = new CoapClient(uri+"/.well-known/metrics").get();
+		assertNotNull(response);
+		String metrics = response.getResponseText();
+		assertTrue(metrics, metrics.contains("received.CON 4\n"));
+		assertTrue(metrics, metrics.contains("sent.ACK 3\n"));
+		assertTrue(metrics, metrics.contains("handler./hello.count 3\n"));
+		// the request for the metrics is still passing up the stack
+		assertTrue(metrics, metrics.contains("layer.BlockwiseLayer.receive.count 3\n"));
+		assertTrue(metrics, metrics.contains("lane.0.deduplicator "));
+	}
+	
+	@Test
+	public void testRemovedResourceIsForgotten() {
+		CoapResource parent = new CoapResource("parent");
+		parent.add(new CoapResource("child") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("child");
+			}
+		});
+		server.add(parent);
+		assertEquals("child", new CoapClient(uri+"/parent/child").get().getResponseText());
+		ServerMessageDeliverer deliverer = (ServerMessageDeliverer) server.getMessageDeliverer();
+		assertEquals(1, deliverer.getHandlerLatencies().size());
+		
+		server.remove(parent);
+		assertTrue(deliverer.getHandlerLatencies().isEmpty());
+	}
+	
+	@Test
+	public void testMetricsMBean() throws Exception {
+		assertEquals("hello", new CoapClient(uri+"/hello").get().getResponseText());
+		
+		EndpointMetrics metrics = endpoint.getMetrics();
+		assertEquals(1, metrics.getReceived(Type.CON));
+		assertEquals(1, metrics.getSent(Type.ACK));
+		
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.eclipse.californium.core:type=CoAPEndpoint,address="
+				+ ObjectName.quote(endpoint.getAddress().toString()));
+		assertEquals(1L, mbeans.getAttribute(name, "received.CON"));
+		
+		server.stop();
+		Set<ObjectName> names = mbeans.queryNames(name, null);
+		assertTrue(names.isEmpty());
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that notifications are coalesced when a resource changes
+ * faster than the minimum interval and refreshed after the maximum interval.
+ */
+public class NotificationPacingTest {
+
+	private static final long MIN_INTERVAL = 300;
+	private static final long MAX_INTERVAL = 600;
+	private static final int CHANGES = 50;
+	
+	private CoapServer server;
+	private CountingResource resource;
+	private int serverPort;
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		NetworkConfig config = new NetworkConfig();
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MIN_INTERVAL, MIN_INTERVAL);
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MAX_INTERVAL, MAX_INTERVAL);
+		CoAPEndpoint endpoint = new CoAPEndpoint(0, config);
+		resource = new CountingResource("paced");
+		server = new CoapServer();
+		server.addEndpoint(endpoint);
+		server.add(resource);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+	
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testBurstIsCoalesced() throws Exception {
+		final AtomicInteger notifications = new AtomicInteger();
+		final CountDownLatch established = new CountDownLatch(1);
+		final CountDownLatch last = new CountDownLatch(1);
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/paced");
+		CoapObserveRelation relation = client.observe(new CoapHandler() {
+			@Override
+			public void onLoad(CoapResponse response) {
+				notifications.incrementAndGet();
+				if ("0".equals(response.getResponseText())) established.countDown();
+				if (String.valueOf(CHANGES).equals(response.getResponseText())) last.countDown();
+			}
+			@Override
+			public void onError() { }
+		});
+		assertTrue(established.await(2, TimeUnit.SECONDS));
+		
+		// the first change of the burst is held back for the minimum interval
+		for (int i=1; i<=CHANGES; i++) {
+			resource.state = i;
+			resource.changed();
+		}
+		
+		assertTrue(last.await(2, TimeUnit.SECONDS));
+		// the registration response and the latest state of the burst
+		assertEquals(2, notifications.get());
+		relation.proactiveCancel();
+	}
+	
+	@Test
+	public void testRefreshAfterMaxInterval() throws Exception {
+		final Semaphore loaded = new Semaphore(0);
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/paced");
+		CoapObserveRelation relation = client.observe(new CoapHandler() {
+			@Override
+			public void onLoad(CoapResponse response) {
+				loaded.release();
+			}
+			@Override
+			public void onError() { }
+		});
+		assertTrue(loaded.tryAcquire(2, TimeUnit.SECONDS));
+		long start = System.nanoTime();
+		
+		// each refresh reaches the client, but not before the maximum interval
+		assertTrue(loaded.tryAcquire(2, MAX_INTERVAL * 2 + 2000, TimeUnit.MILLISECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= MAX_INTERVAL);
+		relation.proactiveCancel();
+	}
+	
+	private static class CountingResource extends CoapResource {
+		
+		private volatile int state = 0;
+		
+		public CountingResource(String name) {
+			super(name);
+			setObservable(true);
+		}
+		
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			exchange.respond(String.valueOf(state));
+		}
+	}
+}
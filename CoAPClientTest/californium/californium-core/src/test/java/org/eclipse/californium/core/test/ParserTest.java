@@ -21,14 +21,23 @@ package org.eclipse.californium.core.test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.network.serialization.ByteBufferParser;
+import org.eclipse.californium.core.network.serialization.ByteBufferPool;
+import org.eclipse.californium.core.network.serialization.ByteBufferSerializer;
 import org.eclipse.californium.core.network.serialization.DataParser;
 import org.eclipse.californium.core.network.serialization.DataSerializer;
 import org.junit.Test;
@@ -112,4 +121,185 @@ public class ParserTest {
 		assertEquals("ვეპხის=யாமறிந்த&⠊⠀⠉⠁⠝=⠑⠁⠞⠀⠛⠇⠁⠎⠎", response.getOptions().getLocationQueryString());
 		assertEquals("⠊⠀⠉⠁⠝⠀⠑⠁⠞⠀⠛⠇⠁⠎⠎⠀⠁⠝⠙⠀⠊⠞⠀⠙⠕⠑⠎⠝⠞⠀⠓⠥⠗⠞⠀⠍⠑", result.getPayloadString());
 	}
+	
+	@Test
+	public void testByteBufferParserMatchesDataParser() {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.CON);
+		response.setMID(0xABCD);
+		response.setToken(new byte[] {22, -1, 0, 78, 100, 22});
+		response.getOptions().addETag(new byte[] {1, 0, 0, 0, 0, 1})
+							.addLocationPath("/one/two/three/four/five/six/seven/eight/nine/ten")
+							.addOption(new Option(57453, "Arbitrary".hashCode()))
+							.addOption(new Option(19205, "Arbitrary1"))
+							.addOption(new Option(19205, "Arbitrary2"));
+		response.setPayload("payload");
+		
+		byte[] bytes = new DataSerializer().serializeResponse(response);
+		
+		Response expected = new DataParser(bytes).parseResponse();
+		ByteBufferParser parser = new ByteBufferParser(bytes);
+		assertTrue(parser.isWellFormed());
+		assertTrue(parser.isResponse());
+		
+		Response result = parser.parseResponse();
+		assertEquals(expected.getType(), result.getType());
+		assertEquals(expected.getCode(), result.getCode());
+		assertEquals(expected.getMID(), result.getMID());
+		assertArrayEquals(expected.getToken(), result.getToken());
+		assertEquals(expected.getOptions().asSortedList(), result.getOptions().asSortedList());
+		assertArrayEquals(expected.getPayload(), result.getPayload());
+	}
+	
+	@Test
+	public void testByteBufferParserViews() {
+		Request request = new Request(Code.GET);
+		request.setType(Type.NON);
+		request.setMID(7);
+		request.setToken(new byte[] {11, 82});
+		request.getOptions().setUriPath("sensors/temp");
+		request.setPayload("hello");
+		
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		
+		// embed the datagram in a larger receive buffer
+		byte[] receive = new byte[bytes.length + 10];
+		System.arraycopy(bytes, 0, receive, 5, bytes.length);
+		ByteBuffer buffer = ByteBuffer.wrap(receive, 5, bytes.length);
+		
+		ByteBufferParser parser = new ByteBufferParser(buffer);
+		assertTrue(parser.isRequest());
+		assertEquals(7, parser.getMID());
+		assertEquals(9, parser.getTokenOffset());
+		assertEquals(ByteBuffer.wrap(new byte[] {11, 82}), parser.getToken());
+		
+		assertTrue(parser.nextOption());
+		assertEquals(OptionNumberRegistry.URI_PATH, parser.getOptionNumber());
+		assertEquals(ByteBuffer.wrap("sensors".getBytes()), parser.getOptionValue());
+		assertTrue(parser.nextOption());
+		assertEquals(OptionNumberRegistry.URI_PATH, parser.getOptionNumber());
+		assertEquals(ByteBuffer.wrap("temp".getBytes()), parser.getOptionValue());
+		assertFalse(parser.nextOption());
+		
+		assertEquals(5, parser.getPayloadLength());
+		assertEquals(5 + bytes.length - 5, parser.getPayloadOffset());
+		assertEquals(ByteBuffer.wrap("hello".getBytes()), parser.getPayload());
+		
+		// the buffer must not have been modified
+		assertEquals(5, buffer.position());
+		assertEquals(5 + bytes.length, buffer.limit());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testByteBufferParserTruncatedOption() {
+		Request request = new Request(Code.GET);
+		request.setType(Type.CON);
+		request.setMID(1);
+		request.setToken(new byte[0]);
+		request.getOptions().setUriPath("sensors");
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		
+		ByteBufferParser parser = new ByteBufferParser(ByteBuffer.wrap(bytes, 0, bytes.length - 2));
+		parser.parseRequest();
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testByteBufferParserEmptyPayloadAfterMarker() {
+		Request request = new Request(Code.POST);
+		request.setType(Type.CON);
+		request.setMID(2);
+		request.setToken(new byte[0]);
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		byte[] marked = new byte[bytes.length + 1];
+		System.arraycopy(bytes, 0, marked, 0, bytes.length);
+		marked[bytes.length] = (byte) 0xFF;
+		
+		new ByteBufferParser(marked).parseRequest();
+	}
+	
+	@Test
+	public void testByteBufferParserCompactOptions() {
+		Request request = new Request(Code.POST);
+		request.setType(Type.CON);
+		request.setMID(11);
+		request.setToken(new byte[] {1, 2});
+		request.getOptions().setUriHost("example.org")
+							.setUriPath("sensors/temp")
+							.setContentFormat(40)
+							.setObserve(5)
+							.addOption(new Option(19205, "Arbitrary"));
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		
+		Request expected = new DataParser(bytes).parseRequest();
+		Request result = new ByteBufferParser(bytes).parseRequest();
+		OptionSet options = result.getOptions();
+		assertTrue(options.isCompact());
+		
+		// a copy shares the undecoded options
+		OptionSet copy = new OptionSet(options);
+		assertEquals(expected.getOptions().asSortedList(), options.asSortedList());
+		
+		assertEquals("example.org", options.getUriHost());
+		assertEquals("sensors/temp", options.getUriPathString());
+		assertEquals(40, options.getContentFormat());
+		assertEquals(5, options.getObserve().intValue());
+		assertFalse(options.hasAccept());
+		
+		// setters replace pending values rather than being overwritten by them
+		copy.setContentFormat(0);
+		copy.removeObserve();
+		assertEquals(0, copy.getContentFormat());
+		assertFalse(copy.hasObserve());
+		assertEquals("sensors/temp", copy.getUriPathString());
+		assertEquals(expected.getOptions().asSortedList().size() - 1, copy.asSortedList().size());
+		assertEquals(40, options.getContentFormat());
+	}
+	
+	@Test
+	public void testByteBufferSerializerMatchesDataSerializer() {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.NON);
+		response.setMID(0xFFFE);
+		response.setToken(new byte[] {22, -1, 0, 78, 100, 22});
+		response.getOptions().addETag(new byte[] {1, 0, 0, 0, 0, 1})
+							.addLocationPath("/one/two/three/four/five/six/seven/eight/nine/ten")
+							.addLocationQuery("a-rather-long-location-query-that-needs-an-extended-length-field")
+							.addOption(new Option(57453, "Arbitrary".hashCode()))
+							.addOption(new Option(19205, "Arbitrary1"));
+		response.setPayload("payload");
+		
+		ByteBufferSerializer serializer = new ByteBufferSerializer();
+		byte[] expected = new DataSerializer().serializeResponse(response);
+		assertArrayEquals(expected, serializer.serializeResponse(response));
+		assertEquals(expected.length, serializer.getSerializedSize(response));
+		
+		ByteBufferPool pool = new ByteBufferPool(1024, 4);
+		ByteBuffer buffer = pool.acquire();
+		buffer.put((byte) 42); // some data in front
+		int length = serializer.serializeResponse(response, buffer);
+		assertEquals(expected.length, length);
+		assertEquals(1 + length, buffer.position());
+		
+		byte[] written = new byte[length];
+		buffer.flip();
+		buffer.position(1);
+		buffer.get(written);
+		assertArrayEquals(expected, written);
+		
+		pool.release(buffer);
+		assertEquals(1, pool.size());
+		assertEquals(0, pool.acquire().position());
+		assertEquals(0, pool.size());
+	}
+	
+	@Test(expected=BufferOverflowException.class)
+	public void testByteBufferSerializerOverflow() {
+		Request request = new Request(Code.GET);
+		request.setType(Type.CON);
+		request.setMID(3);
+		request.setToken(new byte[] {1, 2, 3, 4});
+		request.getOptions().setUriPath("sensors/temp");
+		
+		new ByteBufferSerializer().serializeRequest(request, ByteBuffer.allocate(10));
+	}
 }
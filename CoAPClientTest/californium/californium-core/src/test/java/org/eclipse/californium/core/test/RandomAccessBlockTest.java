@@ -1,14 +1,21 @@
 package org.eclipse.californium.core.test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
 import junit.framework.Assert;
 
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.network.CoAPEndpoint;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.FileResource;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -16,10 +23,13 @@ import org.junit.Test;
 public class RandomAccessBlockTest {
 
 	public static String TARGET = "test";
+	public static String FILE_TARGET = "file";
 	public static String RESPONSE_PAYLOAD = "123456789_123456789_123456789_1234567890";
 	
 	private int serverPort;
 	private CoapServer server;
+	private FileResource fileResource;
+	private File file;
 	
 	@Before
 	public void startupServer() throws Exception {
@@ -28,6 +38,12 @@ public class RandomAccessBlockTest {
 		server = new CoapServer();
 		server.addEndpoint(endpoint);
 		server.add(new TestResource(TARGET));
+		file = File.createTempFile("random-access", ".txt");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(RESPONSE_PAYLOAD.getBytes());
+		out.close();
+		fileResource = new FileResource(FILE_TARGET, file, MediaTypeRegistry.TEXT_PLAIN);
+		server.add(fileResource);
 		server.start();
 		serverPort = endpoint.getAddress().getPort();
 	}
@@ -35,11 +51,59 @@ public class RandomAccessBlockTest {
 	@After
 	public void shutdownServer() {
 		server.destroy();
+		file.delete();
 		System.out.println("End "+getClass().getSimpleName());
 	}
 	
 	@Test
 	public void testServer() throws Exception {
+		requestBlocks(TARGET);
+	}
+	
+	@Test
+	public void testFileResource() throws Exception {
+		requestBlocks(FILE_TARGET);
+	}
+	
+	@Test
+	public void testFileResourceConditionalGET() throws Exception {
+		Request request = Request.newGet();
+		request.setURI("coap://localhost:"+serverPort+"/"+FILE_TARGET);
+		request.getOptions().addETag(fileResource.getETag());
+		
+		Response response = request.send().waitForResponse(100);
+		Assert.assertNotNull(response);
+		Assert.assertEquals(ResponseCode.VALID, response.getCode());
+		Assert.assertEquals(0, response.getPayloadSize());
+		Assert.assertTrue(response.getOptions().containsETag(fileResource.getETag()));
+	}
+	
+	@Test
+	public void testFileResourceCheckInterval() throws Exception {
+		fileResource.setCheckInterval(60000);
+		byte[] etag = fileResource.getETag();
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write("_changed".getBytes());
+		out.close();
+		
+		// the mapping is kept until the check interval has passed
+		Assert.assertTrue(Arrays.equals(etag, requestETag()));
+		
+		fileResource.setCheckInterval(0);
+		byte[] changed = requestETag();
+		Assert.assertFalse(Arrays.equals(etag, changed));
+		Assert.assertTrue(Arrays.equals(fileResource.getETag(), changed));
+	}
+	
+	private byte[] requestETag() throws Exception {
+		Request request = Request.newGet();
+		request.setURI("coap://localhost:"+serverPort+"/"+FILE_TARGET);
+		Response response = request.send().waitForResponse(1000);
+		Assert.assertNotNull(response);
+		return response.getOptions().getETags().get(0);
+	}
+	
+	private void requestBlocks(String target) throws Exception {
 		// We do not test for block 0 because the client is currently unable to
 		// know if the user attempts to just retrieve block 0 or if he wants to
 		// do early block negotiation with a specific size but actually wants to
@@ -58,7 +122,7 @@ public class RandomAccessBlockTest {
 			
 			int szx = BlockOption.size2Szx(16);
 			Request request = Request.newGet();
-			request.setURI("coap://localhost:"+serverPort+"/"+TARGET);
+			request.setURI("coap://localhost:"+serverPort+"/"+target);
 			request.getOptions().setBlock2(szx, false, num);
 			
 			Response response = request.send().waitForResponse(100);
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.Utils;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.ConcurrentCoapResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that resources and client handlers run on the executors
+ * that the server, the resource or the client select.
+ */
+public class ResourceExecutorTest {
+
+	private CoapServer server;
+	private int serverPort;
+	private volatile Thread handlerThread;
+	private volatile Thread protocolThread;
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		NetworkConfig config = new NetworkConfig();
+		config.setString(NetworkConfig.Keys.RESOURCE_EXECUTOR, NetworkConfig.Keys.RESOURCE_EXECUTOR_VIRTUAL);
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		server = new CoapServer(config);
+		server.addEndpoint(endpoint);
+		server.add(new CoapResource("blocking") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				handlerThread = Thread.currentThread();
+				exchange.respond("blocking");
+			}
+		});
+		ExecutorService executor = Utils.newVirtualThreadExecutor();
+		server.add(new ConcurrentCoapResource("own", executor) {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				handlerThread = Thread.currentThread();
+				exchange.respond("own");
+			}
+		});
+		endpoint.addInterceptor(new MessageInterceptor() {
+			public void receiveRequest(Request request) {
+				protocolThread = Thread.currentThread();
+			}
+			public void sendRequest(Request request) { }
+			public void sendResponse(Response response) { }
+			public void sendEmptyMessage(EmptyMessage message) { }
+			public void receiveResponse(Response response) { }
+			public void receiveEmptyMessage(EmptyMessage message) { }
+		});
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+	
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testServerResourceExecutor() throws Exception {
+		assertNotNull(server.getResourceExecutor());
+		CoapResponse response = new CoapClient("coap://localhost:"+serverPort+"/blocking").get();
+		assertNotNull(response);
+		assertEquals("blocking", response.getResponseText());
+		assertNotNull(handlerThread);
+		assertTrue(handlerThread != protocolThread);
+	}
+	
+	@Test
+	public void testOwnResourceExecutor() throws Exception {
+		CoapResponse response = new CoapClient("coap://localhost:"+serverPort+"/own").get();
+		assertNotNull(response);
+		assertEquals("own", response.getResponseText());
+		assertTrue(handlerThread != protocolThread);
+	}
+	
+	@Test
+	public void testClientHandlerOnVirtualThreads() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/blocking").useVirtualThreads();
+		client.get(new CoapHandler() {
+			@Override
+			public void onLoad(CoapResponse response) {
+				// handlers may block without stalling the protocol stage
+				try { Thread.sleep(10); } catch (InterruptedException e) { }
+				latch.countDown();
+			}
+			@Override
+			public void onError() { }
+		});
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		client.shutdown();
+	}
+	
+	@Test
+	public void testOnlyOwnExecutorsAreShutDown() throws Exception {
+		ExecutorService created = server.getResourceExecutor();
+		ExecutorService given = Executors.newSingleThreadExecutor();
+		server.setResourceExecutor(given);
+		assertTrue(created.isShutdown());
+		server.setResourceExecutor(null);
+		assertFalse(given.isShutdown());
+		
+		CoapClient client = new CoapClient().setExecutor(given).useVirtualThreads();
+		assertFalse(given.isShutdown());
+		client.useExecutor();
+		client.shutdown();
+		assertFalse(given.isShutdown());
+		given.shutdown();
+	}
+	
+	@Test
+	public void testWaitForResponseTimesOut() throws Exception {
+		Request request = new Request(Code.GET);
+		long start = System.currentTimeMillis();
+		assertNull(request.waitForResponse(100));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+	}
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.server.ResourceIndex;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceObserver;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that the {@link ResourceIndex} follows the changes of the
+ * resource tree.
+ */
+public class ResourceIndexTest {
+
+	private CoapResource root;
+	private CoapResource devices;
+	private ResourceIndex index;
+	
+	@Before
+	public void setupTree() {
+		root = new CoapResource("");
+		devices = new CoapResource("devices");
+		root.add(devices);
+		for (int i=0; i<1000; i++) {
+			CoapResource device = new CoapResource("dev"+i);
+			device.add(new CoapResource("temp"));
+			devices.add(device);
+		}
+		index = new ResourceIndex(root);
+	}
+	
+	@Test
+	public void testFind() {
+		assertSame(root, index.find(Collections.<String>emptyList()));
+		assertSame(devices, index.find(path("devices")));
+		assertEquals("/devices/dev42/temp", index.find(path("devices", "dev42", "temp")).getURI());
+		assertEquals(2 + 2 * 1000, index.size());
+		assertNull(index.find(path("devices", "dev1000")));
+		assertNull(index.find(path("devices", "dev42", "temp", "x")));
+	}
+	
+	@Test
+	public void testAddRemoveRename() {
+		assertNull(index.find(path("devices", "new")));
+		CoapResource added = new CoapResource("new");
+		devices.add(added);
+		assertSame(added, index.find(path("devices", "new")));
+		
+		Resource dev7 = index.find(path("devices", "dev7"));
+		devices.remove(dev7);
+		assertNull(index.find(path("devices", "dev7")));
+		assertNull(index.find(path("devices", "dev7", "temp")));
+		
+		devices.remove("dev8");
+		assertNull(index.find(path("devices", "dev8")));
+		
+		added.setName("renamed");
+		assertNull(index.find(path("devices", "new")));
+		assertSame(added, index.find(path("devices", "renamed")));
+		assertEquals(2 + 2 * 998 + 1, index.size());
+	}
+	
+	@Test
+	public void testDynamicChildren() {
+		// a resource that accepts requests to any subresource
+		final CoapResource wildcard = new CoapResource("any") {
+			@Override
+			public Resource getChild(String name) {
+				return this;
+			}
+		};
+		root.add(wildcard);
+		assertSame(wildcard, index.find(path("any", "a", "b")));
+	}
+	
+	@Test
+	public void testObserversRegisteredOnce() {
+		CountingResource sensor = new CountingResource("sensor");
+		CountingResource value = new CountingResource("value");
+		sensor.add(value);
+		devices.add(sensor);
+		assertSame(value, index.find(path("devices", "sensor", "value")));
+		
+		// rebuilds after other changes do not register again
+		devices.add(new CoapResource("other"));
+		assertSame(value, index.find(path("devices", "sensor", "value")));
+		assertEquals(1, sensor.added);
+		assertEquals(1, value.added);
+		assertEquals(0, value.removed);
+		
+		// the index stops observing the whole removed subtree
+		devices.remove(sensor);
+		assertNull(index.find(path("devices", "sensor")));
+		assertEquals(1, sensor.removed);
+		assertEquals(1, value.removed);
+	}
+	
+	private static class CountingResource extends CoapResource {
+		
+		private int added;
+		private int removed;
+		
+		public CountingResource(String name) {
+			super(name);
+		}
+		
+		@Override
+		public void addObserver(ResourceObserver observer) {
+			if (observer instanceof ResourceIndex) added++;
+			super.addObserver(observer);
+		}
+		
+		@Override
+		public void removeObserver(ResourceObserver observer) {
+			if (observer instanceof ResourceIndex) removed++;
+			super.removeObserver(observer);
+		}
+	}
+	
+	private static List<String> path(String... segments) {
+		return Arrays.asList(segments);
+	}
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.ResponseCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that a resource with response caching handles a GET only
+ * once per change, Accept option and query, that a request with the
+ * current ETag is answered with 2.03 (Valid), and that a full cache evicts
+ * responses.
+ */
+public class ResponseCacheTest {
+
+	private CoapServer server;
+	private CachedResource resource;
+	private String uri;
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		resource = new CachedResource("cached");
+		server = new CoapServer();
+		server.addEndpoint(endpoint);
+		server.add(resource);
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/cached";
+	}
+	
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testHitsUntilChanged() {
+		CoapClient client = new CoapClient(uri);
+		assertEquals("v0", client.get().getResponseText());
+		assertEquals("v0", client.get().getResponseText());
+		assertEquals("v0", client.get().getResponseText());
+		assertEquals(1, resource.calls.get());
+		assertEquals(2, resource.getResponseCache().getHits());
+		
+		resource.version = 1;
+		resource.changed();
+		assertEquals(0, resource.getResponseCache().size());
+		assertEquals("v1", client.get().getResponseText());
+		assertEquals("v1", client.get().getResponseText());
+		assertEquals(2, resource.calls.get());
+	}
+	
+	@Test
+	public void testKeyedByAcceptAndQuery() {
+		CoapClient client = new CoapClient(uri);
+		client.get();
+		client.get(MediaTypeRegistry.TEXT_PLAIN);
+		client.setURI(uri+"?a=1");
+		client.get();
+		client.setURI(uri+"?a=2");
+		CoapResponse response = client.get();
+		assertEquals("v0 a=2", response.getResponseText());
+		assertEquals(4, resource.calls.get());
+		assertEquals(4, resource.getResponseCache().size());
+		
+		client.setURI(uri+"?a=1");
+		assertEquals("v0 a=1", client.get().getResponseText());
+		assertEquals(4, resource.calls.get());
+	}
+	
+	@Test
+	public void testValidateETag() {
+		CoapClient client = new CoapClient(uri);
+		CoapResponse response = client.get();
+		byte[] etag = response.getOptions().getETags().get(0);
+		assertEquals(60L, response.getOptions().getMaxAge().longValue());
+		
+		response = client.validate(etag);
+		assertEquals(ResponseCode.VALID, response.getCode());
+		assertArrayEquals(etag, response.getOptions().getETags().get(0));
+		assertEquals(0, response.getPayload().length);
+		assertTrue(response.getOptions().getMaxAge() <= 60);
+		assertEquals(1, resource.calls.get());
+		
+		// a different ETag is answered with the cached representation
+		response = client.validate(new byte[] { 42 });
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertEquals("v0", response.getResponseText());
+		assertEquals(1, resource.calls.get());
+	}
+	
+	@Test
+	public void testDisabled() {
+		resource.setResponseCaching(false);
+		CoapClient client = new CoapClient(uri);
+		client.get();
+		client.get();
+		assertEquals(2, resource.calls.get());
+	}
+	
+	@Test
+	public void testFullCacheEvicts() throws Exception {
+		ResponseCache cache = new ResponseCache(2);
+		cache.put(get("a"), content(10), cache.getGeneration());
+		cache.put(get("b"), content(20), cache.getGeneration());
+		
+		// the response that expires first makes room
+		cache.put(get("c"), content(30), cache.getGeneration());
+		assertEquals(2, cache.size());
+		assertNull(cache.get(get("a")));
+		assertNotNull(cache.get(get("b")));
+		assertNotNull(cache.get(get("c")));
+		
+		// expired responses make room without being requested again
+		cache.invalidate();
+		cache.put(get("a"), content(1), cache.getGeneration());
+		cache.put(get("b"), content(1), cache.getGeneration());
+		Thread.sleep(1100);
+		cache.put(get("c"), content(30), cache.getGeneration());
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get(get("c")));
+	}
+	
+	private static Request get(String query) {
+		Request request = Request.newGet();
+		request.getOptions().setUriQuery(query);
+		return request;
+	}
+	
+	private static Response content(long maxAge) {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setPayload("v0");
+		response.getOptions().setMaxAge(maxAge);
+		return response;
+	}
+	
+	private static class CachedResource extends CoapResource {
+		
+		private final AtomicInteger calls = new AtomicInteger();
+		private volatile int version = 0;
+		
+		public CachedResource(String name) {
+			super(name);
+			setResponseCaching(true);
+		}
+		
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			calls.incrementAndGet();
+			String query = exchange.getRequestOptions().getUriQueryString();
+			exchange.setETag(new byte[] { (byte) version });
+			exchange.respond(query.isEmpty() ? "v"+version : "v"+version+" "+query);
+		}
+	}
+}
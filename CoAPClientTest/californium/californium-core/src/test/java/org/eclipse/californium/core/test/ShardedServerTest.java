@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.ReusePortConnector;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that a server with several sockets on the same port
+ * answers clients over all shards. It is skipped if the JVM does not support
+ * SO_REUSEPORT.
+ */
+public class ShardedServerTest {
+
+	private static final int SHARDS = 4;
+	private static final int CLIENTS = 16;
+	
+	private CoapServer server;
+	private List<CoAPEndpoint> clientEndpoints = new ArrayList<CoAPEndpoint>();
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		Assume.assumeTrue(ReusePortConnector.isSupported());
+		
+		NetworkConfig config = new NetworkConfig()
+				.setInt(NetworkConfig.Keys.NETWORK_STAGE_SOCKET_COUNT, SHARDS);
+		server = new CoapServer(config, 0);
+		server.add(new CoapResource("hello") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("hello");
+			}
+		});
+		server.start();
+	}
+	
+	@After
+	public void shutdownServer() {
+		for (CoAPEndpoint endpoint:clientEndpoints)
+			endpoint.destroy();
+		if (server != null)
+			server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testShardsShareThePort() throws Exception {
+		List<Endpoint> endpoints = server.getEndpoints();
+		assertEquals(SHARDS, endpoints.size());
+		int port = endpoints.get(0).getAddress().getPort();
+		for (Endpoint endpoint:endpoints)
+			assertEquals(port, endpoint.getAddress().getPort());
+		
+		// each client has its own port, so that the kernel spreads them
+		String uri = "coap://localhost:"+port+"/hello";
+		for (int i=0; i<CLIENTS; i++) {
+			CoAPEndpoint endpoint = new CoAPEndpoint(new NetworkConfig());
+			endpoint.start();
+			clientEndpoints.add(endpoint);
+			CoapResponse response = new CoapClient(uri).setEndpoint(endpoint).get();
+			assertNotNull(response);
+			assertEquals("hello", response.getResponseText());
+		}
+	}
+	
+	@Test
+	public void testRestart() throws Exception {
+		server.stop();
+		server.start();
+		// like a UDPConnector, the first shard binds to a new ephemeral port
+		int port = server.getEndpoints().get(0).getAddress().getPort();
+		for (Endpoint endpoint:server.getEndpoints())
+			assertEquals(port, endpoint.getAddress().getPort());
+		
+		CoapResponse response = new CoapClient("coap://localhost:"+port+"/hello").get();
+		assertNotNull(response);
+		assertEquals("hello", response.getResponseText());
+	}
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+import org.eclipse.californium.core.network.serialization.Serializer;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that a resource with shared notifications processes a GET
+ * only once per change and that all observers receive the notification.
+ */
+public class SharedNotificationTest {
+
+	private static final int OBSERVERS = 5;
+	
+	private CoapServer server;
+	private SharedResource resource;
+	private int serverPort;
+	
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		resource = new SharedResource("shared");
+		server = new CoapServer();
+		server.addEndpoint(endpoint);
+		server.add(resource);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+	
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	@Test
+	public void testHandleGETOncePerChange() throws Exception {
+		final CountDownLatch established = new CountDownLatch(OBSERVERS);
+		final CountDownLatch notified = new CountDownLatch(OBSERVERS);
+		List<CoapObserveRelation> relations = new ArrayList<CoapObserveRelation>();
+		for (int i=0; i<OBSERVERS; i++) {
+			CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/shared");
+			relations.add(client.observe(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) {
+					if ("v0".equals(response.getResponseText())) established.countDown();
+					if ("v1".equals(response.getResponseText())) notified.countDown();
+				}
+				@Override
+				public void onError() { }
+			}));
+		}
+		assertTrue(established.await(2, TimeUnit.SECONDS));
+		assertEquals(OBSERVERS, resource.getObserverCount());
+		
+		resource.calls.set(0);
+		resource.version = 1;
+		resource.changed();
+		
+		assertTrue(notified.await(2, TimeUnit.SECONDS));
+		assertEquals(1, resource.calls.get());
+		
+		for (CoapObserveRelation relation:relations)
+			relation.proactiveCancel();
+	}
+	
+	@Test
+	public void testSharedBodySerialization() {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.NON);
+		response.setMID(4711);
+		response.setToken(new byte[] { 1, 2, 3, 4 });
+		response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+		response.getOptions().setObserve(42);
+		response.setPayload("shared payload");
+		byte[] expected = new DataSerializer().serializeResponse(response);
+		
+		response.setSharedBody(new DataSerializer().serializeBody(response));
+		byte[] actual = new Serializer().serialize(response).getBytes();
+		assertArrayEquals(expected, actual);
+	}
+	
+	private static class SharedResource extends CoapResource {
+		
+		private final AtomicInteger calls = new AtomicInteger();
+		private volatile int version = 0;
+		
+		public SharedResource(String name) {
+			super(name);
+			setObservable(true);
+			setSharedNotifications(true);
+		}
+		
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			calls.incrementAndGet();
+			exchange.respond("v"+version);
+		}
+	}
+}
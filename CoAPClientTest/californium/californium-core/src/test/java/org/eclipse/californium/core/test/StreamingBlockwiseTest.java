@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.BlockSource;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that large bodies are sent blockwise from a BlockSource
+ * and that received bodies above the spool threshold are stored in a file
+ * instead of being assembled in memory.
+ */
+public class StreamingBlockwiseTest {
+
+	private static final int BODY_SIZE = 5000;
+	
+	private CoapServer server;
+	private StreamResource resource;
+	private CoAPEndpoint clientEndpoint;
+	private File file;
+	private byte[] body;
+	private String uri;
+	
+	@Before
+	public void startupServer() throws IOException {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		
+		body = new byte[BODY_SIZE];
+		for (int i=0; i<BODY_SIZE; i++)
+			body[i] = (byte) (i * 31);
+		file = File.createTempFile("streaming", ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(body);
+		out.close();
+		
+		CoAPEndpoint endpoint = new CoAPEndpoint(0, createConfig());
+		resource = new StreamResource("stream");
+		server = new CoapServer();
+		server.addEndpoint(endpoint);
+		server.add(resource);
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/stream";
+		
+		clientEndpoint = new CoAPEndpoint(createConfig());
+		clientEndpoint.start();
+	}
+	
+	@After
+	public void shutdownServer() {
+		clientEndpoint.destroy();
+		server.destroy();
+		file.delete();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+	
+	private static NetworkConfig createConfig() {
+		return new NetworkConfig()
+			.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, 256)
+			.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, 256)
+			.setInt(NetworkConfig.Keys.BLOCKWISE_SPOOL_THRESHOLD, 1024);
+	}
+	
+	@Test
+	public void testUploadFromChannelIsSpooled() throws Exception {
+		CoapClient client = new CoapClient(uri).setEndpoint(clientEndpoint);
+		BlockSource source = BlockSource.open(Channels.newChannel(new ByteArrayInputStream(body)), body.length);
+		
+		CoapResponse response = client.put(source, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+		assertNotNull(response);
+		assertEquals(ResponseCode.CHANGED, response.getCode());
+		assertArrayEquals(body, resource.uploaded);
+		assertNotNull(resource.spooled);
+		assertEquals(BODY_SIZE, resource.spooled.size());
+		// the spool has been closed when the response was sent
+		try {
+			resource.spooled.read(0, 1);
+			fail("spool is still open");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testDownloadFromMappedFileIsSpooled() throws Exception {
+		CoapClient client = new CoapClient(uri).setEndpoint(clientEndpoint);
+		
+		CoapResponse response = client.get();
+		assertNotNull(response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertNull(response.getPayload());
+		BlockSource source = response.getPayloadSource();
+		assertNotNull(source);
+		assertEquals(BODY_SIZE, source.size());
+		assertArrayEquals(body, source.readAll());
+		source.close();
+	}
+	
+	@Test
+	public void testSourceIsClosedWithExchange() throws Exception {
+		CoapClient client = new CoapClient(uri+"?tracked").setEndpoint(clientEndpoint);
+		
+		CoapResponse response = client.get();
+		assertNotNull(response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertArrayEquals(body, response.getPayloadSource().readAll());
+		response.getPayloadSource().close();
+		assertTrue(resource.tracked.closed);
+	}
+	
+	@Test
+	public void testSharedBlockwiseNotification() throws Exception {
+		final int observers = 3;
+		resource.setObservable(true);
+		resource.setSharedNotifications(true);
+		final CountDownLatch established = new CountDownLatch(observers);
+		final CountDownLatch notified = new CountDownLatch(observers);
+		final byte[] changed = body.clone();
+		changed[BODY_SIZE - 1]++;
+		List<CoapObserveRelation> relations = new ArrayList<CoapObserveRelation>();
+		for (int i=0; i<observers; i++) {
+			CoapClient client = new CoapClient(uri+"?channel").setEndpoint(clientEndpoint);
+			relations.add(client.observe(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) {
+					try {
+						byte[] received = response.getPayloadSource().readAll();
+						response.getPayloadSource().close();
+						if (Arrays.equals(body, received)) established.countDown();
+						if (Arrays.equals(changed, received)) notified.countDown();
+					} catch (IOException e) { }
+				}
+				@Override
+				public void onError() { }
+			}));
+		}
+		assertTrue(established.await(5, TimeUnit.SECONDS));
+		assertEquals(observers, resource.getObserverCount());
+		
+		resource.current = changed;
+		resource.changed();
+		assertTrue(notified.await(5, TimeUnit.SECONDS));
+		assertEquals(observers, resource.getObserverCount());
+		
+		for (CoapObserveRelation relation:relations)
+			relation.proactiveCancel();
+	}
+	
+	@Test
+	public void testAbandonedUploadIsReleased() throws Exception {
+		NetworkConfig config = createConfig().setLong(NetworkConfig.Keys.EXCHANGE_LIFETIME, 300);
+		CoAPEndpoint endpoint = new CoAPEndpoint(0, config);
+		CoapServer other = new CoapServer();
+		other.addEndpoint(endpoint);
+		other.add(new StreamResource("stream"));
+		other.start();
+		try {
+			int spools = countSpools();
+			// the client fails to read its body after five blocks, which the server spools
+			BlockSource failing = new BlockSource() {
+				@Override
+				public long size() {
+					return BODY_SIZE;
+				}
+				@Override
+				public byte[] read(long position, int length) throws IOException {
+					if (position >= 1280) throw new IOException("Body is gone");
+					return Arrays.copyOfRange(body, (int) position, (int) position + length);
+				}
+			};
+			CoapClient client = new CoapClient("coap://localhost:"+endpoint.getAddress().getPort()+"/stream")
+				.setEndpoint(clientEndpoint).setTimeout(500);
+			assertNull(client.put(failing, MediaTypeRegistry.APPLICATION_OCTET_STREAM));
+			
+			long deadline = System.currentTimeMillis() + 3000;
+			while (countSpools() > spools && System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+			assertEquals(spools, countSpools());
+		} finally {
+			other.destroy();
+		}
+	}
+	
+	private static int countSpools() {
+		String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("cf-block");
+			}
+		});
+		return names != null ? names.length : 0;
+	}
+	
+	@Test
+	public void testSmallBodyIsSentAsPayload() throws Exception {
+		BlockSource source = BlockSource.wrap("small".getBytes());
+		CoapClient client = new CoapClient(uri).setEndpoint(clientEndpoint);
+		
+		CoapResponse response = client.put(source, MediaTypeRegistry.TEXT_PLAIN);
+		assertEquals(ResponseCode.CHANGED, response.getCode());
+		assertArrayEquals("small".getBytes(), resource.uploaded);
+		assertNull(resource.spooled);
+	}
+	
+	private class StreamResource extends CoapResource {
+		
+		private volatile byte[] uploaded;
+		private volatile BlockSource spooled;
+		private volatile byte[] current = body;
+		private volatile TrackedSource tracked;
+		
+		public StreamResource(String name) {
+			super(name);
+		}
+		
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			String query = exchange.getRequestOptions().getUriQueryString();
+			if ("channel".equals(query)) {
+				// a sequential source can only be read by one transfer
+				byte[] representation = current;
+				BlockSource source = BlockSource.open(Channels.newChannel(new ByteArrayInputStream(representation)), representation.length);
+				exchange.respond(ResponseCode.CONTENT, source, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+				return;
+			} else if ("tracked".equals(query)) {
+				tracked = new TrackedSource(current);
+				exchange.respond(ResponseCode.CONTENT, tracked, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+				return;
+			}
+			try {
+				exchange.respond(ResponseCode.CONTENT, BlockSource.map(file), MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+			} catch (IOException e) {
+				exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+			}
+		}
+		
+		@Override
+		public void handlePUT(CoapExchange exchange) {
+			spooled = exchange.advanced().getRequest().getPayloadSource();
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				InputStream in = exchange.getRequestPayloadStream();
+				byte[] buffer = new byte[100];
+				int n;
+				while ((n = in.read(buffer)) > 0)
+					out.write(buffer, 0, n);
+				uploaded = out.toByteArray();
+				exchange.respond(ResponseCode.CHANGED);
+			} catch (IOException e) {
+				exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+			}
+		}
+	}
+	
+	private static class TrackedSource extends BlockSource {
+		
+		private final BlockSource source;
+		private volatile boolean closed;
+		
+		private TrackedSource(byte[] body) {
+			this.source = BlockSource.wrap(body);
+		}
+		
+		@Override
+		public long size() {
+			return source.size();
+		}
+		
+		@Override
+		public byte[] read(long position, int length) throws IOException {
+			if (closed) throw new IOException("Source is closed");
+			return source.read(position, length);
+		}
+		
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}